@@ -0,0 +1,160 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the grids of upcoming chunks on a background thread, so that taking the next one is a queue poll.
+ * At most capacity finished chunks wait in the queue; while it is full the producer blocks until a chunk is
+ * taken. Chunk i is filled by the populator with the random sequence seeded by {@link #chunkSeed(long, long)},
+ * drawn from a Random of the producer's own (see {@link RNG#useOwn}), so its content depends only on the
+ * generator's seed and i, not on timing, and the shared sequence of the other threads is left alone.
+ * Grids handed back through {@link #recycle(Chunk)} are reset on the producer thread and reused, every grid
+ * keeping its own node pools.
+ */
+public class ChunkGenerator implements AutoCloseable {
+
+    /**
+     * Reserves the content of one chunk in a grid that is all free. Runs on the producer thread.
+     */
+    public interface Populator {
+        void populate(GridCreator grid, long chunkIndex);
+    }
+
+    public static final class Chunk {
+        public final long index;
+        public final GridCreator grid;
+
+        private Chunk(long index, GridCreator grid) {
+            this.index = index;
+            this.grid = grid;
+        }
+    }
+
+    private final int nRows, nCols;
+    private final Engine engine;
+    private final long seed;
+    private final Populator populator;
+
+    private final BlockingQueue<Chunk> ready;
+    private final ConcurrentLinkedQueue<GridCreator> recycled = new ConcurrentLinkedQueue<>();
+    private final Thread producer;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    public ChunkGenerator(int nRows, int nCols, Engine engine, int capacity, long seed, Populator populator) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.engine = engine;
+        this.seed = seed;
+        this.populator = populator;
+        this.ready = new ArrayBlockingQueue<>(capacity);
+        this.producer = new Thread(this::produce, "chunk-generator");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    /**
+     * Seed of the random sequence chunk chunkIndex is filled with (SplitMix64 of both), to reproduce a chunk
+     * without the generator: RNG.setSeed(chunkSeed(seed, i)) followed by the same populator call, on any thread.
+     */
+    public static long chunkSeed(long seed, long chunkIndex) {
+        long z = seed + (chunkIndex + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Next finished chunk in index order, or null if it is not ready yet. Never blocks.
+     */
+    public Chunk poll() {
+        checkFailure();
+        return ready.poll();
+    }
+
+    /**
+     * Next finished chunk in index order, waiting for it if needed.
+     */
+    public Chunk take() throws InterruptedException {
+        Chunk chunk;
+        do {
+            checkFailure();
+            // Wakes up now and then to notice a failed or closed producer instead of waiting forever.
+            chunk = ready.poll(10, TimeUnit.MILLISECONDS);
+        } while (chunk == null);
+        return chunk;
+    }
+
+    /**
+     * Hands the grid of a chunk back for reuse. The chunk must not be used afterwards.
+     */
+    public void recycle(Chunk chunk) {
+        recycled.add(chunk.grid);
+    }
+
+    /**
+     * Stops the producer and destroys the grids it holds. Chunks taken and not recycled stay usable.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        producer.interrupt(); // out of a blocking put
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Chunk chunk; (chunk = ready.poll()) != null; ) {
+            chunk.grid.destroy();
+        }
+        for (GridCreator grid; (grid = recycled.poll()) != null; ) {
+            grid.destroy();
+        }
+    }
+
+    private void produce() {
+        RNG.useOwn(new Random());
+        GridCreator grid = null;
+        try {
+            for (long index = 0; !closed; index++) {
+                grid = recycled.poll();
+                if (grid == null) {
+                    grid = new GridCreator(nRows, nCols, engine);
+                } else {
+                    grid.reset();
+                }
+                RNG.setSeed(chunkSeed(seed, index));
+                populator.populate(grid, index);
+                ready.put(new Chunk(index, grid));
+                grid = null;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            if (grid != null) {
+                grid.destroy();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Chunk generation failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Generator is closed");
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package symbolic;
+
+import symbolic.engine.GridEngine;
+
+import java.util.Arrays;
+
+/**
+ * Connected components of the free cells (4-neighbourhood), kept up to date under reservations.
+ * Free cells are stored as maximal horizontal runs, each labelled with its component.
+ * <p>
+ * Reserving cells can only split the component they belong to, into the parts reachable from the free
+ * neighbours of those cells. One breadth-first search over runs starts at each neighbour; the searches advance
+ * a run at a time in turns, and two searches that meet are merged into one. When a single search is left, every
+ * search that ran out before it enclosed a component of its own, which gets a new label. The work is
+ * proportional to the runs of the split-off parts (times the number of starting searches), not to the grid.
+ */
+final class Connectivity {
+
+    private final int nRows, nCols;
+
+    // Runs by id: row, start (inclusive) and end (exclusive) column, component label. Freed ids are reused.
+    private int[] runRow = new int[64], runStart = new int[64], runEnd = new int[64], runLabel = new int[64];
+    private int runCnt;
+    private int[] freeIds = new int[16];
+    private int freeIdCnt;
+
+    // Ids of the runs of every row, ordered by start.
+    private final int[][] rowRuns;
+    private final int[] rowRunCnt;
+
+    private int components, nextLabel;
+
+    // Search state, valid for runs whose mark is the current one.
+    private int[] mark = new int[64], owner = new int[64];
+    private int currentMark;
+    // Searches: union-find parents, runs visited and queue of runs to expand of every root.
+    private int[] searchParent = new int[16];
+    private IntList[] visited = new IntList[0], queue = new IntList[0];
+    private int[] queueHead = new int[16];
+    private final IntList seeds = new IntList(), active = new IntList(), finished = new IntList();
+
+    /**
+     * Components of an all-free grid.
+     */
+    Connectivity(int nRows, int nCols) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.rowRuns = new int[nRows + 1][];
+        this.rowRunCnt = new int[nRows + 1];
+        reset();
+    }
+
+    /**
+     * Components of the current free space of engine, labelled with one search over its runs.
+     */
+    Connectivity(int nRows, int nCols, GridEngine engine) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.rowRuns = new int[nRows + 1][];
+        this.rowRunCnt = new int[nRows + 1];
+        engine.forEachFree(1, nRows, (row, col, length) -> {
+            int id = newRun(row, col, col + length);
+            insertInRow(row, rowRunCnt[row], id);
+        });
+        labelAll();
+    }
+
+    int componentCount() {
+        return components;
+    }
+
+    /**
+     * Whether both cells are free and in the same component. O(log k) for k runs in their rows.
+     */
+    boolean connected(int row1, int col1, int row2, int col2) {
+        int a = runAt(row1, col1), b = runAt(row2, col2);
+        return a != -1 && b != -1 && runLabel[a] == runLabel[b];
+    }
+
+    void reset() {
+        runCnt = 0;
+        freeIdCnt = 0;
+        components = 0;
+        nextLabel = 0;
+        Arrays.fill(rowRunCnt, 0);
+        if (nCols == 0) {
+            return;
+        }
+        for (int row = 1; row <= nRows; row++) {
+            int id = newRun(row, 1, nCols + 1);
+            insertInRow(row, 0, id);
+            runLabel[id] = 0;
+        }
+        nextLabel = 1;
+        components = nRows > 0 ? 1 : 0;
+    }
+
+    /**
+     * Takes the cells of a free segment out of the free space and splits its component if needed.
+     */
+    void reserve(boolean vertical, int row, int col, int length) {
+        newMark();
+        seeds.clear();
+        if (vertical) {
+            for (int r = row; r < row + length; r++) {
+                cut(r, col, col + 1);
+            }
+            addSeed(runAt(row - 1, col));
+            addSeed(runAt(row + length, col));
+        } else {
+            cut(row, col, col + length);
+            for (int r : new int[]{row - 1, row + 1}) {
+                for (int i = firstOverlapping(r, col); i != -1 && i < rowRunCnt[r]
+                        && runStart[rowRuns[r][i]] < col + length; i++) {
+                    addSeed(rowRuns[r][i]);
+                }
+            }
+        }
+        if (seeds.size == 0) {
+            --components; // the component consisted of these cells only
+        } else if (seeds.size > 1) {
+            split();
+        }
+    }
+
+    // --------------------------
+    //         Splitting
+    // --------------------------
+
+    /**
+     * Removes columns [from, to) of row from the run containing them; the parts left become seeds.
+     */
+    private void cut(int row, int from, int to) {
+        int i = indexAt(row, from);
+        int id = rowRuns[row][i];
+        int start = runStart[id], end = runEnd[id];
+        if (start < from && to < end) {
+            runEnd[id] = from;
+            int right = newRun(row, to, end);
+            runLabel[right] = runLabel[id];
+            insertInRow(row, i + 1, right);
+            addSeed(id);
+            addSeed(right);
+        } else if (start < from) {
+            runEnd[id] = from;
+            addSeed(id);
+        } else if (to < end) {
+            runStart[id] = to;
+            addSeed(id);
+        } else {
+            removeFromRow(row, i);
+            freeIds = push(freeIds, freeIdCnt++, id);
+        }
+    }
+
+    private void addSeed(int id) {
+        if (id != -1 && mark[id] != currentMark) {
+            mark[id] = currentMark;
+            owner[id] = seeds.size;
+            seeds.add(id);
+        }
+    }
+
+    /**
+     * The interleaved searches described in the class comment, one per seed. Seeds are marked and owned already.
+     */
+    private void split() {
+        int searches = seeds.size;
+        if (searchParent.length < searches) {
+            searchParent = new int[2 * searches];
+            queueHead = new int[2 * searches];
+        }
+        if (visited.length < searches) {
+            int old = visited.length;
+            visited = Arrays.copyOf(visited, 2 * searches);
+            queue = Arrays.copyOf(queue, 2 * searches);
+            for (int s = old; s < visited.length; s++) {
+                visited[s] = new IntList();
+                queue[s] = new IntList();
+            }
+        }
+        active.clear();
+        finished.clear();
+        for (int s = 0; s < searches; s++) {
+            searchParent[s] = s;
+            visited[s].clear();
+            queue[s].clear();
+            queueHead[s] = 0;
+            visited[s].add(seeds.get(s));
+            queue[s].add(seeds.get(s));
+            active.add(s);
+        }
+        while (active.size > 1) {
+            for (int a = 0; a < active.size && active.size > 1; ) {
+                int s = active.get(a);
+                if (searchParent[s] != s) {
+                    active.removeAt(a); // merged into another search
+                    continue;
+                }
+                if (queueHead[s] == queue[s].size) {
+                    active.removeAt(a);
+                    finished.add(s);
+                    continue;
+                }
+                expand(s, queue[s].get(queueHead[s]++));
+                ++a;
+            }
+        }
+        // The search left over keeps the old label, whatever it has not visited yet included.
+        for (int f = 0; f < finished.size; f++) {
+            int s = finished.get(f), label = nextLabel++;
+            IntList runs = visited[s];
+            for (int i = 0; i < runs.size; i++) {
+                runLabel[runs.get(i)] = label;
+            }
+            ++components;
+        }
+    }
+
+    private void expand(int s, int id) {
+        int row = runRow[id], start = runStart[id], end = runEnd[id];
+        for (int r = row - 1; r <= row + 1; r += 2) {
+            if (r < 1 || r > nRows) {
+                continue;
+            }
+            for (int i = firstOverlapping(r, start); i != -1 && i < rowRunCnt[r] && runStart[rowRuns[r][i]] < end; i++) {
+                int next = rowRuns[r][i];
+                if (mark[next] != currentMark) {
+                    mark[next] = currentMark;
+                    owner[next] = s;
+                    visited[s].add(next);
+                    queue[s].add(next);
+                } else {
+                    int other = find(owner[next]);
+                    if (other != s) {
+                        s = union(s, other);
+                    }
+                }
+            }
+        }
+    }
+
+    private int find(int s) {
+        while (searchParent[s] != s) {
+            searchParent[s] = searchParent[searchParent[s]];
+            s = searchParent[s];
+        }
+        return s;
+    }
+
+    /**
+     * Merges two search roots, the smaller into the larger. Returns the root left.
+     */
+    private int union(int a, int b) {
+        if (visited[a].size < visited[b].size) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        searchParent[b] = a;
+        visited[a].addAll(visited[b], 0);
+        queue[a].addAll(queue[b], queueHead[b]);
+        return a;
+    }
+
+    // --------------------------
+    //         Runs
+    // --------------------------
+
+    private void labelAll() {
+        components = 0;
+        nextLabel = 0;
+        newMark();
+        IntList pending = new IntList();
+        for (int row = 1; row <= nRows; row++) {
+            for (int i = 0; i < rowRunCnt[row]; i++) {
+                int first = rowRuns[row][i];
+                if (mark[first] == currentMark) {
+                    continue;
+                }
+                int label = nextLabel++;
+                ++components;
+                mark[first] = currentMark;
+                pending.clear();
+                pending.add(first);
+                for (int head = 0; head < pending.size; head++) {
+                    int id = pending.get(head);
+                    runLabel[id] = label;
+                    for (int r = runRow[id] - 1; r <= runRow[id] + 1; r += 2) {
+                        if (r < 1 || r > nRows) {
+                            continue;
+                        }
+                        for (int j = firstOverlapping(r, runStart[id]); j != -1 && j < rowRunCnt[r]
+                                && runStart[rowRuns[r][j]] < runEnd[id]; j++) {
+                            int next = rowRuns[r][j];
+                            if (mark[next] != currentMark) {
+                                mark[next] = currentMark;
+                                pending.add(next);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Id of the run containing the cell, -1 if the cell is reserved or outside the grid.
+     */
+    private int runAt(int row, int col) {
+        if (row < 1 || row > nRows) {
+            return -1;
+        }
+        int i = indexAt(row, col);
+        return i == -1 || runEnd[rowRuns[row][i]] <= col ? -1 : rowRuns[row][i];
+    }
+
+    /**
+     * Index in its row of the last run starting at or before col, -1 if none.
+     */
+    private int indexAt(int row, int col) {
+        int lo = 0, hi = rowRunCnt[row] - 1, res = -1;
+        int[] runs = rowRuns[row];
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runStart[runs[mid]] <= col) {
+                res = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Index of the first run of the row that ends after col, -1 if the row is outside the grid.
+     */
+    private int firstOverlapping(int row, int col) {
+        if (row < 1 || row > nRows) {
+            return -1;
+        }
+        int i = indexAt(row, col);
+        if (i == -1) {
+            return 0;
+        }
+        return runEnd[rowRuns[row][i]] > col ? i : i + 1;
+    }
+
+    private int newRun(int row, int start, int end) {
+        int id;
+        if (freeIdCnt > 0) {
+            id = freeIds[--freeIdCnt];
+        } else {
+            id = runCnt++;
+            if (id == runRow.length) {
+                int capacity = 2 * id;
+                runRow = Arrays.copyOf(runRow, capacity);
+                runStart = Arrays.copyOf(runStart, capacity);
+                runEnd = Arrays.copyOf(runEnd, capacity);
+                runLabel = Arrays.copyOf(runLabel, capacity);
+                mark = Arrays.copyOf(mark, capacity);
+                owner = Arrays.copyOf(owner, capacity);
+            }
+        }
+        runRow[id] = row;
+        runStart[id] = start;
+        runEnd[id] = end;
+        mark[id] = 0;
+        return id;
+    }
+
+    private void insertInRow(int row, int index, int id) {
+        int[] runs = rowRuns[row];
+        int cnt = rowRunCnt[row];
+        if (runs == null) {
+            runs = rowRuns[row] = new int[2];
+        } else if (cnt == runs.length) {
+            runs = rowRuns[row] = Arrays.copyOf(runs, 2 * cnt);
+        }
+        System.arraycopy(runs, index, runs, index + 1, cnt - index);
+        runs[index] = id;
+        rowRunCnt[row] = cnt + 1;
+    }
+
+    private void removeFromRow(int row, int index) {
+        int[] runs = rowRuns[row];
+        System.arraycopy(runs, index + 1, runs, index, rowRunCnt[row] - index - 1);
+        --rowRunCnt[row];
+    }
+
+    private void newMark() {
+        if (++currentMark == Integer.MAX_VALUE) {
+            Arrays.fill(mark, 0);
+            currentMark = 1;
+        }
+    }
+
+    private static int[] push(int[] array, int size, int value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, 2 * size);
+        }
+        array[size] = value;
+        return array;
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    private static final class IntList {
+        private int[] data = new int[16];
+        private int size;
+
+        int get(int i) {
+            return data[i];
+        }
+
+        void add(int value) {
+            data = push(data, size++, value);
+        }
+
+        void addAll(IntList other, int from) {
+            int n = other.size - from;
+            if (n <= 0) {
+                return;
+            }
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, size + n));
+            }
+            System.arraycopy(other.data, from, data, size, n);
+            size += n;
+        }
+
+        void removeAt(int i) {
+            data[i] = data[--size];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
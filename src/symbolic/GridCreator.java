@@ -1,75 +1,758 @@
 package symbolic;
 
-import symbolic.segments.PartialSegmentHandler;
+import symbolic.engine.Bitboard;
+import symbolic.engine.Engine;
+import symbolic.engine.GridEngine;
+import symbolic.engine.GridExport;
+import symbolic.engine.TreeGridEngine;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.instrumentation.Operation;
+import symbolic.segments.by_end_pos.SegmentsByEndPosition;
+import symbolic.segments.by_length.PlacementCounts;
+import symbolic.segments.by_length.SegmentsByLength;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 
 public class GridCreator {
+    /**
+     * Initial pool capacity of trees created without the grid's dimensions. Grids size their pools from their
+     * dimensions instead, see {@link symbolic.segments.util.PoolSizing}.
+     */
     public static final int NODE_POOL_SIZE = 10000;
-    private final PartialSegmentHandler vertical, horizontal;
+    private final int nRows, nCols;
+    private final GridEngine engine;
     private final GridCreator parent;
     private final int parentRowOffset;
+    // Rows of the parent owned by this grid if it is a concurrent child, null otherwise.
+    private final RowBand band;
+    // Bands of the concurrent children of this grid. Only touched by the thread that uses this grid.
+    private final List<RowBand> bands = new ArrayList<>();
+    // Components of the free cells, built by the first connectivity query, null until then.
+    private Connectivity connectivity;
+    // Open change feeds, see openFeed.
+    private ReservationFeed[] feeds = new ReservationFeed[0];
 
     public GridCreator(int nRows, int nCols, GridCreator parentGrid, int parentRowOffset) {
-        this.horizontal = new PartialSegmentHandler(nRows, nCols, false);
-        this.vertical = new PartialSegmentHandler(nRows, nCols, true);
+        this(nRows, nCols, parentGrid, parentRowOffset, Engine.AUTO);
+    }
+
+    public GridCreator(int nRows, int nCols, GridCreator parentGrid, int parentRowOffset, Engine engine) {
+        this(nRows, nCols, engine.create(nRows, nCols), parentGrid, parentRowOffset);
+    }
+
+    /**
+     * Grid whose engine sizes its node pools for expectedFill of the cells reserved, in [0, 1], instead of
+     * -Dsymbolic.pool.expectedFill, see {@link Engine#create(int, int, double)}.
+     */
+    public GridCreator(int nRows, int nCols, GridCreator parentGrid, int parentRowOffset, Engine engine,
+                       double expectedFill) {
+        this(nRows, nCols, engine.create(nRows, nCols, expectedFill), parentGrid, parentRowOffset);
+    }
+
+    /**
+     * Tree engine with explicitly chosen indexes.
+     *
+     * @param lengthIndex   implementation of the by-length index used by both orientations,
+     *                      e.g. {@code BucketedSegmentsByLength::new}
+     * @param positionIndex implementation of the by-position index used by both orientations,
+     *                      e.g. {@code PerLineSegmentsByEndPosition::new}
+     */
+    public GridCreator(int nRows, int nCols, GridCreator parentGrid, int parentRowOffset,
+                       SegmentsByLength.Factory lengthIndex, SegmentsByEndPosition.Factory positionIndex) {
+        this(nRows, nCols, new TreeGridEngine(nRows, nCols, lengthIndex, positionIndex), parentGrid, parentRowOffset);
+    }
+
+    private GridCreator(int nRows, int nCols, GridEngine engine, GridCreator parentGrid, int parentRowOffset) {
+        this(nRows, nCols, engine, parentGrid, parentRowOffset, null);
+    }
+
+    private GridCreator(int nRows, int nCols, GridEngine engine, GridCreator parentGrid, int parentRowOffset,
+                        RowBand band) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.engine = engine;
         this.parentRowOffset = parentRowOffset;
         this.parent = parentGrid;
+        this.band = band;
     }
 
     public GridCreator(int nRows, int nCols) {
-        this(nRows, nCols, null, 0);
+        this(nRows, nCols, null, 0, Engine.AUTO);
+    }
+
+    public GridCreator(int nRows, int nCols, Engine engine) {
+        this(nRows, nCols, null, 0, engine);
+    }
+
+    public GridCreator(int nRows, int nCols, Engine engine, double expectedFill) {
+        this(nRows, nCols, null, 0, engine, expectedFill);
     }
 
     public void reserveVertical(int row, int col, int length) {
-        if (parent != null) {
-            parent.reserveVertical(row + parentRowOffset, col, length);
-        }
-        vertical.reserve(row, col, length);
-        for (int r = row; r < row + length; r++) {
-            horizontal.reserve(r, col, 1);
-        }
+        long start = started();
+        checkReservable(true, row, col, length);
+        reserveChecked(true, row, col, length);
+        finished(Operation.RESERVE, true, start);
     }
 
     public void reserveHorizontal(int row, int col, int length) {
-        if (parent != null) {
-            parent.reserveHorizontal(row + parentRowOffset, col, length);
+        long start = started();
+        checkReservable(false, row, col, length);
+        reserveChecked(false, row, col, length);
+        finished(Operation.RESERVE, false, start);
+    }
+
+    /**
+     * Reserves the vertical segment here and in every ancestor if it can be reserved in all of them, reserves
+     * nothing otherwise. Unlike reserveVertical, a segment that does not fit is reported, not thrown, so probing
+     * many candidate spots costs no exceptions: one lookup per grid (see {@link #firstConflictVertical}) for a
+     * failed attempt, two for a successful one.
+     */
+    public ReserveStatus tryReserveVertical(int row, int col, int length) {
+        long start = started();
+        ReserveStatus res = reservable(true, row, col, length);
+        if (res == ReserveStatus.RESERVED) {
+            reserveChecked(true, row, col, length);
         }
-        horizontal.reserve(row, col, length);
-        for (int c = col; c < col + length; c++) {
-            vertical.reserve(row, c, 1);
+        finished(Operation.TRY_RESERVE, true, res == ReserveStatus.RESERVED ? 1 : 0, start);
+        return res;
+    }
+
+    public ReserveStatus tryReserveHorizontal(int row, int col, int length) {
+        long start = started();
+        ReserveStatus res = reservable(false, row, col, length);
+        if (res == ReserveStatus.RESERVED) {
+            reserveChecked(false, row, col, length);
         }
+        finished(Operation.TRY_RESERVE, false, res == ReserveStatus.RESERVED ? 1 : 0, start);
+        return res;
     }
 
     public GridSegment reserveRandomFittingVertical(int length) {
-        GridSegment res = vertical.reserveRandomFitting(length);
-        if (parent != null) {
-            parent.reserveVertical(res.row + parentRowOffset, res.col, res.length);
-        }
-        for (int r = res.row; r < res.row + length; r++) {
-            horizontal.reserve(r, res.col, 1);
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveRandomFitting(true, length);
+            reserved(true, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(true, engine.randomFitting(true, length, length), length, length);
         }
+        finished(Operation.RESERVE_RANDOM_FITTING, true, start);
         return res;
     }
 
     public GridSegment reserveRandomFittingHorizontal(int length) {
-        GridSegment res = horizontal.reserveRandomFitting(length);
-        if (parent != null) {
-            parent.reserveHorizontal(res.row + parentRowOffset, res.col, res.length);
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveRandomFitting(false, length);
+            reserved(false, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(false, engine.randomFitting(false, length, length), length, length);
         }
-        for (int c = res.col; c < res.col + length; c++) {
-            vertical.reserve(res.row, c, 1);
+        finished(Operation.RESERVE_RANDOM_FITTING, false, start);
+        return res;
+    }
+
+    /**
+     * n random vertical segments of the given length, each uniform over the placements the previous ones left:
+     * the same draws and segments as n calls of {@link #reserveRandomFittingVertical(int)}, with the cells they
+     * take from the horizontal indexes, and the copies in the ancestors, applied as one batch per grid.
+     * Stops early, returning fewer, once no placement is left, or, in a child grid, at a draw that an ancestor
+     * already has reserved cells of (where the single call would throw).
+     */
+    public GridSegment[] reserveRandomFittingVerticalBatch(int length, int n) {
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment[] res = parent == null ? engine.reserveRandomFittingBatch(true, length, n)
+                                           : reserveDrawnBatch(true, length, n);
+        for (GridSegment seg : res) {
+            reserved(true, seg.row, seg.col, seg.length);
+        }
+        finished(Operation.RESERVE_RANDOM_FITTING_BATCH, true, res.length, start);
+        return res;
+    }
+
+    /**
+     * Horizontal counterpart of {@link #reserveRandomFittingVerticalBatch(int, int)}.
+     */
+    public GridSegment[] reserveRandomFittingHorizontalBatch(int length, int n) {
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment[] res = parent == null ? engine.reserveRandomFittingBatch(false, length, n)
+                                           : reserveDrawnBatch(false, length, n);
+        for (GridSegment seg : res) {
+            reserved(false, seg.row, seg.col, seg.length);
+        }
+        finished(Operation.RESERVE_RANDOM_FITTING_BATCH, false, res.length, start);
+        return res;
+    }
+
+    /**
+     * Reserves a random vertical segment with length in [minLength, maxLength],
+     * uniformly over all placements of all these lengths.
+     */
+    public GridSegment reserveRandomFittingVertical(int minLength, int maxLength) {
+        long start = started();
+        PlacementCounts.checkRange(minLength, maxLength);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveRandomFitting(true, minLength, maxLength);
+            reserved(true, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(true, engine.randomFitting(true, minLength, maxLength), minLength, maxLength);
+        }
+        finished(Operation.RESERVE_RANDOM_FITTING_RANGE, true, start);
+        return res;
+    }
+
+    /**
+     * Horizontal counterpart of {@link #reserveRandomFittingVertical(int, int)}.
+     */
+    public GridSegment reserveRandomFittingHorizontal(int minLength, int maxLength) {
+        long start = started();
+        PlacementCounts.checkRange(minLength, maxLength);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveRandomFitting(false, minLength, maxLength);
+            reserved(false, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(false, engine.randomFitting(false, minLength, maxLength), minLength, maxLength);
         }
+        finished(Operation.RESERVE_RANDOM_FITTING_RANGE, false, start);
         return res;
     }
 
+    /**
+     * Reserves a vertical segment at the start of the free segment chosen by the policy.
+     */
+    public GridSegment reserveFittingVertical(int length, Policy policy) {
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveFitting(true, length, policy);
+            reserved(true, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(true, engine.fitting(true, length, policy), length, length);
+        }
+        finished(Operation.RESERVE_FITTING, true, start);
+        return res;
+    }
+
+    public GridSegment reserveFittingHorizontal(int length, Policy policy) {
+        long start = started();
+        PlacementCounts.checkLength(length);
+        mergeChildren();
+        checkNoBands();
+        GridSegment res;
+        if (parent == null) {
+            res = engine.reserveFitting(false, length, policy);
+            reserved(false, res.row, res.col, res.length);
+        } else {
+            res = reserveDrawn(false, engine.fitting(false, length, policy), length, length);
+        }
+        finished(Operation.RESERVE_FITTING, false, start);
+        return res;
+    }
+
+    /**
+     * Whether the cell is not reserved. O(1), reads the occupancy bitset instead of the trees.
+     * The bitset is built by the first of these point queries (O(rows * cols / 64) plus the number
+     * of free segments) and updated by every reservation after that. Throws IllegalArgumentException for a cell
+     * outside the grid.
+     */
+    public boolean isFree(int row, int col) {
+        checkCell(row, col, nCols);
+        mergeChildren();
+        return !engine.occupancy().isSet(row - 1, col - 1);
+    }
+
+    public int freeCountInRow(int row) {
+        checkCell(row, 1, nCols);
+        mergeChildren();
+        return engine.occupancy().lineLength() - engine.occupancy().countSet(row - 1);
+    }
+
+    /**
+     * First free column >= col in the row, -1 if there is none. Scans 64 cells per step. col may be one past the
+     * end of the row, where scans over a row stop; anything else outside the grid throws IllegalArgumentException.
+     */
+    public int nextFree(int row, int col) {
+        checkCell(row, col, nCols + 1);
+        mergeChildren();
+        int res = engine.occupancy().nextClear(row - 1, col - 1);
+        return res == -1 ? -1 : res + 1;
+    }
+
+    /**
+     * First reserved column >= col in the row, -1 if there is none. Same arguments as {@link #nextFree}.
+     */
+    public int nextReserved(int row, int col) {
+        checkCell(row, col, nCols + 1);
+        mergeChildren();
+        int res = engine.occupancy().nextSet(row - 1, col - 1);
+        return res == -1 ? -1 : res + 1;
+    }
+
+    /**
+     * First reserved row of the vertical segment (row, col, length), -1 if all of its cells are free. O(log n)
+     * with the tree engines, whatever the length: the end of the free segment around (row, col); O(length / 64)
+     * with the bitboard. Like isFree, only looks at this grid, not at the ancestors.
+     */
+    public int firstConflictVertical(int row, int col, int length) {
+        mergeChildren();
+        checkInside(true, row, col, length);
+        return engine.firstConflict(true, row, col, length);
+    }
+
+    /**
+     * First reserved column of the horizontal segment (row, col, length), -1 if all of its cells are free.
+     * See {@link #firstConflictVertical}.
+     */
+    public int firstConflictHorizontal(int row, int col, int length) {
+        mergeChildren();
+        checkInside(false, row, col, length);
+        return engine.firstConflict(false, row, col, length);
+    }
+
+    /**
+     * Whether both cells are free and connected through free cells, moving between rows and columns only.
+     * O(log k) for k free runs in their rows. The components are labelled by the first of these queries
+     * (linear in the free runs) and kept up to date by every reservation after that: a reservation only
+     * searches the parts of its component that it may have cut off, from each free neighbour of its cells
+     * in turn, and stops as soon as at most one search is still going.
+     */
+    public boolean connected(int row1, int col1, int row2, int col2) {
+        mergeChildren();
+        return connectivity().connected(row1, col1, row2, col2);
+    }
+
+    /**
+     * Number of connected components of the free cells, see {@link #connected}. O(1) once built.
+     */
+    public int componentCount() {
+        mergeChildren();
+        return connectivity().componentCount();
+    }
+
+    /**
+     * New feed of the reservations made in this grid from now on, directly or through child grids, with room
+     * for capacity undrained events; see {@link ReservationFeed}. Consumers drain it once per frame to apply
+     * only what changed. Keeps the occupancy bitset (see {@link #isFree}) to measure the split free segments.
+     */
+    public ReservationFeed openFeed(int capacity) {
+        mergeChildren();
+        ReservationFeed feed = new ReservationFeed(capacity);
+        engine.occupancy();
+        feeds = Arrays.copyOf(feeds, feeds.length + 1);
+        feeds[feeds.length - 1] = feed;
+        return feed;
+    }
+
+    /**
+     * Stops publishing to the feed. Events not drained yet can still be drained.
+     */
+    public void closeFeed(ReservationFeed feed) {
+        for (int i = 0; i < feeds.length; i++) {
+            if (feeds[i] == feed) {
+                ReservationFeed[] rest = new ReservationFeed[feeds.length - 1];
+                System.arraycopy(feeds, 0, rest, 0, i);
+                System.arraycopy(feeds, i + 1, rest, i, rest.length - i);
+                feeds = rest;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Feed is not open on this grid");
+    }
+
+    /**
+     * Live statistics of the free vertical runs. O(1) or O(log(n+m)) per query with the tree engines.
+     */
+    public GridStats verticalStats() {
+        mergeChildren();
+        return engine.stats(true);
+    }
+
+    public GridStats horizontalStats() {
+        mergeChildren();
+        return engine.stats(false);
+    }
+
+    /**
+     * Calls visitor.accept(row, col, length) for every maximal free horizontal run in rows rowFrom..rowTo,
+     * in (row, col) order. No allocations and no recursion; O(log(n+m) + k) for k runs with the tree engines.
+     * The grid must not be modified from inside the visitor.
+     */
+    public void forEachFree(int rowFrom, int rowTo, IntTriConsumer visitor) {
+        mergeChildren();
+        engine.forEachFree(rowFrom, rowTo, visitor);
+    }
+
     public void printGrid() {
-        horizontal.printGrid(); // can also be vertical.printGrid(), since they represent the same grid
+        mergeChildren();
+        engine.printGrid();
+    }
+
+    /**
+     * Writes the grid as text, the same as printGrid, one row at a time without building the whole grid.
+     */
+    public void writeGrid(Appendable out) throws IOException {
+        mergeChildren();
+        engine.export(GridExport.text(out, nCols));
     }
 
+    /**
+     * Writes the grid as a packed 1-bit-per-cell image, see {@link GridExport} for the layout.
+     * The channel is not closed.
+     */
+    public void writePacked(WritableByteChannel out) throws IOException {
+        mergeChildren();
+        engine.export(GridExport.packed(out, nRows, nCols));
+    }
+
+    /**
+     * Makes every cell of this grid free again, so the grid can be reused for the next chunk of the same size.
+     * Much cheaper than destroy() and a new GridCreator: the trees go back to a template of their initial layout
+     * saved at construction (array copies and a pool rewind, linear in the number of lines), and nothing is allocated.
+     * The parent grid, if any, is not touched.
+     */
+    public void reset() {
+        mergeChildren();
+        if (band != null || !bands.isEmpty()) {
+            throw new IllegalStateException("A concurrent child or its parent can not be reset: the parent would keep "
+                    + "or lose the child's reservations");
+        }
+        engine.reset();
+        if (connectivity != null) {
+            connectivity.reset();
+        }
+        for (ReservationFeed feed : feeds) {
+            feed.publishReset();
+        }
+    }
+
+    /**
+     * Renumbers the nodes of the engine's trees in the order queries walk them. Inserts append nodes at the end of
+     * the pools, so after many reservations one query jumps all over them. Best called between chunks or frames;
+     * with -Dsymbolic.pool.relayoutChurn=n the trees also do it on their own once their pools have handed out n
+     * times the nodes they hold.
+     * Linear in the number of nodes; the free cells do not change.
+     */
+    public void compact() {
+        mergeChildren();
+        engine.compact();
+    }
+
+    /**
+     * Also releases the rows of a concurrent child; its reservations stay in the parent.
+     */
     public void destroy() {
-        vertical.flush();
-        horizontal.flush();
+        engine.destroy();
+        connectivity = null;
+        if (band != null) {
+            band.released = true;
+        }
+    }
+
+    /**
+     * New child covering rows parentRowOffset + 1 .. parentRowOffset + nRows of this grid, for use by another thread.
+     * The rows must be free and must not overlap the rows of another concurrent child. While the child lives:
+     * <ul>
+     * <li>It reserves without touching this grid: every reservation is appended to a buffer of its own, with a lock
+     * of its own, so children working in different threads never wait for each other.</li>
+     * <li>This grid merges the buffers, in the order the children reserved, at the start of its next operation
+     * (or {@link #mergeChildren()}), so all its queries see every reservation the children finished before.
+     * Its live stats objects see them once some operation merged them.</li>
+     * <li>Explicit reservations in this grid must stay out of the child's rows, also vertical ones that would
+     * cross into them from a neighbouring row; random and policy reservations, which could land anywhere,
+     * are rejected. Both throw before changing anything.</li>
+     * </ul>
+     * The child's destroy() hands its rows back. This grid and each child must be used by one thread at a time.
+     */
+    public GridCreator concurrentChild(int nRows, int parentRowOffset, Engine engine) {
+        mergeChildren();
+        int firstRow = parentRowOffset + 1, lastRow = parentRowOffset + nRows;
+        if (nRows < 1 || parentRowOffset < 0 || lastRow > this.nRows) {
+            throw new IllegalArgumentException("Rows " + firstRow + ".." + lastRow + " are outside the grid");
+        }
+        for (RowBand other : bands) {
+            if (other.intersects(firstRow, lastRow)) {
+                throw new IllegalArgumentException("Rows " + firstRow + ".." + lastRow + " overlap the rows "
+                        + other.firstRow + ".." + other.lastRow + " of another concurrent child");
+            }
+        }
+        long[] free = new long[1];
+        this.engine.forEachFree(firstRow, lastRow, (row, col, length) -> free[0] += length);
+        if (free[0] != (long) nRows * nCols) {
+            throw new IllegalArgumentException("Rows " + firstRow + ".." + lastRow + " are not entirely free");
+        }
+        RowBand band = new RowBand(firstRow, lastRow);
+        bands.add(band);
+        return new GridCreator(nRows, nCols, engine.create(nRows, nCols), null, parentRowOffset, band);
+    }
+
+    public GridCreator concurrentChild(int nRows, int parentRowOffset) {
+        return concurrentChild(nRows, parentRowOffset, Engine.AUTO);
+    }
+
+    /**
+     * Applies the reservations the concurrent children made since the last merge, one batch per child and
+     * orientation. Called by every operation of this grid, so only needed to bound the children's buffers.
+     */
+    public void mergeChildren() {
+        if (bands.isEmpty()) {
+            return;
+        }
+        for (Iterator<RowBand> it = bands.iterator(); it.hasNext(); ) {
+            RowBand child = it.next();
+            boolean released = child.released; // read first: nothing can be added after the release
+            int[] pending = child.drain();
+            for (boolean vertical : new boolean[]{false, true}) {
+                int cnt = 0;
+                for (int i = 0; i < pending.length; i += 4) {
+                    cnt += pending[i] == (vertical ? 1 : 0) ? 1 : 0;
+                }
+                if (cnt == 0) {
+                    continue;
+                }
+                GridSegment[] segs = new GridSegment[cnt];
+                cnt = 0;
+                for (int i = 0; i < pending.length; i += 4) {
+                    if (pending[i] == (vertical ? 1 : 0)) {
+                        segs[cnt++] = GridSegment.GS(pending[i + 1], pending[i + 2], pending[i + 3]);
+                    }
+                }
+                reserveAll(vertical, segs);
+            }
+            if (released) {
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Reserves segs, in this grid's coordinates, here and in every ancestor, one batch per grid.
+     */
+    private void reserveAll(boolean vertical, GridSegment[] segs) {
+        if (parent != null) {
+            parent.reserveAll(vertical, shiftedToParent(segs));
+        }
+        engine.reserveAll(vertical, segs);
+        for (GridSegment seg : segs) {
+            reserved(vertical, seg.row, seg.col, seg.length);
+        }
+    }
+
+    /**
+     * Bookkeeping after the engine reserved a segment of this grid.
+     */
+    private void reserved(boolean vertical, int row, int col, int length) {
+        if (band != null) {
+            band.add(vertical, row + parentRowOffset, col, length);
+        }
+        if (connectivity != null) {
+            connectivity.reserve(vertical, row, col, length);
+        }
+        if (feeds.length > 0) {
+            publish(vertical, row, col, length);
+        }
+    }
+
+    /**
+     * Measures the free cells left next to the segment in its orientation: word scans of the occupancy along a
+     * row; along a column, the free runs just above and below from the engine, one lookup each in the vertical
+     * position index of the tree engines (O(log n)) instead of a cell by cell scan.
+     */
+    private void publish(boolean vertical, int row, int col, int length) {
+        int before, after;
+        if (vertical) {
+            GridSegment above = row > 1 ? engine.freeRunAt(true, row - 1, col) : null;
+            GridSegment below = row + length <= nRows ? engine.freeRunAt(true, row + length, col) : null;
+            before = above == null ? 0 : above.length;
+            after = below == null ? 0 : below.length;
+        } else {
+            Bitboard occupancy = engine.occupancy();
+            before = col - 2 - occupancy.prevSet(row - 1, col - 2);
+            int next = occupancy.nextSet(row - 1, col - 1 + length);
+            after = (next == -1 ? nCols : next) - (col - 1 + length);
+        }
+        for (ReservationFeed feed : feeds) {
+            feed.publishReserved(vertical, row, col, length, before, after);
+        }
+    }
+
+    private Connectivity connectivity() {
+        if (connectivity == null) {
+            connectivity = new Connectivity(nRows, nCols, engine);
+        }
+        return connectivity;
+    }
+
+    /**
+     * Whether the segment can be reserved in this grid and every ancestor, without changing anything but the
+     * merge of concurrent children's reservations, which every operation does.
+     */
+    private ReserveStatus reservable(boolean vertical, int row, int col, int length) {
+        for (GridCreator grid = this; grid != null; row += grid.parentRowOffset, grid = grid.parent) {
+            grid.mergeChildren();
+            if (!grid.inside(vertical, row, col, length)) {
+                return ReserveStatus.OUT_OF_GRID;
+            }
+            if (grid.concurrentChildAt(vertical, row, length) != null) {
+                return ReserveStatus.CONCURRENT_CHILD_ROWS;
+            }
+            if (grid.engine.firstConflict(vertical, row, col, length) != -1) {
+                return ReserveStatus.OCCUPIED;
+            }
+        }
+        return ReserveStatus.RESERVED;
+    }
+
+    private void checkReservable(boolean vertical, int row, int col, int length) {
+        ReserveStatus status = reservable(vertical, row, col, length);
+        if (status != ReserveStatus.RESERVED) {
+            throw new IllegalArgumentException("Can not reserve " + (vertical ? "vertical" : "horizontal")
+                    + " segment " + GridSegment.GS(row, col, length) + ": " + status);
+        }
+    }
+
+    /**
+     * Reserves what a child grid's engine drew or picked without reserving it (null if nothing fitted), after
+     * checking it here and in every ancestor: the child only knows its own cells, and an ancestor may have reserved
+     * some of them itself.
+     */
+    private GridSegment reserveDrawn(boolean vertical, GridSegment drawn, int minLength, int maxLength) {
+        if (drawn == null) {
+            throw new IllegalArgumentException("No space available for a segment of length "
+                    + (minLength == maxLength ? String.valueOf(minLength) : minLength + ".." + maxLength));
+        }
+        checkReservable(vertical, drawn.row, drawn.col, drawn.length);
+        reserveChecked(vertical, drawn.row, drawn.col, drawn.length);
+        return drawn;
+    }
+
+    /**
+     * Batch of a child grid: every draw is checked against the ancestors before the engine reserves it, then the
+     * accepted ones go to the ancestors as one batch. The caller does the bookkeeping of this grid.
+     */
+    private GridSegment[] reserveDrawnBatch(boolean vertical, int length, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Negative batch size " + n);
+        }
+        GridSegment[] res = new GridSegment[n];
+        int cnt = 0;
+        for (; cnt < n; cnt++) {
+            GridSegment drawn = engine.randomFitting(vertical, length, length);
+            if (drawn == null || reservable(vertical, drawn.row, drawn.col, drawn.length) != ReserveStatus.RESERVED) {
+                break;
+            }
+            engine.reserve(vertical, drawn.row, drawn.col, drawn.length);
+            res[cnt] = drawn;
+        }
+        res = Arrays.copyOf(res, cnt);
+        parent.reserveAll(vertical, shiftedToParent(res));
+        return res;
+    }
+
+    /**
+     * Reserves a segment that {@link #reservable} accepted, ancestors first. Each ancestor records its own
+     * reservation (feeds, connectivity, bands) as if it had been made there; the instrumentation counts it once,
+     * in the grid the call was made on.
+     */
+    private void reserveChecked(boolean vertical, int row, int col, int length) {
+        if (parent != null) {
+            parent.reserveChecked(vertical, row + parentRowOffset, col, length);
+        }
+        engine.reserve(vertical, row, col, length);
+        reserved(vertical, row, col, length);
+    }
+
+    private boolean inside(boolean vertical, int row, int col, int length) {
+        return length >= 1 && row >= 1 && col >= 1
+                && (vertical ? col <= nCols && length <= nRows - row + 1 : row <= nRows && length <= nCols - col + 1);
+    }
+
+    private void checkInside(boolean vertical, int row, int col, int length) {
+        if (!inside(vertical, row, col, length)) {
+            throw new IllegalArgumentException("Segment " + GridSegment.GS(row, col, length) + " does not fit in a "
+                    + nRows + "x" + nCols + " grid");
+        }
     }
 
+    /**
+     * Band of the concurrent child whose rows the segment crosses, null if there is none.
+     */
+    private RowBand concurrentChildAt(boolean vertical, int row, int length) {
+        for (RowBand other : bands) {
+            if (other.intersects(row, vertical ? row + length - 1 : row)) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    private void checkCell(int row, int col, int maxCol) {
+        if (row < 1 || row > nRows || col < 1 || col > maxCol) {
+            throw new IllegalArgumentException("Cell (" + row + ", " + col + ") is not in a " + nRows + "x" + nCols
+                    + " grid");
+        }
+    }
+
+    private void checkNoBands() {
+        if (!bands.isEmpty()) {
+            throw new IllegalStateException("Random and policy reservations could land in the rows of a concurrent child");
+        }
+    }
+
+    private GridSegment[] shiftedToParent(GridSegment[] segs) {
+        if (parentRowOffset == 0) {
+            return segs;
+        }
+        GridSegment[] res = new GridSegment[segs.length];
+        for (int i = 0; i < segs.length; i++) {
+            res[i] = GridSegment.GS(segs[i].row + parentRowOffset, segs[i].col, segs[i].length);
+        }
+        return res;
+    }
+
+    // Both compile to nothing unless instrumentation is enabled, see Instrumentation.
+
+    private static long started() {
+        return Instrumentation.ENABLED ? Instrumentation.start() : 0;
+    }
+
+    private void finished(Operation op, boolean vertical, long start) {
+        finished(op, vertical, 1, start);
+    }
+
+    private void finished(Operation op, boolean vertical, int reservations, long start) {
+        if (Instrumentation.ENABLED) {
+            Instrumentation.finished(op, vertical, reservations, start, nRows, nCols);
+        }
+    }
 
     /**
      * Example usage, same as in README
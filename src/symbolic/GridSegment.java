@@ -17,11 +17,19 @@ public class GridSegment {
         return new GridSegment(row, col, length);
     }
 
+    /**
+     * Only equal to segments of the same class, so that subclasses with more fields (LayeredSegment) stay symmetric.
+     */
     @Override
     public boolean equals(Object other) {
-        if(!(other instanceof GridSegment)){
+        if(other == null || other.getClass() != getClass()){
             return false;
         }
         return row == ((GridSegment) other).row && col == ((GridSegment) other).col && length == ((GridSegment) other).length;
     }
+
+    @Override
+    public int hashCode() {
+        return (row * 31 + col) * 31 + length;
+    }
 }
@@ -0,0 +1,45 @@
+package symbolic;
+
+/**
+ * Fill-level statistics of one orientation of a grid, answered from aggregates the indexes already keep
+ * instead of enumerating segments. A free run is a maximal free segment. Live view: answers reflect
+ * every reservation made so far.
+ */
+public interface GridStats {
+
+    /**
+     * Number of free cells. Same for both orientations.
+     */
+    long freeCells();
+
+    /**
+     * Number of maximal free runs.
+     */
+    int freeRunCount();
+
+    /**
+     * Number of maximal free runs with length in [minLength, maxLength].
+     */
+    int freeRunCount(int minLength, int maxLength);
+
+    /**
+     * Length of the longest free run, 0 if the grid is full.
+     */
+    int longestFreeRun();
+
+    /**
+     * Number of distinct placements of a segment of this length, i.e. how many random placements could pick from.
+     * Throws IllegalArgumentException for a length below 1.
+     */
+    long fittingSpaces(int length);
+
+    /**
+     * res[len] = number of free runs of exactly len cells, for len from 1 to the line length (res[0] is 0).
+     */
+    int[] freeRunHistogram();
+
+    /**
+     * res[len] = fittingSpaces(len), for every len at once.
+     */
+    long[] fittingSpacesHistogram();
+}
@@ -0,0 +1,9 @@
+package symbolic;
+
+/**
+ * Consumer of three ints, so that visitors over segments don't box.
+ */
+@FunctionalInterface
+public interface IntTriConsumer {
+    void accept(int row, int col, int length);
+}
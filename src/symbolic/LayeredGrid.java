@@ -0,0 +1,284 @@
+package symbolic;
+
+import symbolic.engine.TreeGridEngine;
+import symbolic.segments.by_end_pos.PerLineSegmentsByEndPosition;
+import symbolic.segments.by_length.bucket_implementation.BucketedSegmentsByLength;
+import symbolic.segments.util.RNG;
+
+import java.util.Arrays;
+
+/**
+ * Layers (floors) of identical dimensions, stored as one grid: the layers are stacked on top of each other with a
+ * separator row between two neighbours, reserved from the start, so no vertical segment crosses from one layer into
+ * the next, and one engine holds all of them, with a single length index and position index per orientation
+ * instead of one per layer. The length indexes are BUCKETED_LINES' dense buckets with the layer as the most
+ * significant part of the leaf (see {@link symbolic.segments.by_length.LayeredSegmentsByLength}), which makes
+ * per-layer queries as cheap as queries on a grid of its own, O(log n), and queries over all layers
+ * O(layers * log n).
+ * <p>
+ * Layers, rows and columns are 1-based, and rows are those of a layer. Operations either fully succeed or throw
+ * IllegalArgumentException without changing anything.
+ */
+public class LayeredGrid {
+
+    private final int layers, nRows, nCols;
+    // Rows of the stacked grid per layer: the layer's rows and the separator row below them.
+    private final int stride;
+    private final TreeGridEngine engine;
+
+    // Free runs of one row, for the stairwell walk.
+    private RunBuffer runs = new RunBuffer(), other = new RunBuffer(), merged = new RunBuffer();
+
+    public LayeredGrid(int layers, int nRows, int nCols) {
+        if (layers < 1 || nRows < 1 || nCols < 1) {
+            throw new IllegalArgumentException("Invalid layered grid " + layers + "x" + nRows + "x" + nCols);
+        }
+        if ((long) layers * (nRows + 1) - 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many rows in " + layers + " layers of " + nRows);
+        }
+        this.layers = layers;
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.stride = nRows + 1;
+        this.engine = new TreeGridEngine(layers * stride - 1, nCols,
+                BucketedSegmentsByLength.layered(stride), PerLineSegmentsByEndPosition::new, false, nRows);
+    }
+
+    public void reserveVertical(int layer, int row, int col, int length) {
+        checkSegment(layer, row, col, length, true);
+        engine.reserve(true, stackedRow(layer, row), col, length);
+    }
+
+    public void reserveHorizontal(int layer, int row, int col, int length) {
+        checkSegment(layer, row, col, length, false);
+        engine.reserve(false, stackedRow(layer, row), col, length);
+    }
+
+    /**
+     * Random vertical segment of the layer, uniformly over the layer's placements: the same one a grid of
+     * the layer's own would pick for the same RNG seed.
+     */
+    public LayeredSegment reserveRandomFittingVertical(int layer, int length) {
+        checkLayer(layer);
+        return inLayer(engine.reserveRandomFitting(true, layer, length, length));
+    }
+
+    public LayeredSegment reserveRandomFittingHorizontal(int layer, int length) {
+        checkLayer(layer);
+        return inLayer(engine.reserveRandomFitting(false, layer, length, length));
+    }
+
+    /**
+     * Random vertical segment on any layer, uniformly over the placements of all layers.
+     */
+    public LayeredSegment reserveRandomFittingVertical(int length) {
+        return inLayer(engine.reserveRandomFitting(true, length));
+    }
+
+    public LayeredSegment reserveRandomFittingHorizontal(int length) {
+        return inLayer(engine.reserveRandomFitting(false, length));
+    }
+
+    /**
+     * Placements of a vertical segment of the length in the layer. O(log n).
+     */
+    public long verticalFittingSpaces(int layer, int length) {
+        checkLayer(layer);
+        return engine.fittingSpaces(true, layer, length);
+    }
+
+    public long horizontalFittingSpaces(int layer, int length) {
+        checkLayer(layer);
+        return engine.fittingSpaces(false, layer, length);
+    }
+
+    /**
+     * Live statistics of the free vertical runs of all layers together.
+     */
+    public GridStats verticalStats() {
+        return engine.stats(true);
+    }
+
+    public GridStats horizontalStats() {
+        return engine.stats(false);
+    }
+
+    /**
+     * Whether the cell is not reserved, from the occupancy bitset of the stacked grid, see
+     * {@link GridCreator#isFree(int, int)}.
+     */
+    public boolean isFree(int layer, int row, int col) {
+        checkSegment(layer, row, col, 1, false);
+        return !engine.occupancy().isSet(stackedRow(layer, row) - 1, col - 1);
+    }
+
+    /**
+     * Whether the cell is free on every layer fromLayer..toLayer, e.g. for a stairwell between them.
+     */
+    public boolean isStairwellFree(int row, int col, int fromLayer, int toLayer) {
+        checkLayers(fromLayer, toLayer);
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            if (!isFree(layer, row, col)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calls visitor.accept(row, col, length) for every maximal horizontal run of cells that are free on every
+     * layer fromLayer..toLayer, in (row, col) order: the free runs of the row in each layer, intersected.
+     * O(rows * layers * log n) plus the runs visited. The grid must not be modified from inside the visitor.
+     */
+    public void forEachStairwell(int fromLayer, int toLayer, IntTriConsumer visitor) {
+        checkLayers(fromLayer, toLayer);
+        for (int row = 1; row <= nRows; row++) {
+            freeRuns(fromLayer, row, runs);
+            for (int layer = fromLayer + 1; layer <= toLayer && runs.size > 0; layer++) {
+                freeRuns(layer, row, other);
+                intersect(runs, other, merged);
+                RunBuffer swap = runs;
+                runs = merged;
+                merged = swap;
+            }
+            for (int i = 0; i < runs.size; i++) {
+                visitor.accept(row, runs.start[i], runs.end[i] - runs.start[i]);
+            }
+        }
+    }
+
+    /**
+     * Reserves the cell on every layer fromLayer..toLayer, which must all be free there.
+     */
+    public void reserveStairwell(int row, int col, int fromLayer, int toLayer) {
+        if (!isStairwellFree(row, col, fromLayer, toLayer)) {
+            throw new IllegalArgumentException("Cell (" + row + ", " + col + ") is not free on layers "
+                    + fromLayer + ".." + toLayer);
+        }
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            engine.reserve(false, stackedRow(layer, row), col, 1);
+        }
+    }
+
+    /**
+     * Reserves a random cell on every layer fromLayer..toLayer, uniformly over the cells free on all of them.
+     * Returns it as a segment of length 1. Two walks of {@link #forEachStairwell}.
+     */
+    public GridSegment reserveRandomStairwell(int fromLayer, int toLayer) {
+        long[] total = new long[1];
+        forEachStairwell(fromLayer, toLayer, (row, col, length) -> total[0] += length);
+        if (total[0] == 0) {
+            throw new IllegalArgumentException("No cell is free on all layers " + fromLayer + ".." + toLayer);
+        }
+        // Cells left to skip, then the chosen row and column.
+        long[] pick = {RNG.randLong(1, total[0]), 0, 0};
+        forEachStairwell(fromLayer, toLayer, (row, col, length) -> {
+            if (pick[0] > 0 && pick[0] <= length) {
+                pick[1] = row;
+                pick[2] = col + pick[0] - 1;
+            }
+            pick[0] -= length;
+        });
+        int row = (int) pick[1], col = (int) pick[2];
+        for (int layer = fromLayer; layer <= toLayer; layer++) {
+            engine.reserve(false, stackedRow(layer, row), col, 1);
+        }
+        return GridSegment.GS(row, col, 1);
+    }
+
+    /**
+     * Makes every cell of every layer free again, see {@link GridCreator#reset()}.
+     */
+    public void reset() {
+        engine.reset();
+    }
+
+    /**
+     * See {@link GridCreator#compact()}.
+     */
+    public void compact() {
+        engine.compact();
+    }
+
+    public void destroy() {
+        engine.destroy();
+    }
+
+    // --------------------------
+    //         Helper methods
+    // --------------------------
+
+    private int stackedRow(int layer, int row) {
+        return (layer - 1) * stride + row;
+    }
+
+    private LayeredSegment inLayer(GridSegment stacked) {
+        return new LayeredSegment((stacked.row - 1) / stride + 1, (stacked.row - 1) % stride + 1,
+                stacked.col, stacked.length);
+    }
+
+    private void freeRuns(int layer, int row, RunBuffer into) {
+        into.size = 0;
+        int stacked = stackedRow(layer, row);
+        engine.forEachFree(stacked, stacked, (r, col, length) -> into.add(col, col + length));
+    }
+
+    /**
+     * Cells in both a and b, as runs into res. Both are sorted and their runs disjoint.
+     */
+    private static void intersect(RunBuffer a, RunBuffer b, RunBuffer res) {
+        res.size = 0;
+        for (int i = 0, j = 0; i < a.size && j < b.size; ) {
+            int start = Math.max(a.start[i], b.start[j]), end = Math.min(a.end[i], b.end[j]);
+            if (start < end) {
+                res.add(start, end);
+            }
+            if (a.end[i] < b.end[j]) {
+                ++i;
+            } else {
+                ++j;
+            }
+        }
+    }
+
+    private void checkLayer(int layer) {
+        if (layer < 1 || layer > layers) {
+            throw new IllegalArgumentException("Invalid layer " + layer + ", expected 1.." + layers);
+        }
+    }
+
+    private void checkLayers(int fromLayer, int toLayer) {
+        checkLayer(fromLayer);
+        checkLayer(toLayer);
+        if (fromLayer > toLayer) {
+            throw new IllegalArgumentException("Invalid layer range " + fromLayer + ".." + toLayer);
+        }
+    }
+
+    private void checkSegment(int layer, int row, int col, int length, boolean vertical) {
+        checkLayer(layer);
+        int lastRow = vertical ? row + length - 1 : row, lastCol = vertical ? col : col + length - 1;
+        if (length < 1 || row < 1 || col < 1 || lastRow > nRows || lastCol > nCols) {
+            throw new IllegalArgumentException("Segment (r" + row + ", c" + col + ", l" + length + ") does not fit in a "
+                    + nRows + "x" + nCols + " layer");
+        }
+    }
+
+    /**
+     * Half-open runs [start, end) of columns.
+     */
+    private static final class RunBuffer {
+        int[] start = new int[16], end = new int[16];
+        int size;
+
+        void add(int runStart, int runEnd) {
+            if (size == start.length) {
+                start = Arrays.copyOf(start, 2 * size);
+                end = Arrays.copyOf(end, 2 * size);
+            }
+            start[size] = runStart;
+            end[size] = runEnd;
+            ++size;
+        }
+    }
+}
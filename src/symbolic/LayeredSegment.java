@@ -0,0 +1,28 @@
+package symbolic;
+
+/**
+ * Segment of one layer of a {@link LayeredGrid}, in the coordinates of that layer.
+ */
+public class LayeredSegment extends GridSegment {
+    public final int layer;
+
+    public LayeredSegment(int layer, int row, int col, int length) {
+        super(row, col, length);
+        this.layer = layer;
+    }
+
+    @Override
+    public String toString() {
+        return "(layer" + layer + ", r" + row + ", c" + col + ", l" + length + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return super.equals(other) && layer == ((LayeredSegment) other).layer;
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() * 31 + layer;
+    }
+}
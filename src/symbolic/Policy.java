@@ -0,0 +1,13 @@
+package symbolic;
+
+/**
+ * Deterministic placement policies. The segment is always placed at the start of the chosen free segment.
+ */
+public enum Policy {
+    /** Free segment in the lowest row (horizontal) or column (vertical), then the one closest to its start. */
+    FIRST_FIT,
+    /** Shortest free segment that fits. Ties go to the lowest row, then the lowest column. */
+    BEST_FIT,
+    /** Longest free segment. Ties go to the highest row, then the highest column. */
+    LARGEST_FIT
+}
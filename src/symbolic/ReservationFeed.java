@@ -0,0 +1,127 @@
+package symbolic;
+
+/**
+ * Reservations of one grid, in that grid's coordinates, for consumers that keep a copy of it in sync
+ * (see {@link GridCreator#openFeed(int)}). Reservations made through child grids are published by every
+ * ancestor they reach, so a feed of the root grid sees everything in root coordinates.
+ * <p>
+ * Events live in a ring of ints allocated once: publishing and draining allocate nothing. The grid's thread
+ * publishes and one consumer, which may be another thread, drains. When the ring is full new events are
+ * dropped and the next drain reports the loss, also when they were dropped while a drain was running. The
+ * consumer should then rebuild its copy from a full dump of the grid (e.g. {@link GridCreator#writePacked}).
+ * <p>
+ * Every event also gives the free cells left on each side of the segment in its own orientation, so the free
+ * segment it was cut from starts freeBefore cells earlier and is freeBefore + length + freeAfter long. They are
+ * measured once the operation is done: segments that one batch places next to each other on a line share the
+ * cells between them. The cells taken also split the free runs of the other orientation crossing them, one per cell.
+ */
+public final class ReservationFeed {
+
+    public interface Listener {
+        /**
+         * freeBefore and freeAfter count cells along the segment's line: columns for horizontal segments,
+         * rows for vertical ones.
+         */
+        void reserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter);
+
+        /**
+         * Every cell of the grid is free again.
+         */
+        void reset();
+    }
+
+    // Ints per event: kind, row, col, length, freeBefore, freeAfter.
+    private static final int EVENT_INTS = 6;
+    private static final int HORIZONTAL = 0, VERTICAL = 1, RESET = 2;
+
+    private final int[] ring;
+    private final int capacity;
+    // Events published, drained and dropped so far. Only the grid's thread writes published and dropped, only the
+    // consumer drained. dropped only grows, so a drop during a drain is still seen by the next one.
+    private volatile long published, drained, dropped;
+    // Value of dropped at the last drain. Consumer only.
+    private long droppedSeen;
+
+    /**
+     * Room for capacity events, rounded up to a power of two.
+     */
+    ReservationFeed(int capacity) {
+        if (capacity < 1 || capacity > 1 << 26) {
+            throw new IllegalArgumentException("Capacity must be in 1.." + (1 << 26) + ", got " + capacity);
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new int[EVENT_INTS * this.capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Events waiting to be drained.
+     */
+    public int size() {
+        return (int) (published - drained);
+    }
+
+    /**
+     * Events dropped since the feed was opened because the ring was full.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Hands every waiting event to listener, oldest first. Returns their number, or -1 if events were dropped
+     * since the last drain because the ring was full; the events that made it are handed over in both cases.
+     */
+    public int drain(Listener listener) {
+        return drain(listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #drain(Listener)}, handing over at most max events.
+     */
+    public int drain(Listener listener, int max) {
+        long droppedNow = dropped;
+        long from = drained, to = Math.min(published, from + max);
+        for (long e = from; e < to; e++) {
+            int i = EVENT_INTS * (int) (e & (capacity - 1));
+            if (ring[i] == RESET) {
+                listener.reset();
+            } else {
+                listener.reserved(ring[i] == VERTICAL, ring[i + 1], ring[i + 2], ring[i + 3], ring[i + 4], ring[i + 5]);
+            }
+        }
+        drained = to;
+        if (droppedNow != droppedSeen) {
+            droppedSeen = droppedNow;
+            return -1;
+        }
+        return (int) (to - from);
+    }
+
+    void publishReserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter) {
+        publish(vertical ? VERTICAL : HORIZONTAL, row, col, length, freeBefore, freeAfter);
+    }
+
+    void publishReset() {
+        publish(RESET, 0, 0, 0, 0, 0);
+    }
+
+    private void publish(int kind, int row, int col, int length, int freeBefore, int freeAfter) {
+        long e = published;
+        if (e - drained == capacity) {
+            dropped = dropped + 1; // single writer
+            return;
+        }
+        int i = EVENT_INTS * (int) (e & (capacity - 1));
+        ring[i] = kind;
+        ring[i + 1] = row;
+        ring[i + 2] = col;
+        ring[i + 3] = length;
+        ring[i + 4] = freeBefore;
+        ring[i + 5] = freeAfter;
+        published = e + 1; // volatile write: the consumer sees the event's ints once it sees the count
+    }
+}
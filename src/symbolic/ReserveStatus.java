@@ -0,0 +1,15 @@
+package symbolic;
+
+/**
+ * Outcome of {@link GridCreator#tryReserveVertical} and {@link GridCreator#tryReserveHorizontal}. Anything but
+ * RESERVED means nothing was reserved, neither in the grid nor in any ancestor.
+ */
+public enum ReserveStatus {
+    RESERVED,
+    /** The segment does not lie inside the grid or one of its ancestors. */
+    OUT_OF_GRID,
+    /** A cell of the segment is already reserved in the grid or one of its ancestors. */
+    OCCUPIED,
+    /** The segment crosses the rows of a concurrent child of the grid or one of its ancestors. */
+    CONCURRENT_CHILD_ROWS
+}
@@ -0,0 +1,46 @@
+package symbolic;
+
+import java.util.Arrays;
+
+/**
+ * Rows of a parent grid owned by one concurrent child, see {@link GridCreator#concurrentChild}.
+ * The child's thread appends its reservations in parent coordinates, the parent's thread drains them
+ * in the same order. Every band has its own lock, so children never wait for each other.
+ */
+final class RowBand {
+    final int firstRow, lastRow; // parent rows, inclusive
+
+    // (vertical ? 1 : 0, row, col, length) of every reservation not drained yet
+    private int[] pending = new int[4 * 64];
+    private int size;
+    // Set by the child's destroy(); the parent drops the band after the next drain.
+    volatile boolean released;
+
+    RowBand(int firstRow, int lastRow) {
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+    }
+
+    boolean intersects(int fromRow, int toRow) {
+        return fromRow <= lastRow && firstRow <= toRow;
+    }
+
+    synchronized void add(boolean vertical, int row, int col, int length) {
+        if (size == pending.length) {
+            pending = Arrays.copyOf(pending, 2 * size);
+        }
+        pending[size++] = vertical ? 1 : 0;
+        pending[size++] = row;
+        pending[size++] = col;
+        pending[size++] = length;
+    }
+
+    /**
+     * The pending reservations, which are cleared. Only the copy is made under the lock.
+     */
+    synchronized int[] drain() {
+        int[] res = Arrays.copyOf(pending, size);
+        size = 0;
+        return res;
+    }
+}
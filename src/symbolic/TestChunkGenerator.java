@@ -0,0 +1,156 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tester for ChunkGenerator: chunks must not depend on timing, queue capacity or recycling, must match a
+ * reproduction on the calling thread, and must leave the shared random sequence alone. A full queue must stop
+ * the producer until a chunk is taken, and close() must get it out of the wait.
+ */
+public class TestChunkGenerator {
+
+    private static final int ROWS = 24, COLS = 30, CHUNKS = 40;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (Engine engine : new Engine[]{Engine.BITBOARD, Engine.HASHED_TREES, Engine.BUCKETED_LINES}) {
+            checkDeterminism(engine);
+        }
+        checkSharedSequence();
+        checkBackpressure();
+        System.out.println("All chunk generator tests passed successfully!");
+    }
+
+    private static void populate(GridCreator grid, long chunkIndex) {
+        for (int i = 0; i < 20 + chunkIndex % 7; i++) {
+            try {
+                if (i % 3 == 0) {
+                    grid.reserveRandomFittingVertical(1 + i % 4);
+                } else {
+                    grid.reserveRandomFittingHorizontal(1 + i % 5, 3 + i % 5);
+                }
+            } catch (IllegalArgumentException full) {
+                // nothing fits
+            }
+        }
+    }
+
+    /**
+     * The same seed through a quick consumer that recycles, a slow one that does not and a queue of one chunk,
+     * compared with each chunk reproduced on this thread.
+     */
+    private static void checkDeterminism(Engine engine) throws InterruptedException {
+        String[] expected = new String[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            GridCreator grid = new GridCreator(ROWS, COLS, engine);
+            RNG.setSeed(ChunkGenerator.chunkSeed(7, i));
+            populate(grid, i);
+            expected[i] = cells(grid);
+            grid.destroy();
+        }
+        for (int capacity : new int[]{1, 4}) {
+            for (boolean slow : new boolean[]{false, true}) {
+                try (ChunkGenerator generator = new ChunkGenerator(ROWS, COLS, engine, capacity, 7,
+                        TestChunkGenerator::populate)) {
+                    for (int i = 0; i < CHUNKS; i++) {
+                        if (slow && i % 5 == 0) {
+                            Thread.sleep(2);
+                        }
+                        ChunkGenerator.Chunk chunk = generator.take();
+                        if (chunk.index != i || !expected[i].equals(cells(chunk.grid))) {
+                            throw new AssertionError("Chunk " + i + " of " + engine + " differs from its reproduction"
+                                    + " with capacity " + capacity + (slow ? ", slow consumer" : ""));
+                        }
+                        if (!slow) {
+                            generator.recycle(chunk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws of this thread after setSeed must be the same whether a generator fills chunks meanwhile or not.
+     */
+    private static void checkSharedSequence() throws InterruptedException {
+        RNG.setSeed(11);
+        long[] alone = new long[1000];
+        for (int i = 0; i < alone.length; i++) {
+            alone[i] = RNG.randLong(0, Long.MAX_VALUE - 1);
+        }
+        try (ChunkGenerator generator = new ChunkGenerator(ROWS, COLS, Engine.AUTO, 2, 3,
+                TestChunkGenerator::populate)) {
+            RNG.setSeed(11);
+            for (int i = 0; i < alone.length; i++) {
+                if (i % 100 == 0) {
+                    generator.recycle(generator.take()); // the producer draws in between
+                }
+                if (RNG.randLong(0, Long.MAX_VALUE - 1) != alone[i]) {
+                    throw new AssertionError("The producer disturbed the shared sequence at draw " + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * With nobody taking, the producer fills the queue, finishes at most one more chunk and then waits; every
+     * chunk taken lets it finish one more. close() ends a producer waiting on a full queue.
+     */
+    private static void checkBackpressure() throws InterruptedException {
+        int capacity = 3;
+        AtomicLong populated = new AtomicLong();
+        ChunkGenerator generator = new ChunkGenerator(ROWS, COLS, Engine.AUTO, capacity, 5, (grid, index) -> {
+            populate(grid, index);
+            populated.incrementAndGet();
+        });
+        long full = waitForStable(populated);
+        if (full != capacity + 1) {
+            throw new AssertionError("Producer finished " + full + " chunks for a queue of " + capacity);
+        }
+        for (int taken = 1; taken <= 5; taken++) {
+            generator.take();
+            long now = waitForStable(populated);
+            if (now != full + taken) {
+                throw new AssertionError("Producer finished " + now + " chunks after " + taken + " were taken");
+            }
+        }
+        long start = System.nanoTime();
+        generator.close();
+        if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(1)) {
+            throw new AssertionError("close() waited for the blocked producer");
+        }
+        try {
+            generator.poll();
+            throw new AssertionError("Polled a closed generator");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+    }
+
+    /**
+     * Value of counter once it stopped changing for 100 ms.
+     */
+    private static long waitForStable(AtomicLong counter) throws InterruptedException {
+        long last = -1, now = counter.get();
+        while (now != last) {
+            Thread.sleep(100);
+            last = now;
+            now = counter.get();
+        }
+        return now;
+    }
+
+    private static String cells(GridCreator grid) {
+        StringBuilder res = new StringBuilder();
+        for (int row = 1; row <= ROWS; row++) {
+            for (int col = 1; col <= COLS; col++) {
+                res.append(grid.isFree(row, col) ? '.' : '#');
+            }
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,203 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.Random;
+
+/**
+ * Random tester for concurrent children: a parent with a few children in disjoint row bands, each filled with
+ * random reservations, first from one thread and then from a thread per child. Once merged, the parent must hold
+ * exactly its own reservations and the children's. While a child lives, parent reservations crossing its rows are
+ * rejected with CONCURRENT_CHILD_ROWS and change nothing; once it is destroyed, its rows are the parent's again.
+ */
+public class TestConcurrentChildrenRandom {
+
+    private static final Engine[] ENGINES = {Engine.BITBOARD, Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP,
+            Engine.BUCKETED_LINES, Engine.SPARSE_LINES};
+
+    public static void main(String[] args) throws InterruptedException {
+        for (Engine engine : ENGINES) {
+            for (long seed = 0; seed < 20; seed++) {
+                run(engine, seed, false);
+                run(engine, seed, true);
+            }
+        }
+        System.out.println("All concurrent children tests passed successfully!");
+    }
+
+    private static void run(Engine engine, long seed, boolean threads) throws InterruptedException {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        int nCols = 2 + ops.nextInt(12), nChildren = 1 + ops.nextInt(4);
+        // bands of 2..5 rows, separated by 0..2 rows of the parent
+        int[] firstRow = new int[nChildren], rows = new int[nChildren];
+        int nRows = ops.nextInt(3);
+        for (int c = 0; c < nChildren; c++) {
+            firstRow[c] = nRows + 1;
+            rows[c] = 2 + ops.nextInt(4);
+            nRows += rows[c] + ops.nextInt(3);
+        }
+        nRows = Math.max(nRows, 1);
+        GridCreator parent = new GridCreator(nRows, nCols, engine);
+        // expected cells of the parent: its own reservations and the merged ones of the children
+        boolean[][] expected = new boolean[nRows + 1][nCols + 1];
+        GridCreator[] children = new GridCreator[nChildren];
+        for (int c = 0; c < nChildren; c++) {
+            children[c] = parent.concurrentChild(rows[c], firstRow[c] - 1, engine);
+        }
+
+        long[] seeds = new long[nChildren];
+        for (int c = 0; c < nChildren; c++) {
+            seeds[c] = ops.nextLong();
+        }
+        if (threads) {
+            Thread[] workers = new Thread[nChildren];
+            for (int c = 0; c < nChildren; c++) {
+                GridCreator child = children[c];
+                long childSeed = seeds[c];
+                workers[c] = new Thread(() -> fill(child, childSeed, 60));
+                workers[c].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            if (!threads) {
+                int c = ops.nextInt(nChildren);
+                fill(children[c], seeds[c] + i, 1);
+            }
+            parentOperation(parent, ops, expected, firstRow, rows, nRows, nCols);
+            if (ops.nextInt(10) == 0) {
+                parent.mergeChildren();
+            }
+        }
+        parent.mergeChildren();
+        for (int c = 0; c < nChildren; c++) {
+            for (int row = 1; row <= rows[c]; row++) {
+                for (int col = 1; col <= nCols; col++) {
+                    expected[firstRow[c] + row - 1][col] = !children[c].isFree(row, col);
+                }
+            }
+        }
+        check(parent, expected, nRows, nCols, "merged children");
+
+        // Destroy the children one at a time: their reservations stay, their rows are the parent's again.
+        for (int c = 0; c < nChildren; c++) {
+            children[c].destroy();
+            int row = firstRow[c] + ops.nextInt(rows[c]), col = 1 + ops.nextInt(nCols);
+            ReserveStatus status = parent.tryReserveHorizontal(row, col, 1);
+            if (status != (expected[row][col] ? ReserveStatus.OCCUPIED : ReserveStatus.RESERVED)) {
+                throw new AssertionError("Released rows of child " + c + " of " + engine + " gave " + status);
+            }
+            expected[row][col] = true;
+        }
+        check(parent, expected, nRows, nCols, "released children");
+        try {
+            GridSegment seg = parent.reserveRandomFittingHorizontal(1);
+            expected[seg.row][seg.col] = true;
+        } catch (IllegalArgumentException full) {
+            // every cell reserved
+        }
+        check(parent, expected, nRows, nCols, "random reservation after release");
+        parent.destroy();
+    }
+
+    /**
+     * Random reservations of a child, in its own coordinates.
+     */
+    private static void fill(GridCreator child, long seed, int n) {
+        Random ops = new Random(seed);
+        for (int i = 0; i < n; i++) {
+            boolean vertical = ops.nextBoolean();
+            int length = 1 + ops.nextInt(3);
+            try {
+                if (ops.nextBoolean()) {
+                    if (vertical) {
+                        child.reserveRandomFittingVertical(length);
+                    } else {
+                        child.reserveRandomFittingHorizontal(length);
+                    }
+                } else {
+                    int row = 1 + ops.nextInt(6), col = 1 + ops.nextInt(14);
+                    if (vertical) {
+                        child.tryReserveVertical(row, col, length);
+                    } else {
+                        child.tryReserveHorizontal(row, col, length);
+                    }
+                }
+            } catch (IllegalArgumentException full) {
+                // no room left for this length
+            }
+        }
+    }
+
+    /**
+     * An explicit reservation in the parent: rejected with CONCURRENT_CHILD_ROWS exactly when it crosses a band,
+     * and without changes when rejected. Random reservations of the parent are rejected while children live.
+     */
+    private static void parentOperation(GridCreator parent, Random ops, boolean[][] expected, int[] firstRow,
+                                        int[] rows, int nRows, int nCols) {
+        boolean vertical = ops.nextBoolean();
+        int row = 1 + ops.nextInt(nRows), col = 1 + ops.nextInt(nCols), length = 1 + ops.nextInt(4);
+        if (vertical ? row + length - 1 > nRows : col + length - 1 > nCols) {
+            return;
+        }
+        int lastRow = vertical ? row + length - 1 : row;
+        boolean crosses = false, occupied = false;
+        for (int c = 0; c < firstRow.length; c++) {
+            crosses |= row <= firstRow[c] + rows[c] - 1 && firstRow[c] <= lastRow;
+        }
+        for (int i = 0; i < length; i++) {
+            occupied |= vertical ? expected[row + i][col] : expected[row][col + i];
+        }
+        ReserveStatus status = vertical ? parent.tryReserveVertical(row, col, length)
+                                        : parent.tryReserveHorizontal(row, col, length);
+        ReserveStatus want = crosses ? ReserveStatus.CONCURRENT_CHILD_ROWS
+                                     : occupied ? ReserveStatus.OCCUPIED : ReserveStatus.RESERVED;
+        if (status != want) {
+            throw new AssertionError("Parent reservation " + GridSegment.GS(row, col, length)
+                    + (vertical ? " V" : " H") + " gave " + status + ", expected " + want);
+        }
+        if (crosses) {
+            try {
+                if (vertical) {
+                    parent.reserveVertical(row, col, length);
+                } else {
+                    parent.reserveHorizontal(row, col, length);
+                }
+                throw new AssertionError("Reserved across the rows of a concurrent child");
+            } catch (IllegalArgumentException expectedRejection) {
+                // CONCURRENT_CHILD_ROWS
+            }
+        }
+        if (status == ReserveStatus.RESERVED) {
+            for (int i = 0; i < length; i++) {
+                if (vertical) {
+                    expected[row + i][col] = true;
+                } else {
+                    expected[row][col + i] = true;
+                }
+            }
+        }
+        if (ops.nextInt(20) == 0) {
+            try {
+                parent.reserveRandomFittingHorizontal(1);
+                throw new AssertionError("Random reservation in a parent with concurrent children");
+            } catch (IllegalStateException expectedRejection) {
+                // could land in a band
+            }
+        }
+    }
+
+    private static void check(GridCreator parent, boolean[][] expected, int nRows, int nCols, String stage) {
+        for (int row = 1; row <= nRows; row++) {
+            for (int col = 1; col <= nCols; col++) {
+                if (parent.isFree(row, col) == expected[row][col]) {
+                    throw new AssertionError("Parent differs at (" + row + ", " + col + ") after " + stage);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Random tester for GridCreator.connected and componentCount against a breadth-first search over the cells,
+ * run after every reservation.
+ */
+public class TestConnectivityRandom {
+
+    public static void main(String[] args) {
+        Random rng = new Random(0);
+        for (int round = 0; round < 300; round++) {
+            int nRows = 1 + rng.nextInt(25), nCols = 1 + rng.nextInt(25);
+            Engine engine = round % 2 == 0 ? Engine.BITBOARD : Engine.HASHED_TREES;
+            RNG.setSeed(round);
+            run(new GridCreator(nRows, nCols, engine), nRows, nCols, rng);
+        }
+        // Reservations that reach the grid through a child, one by one and as a batch.
+        RNG.setSeed(1);
+        GridCreator parent = new GridCreator(40, 30, Engine.HASHED_TREES);
+        GridCreator child = new GridCreator(20, 30, parent, 10, Engine.HASHED_TREES);
+        check(parent, 40, 30, rng);
+        for (int i = 0; i < 40; i++) {
+            child.reserveRandomFittingHorizontal(1, 6);
+            child.reserveRandomFittingVerticalBatch(2, 3);
+            check(parent, 40, 30, rng);
+        }
+        System.out.println("All connectivity tests passed successfully!");
+    }
+
+    private static void run(GridCreator grid, int nRows, int nCols, Random rng) {
+        int steps = rng.nextInt(3 * nRows * nCols / 2 + 1);
+        // Tracking either from the start or from a grid that is already partly reserved.
+        int firstCheck = rng.nextInt(steps + 1);
+        for (int step = 0; step < steps; step++) {
+            if (step >= firstCheck) {
+                check(grid, nRows, nCols, rng);
+            }
+            boolean vertical = rng.nextBoolean();
+            int maxLength = vertical ? nRows : nCols;
+            int length = 1 + rng.nextInt(Math.min(maxLength, 1 + rng.nextInt(6)));
+            try {
+                switch (rng.nextInt(4)) {
+                    case 0:
+                        int row = 1 + rng.nextInt(nRows), col = 1 + rng.nextInt(nCols);
+                        if (vertical) {
+                            grid.reserveVertical(row, col, length);
+                        } else {
+                            grid.reserveHorizontal(row, col, length);
+                        }
+                        break;
+                    case 1:
+                        if (vertical) {
+                            grid.reserveRandomFittingVerticalBatch(length, 1 + rng.nextInt(3));
+                        } else {
+                            grid.reserveRandomFittingHorizontalBatch(length, 1 + rng.nextInt(3));
+                        }
+                        break;
+                    default:
+                        if (vertical) {
+                            grid.reserveRandomFittingVertical(length);
+                        } else {
+                            grid.reserveRandomFittingHorizontal(length);
+                        }
+                }
+            } catch (IllegalArgumentException e) {
+                // no space; nothing changed
+            }
+        }
+        check(grid, nRows, nCols, rng);
+        grid.reset();
+        check(grid, nRows, nCols, rng);
+        grid.destroy();
+    }
+
+    private static void check(GridCreator grid, int nRows, int nCols, Random rng) {
+        int[][] label = new int[nRows + 2][nCols + 2];
+        int components = 0;
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        for (int row = 1; row <= nRows; row++) {
+            for (int col = 1; col <= nCols; col++) {
+                if (label[row][col] != 0 || !grid.isFree(row, col)) {
+                    continue;
+                }
+                label[row][col] = ++components;
+                queue.add(new int[]{row, col});
+                while (!queue.isEmpty()) {
+                    int[] cell = queue.poll();
+                    int[][] neighbours = {{cell[0] - 1, cell[1]}, {cell[0] + 1, cell[1]},
+                            {cell[0], cell[1] - 1}, {cell[0], cell[1] + 1}};
+                    for (int[] n : neighbours) {
+                        if (n[0] >= 1 && n[0] <= nRows && n[1] >= 1 && n[1] <= nCols
+                                && label[n[0]][n[1]] == 0 && grid.isFree(n[0], n[1])) {
+                            label[n[0]][n[1]] = components;
+                            queue.add(n);
+                        }
+                    }
+                }
+            }
+        }
+        if (grid.componentCount() != components) {
+            throw new AssertionError("componentCount() = " + grid.componentCount() + ", expected " + components);
+        }
+        for (int i = 0; i < 50; i++) {
+            int r1 = 1 + rng.nextInt(nRows), c1 = 1 + rng.nextInt(nCols);
+            int r2 = 1 + rng.nextInt(nRows), c2 = 1 + rng.nextInt(nCols);
+            boolean expected = label[r1][c1] != 0 && label[r1][c1] == label[r2][c2];
+            if (grid.connected(r1, c1, r2, c2) != expected) {
+                throw new AssertionError("connected(" + r1 + ", " + c1 + ", " + r2 + ", " + c2 + ") != " + expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random tester for grids with ancestors: a parent, a child and a grandchild, with reservations made in all three.
+ * Every operation of the child and grandchild must either succeed in them and every ancestor or change nothing
+ * anywhere, tryReserve must accept exactly what the throwing methods accept, and firstConflict must agree with
+ * the cells. Random and policy reservations of a grid with ancestors must draw what a grid of its own draws.
+ */
+public class TestGridHierarchyRandom {
+
+    private static final Engine[] ENGINES = {Engine.BITBOARD, Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP,
+            Engine.BUCKETED_LINES, Engine.SPARSE_LINES};
+
+    public static void main(String[] args) {
+        for (Engine engine : ENGINES) {
+            checkRejectedDraw(engine);
+            for (long seed = 0; seed < 30; seed++) {
+                run(engine, seed);
+                checkSameDraws(engine, seed);
+            }
+        }
+        System.out.println("All grid hierarchy tests passed successfully!");
+    }
+
+    /**
+     * A child whose only placement is taken in the parent must throw and keep its cells.
+     */
+    private static void checkRejectedDraw(Engine engine) {
+        GridCreator parent = new GridCreator(4, 4, engine);
+        GridCreator child = new GridCreator(2, 4, parent, 0, engine);
+        parent.reserveHorizontal(1, 1, 4);
+        parent.reserveHorizontal(2, 1, 3);
+        String before = cells(child, 2, 4);
+        try {
+            child.reserveRandomFittingHorizontal(4);
+            throw new AssertionError("Reserved a segment the parent has");
+        } catch (IllegalArgumentException expected) {
+            // reserved in the parent
+        }
+        if (!before.equals(cells(child, 2, 4))) {
+            throw new AssertionError("Rejected draw changed the child of " + engine);
+        }
+        if (child.reserveRandomFittingHorizontalBatch(4, 3).length != 0
+                || child.tryReserveHorizontal(1, 1, 4) != ReserveStatus.OCCUPIED || !before.equals(cells(child, 2, 4))) {
+            throw new AssertionError("Rejected batch or tryReserve changed the child of " + engine);
+        }
+    }
+
+    private static void run(Engine engine, long seed) {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        int nCols = 3 + ops.nextInt(10);
+        // parent 14 rows; child rows 3..12 of the parent; grandchild rows 2..7 of the child. twin: the same
+        // operations through the throwing methods.
+        GridCreator[] grids = hierarchy(engine, nCols), twins = hierarchy(engine, nCols);
+        int[] rows = {14, 10, 6};
+        for (int i = 0; i < 200; i++) {
+            int level = ops.nextInt(3);
+            GridCreator grid = grids[level], twin = twins[level];
+            boolean vertical = ops.nextBoolean();
+            int row = ops.nextInt(rows[level] + 2), col = ops.nextInt(nCols + 2), length = ops.nextInt(5);
+            String[] before = snapshot(grids, nCols);
+            if (row >= 1 && col >= 1 && length >= 1
+                    && (vertical ? col <= nCols && row + length - 1 <= rows[level] : row <= rows[level]
+                    && col + length - 1 <= nCols)) {
+                checkConflict(grid, vertical, row, col, length);
+            }
+            boolean accepted;
+            if (ops.nextInt(4) == 0) {
+                // random and policy reservations, the same draws on both
+                long draw = ops.nextLong();
+                int kind = ops.nextInt(3);
+                accepted = reserveDrawn(grid, vertical, length, draw, kind);
+                if (accepted != reserveDrawn(twin, vertical, length, draw, kind)) {
+                    throw new AssertionError("Draw accepted by only one of the twins at step " + i);
+                }
+            } else {
+                ReserveStatus status = vertical ? grid.tryReserveVertical(row, col, length)
+                                                : grid.tryReserveHorizontal(row, col, length);
+                accepted = status == ReserveStatus.RESERVED;
+                boolean twinAccepted = true;
+                try {
+                    if (vertical) {
+                        twin.reserveVertical(row, col, length);
+                    } else {
+                        twin.reserveHorizontal(row, col, length);
+                    }
+                } catch (IllegalArgumentException e) {
+                    twinAccepted = false;
+                }
+                if (accepted != twinAccepted) {
+                    throw new AssertionError("tryReserve " + status + ", reserve accepted " + twinAccepted
+                            + " at step " + i + " of " + engine);
+                }
+            }
+            String[] after = snapshot(grids, nCols);
+            if (!accepted && !Arrays.equals(before, after)) {
+                throw new AssertionError("Rejected operation changed a grid at step " + i + " of " + engine);
+            }
+            if (!Arrays.equals(after, snapshot(twins, nCols))) {
+                throw new AssertionError("Twins differ at step " + i + " of " + engine);
+            }
+            checkNested(grids, nCols);
+        }
+    }
+
+    /**
+     * One random (kind 0), batch (1) or policy (2) reservation, drawn from the given seed. Whether it reserved anything.
+     */
+    private static boolean reserveDrawn(GridCreator grid, boolean vertical, int length, long draw, int kind) {
+        length = Math.max(length, 1);
+        RNG.setSeed(draw);
+        try {
+            switch (kind) {
+                case 0:
+                    return (vertical ? grid.reserveRandomFittingVertical(length)
+                                     : grid.reserveRandomFittingHorizontal(length)) != null;
+                case 1:
+                    return (vertical ? grid.reserveRandomFittingVerticalBatch(length, 3)
+                                     : grid.reserveRandomFittingHorizontalBatch(length, 3)).length > 0;
+                default:
+                    return (vertical ? grid.reserveFittingVertical(length, Policy.BEST_FIT)
+                                     : grid.reserveFittingHorizontal(length, Policy.BEST_FIT)) != null;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The same random and policy reservations in a grid of its own and in a grandchild with free ancestors.
+     */
+    private static void checkSameDraws(Engine engine, long seed) {
+        String expected = null;
+        for (int kind = 0; kind < 2; kind++) {
+            GridCreator grid = kind == 0 ? new GridCreator(6, 9, engine) : hierarchy(engine, 9)[2];
+            Random ops = new Random(seed);
+            RNG.setSeed(seed);
+            StringBuilder log = new StringBuilder();
+            for (int i = 0; i < 30; i++) {
+                boolean vertical = ops.nextBoolean();
+                int length = 1 + ops.nextInt(4);
+                try {
+                    switch (ops.nextInt(4)) {
+                        case 0:
+                            log.append(vertical ? grid.reserveRandomFittingVertical(length)
+                                                : grid.reserveRandomFittingHorizontal(length));
+                            break;
+                        case 1:
+                            log.append(vertical ? grid.reserveRandomFittingVertical(length, length + 2)
+                                                : grid.reserveRandomFittingHorizontal(length, length + 2));
+                            break;
+                        case 2:
+                            log.append(Arrays.toString(vertical ? grid.reserveRandomFittingVerticalBatch(length, 3)
+                                                                : grid.reserveRandomFittingHorizontalBatch(length, 3)));
+                            break;
+                        default:
+                            Policy policy = Policy.values()[ops.nextInt(Policy.values().length)];
+                            log.append(vertical ? grid.reserveFittingVertical(length, policy)
+                                                : grid.reserveFittingHorizontal(length, policy));
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.append("fail");
+                }
+            }
+            String actual = log + cells(grid, 6, 9);
+            if (expected == null) {
+                expected = actual;
+            } else if (!expected.equals(actual)) {
+                throw new AssertionError("Grandchild of " + engine + " draws differently for seed " + seed
+                        + ":\n" + expected + "\nvs\n" + actual);
+            }
+        }
+    }
+
+    private static GridCreator[] hierarchy(Engine engine, int nCols) {
+        GridCreator parent = new GridCreator(14, nCols, engine);
+        GridCreator child = new GridCreator(10, nCols, parent, 2, engine);
+        return new GridCreator[]{parent, child, new GridCreator(6, nCols, child, 1, engine)};
+    }
+
+    /**
+     * firstConflict must be the first reserved cell of the segment, -1 if there is none.
+     */
+    private static void checkConflict(GridCreator grid, boolean vertical, int row, int col, int length) {
+        int conflict = vertical ? grid.firstConflictVertical(row, col, length)
+                                : grid.firstConflictHorizontal(row, col, length);
+        int expected = -1;
+        for (int i = 0; i < length && expected == -1; i++) {
+            if (!(vertical ? grid.isFree(row + i, col) : grid.isFree(row, col + i))) {
+                expected = (vertical ? row : col) + i;
+            }
+        }
+        if (conflict != expected) {
+            throw new AssertionError("First conflict of " + GridSegment.GS(row, col, length) + (vertical ? " V " : " H ")
+                    + conflict + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Every cell reserved in a child must be reserved in its parent.
+     */
+    private static void checkNested(GridCreator[] grids, int nCols) {
+        int[][] shape = {{10, 2}, {6, 1}}; // rows, offset in the parent
+        for (int level = 1; level < 3; level++) {
+            for (int row = 1; row <= shape[level - 1][0]; row++) {
+                for (int col = 1; col <= nCols; col++) {
+                    if (!grids[level].isFree(row, col) && grids[level - 1].isFree(row + shape[level - 1][1], col)) {
+                        throw new AssertionError("Cell (" + row + ", " + col + ") of level " + level
+                                + " is reserved only in the child");
+                    }
+                }
+            }
+        }
+    }
+
+    private static String[] snapshot(GridCreator[] grids, int nCols) {
+        return new String[]{cells(grids[0], 14, nCols), cells(grids[1], 10, nCols), cells(grids[2], 6, nCols)};
+    }
+
+    private static String cells(GridCreator grid, int nRows, int nCols) {
+        StringBuilder res = new StringBuilder();
+        for (int row = 1; row <= nRows; row++) {
+            for (int col = 1; col <= nCols; col++) {
+                res.append(grid.isFree(row, col) ? '.' : '#');
+            }
+        }
+        return res.toString();
+    }
+}
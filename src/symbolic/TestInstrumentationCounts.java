@@ -0,0 +1,131 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.instrumentation.Operation;
+import symbolic.instrumentation.Structure;
+import symbolic.segments.util.RNG;
+
+/**
+ * Tester for the instrumentation counters: a known sequence of operations on a parent and a child must leave exact
+ * reservation, random fitting and per-operation sample counts, compact() one relayout per tree, and the tree height
+ * hooks the heights of the trees built for the grid. Run with -Dsymbolic.instrumentation=true; every operation is
+ * sampled, see main.
+ */
+public class TestInstrumentationCounts {
+
+    private static final int ROWS = 10, COLS = 12;
+
+    public static void main(String[] args) {
+        // before Instrumentation is initialized: record every operation instead of a random one in 64
+        System.setProperty("symbolic.instrumentation.sampleEvery", "1");
+        if (!Instrumentation.ENABLED) {
+            throw new IllegalStateException("Run with -Dsymbolic.instrumentation=true");
+        }
+        for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP}) {
+            checkCounts(engine);
+            checkPools(engine);
+        }
+        System.out.println("All instrumentation tests passed successfully!");
+    }
+
+    private static void checkCounts(Engine engine) {
+        RNG.setSeed(1);
+        Instrumentation.reset();
+        GridCreator grid = new GridCreator(ROWS, COLS, engine);
+        // 10 x 12 cells, hashes up to 10 * 12 * 13 = 1560: 2048 leaves, 12 levels. The AVLs are built perfectly
+        // balanced from the initial lines, 10 horizontal and 12 vertical: 4 levels either way.
+        check("segment tree height", Instrumentation.maxTreeHeight(Structure.SEGMENT_TREE), 12);
+        check("AVL height", Instrumentation.maxTreeHeight(Structure.AVL), 4);
+
+        grid.reserveHorizontal(1, 1, 3);
+        grid.reserveVertical(2, 1, 4);
+        check("occupied tryReserve", grid.tryReserveHorizontal(1, 1, 2), ReserveStatus.OCCUPIED);
+        check("free tryReserve", grid.tryReserveVertical(2, 5, 3), ReserveStatus.RESERVED);
+        grid.reserveRandomFittingHorizontal(2);
+        grid.reserveRandomFittingVertical(2, 4);
+        check("horizontal batch", grid.reserveRandomFittingHorizontalBatch(1, 5).length, 5);
+        check("empty vertical batch", grid.reserveRandomFittingVerticalBatch(2, 0).length, 0);
+        grid.reserveFittingHorizontal(3, Policy.BEST_FIT);
+        try {
+            grid.reserveRandomFittingHorizontal(COLS + 1);
+            throw new AssertionError("Reserved a segment longer than a row");
+        } catch (IllegalArgumentException expected) {
+            // thrown before anything is recorded
+        }
+        check("horizontal reservations", Instrumentation.reservations(false), 1 + 1 + 5 + 1);
+        check("vertical reservations", Instrumentation.reservations(true), 1 + 1 + 1);
+        check("random fitting calls", Instrumentation.randomFittingCalls(), 4);
+
+        // A child's reservation counts once, in the child, although the parent reserves the cells too.
+        GridCreator child = new GridCreator(4, COLS, grid, 6, engine);
+        child.reserveHorizontal(1, 1, 2);
+        child.reserveRandomFittingVertical(1);
+        check("horizontal reservations with the child", Instrumentation.reservations(false), 8 + 1);
+        check("vertical reservations with the child", Instrumentation.reservations(true), 3 + 1);
+        check("random fitting calls with the child", Instrumentation.randomFittingCalls(), 5);
+
+        long[] samples = {
+                2 + 1,     // RESERVE: two in the parent, one in the child
+                2,         // TRY_RESERVE
+                1 + 1,     // RESERVE_RANDOM_FITTING: parent and child
+                1,         // RESERVE_RANDOM_FITTING_RANGE
+                2,         // RESERVE_RANDOM_FITTING_BATCH
+                1};        // RESERVE_FITTING
+        for (Operation op : Operation.values()) {
+            check(op + " samples", Instrumentation.latency(op).count(), samples[op.ordinal()]);
+        }
+
+        // one relayout per tree and orientation, counted per structure
+        check("relayouts before compact", Instrumentation.poolRelayouts(Structure.SEGMENT_TREE)
+                + Instrumentation.poolRelayouts(Structure.AVL), 0);
+        grid.compact();
+        check("segment tree relayouts", Instrumentation.poolRelayouts(Structure.SEGMENT_TREE), 2);
+        check("AVL relayouts", Instrumentation.poolRelayouts(Structure.AVL), 2);
+
+        Instrumentation.reset();
+        check("reservations after reset", Instrumentation.reservations(false) + Instrumentation.reservations(true)
+                + Instrumentation.randomFittingCalls() + Instrumentation.latency(Operation.RESERVE).count()
+                + Instrumentation.poolRelayouts(Structure.AVL) + Instrumentation.maxTreeHeight(Structure.AVL), 0);
+        child.destroy();
+        grid.destroy();
+    }
+
+    /**
+     * Nodes in use go back to where they were once the grid is destroyed; the grid's pools were counted as
+     * retained while it lived.
+     */
+    private static void checkPools(Engine engine) {
+        long[] inUse = new long[Structure.values().length], retained = new long[Structure.values().length];
+        for (Structure s : Structure.values()) {
+            inUse[s.ordinal()] = Instrumentation.poolInUse(s);
+            retained[s.ordinal()] = Instrumentation.poolRetained(s);
+        }
+        GridCreator grid = new GridCreator(ROWS, COLS, engine);
+        for (int i = 0; i < 20; i++) {
+            grid.reserveRandomFittingHorizontal(1);
+        }
+        for (Structure s : Structure.values()) {
+            if (Instrumentation.poolInUse(s) <= inUse[s.ordinal()]
+                    || Instrumentation.poolRetained(s) <= retained[s.ordinal()]) {
+                throw new AssertionError(s + " pools of a live grid of " + engine + " not counted");
+            }
+        }
+        grid.destroy();
+        for (Structure s : Structure.values()) {
+            check(s + " nodes in use after destroy", Instrumentation.poolInUse(s), inUse[s.ordinal()]);
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(what + ": " + actual + ", expected " + expected);
+        }
+    }
+
+    private static void check(String what, long actual, long expected) {
+        if (actual != expected) {
+            throw new AssertionError(what + ": " + actual + ", expected " + expected);
+        }
+    }
+}
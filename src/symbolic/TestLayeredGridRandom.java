@@ -0,0 +1,197 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.Random;
+
+/**
+ * Random tester for LayeredGrid against one bitboard grid per layer: explicit, per-layer and any-layer
+ * reservations, counts, stairwells, compaction and reset. Per-layer random reservations must pick the segment
+ * the layer's own grid picks for the same seed.
+ */
+public class TestLayeredGridRandom {
+
+    public static void main(String[] args) {
+        Random rng = new Random(0);
+        for (int round = 0; round < 100; round++) {
+            int layers = 1 + rng.nextInt(5), nRows = 1 + rng.nextInt(20), nCols = 1 + rng.nextInt(20);
+            LayeredGrid grid = new LayeredGrid(layers, nRows, nCols);
+            GridCreator[] reference = new GridCreator[layers + 1];
+            for (int layer = 1; layer <= layers; layer++) {
+                reference[layer] = new GridCreator(nRows, nCols, Engine.BITBOARD);
+            }
+            for (int cycle = 0; cycle < 2; cycle++) {
+                run(grid, reference, layers, nRows, nCols, rng, round);
+                grid.reset();
+                for (int layer = 1; layer <= layers; layer++) {
+                    reference[layer].reset();
+                }
+                check(grid, reference, layers, nRows, nCols);
+            }
+            grid.destroy();
+        }
+        try {
+            new LayeredGrid(2, 5, 5).reserveVertical(1, 4, 1, 3);
+            throw new AssertionError("A vertical segment crossed into the next layer");
+        } catch (IllegalArgumentException expected) {
+            // out of the layer
+        }
+        LayeredSegment seg = new LayeredSegment(1, 2, 3, 4), same = new LayeredSegment(1, 2, 3, 4);
+        GridSegment plain = GridSegment.GS(2, 3, 4);
+        if (seg.equals(plain) || plain.equals(seg) || !seg.equals(same) || seg.hashCode() != same.hashCode()
+                || seg.equals(new LayeredSegment(2, 2, 3, 4))) {
+            throw new AssertionError("LayeredSegment equality");
+        }
+        System.out.println("All layered grid tests passed successfully!");
+    }
+
+    private static void run(LayeredGrid grid, GridCreator[] reference, int layers, int nRows, int nCols, Random rng,
+                            int round) {
+        int steps = rng.nextInt(nRows * nCols + 1);
+        for (int step = 0; step < steps; step++) {
+            int layer = 1 + rng.nextInt(layers);
+            boolean vertical = rng.nextBoolean();
+            int length = 1 + rng.nextInt(Math.min(vertical ? nRows : nCols, 5));
+            GridCreator own = reference[layer];
+            switch (rng.nextInt(4)) {
+                case 0: {
+                    int row = 1 + rng.nextInt(nRows), col = 1 + rng.nextInt(nCols);
+                    boolean expected = true, actual = true;
+                    try {
+                        if (vertical) {
+                            own.reserveVertical(row, col, length);
+                        } else {
+                            own.reserveHorizontal(row, col, length);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        expected = false;
+                    }
+                    try {
+                        if (vertical) {
+                            grid.reserveVertical(layer, row, col, length);
+                        } else {
+                            grid.reserveHorizontal(layer, row, col, length);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        actual = false;
+                    }
+                    if (expected != actual) {
+                        throw new AssertionError("Reservation of (" + layer + ", " + row + ", " + col + ", " + length
+                                + ") accepted: " + actual + ", expected " + expected);
+                    }
+                    break;
+                }
+                case 1: {
+                    long expected = (vertical ? own.verticalStats() : own.horizontalStats()).fittingSpaces(length);
+                    long actual = vertical ? grid.verticalFittingSpaces(layer, length)
+                                           : grid.horizontalFittingSpaces(layer, length);
+                    if (expected != actual) {
+                        throw new AssertionError("Layer " + layer + " fits " + actual + ", expected " + expected);
+                    }
+                    if (expected == 0) {
+                        break;
+                    }
+                    RNG.setSeed(round * 100_000L + step);
+                    GridSegment ownPick = vertical ? own.reserveRandomFittingVertical(length)
+                                                   : own.reserveRandomFittingHorizontal(length);
+                    RNG.setSeed(round * 100_000L + step);
+                    LayeredSegment pick = vertical ? grid.reserveRandomFittingVertical(layer, length)
+                                                   : grid.reserveRandomFittingHorizontal(layer, length);
+                    if (pick.layer != layer || !ownPick.equals(GridSegment.GS(pick.row, pick.col, pick.length))) {
+                        throw new AssertionError("Picked " + pick + " in layer " + layer + ", expected " + ownPick);
+                    }
+                    break;
+                }
+                case 2: {
+                    long expected = 0;
+                    for (int l = 1; l <= layers; l++) {
+                        expected += (vertical ? reference[l].verticalStats() : reference[l].horizontalStats())
+                                .fittingSpaces(length);
+                    }
+                    long actual = (vertical ? grid.verticalStats() : grid.horizontalStats()).fittingSpaces(length);
+                    if (expected != actual) {
+                        throw new AssertionError("All layers fit " + actual + ", expected " + expected);
+                    }
+                    if (expected == 0) {
+                        break;
+                    }
+                    LayeredSegment pick = vertical ? grid.reserveRandomFittingVertical(length)
+                                                   : grid.reserveRandomFittingHorizontal(length);
+                    if (vertical) {
+                        reference[pick.layer].reserveVertical(pick.row, pick.col, pick.length);
+                    } else {
+                        reference[pick.layer].reserveHorizontal(pick.row, pick.col, pick.length);
+                    }
+                    break;
+                }
+                default: {
+                    int from = 1 + rng.nextInt(layers), to = from + rng.nextInt(layers - from + 1);
+                    long cells = checkStairwells(grid, reference, from, to, nRows, nCols);
+                    if (cells > 0 && rng.nextBoolean()) {
+                        GridSegment cell = grid.reserveRandomStairwell(from, to);
+                        for (int l = from; l <= to; l++) {
+                            reference[l].reserveHorizontal(cell.row, cell.col, 1);
+                        }
+                    }
+                }
+            }
+            if (step % 64 == 63) {
+                grid.compact();
+            }
+        }
+        check(grid, reference, layers, nRows, nCols);
+    }
+
+    /**
+     * Compares the stairwell walk and isStairwellFree with the cells free in every reference grid of the range.
+     * Returns the number of such cells.
+     */
+    private static long checkStairwells(LayeredGrid grid, GridCreator[] reference, int from, int to,
+                                        int nRows, int nCols) {
+        boolean[][] visited = new boolean[nRows + 1][nCols + 1];
+        long[] lastCell = {0};
+        grid.forEachStairwell(from, to, (row, col, length) -> {
+            for (int c = col; c < col + length; c++) {
+                long cell = (long) row * (nCols + 1) + c;
+                if (cell <= lastCell[0]) {
+                    throw new AssertionError("Stairwell cells out of order at (" + row + ", " + c + ")");
+                }
+                lastCell[0] = cell;
+                visited[row][c] = true;
+            }
+        });
+        long cells = 0;
+        for (int row = 1; row <= nRows; row++) {
+            for (int col = 1; col <= nCols; col++) {
+                boolean expected = true;
+                for (int l = from; l <= to; l++) {
+                    expected &= reference[l].isFree(row, col);
+                }
+                if (visited[row][col] != expected || grid.isStairwellFree(row, col, from, to) != expected) {
+                    throw new AssertionError("Stairwell at (" + row + ", " + col + ") on layers " + from + ".." + to);
+                }
+                cells += expected ? 1 : 0;
+            }
+        }
+        return cells;
+    }
+
+    private static void check(LayeredGrid grid, GridCreator[] reference, int layers, int nRows, int nCols) {
+        long freeCells = 0;
+        for (int layer = 1; layer <= layers; layer++) {
+            freeCells += reference[layer].horizontalStats().freeCells();
+            for (int row = 1; row <= nRows; row++) {
+                for (int col = 1; col <= nCols; col++) {
+                    if (grid.isFree(layer, row, col) != reference[layer].isFree(row, col)) {
+                        throw new AssertionError("Cell (" + layer + ", " + row + ", " + col + ")");
+                    }
+                }
+            }
+        }
+        if (grid.horizontalStats().freeCells() != freeCells || grid.verticalStats().freeCells() != freeCells) {
+            throw new AssertionError("Free cells " + grid.horizontalStats().freeCells() + " / "
+                    + grid.verticalStats().freeCells() + ", expected " + freeCells);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.Random;
+
+/**
+ * Random tester for the placement policies: on grids fragmented by random reservations, every reserveFitting
+ * must place the segment at the start of the free run a brute force over a cell array picks by the policy's
+ * definition, and must throw IllegalArgumentException without changes when no free run is long enough or the
+ * length is below 1. The cell queries (isFree, freeCountInRow, nextFree, nextReserved) are checked against the same
+ * cell array after every step, and must throw IllegalArgumentException for cells outside the grid.
+ */
+public class TestPolicyRandom {
+
+    private static final Engine[] ENGINES = {Engine.BITBOARD, Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP,
+            Engine.BUCKETED_LINES, Engine.SPARSE_LINES};
+
+    public static void main(String[] args) {
+        for (Engine engine : ENGINES) {
+            checkCellBounds(engine);
+            for (long seed = 0; seed < 40; seed++) {
+                run(engine, seed);
+            }
+        }
+        System.out.println("All policy tests passed successfully!");
+    }
+
+    private static void run(Engine engine, long seed) {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        int nRows = 1 + ops.nextInt(16), nCols = 1 + ops.nextInt(16);
+        GridCreator grid = new GridCreator(nRows, nCols, engine);
+        boolean[][] reserved = new boolean[nRows + 1][nCols + 1];
+        for (int i = 0; i < 200; i++) {
+            boolean vertical = ops.nextBoolean();
+            int length = ops.nextInt(Math.max(nRows, nCols) + 3) - 1; // -1 .. line length + 1
+            if (ops.nextInt(3) == 0) {
+                // fragment the grid with explicit reservations the policies then have to work around
+                int row = 1 + ops.nextInt(nRows), col = 1 + ops.nextInt(nCols);
+                length = 1 + ops.nextInt(3);
+                if ((vertical ? grid.tryReserveVertical(row, col, length)
+                              : grid.tryReserveHorizontal(row, col, length)) == ReserveStatus.RESERVED) {
+                    mark(reserved, vertical, row, col, length);
+                }
+                continue;
+            }
+            Policy policy = Policy.values()[ops.nextInt(Policy.values().length)];
+            int[] expected = length < 1 ? null : bruteForce(reserved, nRows, nCols, vertical, length, policy);
+            GridSegment res;
+            try {
+                res = vertical ? grid.reserveFittingVertical(length, policy)
+                               : grid.reserveFittingHorizontal(length, policy);
+            } catch (IllegalArgumentException e) {
+                res = null;
+            }
+            String what = policy + (vertical ? " V " : " H ") + length + " on " + engine + ", seed " + seed
+                    + ", step " + i;
+            if (expected == null) {
+                if (res != null) {
+                    throw new AssertionError(what + " reserved " + res + " where nothing fits");
+                }
+            } else if (res == null || res.row != expected[0] || res.col != expected[1] || res.length != length) {
+                throw new AssertionError(what + " reserved " + res + ", expected "
+                        + GridSegment.GS(expected[0], expected[1], length));
+            }
+            if (res != null) {
+                mark(reserved, vertical, res.row, res.col, length);
+            }
+            check(grid, reserved, nRows, nCols, what);
+        }
+        grid.destroy();
+    }
+
+    /**
+     * {row, col} of the free run the policy picks among those at least length long, null if there is none.
+     */
+    private static int[] bruteForce(boolean[][] reserved, int nRows, int nCols, boolean vertical, int length,
+                                    Policy policy) {
+        int lines = vertical ? nCols : nRows, lineLength = vertical ? nRows : nCols;
+        int[] best = null;
+        int bestLength = 0;
+        for (int line = 1; line <= lines; line++) {
+            for (int start = 1; start <= lineLength; ) {
+                int end = start;
+                while (end <= lineLength && !cell(reserved, vertical, line, end)) {
+                    ++end;
+                }
+                int runLength = end - start;
+                if (runLength >= length) {
+                    int[] run = vertical ? new int[]{start, line} : new int[]{line, start};
+                    if (best == null || better(policy, vertical, run, runLength, best, bestLength)) {
+                        best = run;
+                        bestLength = runLength;
+                    }
+                }
+                start = Math.max(end, start + 1);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The policies as documented on {@link Policy}, with ties broken by (row, col) of the run's start.
+     */
+    private static boolean better(Policy policy, boolean vertical, int[] run, int runLength, int[] best,
+                                  int bestLength) {
+        int byRowCol = run[0] != best[0] ? Integer.compare(run[0], best[0]) : Integer.compare(run[1], best[1]);
+        switch (policy) {
+            case FIRST_FIT:
+                // lowest line (row horizontally, column vertically), then closest to its start
+                int line = vertical ? 1 : 0;
+                return run[line] != best[line] ? run[line] < best[line] : run[1 - line] < best[1 - line];
+            case BEST_FIT:
+                return runLength < bestLength || (runLength == bestLength && byRowCol < 0);
+            default:
+                return runLength > bestLength || (runLength == bestLength && byRowCol > 0);
+        }
+    }
+
+    private static boolean cell(boolean[][] reserved, boolean vertical, int line, int pos) {
+        return vertical ? reserved[pos][line] : reserved[line][pos];
+    }
+
+    private static void mark(boolean[][] reserved, boolean vertical, int row, int col, int length) {
+        for (int i = 0; i < length; i++) {
+            if (vertical) {
+                reserved[row + i][col] = true;
+            } else {
+                reserved[row][col + i] = true;
+            }
+        }
+    }
+
+    /**
+     * Cells on every side just outside an 8x6 grid, for each query.
+     */
+    private static void checkCellBounds(Engine engine) {
+        GridCreator grid = new GridCreator(8, 6, engine);
+        grid.reserveHorizontal(8, 1, 6);
+        int[][] outside = {{0, 1}, {1, 0}, {0, 0}, {9, 1}, {1, 7}, {-1, 3}};
+        for (int[] cell : outside) {
+            expectRejected(() -> grid.isFree(cell[0], cell[1]), "isFree", cell, engine);
+        }
+        for (int row : new int[]{0, 9, -3}) {
+            expectRejected(() -> grid.freeCountInRow(row), "freeCountInRow", new int[]{row, 1}, engine);
+        }
+        // the scans may start one past the end of a row
+        int[][] outsideScans = {{0, 1}, {1, 0}, {9, 1}, {1, 8}};
+        for (int[] cell : outsideScans) {
+            expectRejected(() -> grid.nextFree(cell[0], cell[1]), "nextFree", cell, engine);
+            expectRejected(() -> grid.nextReserved(cell[0], cell[1]), "nextReserved", cell, engine);
+        }
+        if (grid.nextFree(1, 7) != -1 || grid.nextReserved(8, 7) != -1 || grid.isFree(8, 6) || !grid.isFree(7, 6)
+                || grid.freeCountInRow(8) != 0 || grid.freeCountInRow(1) != 6) {
+            throw new AssertionError("Cell queries at the edges of the grid of " + engine);
+        }
+        grid.destroy();
+    }
+
+    private static void expectRejected(Runnable query, String name, int[] cell, Engine engine) {
+        try {
+            query.run();
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError(name + "(" + cell[0] + ", " + cell[1] + ") accepted on " + engine);
+    }
+
+    private static void check(GridCreator grid, boolean[][] reserved, int nRows, int nCols, String stage) {
+        long free = 0;
+        for (int row = 1; row <= nRows; row++) {
+            int freeInRow = 0;
+            for (int col = 1; col <= nCols; col++) {
+                if (grid.isFree(row, col) == reserved[row][col]) {
+                    throw new AssertionError("Grid differs at (" + row + ", " + col + ") after " + stage);
+                }
+                freeInRow += reserved[row][col] ? 0 : 1;
+            }
+            if (grid.freeCountInRow(row) != freeInRow) {
+                throw new AssertionError("Free cells in row " + row + ": " + grid.freeCountInRow(row) + " after "
+                        + stage + ", expected " + freeInRow);
+            }
+            // nextFree and nextReserved from every column, one past the end included
+            int nextFree = -1, nextReserved = -1;
+            for (int col = nCols + 1; col >= 1; col--) {
+                if (col <= nCols) {
+                    if (reserved[row][col]) {
+                        nextReserved = col;
+                    } else {
+                        nextFree = col;
+                    }
+                }
+                if (grid.nextFree(row, col) != nextFree || grid.nextReserved(row, col) != nextReserved) {
+                    throw new AssertionError("Scan of row " + row + " from column " + col + " after " + stage);
+                }
+            }
+            free += freeInRow;
+        }
+        if (grid.verticalStats().freeCells() != free || grid.horizontalStats().freeCells() != free) {
+            throw new AssertionError("Free cells " + grid.verticalStats().freeCells() + " / "
+                    + grid.horizontalStats().freeCells() + " after " + stage + ", expected " + free);
+        }
+    }
+}
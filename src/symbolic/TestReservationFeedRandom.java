@@ -0,0 +1,250 @@
+package symbolic;
+
+import symbolic.engine.Engine;
+import symbolic.segments.util.RNG;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random tester for ReservationFeed: a consumer mirrors a parent grid from a feed that is drained after every
+ * operation, made in the parent or through a child, and checks every event's freeBefore and freeAfter against its
+ * mirror. A second feed with a small ring is drained now and then and must report exactly the drains after which
+ * events were dropped, including drops that happen while a drain is running.
+ */
+public class TestReservationFeedRandom {
+
+    private static final Engine[] ENGINES = {Engine.BITBOARD, Engine.HASHED_TREES, Engine.BUCKETED_LINES,
+            Engine.SPARSE_LINES};
+    private static final int ROWS = 12, CHILD_ROWS = 6, CHILD_OFFSET = 3, SMALL_CAPACITY = 8;
+
+    public static void main(String[] args) {
+        for (Engine engine : ENGINES) {
+            for (long seed = 0; seed < 20; seed++) {
+                run(engine, seed);
+            }
+            checkDropDuringDrain(engine);
+        }
+        System.out.println("All reservation feed tests passed successfully!");
+    }
+
+    private static void run(Engine engine, long seed) {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        int nCols = 2 + ops.nextInt(12);
+        GridCreator parent = new GridCreator(ROWS, nCols, engine);
+        GridCreator child = new GridCreator(CHILD_ROWS, nCols, parent, CHILD_OFFSET, engine);
+        ReservationFeed feed = parent.openFeed(1024), small = parent.openFeed(SMALL_CAPACITY);
+        boolean[][] mirror = new boolean[ROWS + 1][nCols + 1], smallMirror = new boolean[ROWS + 1][nCols + 1];
+        List<int[]> events = new ArrayList<>();
+        long pendingSmall = 0, expectedDropped = 0;
+        boolean droppedSinceDrain = false;
+        for (int i = 0; i < 150; i++) {
+            if (ops.nextInt(60) == 0) {
+                child.reset();
+                parent.reset();
+            } else {
+                operation(ops.nextBoolean() ? parent : child, ops, nCols);
+            }
+            events.clear();
+            int drained = feed.drain(new Recorder(events));
+            if (drained != events.size()) {
+                throw new AssertionError("Large feed drained " + drained + " of " + events.size());
+            }
+            // Measured once the operation is done: apply all of its events first.
+            for (int[] e : events) {
+                apply(mirror, e);
+            }
+            for (int[] e : events) {
+                checkFreeAround(mirror, e, nCols);
+            }
+            checkMirror(parent, mirror, nCols, "large feed");
+
+            // The small ring keeps SMALL_CAPACITY events between drains and drops the rest.
+            long kept = Math.min(events.size(), SMALL_CAPACITY - pendingSmall);
+            droppedSinceDrain |= kept < events.size();
+            expectedDropped += events.size() - kept;
+            pendingSmall += kept;
+            if (small.dropped() != expectedDropped) {
+                throw new AssertionError("Small feed dropped " + small.dropped() + ", expected " + expectedDropped);
+            }
+            if (ops.nextInt(4) == 0) {
+                List<int[]> smallEvents = new ArrayList<>();
+                int res = small.drain(new Recorder(smallEvents));
+                if ((res == -1) != droppedSinceDrain || smallEvents.size() != pendingSmall) {
+                    throw new AssertionError("Small feed drain returned " + res + " with " + smallEvents.size()
+                            + " events, expected " + pendingSmall + (droppedSinceDrain ? " and a loss" : ""));
+                }
+                if (res == -1) {
+                    // rebuild from the grid, like a consumer falling back to a full dump
+                    for (int row = 1; row <= ROWS; row++) {
+                        for (int col = 1; col <= nCols; col++) {
+                            smallMirror[row][col] = !parent.isFree(row, col);
+                        }
+                    }
+                } else {
+                    for (int[] e : smallEvents) {
+                        apply(smallMirror, e);
+                    }
+                }
+                checkMirror(parent, smallMirror, nCols, "small feed");
+                pendingSmall = 0;
+                droppedSinceDrain = false;
+            }
+        }
+        parent.closeFeed(feed);
+        parent.closeFeed(small);
+        child.destroy();
+        parent.destroy();
+    }
+
+    /**
+     * A drop while the consumer is inside drain() must be reported by the next drain.
+     */
+    private static void checkDropDuringDrain(Engine engine) {
+        GridCreator grid = new GridCreator(4, 4, engine);
+        ReservationFeed feed = grid.openFeed(2);
+        grid.reserveHorizontal(1, 1, 1);
+        grid.reserveHorizontal(1, 2, 1);
+        grid.reserveHorizontal(1, 3, 1); // dropped
+        int[] calls = {0};
+        int res = feed.drain(new Recorder(new ArrayList<>()) {
+            @Override
+            public void reserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter) {
+                if (calls[0]++ == 0) {
+                    grid.reserveHorizontal(2, 1, 1); // the ring is still full: dropped during the drain
+                }
+            }
+        });
+        if (res != -1 || feed.dropped() != 2) {
+            throw new AssertionError("First drain returned " + res + ", dropped " + feed.dropped());
+        }
+        if (feed.drain(new Recorder(new ArrayList<>())) != -1) {
+            throw new AssertionError("Drop during a drain of " + engine + " was not reported");
+        }
+        if (feed.drain(new Recorder(new ArrayList<>())) != 0) {
+            throw new AssertionError("Drop of " + engine + " reported twice");
+        }
+        grid.destroy();
+    }
+
+    private static void operation(GridCreator grid, Random ops, int nCols) {
+        boolean vertical = ops.nextBoolean();
+        int length = 1 + ops.nextInt(4);
+        try {
+            switch (ops.nextInt(5)) {
+                case 0: {
+                    int row = 1 + ops.nextInt(CHILD_ROWS), col = 1 + ops.nextInt(nCols);
+                    if (vertical) {
+                        grid.reserveVertical(row, col, length);
+                    } else {
+                        grid.reserveHorizontal(row, col, length);
+                    }
+                    break;
+                }
+                case 1:
+                    if (vertical) {
+                        grid.reserveRandomFittingVertical(length);
+                    } else {
+                        grid.reserveRandomFittingHorizontal(length);
+                    }
+                    break;
+                case 2:
+                    if (vertical) {
+                        grid.reserveRandomFittingVerticalBatch(length, 1 + ops.nextInt(4));
+                    } else {
+                        grid.reserveRandomFittingHorizontalBatch(length, 1 + ops.nextInt(4));
+                    }
+                    break;
+                case 3:
+                    if (vertical) {
+                        grid.reserveFittingVertical(length, Policy.FIRST_FIT);
+                    } else {
+                        grid.reserveFittingHorizontal(length, Policy.LARGEST_FIT);
+                    }
+                    break;
+                default: {
+                    int row = 1 + ops.nextInt(CHILD_ROWS), col = 1 + ops.nextInt(nCols);
+                    if (vertical) {
+                        grid.tryReserveVertical(row, col, length);
+                    } else {
+                        grid.tryReserveHorizontal(row, col, length);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // nothing fits, nothing published
+        }
+    }
+
+    /**
+     * Events as {kind (0 horizontal, 1 vertical, 2 reset), row, col, length, freeBefore, freeAfter}.
+     */
+    private static class Recorder implements ReservationFeed.Listener {
+        private final List<int[]> events;
+
+        Recorder(List<int[]> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void reserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter) {
+            events.add(new int[]{vertical ? 1 : 0, row, col, length, freeBefore, freeAfter});
+        }
+
+        @Override
+        public void reset() {
+            events.add(new int[]{2, 0, 0, 0, 0, 0});
+        }
+    }
+
+    private static void apply(boolean[][] mirror, int[] e) {
+        if (e[0] == 2) {
+            for (boolean[] row : mirror) {
+                java.util.Arrays.fill(row, false);
+            }
+            return;
+        }
+        for (int i = 0; i < e[3]; i++) {
+            int row = e[0] == 1 ? e[1] + i : e[1], col = e[0] == 1 ? e[2] : e[2] + i;
+            if (mirror[row][col]) {
+                throw new AssertionError("Cell (" + row + ", " + col + ") published twice");
+            }
+            mirror[row][col] = true;
+        }
+    }
+
+    private static void checkFreeAround(boolean[][] mirror, int[] e, int nCols) {
+        if (e[0] == 2) {
+            return;
+        }
+        boolean vertical = e[0] == 1;
+        int lineLength = vertical ? ROWS : nCols, start = vertical ? e[1] : e[2];
+        int before = 0, after = 0;
+        while (start - before - 1 >= 1 && !cell(mirror, vertical, e, start - before - 1)) {
+            ++before;
+        }
+        while (start + e[3] + after <= lineLength && !cell(mirror, vertical, e, start + e[3] + after)) {
+            ++after;
+        }
+        if (before != e[4] || after != e[5]) {
+            throw new AssertionError("Event (" + e[1] + ", " + e[2] + ", " + e[3] + (vertical ? " V" : " H")
+                    + ") has free " + e[4] + " / " + e[5] + ", expected " + before + " / " + after);
+        }
+    }
+
+    private static boolean cell(boolean[][] mirror, boolean vertical, int[] e, int pos) {
+        return vertical ? mirror[pos][e[2]] : mirror[e[1]][pos];
+    }
+
+    private static void checkMirror(GridCreator grid, boolean[][] mirror, int nCols, String name) {
+        for (int row = 1; row <= ROWS; row++) {
+            for (int col = 1; col <= nCols; col++) {
+                if (mirror[row][col] == grid.isFree(row, col)) {
+                    throw new AssertionError("Mirror of the " + name + " differs at (" + row + ", " + col + ")");
+                }
+            }
+        }
+    }
+}
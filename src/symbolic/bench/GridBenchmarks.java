@@ -0,0 +1,1135 @@
+package symbolic.bench;
+
+import symbolic.ChunkGenerator;
+import symbolic.GridCreator;
+import symbolic.GridSegment;
+import symbolic.LayeredGrid;
+import symbolic.Policy;
+import symbolic.ReservationFeed;
+import symbolic.ReserveStatus;
+import symbolic.engine.Bitboard;
+import symbolic.engine.Engine;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.segments.PartialSegmentHandler;
+import symbolic.segments.by_end_pos.AVLSegmentsByEndPosition;
+import symbolic.segments.by_end_pos.PerLineSegmentsByEndPosition;
+import symbolic.segments.by_end_pos.SegmentsByEndPosition;
+import symbolic.segments.by_length.SegmentsByLength;
+import symbolic.segments.by_length.bucket_implementation.BucketedSegmentsByLength;
+import symbolic.segments.by_length.segtree_implementation.PreallocatedHashedSegmentsByLengthNodes;
+import symbolic.segments.util.RNG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Simple wall-clock benchmarks. Run with: java symbolic.bench.GridBenchmarks
+ * Each scenario is run a few times first so that the JIT has warmed up.
+ */
+public class GridBenchmarks {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+    private static final int MAX_OPS = 20000;
+
+    public static void main(String[] args) {
+        placementPolicies();
+        randomPlacementLatency();
+        lengthIndexes();
+        positionIndexes();
+        engines();
+        occupancyMirror();
+        instrumentation();
+        chunkTurnover();
+        construction();
+        offHeapPools();
+        batchedPlacement();
+        orientationBursts();
+        chunkPrefetching();
+        concurrentChildren();
+        mazeConnectivity();
+        frameSync();
+        sparseGrids();
+        poolRelease();
+        nodeRelayout();
+        layeredGrids();
+        probedPlacement();
+    }
+
+    /**
+     * Fills a grid with horizontal segments of random lengths until one does not fit (the failing call counts as an op).
+     * Fill ratio at that point measures fragmentation (higher is better), time measures throughput.
+     */
+    static void placementPolicies() {
+        System.out.println("== Placement policies: fill until first failure ==");
+        int[][] shapes = {{7, 5}, {64, 64}, {300, 300}};
+        for (int[] shape : shapes) {
+            for (Policy policy : Policy.values()) {
+                reportFill(shape[0], shape[1], policy);
+            }
+            reportFill(shape[0], shape[1], null);
+        }
+    }
+
+    /**
+     * Latency of a single random placement in one orientation (PartialSegmentHandler) and in a whole grid.
+     * Reserves until a quarter of the cells is taken, so the trees hold a realistic mix of segments.
+     */
+    static void randomPlacementLatency() {
+        System.out.println("== Random placement latency ==");
+        int[][] shapes = {{64, 64}, {300, 300}, {1000, 200}};
+        for (int[] shape : shapes) {
+            int nRows = shape[0], nCols = shape[1], length = 3;
+            int ops = nRows * nCols / (4 * length);
+            long handlerNanos = 0, gridNanos = 0;
+            for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                PartialSegmentHandler handler = new PartialSegmentHandler(nRows, nCols, true);
+                long start = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    handler.reserveRandomFitting(length);
+                }
+                long handlerElapsed = System.nanoTime() - start;
+                handler.flush();
+
+                GridCreator grid = new GridCreator(nRows, nCols);
+                start = System.nanoTime();
+                for (int i = 0; i < ops; i++) {
+                    grid.reserveRandomFittingVertical(length);
+                }
+                long gridElapsed = System.nanoTime() - start;
+                grid.destroy();
+                if (run >= WARMUP_RUNS) {
+                    handlerNanos += handlerElapsed;
+                    gridNanos += gridElapsed;
+                }
+            }
+            long totalOps = (long) ops * MEASURED_RUNS;
+            System.out.printf("%4dx%-4d handler %7.0f ns/op   grid %7.0f ns/op%n",
+                    nRows, nCols, (double) handlerNanos / totalOps, (double) gridNanos / totalOps);
+        }
+    }
+
+    /**
+     * Hashed sparse segment tree vs. dense length buckets: grid construction and random placements
+     * of mixed lengths in both orientations until a quarter of the cells is taken (at most MAX_OPS placements).
+     */
+    static void lengthIndexes() {
+        System.out.println("== Length index: hashed segment tree vs. buckets ==");
+        int[][] shapes = {{7, 5}, {64, 64}, {300, 300}, {1000, 200}, {2000, 2000}};
+        for (int[] shape : shapes) {
+            reportLengthIndex(shape[0], shape[1], "hashed", PreallocatedHashedSegmentsByLengthNodes::new);
+            reportLengthIndex(shape[0], shape[1], "buckets", BucketedSegmentsByLength::new);
+        }
+    }
+
+    /**
+     * One AVL over all lines vs. a sorted array per line, on square grids of 100 to 4000 lines.
+     * Both use the bucketed length index, so only the position index differs.
+     */
+    static void positionIndexes() {
+        System.out.println("== Position index: AVL vs. per-line arrays ==");
+        int[] sides = {100, 500, 1000, 4000};
+        for (int side : sides) {
+            reportIndexes(side, side, "avl", BucketedSegmentsByLength::new, AVLSegmentsByEndPosition::new);
+            reportIndexes(side, side, "per-line", BucketedSegmentsByLength::new, PerLineSegmentsByEndPosition::new);
+        }
+    }
+
+    /**
+     * All engines on growing square and flat grids, to find where AUTO should switch between them.
+     */
+    static void engines() {
+        System.out.println("== Engines ==");
+        int[][] shapes = {{7, 5}, {16, 16}, {32, 32}, {64, 64}, {128, 128}, {300, 300}, {1000, 200}, {1000, 1000}};
+        for (int[] shape : shapes) {
+            for (Engine engine : Engine.values()) {
+                if (engine != Engine.AUTO) {
+                    reportPlacements(shape[0], shape[1], engine.name(), () -> new GridCreator(shape[0], shape[1], engine));
+                }
+            }
+        }
+        // Where AUTO switches from BITBOARD to BUCKETED_LINES (Engine.BITBOARD_MAX_CELLS). A grid this small is
+        // filled in a few dozen ops, so each side builds and fills thousands of grids, median of five rounds.
+        System.out.println("-- AUTO crossover: build and fill a quarter, per op --");
+        for (int side = 24; side <= 40; side += 4) {
+            double[] bitboard = new double[MEASURED_RUNS], buckets = new double[MEASURED_RUNS];
+            for (int run = -WARMUP_RUNS; run < MEASURED_RUNS; run++) {
+                double b = smallGridNanosPerOp(Engine.BITBOARD, side), k = smallGridNanosPerOp(Engine.BUCKETED_LINES, side);
+                if (run >= 0) {
+                    bitboard[run] = b;
+                    buckets[run] = k;
+                }
+            }
+            Arrays.sort(bitboard);
+            Arrays.sort(buckets);
+            System.out.printf("%4dx%-4d (%4d cells)  BITBOARD %6.0f ns/op   BUCKETED_LINES %6.0f ns/op%n",
+                    side, side, side * side, bitboard[MEASURED_RUNS / 2], buckets[MEASURED_RUNS / 2]);
+        }
+    }
+
+    private static double smallGridNanosPerOp(Engine engine, int side) {
+        long ops = 0, start = System.nanoTime();
+        for (int g = 0; g < 3000; g++) {
+            Random lengths = new Random(g);
+            GridCreator grid = new GridCreator(side, side, engine);
+            for (long cells = 0; 4 * cells < (long) side * side; ++ops) {
+                int length = 1 + lengths.nextInt(5);
+                cells += (lengths.nextBoolean() ? grid.reserveRandomFittingVertical(length)
+                                                : grid.reserveRandomFittingHorizontal(length)).length;
+            }
+            grid.destroy();
+        }
+        return (double) (System.nanoTime() - start) / ops;
+    }
+
+    /**
+     * Cost of keeping the occupancy bitset of the tree engine up to date: same random fill with and without it,
+     * plus the bitset's size and the time of a full isFree sweep.
+     */
+    static void occupancyMirror() {
+        System.out.println("== Occupancy mirror ==");
+        int[] sides = {64, 300, 1000};
+        for (int side : sides) {
+            reportPlacements(side, side, "no mirror", () -> new GridCreator(side, side, Engine.BUCKETED_LINES));
+            reportPlacements(side, side, "mirror", () -> {
+                GridCreator grid = new GridCreator(side, side, Engine.BUCKETED_LINES);
+                grid.isFree(1, 1);
+                return grid;
+            });
+            GridCreator grid = new GridCreator(side, side, Engine.BUCKETED_LINES);
+            long start = System.nanoTime();
+            long free = grid.isFree(1, 1) ? 1 : 0; // builds the mirror
+            long built = System.nanoTime(), sweepStart = 0;
+            for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                if (run == WARMUP_RUNS) {
+                    sweepStart = System.nanoTime();
+                }
+                for (int row = 1; row <= side; row++) {
+                    for (int col = 1; col <= side; col++) {
+                        free += grid.isFree(row, col) ? 1 : 0;
+                    }
+                }
+            }
+            long end = System.nanoTime();
+            grid.destroy();
+            System.out.printf("%4dx%-4d mirror %d bytes, built in %.1f us, isFree %.2f ns/cell (%d)%n", side, side,
+                    new Bitboard(side, side).sizeInBytes(), (built - start) / 1e3, (double) (end - sweepStart) / ((long) side * side * MEASURED_RUNS), free);
+        }
+    }
+
+    /**
+     * Random placements with the instrumentation as configured for this JVM. Run once with and once without
+     * -Dsymbolic.instrumentation=true to compare; the flag is a constant, so it can't be flipped in one run.
+     */
+    static void instrumentation() {
+        System.out.println("== Instrumentation " + (Instrumentation.ENABLED ? "on" : "off") + " ==");
+        int[] sides = {64, 300, 1000};
+        for (int side : sides) {
+            reportPlacements(side, side, "tree", () -> new GridCreator(side, side, Engine.HASHED_TREES));
+            reportPlacements(side, side, "buckets", () -> new GridCreator(side, side, Engine.BUCKETED_LINES));
+        }
+        if (Instrumentation.ENABLED) {
+            System.out.print(Instrumentation.report());
+        }
+    }
+
+    /**
+     * Turning a used grid into an all-free one: destroy() and a new GridCreator vs. reset().
+     * Every round fills a quarter of the grid first, so reset has real changes to undo; only the turnover is timed.
+     */
+    static void chunkTurnover() {
+        System.out.println("== Chunk turnover: destroy + new vs. reset ==");
+        int[] sides = {64, 300, 1000};
+        int rounds = 20;
+        for (int side : sides) {
+            for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.BUCKETED_LINES}) {
+                long rebuildNanos = 0, resetNanos = 0;
+                GridCreator rebuilt = new GridCreator(side, side, engine), reused = new GridCreator(side, side, engine);
+                for (int round = 0; round < WARMUP_RUNS + rounds; round++) {
+                    fillQuarter(rebuilt, round);
+                    fillQuarter(reused, round);
+                    long start = System.nanoTime();
+                    rebuilt.destroy();
+                    rebuilt = new GridCreator(side, side, engine);
+                    long mid = System.nanoTime();
+                    reused.reset();
+                    long end = System.nanoTime();
+                    if (round >= WARMUP_RUNS) {
+                        rebuildNanos += mid - start;
+                        resetNanos += end - mid;
+                    }
+                }
+                rebuilt.destroy();
+                reused.destroy();
+                System.out.printf("%4dx%-4d %-14s destroy + new %9.1f us   reset %9.1f us%n", side, side, engine,
+                        rebuildNanos / 1e3 / rounds, resetNanos / 1e3 / rounds);
+            }
+        }
+    }
+
+    /**
+     * Creating the horizontal indexes of an empty grid with every pair of tree indexes. Both are bulk-built
+     * from the full lines. Creation is short, so the JIT gets as many warm-up rounds as there are measured ones.
+     */
+    static void construction() {
+        System.out.println("== Construction of empty horizontal indexes ==");
+        int[][] shapes = {{64, 64}, {300, 300}, {1000, 1000}, {1000, 30}};
+        int rounds = 500;
+        for (int[] shape : shapes) {
+            int nRows = shape[0], nCols = shape[1];
+            reportConstruction(nRows, nCols, rounds, "hashed + AVL", PreallocatedHashedSegmentsByLengthNodes::new,
+                    AVLSegmentsByEndPosition::new);
+            reportConstruction(nRows, nCols, rounds, "bucketed + per-line", BucketedSegmentsByLength::new,
+                    PerLineSegmentsByEndPosition::new);
+        }
+    }
+
+    private static void reportConstruction(int nRows, int nCols, int rounds, String name,
+                                           SegmentsByLength.Factory lengthIndex,
+                                           SegmentsByEndPosition.Factory positionIndex) {
+        long nanos = 0, cells = 0;
+        for (int round = 0; round < 2 * rounds; round++) {
+            long start = System.nanoTime();
+            PartialSegmentHandler handler = new PartialSegmentHandler(nRows, nCols, false, lengthIndex, positionIndex);
+            if (round >= rounds) {
+                nanos += System.nanoTime() - start;
+            }
+            cells += handler.freeCells();
+        }
+        if (cells != 2L * rounds * nRows * nCols) {
+            throw new IllegalStateException("Grid not empty after construction");
+        }
+        System.out.printf("%4dx%-4d %-20s %9.1f us%n", nRows, nCols, name, nanos / 1e3 / rounds);
+    }
+
+    /**
+     * Heap vs. off-heap node pools on fragmented 1000x1000 hashed trees holding -Dsymbolic.bench.segments free
+     * segments in total (default 1M). Reports the heap left after a full GC, direct memory, the collections during
+     * the fill, and the time of a full GC, which has to mark every node object of the heap pools.
+     * GC numbers depend on -Xmx and the collector, so compare runs with the same JVM flags. For large counts,
+     * run each kind in its own JVM with -Dsymbolic.bench.offHeap=false / true.
+     */
+    static void offHeapPools() {
+        System.out.println("== Heap vs. off-heap node pools ==");
+        int segments = Integer.getInteger("symbolic.bench.segments", 1_000_000);
+        String only = System.getProperty("symbolic.bench.offHeap");
+        for (boolean offHeap : new boolean[]{false, true}) {
+            if (only == null || Boolean.parseBoolean(only) == offHeap) {
+                reportPools(segments, offHeap);
+            }
+        }
+    }
+
+    private static void reportPools(int segments, boolean offHeap) {
+        int side = 1000, perGrid = 200_000; // random single cells give at most about 250K runs in 1000x1000
+        System.gc();
+        long collections = gcCount(), gcMillis = gcMillis();
+        long start = System.nanoTime();
+        List<PartialSegmentHandler> grids = new ArrayList<>();
+        for (int total = 0; total < segments; ) {
+            PartialSegmentHandler grid = new PartialSegmentHandler(side, side, false,
+                    (nRows, nCols, vertical) -> new PreallocatedHashedSegmentsByLengthNodes(nRows, nCols, vertical, offHeap),
+                    (nRows, nCols, vertical) -> new AVLSegmentsByEndPosition(nRows, nCols, vertical, offHeap));
+            int target = Math.min(perGrid, segments - total);
+            while (grid.freeRunCount() < target) {
+                grid.reserveRandomFitting(1);
+            }
+            total += grid.freeRunCount();
+            grids.add(grid);
+        }
+        long fillNanos = System.nanoTime() - start;
+        collections = gcCount() - collections;
+        gcMillis = gcMillis() - gcMillis;
+        long fullGcStart = System.nanoTime();
+        System.gc();
+        long fullGcNanos = System.nanoTime() - fullGcStart;
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long direct = directMemory();
+        System.out.printf("%-8s %d grids: fill %6.0f ms, %3d GCs %5d ms, full GC %5.0f ms, heap %5d MB, direct %5d MB%n",
+                offHeap ? "off-heap" : "heap", grids.size(), fillNanos / 1e6, collections, gcMillis,
+                fullGcNanos / 1e6, heap >> 20, direct >> 20);
+        grids.forEach(PartialSegmentHandler::flush);
+    }
+
+    /**
+     * Memory a grid's pools hold through a chunk's life: one heavy fill of single cells (the slowest reservation
+     * includes the page additions it triggered), then light fills with a reset after each, then destroy().
+     * Pages no cycle reached in the last two resets go back, and destroy keeps one page per tree.
+     * With -Dsymbolic.instrumentation=true the report also gives the time expansions stalled reservations.
+     */
+    static void poolRelease() {
+        System.out.println("== Pool pages over heavy and light cycles ==");
+        int side = 300, heavy = 30_000, light = 100;
+        for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP}) {
+            long base = retainedMemory();
+            GridCreator grid = new GridCreator(side, side, engine);
+            long created = retainedMemory() - base;
+            RNG.setSeed(1);
+            long slowest = 0, start = System.nanoTime();
+            for (int i = 0; i < heavy; i++) {
+                long before = System.nanoTime();
+                if ((i & 1) == 0) {
+                    grid.reserveRandomFittingHorizontal(1);
+                } else {
+                    grid.reserveRandomFittingVertical(1);
+                }
+                slowest = Math.max(slowest, System.nanoTime() - before);
+            }
+            long fillNanos = System.nanoTime() - start;
+            long filled = retainedMemory() - base;
+            long[] afterReset = new long[3];
+            for (int cycle = 0; cycle < afterReset.length; cycle++) {
+                grid.reset();
+                afterReset[cycle] = retainedMemory() - base;
+                for (int i = 0; i < light; i++) {
+                    grid.reserveRandomFittingHorizontal(1);
+                }
+            }
+            grid.destroy();
+            long destroyed = retainedMemory() - base;
+            System.out.printf("%-22s created %5.1f MB, filled %5.1f MB (%5.0f ms, slowest %6.0f us), "
+                            + "after resets %5.1f / %5.1f / %5.1f MB, destroyed %5.1f MB%n",
+                    engine, created / 1e6, filled / 1e6, fillNanos / 1e6, slowest / 1e3,
+                    afterReset[0] / 1e6, afterReset[1] / 1e6, afterReset[2] / 1e6, destroyed / 1e6);
+        }
+        if (Instrumentation.ENABLED) {
+            System.out.print(Instrumentation.report());
+        }
+    }
+
+    /**
+     * Query cost on a grid after a long run of reservations, with the nodes as the inserts left them and after
+     * compact(): two grids get the same reservations, one is compacted, then both are walked (forEachFree) and
+     * get the same further random placements. Run with -Dsymbolic.pool.relayoutChurn=1 to have the trees
+     * relay themselves out during the run as well.
+     */
+    static void nodeRelayout() {
+        System.out.println("== Node layout after a long run: as inserted vs. compacted ==");
+        int side = 400, run = 16_000, placements = 2000;
+        for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP}) {
+            long compactNanos = 0;
+            long[] walkNanos = new long[2], placeNanos = new long[2];
+            for (int round = 0; round < WARMUP_RUNS + MEASURED_RUNS; round++) {
+                GridCreator[] grids = {new GridCreator(side, side, engine), new GridCreator(side, side, engine)};
+                for (GridCreator grid : grids) {
+                    RNG.setSeed(round);
+                    reserveFrame(grid, run);
+                }
+                long start = System.nanoTime();
+                grids[1].compact();
+                long compacted = System.nanoTime() - start;
+                for (int k = 0; k < grids.length; k++) {
+                    long[] cells = new long[1];
+                    start = System.nanoTime();
+                    grids[k].forEachFree(1, side, (row, col, length) -> cells[0] += length);
+                    long walked = System.nanoTime() - start;
+                    RNG.setSeed(-1 - round);
+                    start = System.nanoTime();
+                    reserveFrame(grids[k], placements);
+                    long placed = System.nanoTime() - start;
+                    grids[k].destroy();
+                    if (round >= WARMUP_RUNS) {
+                        walkNanos[k] += walked;
+                        placeNanos[k] += placed;
+                    }
+                }
+                if (round >= WARMUP_RUNS) {
+                    compactNanos += compacted;
+                }
+            }
+            for (int k = 0; k < 2; k++) {
+                System.out.printf("%-22s %-10s walk %8.1f us   placement %7.0f ns/op%n", engine,
+                        k == 0 ? "inserted" : "compacted", walkNanos[k] / 1e3 / MEASURED_RUNS,
+                        (double) placeNanos[k] / MEASURED_RUNS / placements);
+            }
+            System.out.printf("%-22s compact() %8.1f ms%n", engine, compactNanos / 1e6 / MEASURED_RUNS);
+        }
+    }
+
+    /**
+     * Floors of one dungeon as separate grids vs. one LayeredGrid: memory once built and after the same number of
+     * reservations per floor, and the latency of per-floor and any-floor random reservations.
+     */
+    static void layeredGrids() {
+        System.out.println("== Stacked floors: one grid per floor vs. one layered grid ==");
+        // The first round loads and compiles everything, so that its garbage does not skew the memory deltas.
+        for (boolean report : new boolean[]{false, true}) {
+            for (int floors : new int[]{4, 16}) {
+                reportFloors(floors, Engine.BUCKETED_LINES, report);
+                reportFloors(floors, Engine.HASHED_TREES, report);
+                reportFloors(floors, null, report);
+            }
+        }
+    }
+
+    /**
+     * One grid per floor with the engine, or a LayeredGrid if it is null.
+     */
+    private static void reportFloors(int floors, Engine engine, boolean report) {
+        int side = 512, reservations = 8000;
+        long base = retainedMemory();
+        GridCreator[] grids = new GridCreator[floors];
+        LayeredGrid layered = null;
+        if (engine == null) {
+            layered = new LayeredGrid(floors, side, side);
+        } else {
+            for (int floor = 0; floor < floors; floor++) {
+                grids[floor] = new GridCreator(side, side, engine);
+            }
+        }
+        long built = retainedMemory() - base;
+        RNG.setSeed(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < reservations * floors; i++) {
+            if (layered != null) {
+                layered.reserveRandomFittingHorizontal(i % floors + 1, 1 + i % 8);
+            } else {
+                grids[i % floors].reserveRandomFittingHorizontal(1 + i % 8);
+            }
+        }
+        long reserveNanos = System.nanoTime() - start;
+        long filled = retainedMemory() - base;
+        String anyFloor = "";
+        if (layered != null) {
+            start = System.nanoTime();
+            for (int i = 0; i < reservations; i++) {
+                layered.reserveRandomFittingHorizontal(1 + i % 8);
+            }
+            anyFloor = String.format("   any floor %6.2f us", (System.nanoTime() - start) / 1e3 / reservations);
+            layered.destroy();
+        } else {
+            for (GridCreator grid : grids) {
+                grid.destroy();
+            }
+        }
+        if (!report) {
+            return;
+        }
+        System.out.printf("%2d floors  %-15s built %6.1f MB   filled %6.1f MB   per floor %6.2f us%s%n", floors,
+                engine == null ? "LayeredGrid" : engine, built / 1e6, filled / 1e6,
+                reserveNanos / 1e3 / reservations / floors, anyFloor);
+    }
+
+    /**
+     * n random horizontal segments of length 5: n single calls vs. one batch, same seed and so the same segments.
+     * Each grid is a child of a twice as tall parent, so the copies in the parent are part of the cost.
+     */
+    static void batchedPlacement() {
+        System.out.println("== Random placement: single calls vs. one batch ==");
+        int[][] shapes = {{64, 64, 200}, {300, 300, 4000}, {500, 1000, 20000}};
+        int length = 5, warmup = 20, rounds = 20;
+        for (int[] shape : shapes) {
+            int nRows = shape[0], nCols = shape[1], n = shape[2];
+            for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.BUCKETED_LINES}) {
+                GridCreator singlesParent = new GridCreator(2 * nRows, nCols, engine);
+                GridCreator singles = new GridCreator(nRows, nCols, singlesParent, nRows / 2, engine);
+                GridCreator batchesParent = new GridCreator(2 * nRows, nCols, engine);
+                GridCreator batches = new GridCreator(nRows, nCols, batchesParent, nRows / 2, engine);
+                long singleNanos = 0, batchNanos = 0;
+                for (int round = 0; round < warmup + rounds; round++) {
+                    singlesParent.reset();
+                    singles.reset();
+                    batchesParent.reset();
+                    batches.reset();
+                    RNG.setSeed(round);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < n; i++) {
+                        singles.reserveRandomFittingHorizontal(length);
+                    }
+                    long mid = System.nanoTime();
+                    RNG.setSeed(round);
+                    GridSegment[] res = batches.reserveRandomFittingHorizontalBatch(length, n);
+                    long end = System.nanoTime();
+                    if (res.length != n || singlesParent.verticalStats().freeRunCount()
+                            != batchesParent.verticalStats().freeRunCount()) {
+                        throw new IllegalStateException("Batch differs from single calls");
+                    }
+                    if (round >= warmup) {
+                        singleNanos += mid - start;
+                        batchNanos += end - mid;
+                    }
+                }
+                System.out.printf("%4dx%-4d %-14s n=%-6d singles %9.1f us   batch %9.1f us%n", nRows, nCols, engine, n,
+                        singleNanos / 1e3 / rounds, batchNanos / 1e3 / rounds);
+                singles.destroy();
+                singlesParent.destroy();
+                batches.destroy();
+                batchesParent.destroy();
+            }
+        }
+    }
+
+    /**
+     * Random reservations of length 3 in bursts of one orientation, then the other. The other orientation catches
+     * up once per switch; a single burst never switches until the final stats read both orientations.
+     */
+    static void orientationBursts() {
+        System.out.println("== Random placement in bursts of one orientation ==");
+        int side = 500, n = 20000, rounds = 20;
+        for (int burst : new int[]{1, 30, 300, 3000, n}) {
+            for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.BUCKETED_LINES}) {
+                GridCreator grid = new GridCreator(side, side, engine);
+                long nanos = 0;
+                for (int round = 0; round < WARMUP_RUNS + rounds; round++) {
+                    grid.reset();
+                    RNG.setSeed(round);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < n; i++) {
+                        if ((i / burst) % 2 == 0) {
+                            grid.reserveRandomFittingHorizontal(3);
+                        } else {
+                            grid.reserveRandomFittingVertical(3);
+                        }
+                    }
+                    if (grid.horizontalStats().freeCells() != grid.verticalStats().freeCells()) {
+                        throw new IllegalStateException("Orientations disagree");
+                    }
+                    if (round >= WARMUP_RUNS) {
+                        nanos += System.nanoTime() - start;
+                    }
+                }
+                grid.destroy();
+                System.out.printf("%dx%d %-14s burst %-6d %7.3f us/op%n", side, side, engine, burst,
+                        nanos / 1e3 / rounds / n);
+            }
+        }
+    }
+
+    /**
+     * Time to the next chunk as seen by a game loop that needs one chunk per frame: building and filling it
+     * synchronously vs. taking it from a {@link ChunkGenerator}. Frames sleep in between, like a loop waiting
+     * for vsync, which is when the producer gets to run on a single core.
+     */
+    static void chunkPrefetching() {
+        System.out.println("== Time to next chunk: synchronous vs. prefetched ==");
+        int side = 256, chunks = 500, frameMillis = 4;
+        ChunkGenerator.Populator populator = (grid, index) -> {
+            for (int i = 0; i < 60; i++) {
+                grid.reserveRandomFittingHorizontal(1 + i % 8);
+                grid.reserveRandomFittingVertical(1 + i % 8);
+            }
+        };
+        long[] sync = new long[chunks], prefetched = new long[chunks];
+        for (int i = 0; i < chunks; i++) {
+            long start = System.nanoTime();
+            GridCreator grid = new GridCreator(side, side);
+            RNG.setSeed(ChunkGenerator.chunkSeed(1, i));
+            populator.populate(grid, i);
+            sync[i] = System.nanoTime() - start;
+            grid.destroy();
+            sleep(frameMillis);
+        }
+        try (ChunkGenerator generator = new ChunkGenerator(side, side, Engine.AUTO, 4, 1, populator)) {
+            for (int i = 0; i < chunks; i++) {
+                long start = System.nanoTime();
+                ChunkGenerator.Chunk chunk = generator.take();
+                prefetched[i] = System.nanoTime() - start;
+                generator.recycle(chunk);
+                sleep(frameMillis);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        reportLatencies(side + "x" + side + " synchronous", sync);
+        reportLatencies(side + "x" + side + " prefetched ", prefetched);
+    }
+
+    /**
+     * Children of 128x1024 in disjoint row bands of a parent with one band per thread, each filled with random
+     * reservations by its own thread, vs. the same work on plain children from one thread (every reservation also
+     * made in the parent right away). The concurrent time includes the final merge into the parent.
+     * Speedups need as many cores as threads.
+     */
+    static void concurrentChildren() {
+        System.out.println("== Concurrent children in disjoint row bands, "
+                + Runtime.getRuntime().availableProcessors() + " cores ==");
+        int side = 1024, bandRows = 128, perChild = 10000, rounds = 5;
+        for (int threads : new int[]{1, 2, 4, 8, 16}) {
+            long plainNanos = 0, concurrentNanos = 0;
+            for (int round = 0; round < WARMUP_RUNS + rounds; round++) {
+                GridCreator parent = new GridCreator(threads * bandRows, side);
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    GridCreator child = new GridCreator(bandRows, side, parent, t * bandRows);
+                    fillBand(child, t, perChild);
+                    child.destroy();
+                }
+                long plain = System.nanoTime() - start;
+                long plainFree = parent.horizontalStats().freeCells();
+                parent.destroy();
+
+                parent = new GridCreator(threads * bandRows, side);
+                Thread[] workers = new Thread[threads];
+                GridCreator[] children = new GridCreator[threads];
+                for (int t = 0; t < threads; t++) {
+                    children[t] = parent.concurrentChild(bandRows, t * bandRows);
+                }
+                start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    GridCreator child = children[t];
+                    int seed = t;
+                    workers[t] = new Thread(() -> fillBand(child, seed, perChild));
+                    workers[t].start();
+                }
+                for (Thread worker : workers) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                parent.mergeChildren();
+                long concurrent = System.nanoTime() - start;
+                if (parent.horizontalStats().freeCells() != plainFree) {
+                    throw new IllegalStateException("Concurrent children reserved different cells");
+                }
+                for (GridCreator child : children) {
+                    child.destroy();
+                }
+                parent.destroy();
+                if (round >= WARMUP_RUNS) {
+                    plainNanos += plain;
+                    concurrentNanos += concurrent;
+                }
+            }
+            long ops = (long) threads * perChild * rounds;
+            System.out.printf("%2d threads: plain children %6.2f Mops/s   concurrent children %6.2f Mops/s%n", threads,
+                    ops * 1e3 / plainNanos, ops * 1e3 / concurrentNanos);
+        }
+    }
+
+    /**
+     * Maze generation that checks after every wall whether the corners are still connected: the tracked components
+     * of GridCreator.connected vs. a breadth-first search over all cells. Walls of 1..6 cells are placed until
+     * 30% of the grid is taken; the search is timed on the first steps only. Both times include the wall itself.
+     */
+    static void mazeConnectivity() {
+        System.out.println("== Connectivity check after every reservation ==");
+        for (int side : new int[]{100, 300, 1000}) {
+            int bfsSteps = Math.max(20, 2_000_000 / (side * side));
+            long trackedNanos = 0, bfsNanos = 0, tracked = 0, searched = 0;
+            int components = 0;
+            for (int round = 0; round < WARMUP_RUNS + MEASURED_RUNS; round++) {
+                for (boolean bfs : new boolean[]{false, true}) {
+                    GridCreator grid = new GridCreator(side, side, Engine.HASHED_TREES);
+                    grid.isFree(1, 1); // builds the occupancy outside the timing
+                    RNG.setSeed(round);
+                    Random walls = new Random(round);
+                    int[] queue = new int[side * side];
+                    boolean[] seen = new boolean[side * side];
+                    long start = System.nanoTime(), steps = 0;
+                    boolean connected = true;
+                    for (long cells = 0; 10 * cells < 3L * side * side && (!bfs || steps < bfsSteps); steps++) {
+                        int length = 1 + walls.nextInt(6);
+                        cells += (walls.nextBoolean() ? grid.reserveRandomFittingVertical(length)
+                                                      : grid.reserveRandomFittingHorizontal(length)).length;
+                        if (bfs) {
+                            connected &= connectedBySearch(grid, side, queue, seen);
+                        } else {
+                            connected &= grid.connected(1, 1, side, side);
+                            components = grid.componentCount();
+                        }
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    grid.destroy();
+                    if (round >= WARMUP_RUNS && bfs) {
+                        bfsNanos += elapsed;
+                        searched += steps;
+                    } else if (round >= WARMUP_RUNS) {
+                        trackedNanos += elapsed;
+                        tracked += steps;
+                    }
+                }
+            }
+            System.out.printf("%4dx%-4d tracked %8.2f us/step (%d components at the end)   full search %10.2f us/step%n",
+                    side, side, trackedNanos / 1e3 / tracked, components, bfsNanos / 1e3 / searched);
+        }
+    }
+
+    /**
+     * Keeping a copy of a 1000x1000 grid in sync once per frame while every frame makes a few random reservations:
+     * draining a change feed into a bitboard mirror vs. a packed dump of the whole grid diffed against the last one.
+     * Reservations are timed apart from the sync, since publishing to the feed is part of them.
+     */
+    static void frameSync() {
+        System.out.println("== Per-frame sync of a grid copy ==");
+        int side = 1000;
+        for (int perFrame : new int[]{10, 100, 1000}) {
+            int frames = Math.min(200, 50000 / perFrame);
+            long[] reserveNanos = new long[2], syncNanos = new long[2];
+            for (int round = 0; round < WARMUP_RUNS + MEASURED_RUNS; round++) {
+                for (int variant = 0; variant < 2; variant++) {
+                    GridCreator grid = new GridCreator(side, side, Engine.HASHED_TREES);
+                    ReservationFeed feed = variant == 0 ? grid.openFeed(4 * perFrame) : null;
+                    Bitboard mirror = new Bitboard(side, side);
+                    ReservationFeed.Listener apply = new ReservationFeed.Listener() {
+                        @Override
+                        public void reserved(boolean vertical, int row, int col, int length,
+                                             int freeBefore, int freeAfter) {
+                            if (vertical) {
+                                for (int r = row; r < row + length; r++) {
+                                    mirror.set(r - 1, col - 1);
+                                }
+                            } else {
+                                mirror.setRange(row - 1, col - 1, length);
+                            }
+                        }
+
+                        @Override
+                        public void reset() {
+                            mirror.clear();
+                        }
+                    };
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] last = new byte[0];
+                    long reserve = 0, sync = 0, diffs = 0;
+                    RNG.setSeed(round);
+                    for (int frame = 0; frame < frames; frame++) {
+                        long start = System.nanoTime();
+                        reserveFrame(grid, perFrame);
+                        long reserved = System.nanoTime();
+                        if (feed != null) {
+                            if (feed.drain(apply) == -1) {
+                                throw new IllegalStateException("Feed overflowed");
+                            }
+                        } else {
+                            bytes.reset();
+                            try {
+                                grid.writePacked(Channels.newChannel(bytes));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            byte[] dump = bytes.toByteArray();
+                            for (int i = 0; i < Math.min(dump.length, last.length); i++) {
+                                diffs += dump[i] != last[i] ? 1 : 0;
+                            }
+                            last = dump;
+                        }
+                        long synced = System.nanoTime();
+                        reserve += reserved - start;
+                        sync += synced - reserved;
+                    }
+                    if (diffs < 0) {
+                        throw new IllegalStateException(); // keeps the diff from being optimized away
+                    }
+                    grid.destroy();
+                    if (round >= WARMUP_RUNS) {
+                        reserveNanos[variant] += reserve;
+                        syncNanos[variant] += sync;
+                    }
+                }
+            }
+            long total = (long) frames * MEASURED_RUNS;
+            System.out.printf("%4d reservations/frame: feed: reserve %8.1f sync %7.1f us/frame   "
+                            + "dump and diff: reserve %8.1f sync %7.1f us/frame%n", perFrame,
+                    reserveNanos[0] / 1e3 / total, syncNanos[0] / 1e3 / total,
+                    reserveNanos[1] / 1e3 / total, syncNanos[1] / 1e3 / total);
+        }
+    }
+
+    /**
+     * Square grids that stay mostly free: construction time, then random reservations of lengths 1..64 in
+     * alternating orientations, and the heap the grid holds after them, for the sparse engine and the dense
+     * bucketed one. The dense one is left out at 10^6 x 10^6, where its placement counts overflow an int.
+     */
+    static void sparseGrids() {
+        System.out.println("== Huge, mostly free grids ==");
+        int reservations = 5000;
+        for (int side : new int[]{10_000, 100_000, 1_000_000}) {
+            for (Engine engine : new Engine[]{Engine.BUCKETED_LINES, Engine.SPARSE_LINES}) {
+                if (engine != Engine.SPARSE_LINES && side > 100_000) {
+                    continue;
+                }
+                long constructNanos = 0, reserveNanos = 0, heap = 0;
+                for (int round = 0; round < WARMUP_RUNS + MEASURED_RUNS; round++) {
+                    long heapBefore = usedHeap();
+                    long start = System.nanoTime();
+                    GridCreator grid = new GridCreator(side, side, engine);
+                    long built = System.nanoTime();
+                    RNG.setSeed(round);
+                    Random lengths = new Random(round);
+                    for (int i = 0; i < reservations; i++) {
+                        int length = 1 + lengths.nextInt(64);
+                        if ((i & 1) == 0) {
+                            grid.reserveRandomFittingHorizontal(length);
+                        } else {
+                            grid.reserveRandomFittingVertical(length);
+                        }
+                    }
+                    long end = System.nanoTime();
+                    long gridHeap = usedHeap() - heapBefore;
+                    grid.destroy();
+                    if (round >= WARMUP_RUNS) {
+                        constructNanos += built - start;
+                        reserveNanos += end - built;
+                        heap = Math.max(heap, gridHeap);
+                    }
+                }
+                System.out.printf("%7dx%-7d %-14s construction %10.1f us   reservation %7.2f us   heap %7.1f MB%n",
+                        side, side, engine, constructNanos / 1e3 / MEASURED_RUNS,
+                        reserveNanos / 1e3 / MEASURED_RUNS / reservations, heap / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Placement heuristics that probe candidate spots in a child grid a quarter full: reserveHorizontal caught
+     * when it throws vs. tryReserveHorizontal, same spots, and a row scan that skips past each
+     * firstConflictHorizontal. Every probe reserves if it can, so both probing loops must reserve the same count.
+     */
+    static void probedPlacement() {
+        System.out.println("== Probing candidate spots: exceptions vs. tryReserve ==");
+        int side = 300, probes = 200_000, length = 4;
+        for (Engine engine : new Engine[]{Engine.HASHED_TREES, Engine.BUCKETED_LINES, Engine.BITBOARD}) {
+            long[] nanos = new long[3];
+            long[] reserved = new long[3];
+            for (int round = 0; round < WARMUP_RUNS + MEASURED_RUNS; round++) {
+                for (int k = 0; k < 3; k++) {
+                    GridCreator parent = new GridCreator(side, side, engine);
+                    GridCreator child = new GridCreator(side / 2, side, parent, side / 4, engine);
+                    RNG.setSeed(round);
+                    fillQuarter(child, round);
+                    Random spots = new Random(round);
+                    int cnt = 0;
+                    long start = System.nanoTime();
+                    if (k == 2) {
+                        for (int row = 1; row <= side / 2; row++) {
+                            for (int col = 1; col + length - 1 <= side; ) {
+                                int conflict = child.firstConflictHorizontal(row, col, length);
+                                if (conflict == -1) {
+                                    child.reserveHorizontal(row, col, length);
+                                    ++cnt;
+                                    col += length;
+                                } else {
+                                    col = conflict + 1;
+                                }
+                            }
+                        }
+                    } else {
+                        for (int i = 0; i < probes; i++) {
+                            int row = 1 + spots.nextInt(side / 2), col = 1 + spots.nextInt(side - length + 1);
+                            if (k == 1) {
+                                cnt += child.tryReserveHorizontal(row, col, length) == ReserveStatus.RESERVED ? 1 : 0;
+                            } else {
+                                try {
+                                    child.reserveHorizontal(row, col, length);
+                                    ++cnt;
+                                } catch (IllegalArgumentException e) {
+                                    // occupied, next spot
+                                }
+                            }
+                        }
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    child.destroy();
+                    parent.destroy();
+                    if (round >= WARMUP_RUNS) {
+                        nanos[k] += elapsed;
+                        reserved[k] += cnt;
+                    }
+                }
+            }
+            if (reserved[0] != reserved[1]) {
+                throw new IllegalStateException("tryReserve reserved " + reserved[1] + ", expected " + reserved[0]);
+            }
+            System.out.printf("%-22s caught exceptions %6.0f ns/probe   tryReserve %6.0f ns/probe   "
+                            + "row scan %8.1f us (%d reserved)%n", engine,
+                    (double) nanos[0] / MEASURED_RUNS / probes, (double) nanos[1] / MEASURED_RUNS / probes,
+                    nanos[2] / 1e3 / MEASURED_RUNS, reserved[2] / MEASURED_RUNS);
+        }
+    }
+
+    /**
+     * Heap plus direct memory in use after a GC, once the cleaner had a moment to free collected direct buffers.
+     */
+    private static long retainedMemory() {
+        usedHeap();
+        sleep(20);
+        return usedHeap() + directMemory();
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void reserveFrame(GridCreator grid, int reservations) {
+        for (int i = 0; i < reservations; i++) {
+            if (i % 2 == 0) {
+                grid.reserveRandomFittingHorizontal(1 + i % 8);
+            } else {
+                grid.reserveRandomFittingVertical(1 + i % 8);
+            }
+        }
+    }
+
+    private static boolean connectedBySearch(GridCreator grid, int side, int[] queue, boolean[] seen) {
+        Arrays.fill(seen, false);
+        if (!grid.isFree(1, 1)) {
+            return false;
+        }
+        int head = 0, tail = 0, target = side * side - 1;
+        queue[tail++] = 0;
+        seen[0] = true;
+        while (head < tail) {
+            int cell = queue[head++];
+            if (cell == target) {
+                return true;
+            }
+            int row = cell / side, col = cell % side;
+            int[] next = {row > 0 ? cell - side : -1, row < side - 1 ? cell + side : -1,
+                    col > 0 ? cell - 1 : -1, col < side - 1 ? cell + 1 : -1};
+            for (int n : next) {
+                if (n != -1 && !seen[n] && grid.isFree(n / side + 1, n % side + 1)) {
+                    seen[n] = true;
+                    queue[tail++] = n;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void fillBand(GridCreator child, int seed, int reservations) {
+        RNG.setSeed(seed);
+        for (int i = 0; i < reservations; i++) {
+            if (i % 2 == 0) {
+                child.reserveRandomFittingHorizontal(1 + i % 8);
+            } else {
+                child.reserveRandomFittingVertical(1 + i % 8);
+            }
+        }
+    }
+
+    private static void reportLatencies(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s p50 %8.1f us   p99 %8.1f us   max %8.1f us%n", name, sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.99)] / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+
+    private static void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long gcCount() {
+        long res = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            res += gc.getCollectionCount();
+        }
+        return res;
+    }
+
+    private static long gcMillis() {
+        long res = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            res += gc.getCollectionTime();
+        }
+        return res;
+    }
+
+    private static void fillQuarter(GridCreator grid, int seed) {
+        Random lengths = new Random(seed);
+        for (long cells = 0, ops = 0; 4 * cells < grid.horizontalStats().freeCells() && ops < MAX_OPS; ops++) {
+            int length = 1 + lengths.nextInt(5);
+            cells += (lengths.nextBoolean() ? grid.reserveRandomFittingVertical(length)
+                                            : grid.reserveRandomFittingHorizontal(length)).length;
+        }
+    }
+
+    private static void reportLengthIndex(int nRows, int nCols, String name, SegmentsByLength.Factory factory) {
+        reportIndexes(nRows, nCols, name, factory, AVLSegmentsByEndPosition::new);
+    }
+
+    private static void reportIndexes(int nRows, int nCols, String name,
+                                      SegmentsByLength.Factory lengthIndex, SegmentsByEndPosition.Factory positionIndex) {
+        reportPlacements(nRows, nCols, name, () -> new GridCreator(nRows, nCols, null, 0, lengthIndex, positionIndex));
+    }
+
+    private static void reportPlacements(int nRows, int nCols, String name, Supplier<GridCreator> grids) {
+        long buildNanos = 0, placeNanos = 0, ops = 0;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            Random lengths = new Random(run);
+            long start = System.nanoTime();
+            GridCreator grid;
+            try {
+                grid = grids.get();
+            } catch (IllegalArgumentException e) {
+                System.out.printf("%4dx%-4d %-14s n/a (%s)%n", nRows, nCols, name, e.getMessage());
+                return;
+            }
+            long built = System.nanoTime();
+            long cells = 0, runOps = 0;
+            while (4 * cells < (long) nRows * nCols && runOps < MAX_OPS) {
+                int length = 1 + lengths.nextInt(Math.min(5, Math.min(nRows, nCols)));
+                GridSegment seg = lengths.nextBoolean() ? grid.reserveRandomFittingVertical(length)
+                                                        : grid.reserveRandomFittingHorizontal(length);
+                cells += seg.length;
+                ++runOps;
+            }
+            long end = System.nanoTime();
+            grid.destroy();
+            if (run >= WARMUP_RUNS) {
+                buildNanos += built - start;
+                placeNanos += end - built;
+                ops += runOps;
+            }
+        }
+        System.out.printf("%4dx%-4d %-14s build %9.1f us   place %7.0f ns/op%n",
+                nRows, nCols, name, buildNanos / 1e3 / MEASURED_RUNS, (double) placeNanos / ops);
+    }
+
+    private static void reportFill(int nRows, int nCols, Policy policy) {
+        long reservedCells = 0, ops = 0, nanos = 0;
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+            Random lengths = new Random(run);
+            GridCreator grid = new GridCreator(nRows, nCols);
+            long start = System.nanoTime();
+            long cells = 0, runOps = 0;
+            while (true) {
+                ++runOps;
+                int length = 1 + lengths.nextInt(Math.min(10, nCols));
+                try {
+                    GridSegment seg = policy == null ? grid.reserveRandomFittingHorizontal(length)
+                                                     : grid.reserveFittingHorizontal(length, policy);
+                    cells += seg.length;
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            grid.destroy();
+            if (run >= WARMUP_RUNS) {
+                reservedCells += cells;
+                ops += runOps;
+                nanos += elapsed;
+            }
+        }
+        double fill = (double) reservedCells / ((long) nRows * nCols * MEASURED_RUNS);
+        System.out.printf("%4dx%-4d %-12s fill %5.1f%%  %8.0f ns/op%n",
+                nRows, nCols, policy == null ? "RANDOM" : policy, 100 * fill, (double) nanos / Math.max(1, ops));
+    }
+}
@@ -0,0 +1,33 @@
+package symbolic.engine;
+
+import symbolic.GridSegment;
+
+import java.util.Arrays;
+
+/**
+ * Ordering shared by the batched engine operations.
+ */
+final class Batches {
+
+    private Batches() {
+    }
+
+    /**
+     * Copy of segs in (line, position) order of the orientation. Throws IllegalArgumentException
+     * if two of them share a cell.
+     */
+    static GridSegment[] sortedByLine(boolean vertical, GridSegment[] segs) {
+        GridSegment[] sorted = segs.clone();
+        Arrays.sort(sorted, (a, b) -> vertical
+                ? (a.col != b.col ? Integer.compare(a.col, b.col) : Integer.compare(a.row, b.row))
+                : (a.row != b.row ? Integer.compare(a.row, b.row) : Integer.compare(a.col, b.col)));
+        for (int i = 1; i < sorted.length; i++) {
+            GridSegment prev = sorted[i - 1], seg = sorted[i];
+            boolean sameLine = vertical ? prev.col == seg.col : prev.row == seg.row;
+            if (sameLine && (vertical ? prev.row : prev.col) + prev.length > (vertical ? seg.row : seg.col)) {
+                throw new IllegalArgumentException("Overlapping segments " + prev + " and " + seg);
+            }
+        }
+        return sorted;
+    }
+}
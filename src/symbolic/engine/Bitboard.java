@@ -0,0 +1,184 @@
+package symbolic.engine;
+
+import java.util.Arrays;
+
+/**
+ * nLines lines of lineLength bits each, every line padded to whole words so that scans never cross lines.
+ * Lines and positions are 0-based. A set bit means a reserved cell.
+ */
+public class Bitboard {
+
+    private final int nLines, lineLength, wordsPerLine;
+    private final long[] words;
+
+    public Bitboard(int nLines, int lineLength) {
+        this.nLines = nLines;
+        this.lineLength = lineLength;
+        this.wordsPerLine = (lineLength + 63) >>> 6;
+        this.words = new long[nLines * wordsPerLine];
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    public boolean isSet(int line, int pos) {
+        return (words[line * wordsPerLine + (pos >>> 6)] & (1L << pos)) != 0;
+    }
+
+    public void set(int line, int pos) {
+        words[line * wordsPerLine + (pos >>> 6)] |= 1L << pos;
+    }
+
+    /**
+     * Sets bits [from, from + length) of the line, one word at a time.
+     */
+    public void setRange(int line, int from, int length) {
+        int base = line * wordsPerLine, to = from + length; // exclusive
+        int w = from >>> 6, lastW = (to - 1) >>> 6;
+        long first = -1L << from, last = -1L >>> -to;
+        if (w == lastW) {
+            words[base + w] |= first & last;
+            return;
+        }
+        words[base + w] |= first;
+        for (int i = w + 1; i < lastW; i++) {
+            words[base + i] = -1L;
+        }
+        words[base + lastW] |= last;
+    }
+
+    /**
+     * Clears bits [from, from + length) of the line, one word at a time.
+     */
+    public void clearRange(int line, int from, int length) {
+        int base = line * wordsPerLine, to = from + length; // exclusive
+        int w = from >>> 6, lastW = (to - 1) >>> 6;
+        long first = -1L << from, last = -1L >>> -to;
+        if (w == lastW) {
+            words[base + w] &= ~(first & last);
+            return;
+        }
+        words[base + w] &= ~first;
+        for (int i = w + 1; i < lastW; i++) {
+            words[base + i] = 0;
+        }
+        words[base + lastW] &= ~last;
+    }
+
+    /**
+     * True if no bit in [from, from + length) of the line is set.
+     */
+    public boolean isRangeClear(int line, int from, int length) {
+        int next = nextSet(line, from);
+        return next == -1 || next >= from + length;
+    }
+
+    /**
+     * First set position >= from in the line, -1 if none.
+     */
+    public int nextSet(int line, int from) {
+        if (from >= lineLength) {
+            return -1;
+        }
+        int base = line * wordsPerLine, w = from >>> 6;
+        long word = words[base + w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int pos = (w << 6) + Long.numberOfTrailingZeros(word);
+                return pos < lineLength ? pos : -1;
+            }
+            if (++w == wordsPerLine) {
+                return -1;
+            }
+            word = words[base + w];
+        }
+    }
+
+    /**
+     * Last set position <= from in the line, -1 if none.
+     */
+    public int prevSet(int line, int from) {
+        if (from < 0) {
+            return -1;
+        }
+        int base = line * wordsPerLine, w = from >>> 6;
+        long word = words[base + w] & (-1L >>> (63 - (from & 63)));
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            }
+            if (--w < 0) {
+                return -1;
+            }
+            word = words[base + w];
+        }
+    }
+
+    /**
+     * First clear position >= from in the line, -1 if none.
+     */
+    public int nextClear(int line, int from) {
+        if (from >= lineLength) {
+            return -1;
+        }
+        int base = line * wordsPerLine, w = from >>> 6;
+        long word = ~words[base + w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int pos = (w << 6) + Long.numberOfTrailingZeros(word);
+                return pos < lineLength ? pos : -1;
+            }
+            if (++w == wordsPerLine) {
+                return -1;
+            }
+            word = ~words[base + w];
+        }
+    }
+
+    public int wordsPerLine() {
+        return wordsPerLine;
+    }
+
+    /**
+     * Word w of the line: bit i is position 64w + i, padding past lineLength is 0.
+     */
+    public long word(int line, int w) {
+        return words[line * wordsPerLine + w];
+    }
+
+    /**
+     * Word w of the line with set and clear swapped; padding past lineLength stays 0.
+     */
+    public long clearWord(int line, int w) {
+        long word = ~words[line * wordsPerLine + w];
+        int valid = lineLength - (w << 6);
+        return valid >= 64 ? word : word & ((1L << valid) - 1);
+    }
+
+    /**
+     * Number of set bits in the line.
+     */
+    public int countSet(int line) {
+        int base = line * wordsPerLine, res = 0;
+        for (int w = 0; w < wordsPerLine; w++) {
+            res += Long.bitCount(words[base + w]);
+        }
+        return res;
+    }
+
+    public int nLines() {
+        return nLines;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Approximate heap footprint in bytes.
+     */
+    public long sizeInBytes() {
+        return 8L * words.length;
+    }
+}
@@ -0,0 +1,454 @@
+package symbolic.engine;
+
+import symbolic.GridSegment;
+import symbolic.GridStats;
+import symbolic.IntTriConsumer;
+import symbolic.Policy;
+import symbolic.segments.by_length.PlacementCounts;
+import symbolic.segments.util.RNG;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Engine for small grids: plain bitboards and linear scans instead of trees.
+ * Two copies of the occupancy are kept, row-major and column-major, so that runs of both orientations
+ * are found with word-level scans. Construction is O(cells / 64), queries are O(cells / 64 + runs).
+ */
+public class BitboardGridEngine implements GridEngine {
+
+    private final int nRows, nCols;
+    // byRow: line = row - 1, position = col - 1. byCol: line = col - 1, position = row - 1.
+    private final Bitboard byRow, byCol;
+    // Scratch histogram of maximal free runs by length.
+    private final int[] runsByLength;
+    private long freeCells;
+    private final Stats verticalStats = new Stats(true), horizontalStats = new Stats(false);
+
+    public BitboardGridEngine(int nRows, int nCols) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.byRow = new Bitboard(nRows, nCols);
+        this.byCol = new Bitboard(nCols, nRows);
+        this.runsByLength = new int[Math.max(nRows, nCols) + 1];
+        this.freeCells = (long) nRows * nCols;
+    }
+
+    @Override
+    public void reserve(boolean vertical, int row, int col, int length) {
+        int line = vertical ? col - 1 : row - 1, pos = vertical ? row - 1 : col - 1;
+        Bitboard board = board(vertical);
+        if (length < 1 || line < 0 || line >= board.nLines() || pos < 0 || pos + length > board.lineLength()
+                || !board.isRangeClear(line, pos, length)) {
+            throw new IllegalArgumentException("No space available for this segment");
+        }
+        mark(vertical, line, pos, length);
+    }
+
+    @Override
+    public int firstConflict(boolean vertical, int row, int col, int length) {
+        int pos = vertical ? row - 1 : col - 1;
+        int res = board(vertical).nextSet(vertical ? col - 1 : row - 1, pos);
+        return res == -1 || res >= pos + length ? -1 : res + 1;
+    }
+
+    /**
+     * Word-level scans of the line in both directions.
+     */
+    @Override
+    public GridSegment freeRunAt(boolean vertical, int row, int col) {
+        int line = vertical ? col - 1 : row - 1, pos = vertical ? row - 1 : col - 1;
+        Bitboard board = board(vertical);
+        if (board.isSet(line, pos)) {
+            return null;
+        }
+        int start = board.prevSet(line, pos) + 1, end = board.nextSet(line, pos);
+        int length = (end == -1 ? board.lineLength() : end) - start;
+        return vertical ? GridSegment.GS(start + 1, col, length) : GridSegment.GS(row, start + 1, length);
+    }
+
+    @Override
+    public GridSegment reserveRandomFitting(boolean vertical, int length) {
+        PlacementCounts.checkLength(length);
+        GridSegment res = reserveRandom(vertical, length, length);
+        if (res == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + length);
+        }
+        return res;
+    }
+
+    @Override
+    public GridSegment reserveRandomFitting(boolean vertical, int minLength, int maxLength) {
+        PlacementCounts.checkRange(minLength, maxLength);
+        GridSegment res = reserveRandom(vertical, minLength, maxLength);
+        if (res == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + minLength + ".." + maxLength);
+        }
+        return res;
+    }
+
+    /**
+     * Single reservations in a row, they are cheap enough here.
+     */
+    @Override
+    public GridSegment[] reserveRandomFittingBatch(boolean vertical, int length, int n) {
+        PlacementCounts.checkLength(length);
+        if (n < 0) {
+            throw new IllegalArgumentException("Negative batch size " + n);
+        }
+        GridSegment[] res = new GridSegment[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = reserveRandom(vertical, length, length);
+            if (res[i] == null) {
+                return Arrays.copyOf(res, i);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void reserveAll(boolean vertical, GridSegment[] segs) {
+        Bitboard board = board(vertical);
+        for (GridSegment seg : Batches.sortedByLine(vertical, segs)) {
+            int line = vertical ? seg.col - 1 : seg.row - 1, pos = vertical ? seg.row - 1 : seg.col - 1;
+            if (seg.length < 1 || line < 0 || line >= board.nLines() || pos < 0 || pos + seg.length > board.lineLength()
+                    || !board.isRangeClear(line, pos, seg.length)) {
+                throw new IllegalArgumentException("No space available for segment " + seg);
+            }
+        }
+        for (GridSegment seg : segs) {
+            mark(vertical, vertical ? seg.col - 1 : seg.row - 1, vertical ? seg.row - 1 : seg.col - 1, seg.length);
+        }
+    }
+
+    /**
+     * Null if nothing fits.
+     */
+    private GridSegment reserveRandom(boolean vertical, int minLength, int maxLength) {
+        GridSegment res = drawRandom(vertical, minLength, maxLength);
+        if (res != null) {
+            mark(vertical, vertical ? res.col - 1 : res.row - 1, vertical ? res.row - 1 : res.col - 1, res.length);
+        }
+        return res;
+    }
+
+    @Override
+    public GridSegment randomFitting(boolean vertical, int minLength, int maxLength) {
+        PlacementCounts.checkRange(minLength, maxLength);
+        return drawRandom(vertical, minLength, maxLength);
+    }
+
+    private GridSegment drawRandom(boolean vertical, int minLength, int maxLength) {
+        countRuns(vertical);
+        long total = 0;
+        for (int len = minLength; len < runsByLength.length; len++) {
+            total += runsByLength[len] * placementsInRun(len, minLength, maxLength);
+        }
+        if (total == 0) {
+            return null;
+        }
+        // Same draw as the tree engines, so the same seed picks the same placement.
+        long k = RNG.randPlacement(total);
+        int runLength = minLength;
+        while (k > runsByLength[runLength] * placementsInRun(runLength, minLength, maxLength)) {
+            k -= runsByLength[runLength] * placementsInRun(runLength, minLength, maxLength);
+            ++runLength;
+        }
+        long perRun = placementsInRun(runLength, minLength, maxLength);
+        GridSegment run = nthRunOfLength(vertical, runLength, (int) ((k - 1) / perRun));
+        k = (k - 1) % perRun + 1;
+        int spaceSize = minLength;
+        while (k > runLength - spaceSize + 1) {
+            k -= runLength - spaceSize + 1;
+            ++spaceSize;
+        }
+        int offset = (int) k - 1;
+        return vertical ? GridSegment.GS(run.row + offset, run.col, spaceSize)
+                        : GridSegment.GS(run.row, run.col + offset, spaceSize);
+    }
+
+    @Override
+    public GridSegment reserveFitting(boolean vertical, int length, Policy policy) {
+        GridSegment res = fitting(vertical, length, policy);
+        if (res == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + length);
+        }
+        mark(vertical, vertical ? res.col - 1 : res.row - 1, vertical ? res.row - 1 : res.col - 1, length);
+        return res;
+    }
+
+    @Override
+    public GridSegment fitting(boolean vertical, int length, Policy policy) {
+        PlacementCounts.checkLength(length);
+        Bitboard board = board(vertical);
+        int bestLine = -1, bestStart = -1, bestLength = 0;
+        for (int line = 0; line < board.nLines(); line++) {
+            for (int start = board.nextClear(line, 0); start != -1; ) {
+                int end = board.nextSet(line, start);
+                if (end == -1) {
+                    end = board.lineLength();
+                }
+                int runLength = end - start;
+                if (runLength >= length && better(vertical, policy, line, start, runLength, bestLine, bestStart, bestLength)) {
+                    bestLine = line;
+                    bestStart = start;
+                    bestLength = runLength;
+                    if (policy == Policy.FIRST_FIT) {
+                        break;
+                    }
+                }
+                start = board.nextClear(line, end);
+            }
+            if (policy == Policy.FIRST_FIT && bestLine != -1) {
+                break;
+            }
+        }
+        if (bestLine == -1) {
+            return null;
+        }
+        return vertical ? GridSegment.GS(bestStart + 1, bestLine + 1, length)
+                        : GridSegment.GS(bestLine + 1, bestStart + 1, length);
+    }
+
+    @Override
+    public Bitboard occupancy() {
+        return byRow;
+    }
+
+    /**
+     * Free cells are counted as they are reserved; everything else is one scan of the board, O(cells / 64 + runs).
+     */
+    @Override
+    public GridStats stats(boolean vertical) {
+        return vertical ? verticalStats : horizontalStats;
+    }
+
+    /**
+     * Word scans of every visited row, O(rows * cols / 64 + k).
+     */
+    @Override
+    public void forEachFree(int rowFrom, int rowTo, IntTriConsumer visitor) {
+        for (int line = Math.max(rowFrom, 1) - 1; line < Math.min(rowTo, nRows); line++) {
+            for (int start = byRow.nextClear(line, 0); start != -1; ) {
+                int end = byRow.nextSet(line, start);
+                if (end == -1) {
+                    end = nCols;
+                }
+                visitor.accept(line + 1, start + 1, end - start);
+                start = byRow.nextClear(line, end);
+            }
+        }
+    }
+
+    @Override
+    public void export(GridExport out) throws IOException {
+        for (int r = 0; r < nRows; r++) {
+            out.writeRow(byRow, r);
+        }
+        out.finish();
+    }
+
+    @Override
+    public void printGrid() {
+        try {
+            export(GridExport.text(System.out, nCols));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        byRow.clear();
+        byCol.clear();
+        freeCells = (long) nRows * nCols;
+    }
+
+    /**
+     * The bitboards have no pointers to chase.
+     */
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void destroy() {
+        reset();
+    }
+
+    // --------------------------
+    //         Helper methods
+    // --------------------------
+
+    private Bitboard board(boolean vertical) {
+        return vertical ? byCol : byRow;
+    }
+
+    private void mark(boolean vertical, int line, int pos, int length) {
+        freeCells -= length;
+        board(vertical).setRange(line, pos, length);
+        Bitboard other = board(!vertical);
+        for (int i = pos; i < pos + length; i++) {
+            other.set(i, line);
+        }
+    }
+
+    private static long placementsInRun(int runLength, int minLength, int maxLength) {
+        long res = 0;
+        for (int len = minLength; len <= Math.min(runLength, maxLength); len++) {
+            res += runLength - len + 1;
+        }
+        return res;
+    }
+
+    /**
+     * Fills runsByLength with the number of maximal free runs of every length.
+     */
+    private void countRuns(boolean vertical) {
+        Arrays.fill(runsByLength, 0);
+        Bitboard board = board(vertical);
+        for (int line = 0; line < board.nLines(); line++) {
+            for (int start = board.nextClear(line, 0); start != -1; ) {
+                int end = board.nextSet(line, start);
+                if (end == -1) {
+                    end = board.lineLength();
+                }
+                ++runsByLength[end - start];
+                start = board.nextClear(line, end);
+            }
+        }
+    }
+
+    /**
+     * The n-th (0-based) maximal free run of exactly runLength cells, in (row, col) order of its start.
+     */
+    private GridSegment nthRunOfLength(boolean vertical, int runLength, int n) {
+        if (!vertical) {
+            for (int line = 0; line < nRows; line++) {
+                for (int start = byRow.nextClear(line, 0); start != -1; ) {
+                    int end = byRow.nextSet(line, start);
+                    if (end == -1) {
+                        end = nCols;
+                    }
+                    if (end - start == runLength && n-- == 0) {
+                        return GridSegment.GS(line + 1, start + 1, runLength);
+                    }
+                    start = byRow.nextClear(line, end);
+                }
+            }
+            throw new IllegalStateException("Run not found");
+        }
+        // Vertical runs must be enumerated by start row first. For every start row, the columns where
+        // a run of exactly runLength starts are found with word operations over consecutive rows.
+        int words = byRow.wordsPerLine();
+        for (int r = 0; r + runLength <= nRows; r++) {
+            for (int w = 0; w < words; w++) {
+                long mask = byRow.clearWord(r, w);
+                if (r > 0) {
+                    mask &= ~byRow.clearWord(r - 1, w);
+                }
+                for (int i = 1; i < runLength && mask != 0; i++) {
+                    mask &= byRow.clearWord(r + i, w);
+                }
+                if (r + runLength < nRows) {
+                    mask &= ~byRow.clearWord(r + runLength, w);
+                }
+                int cnt = Long.bitCount(mask);
+                if (n >= cnt) {
+                    n -= cnt;
+                    continue;
+                }
+                while (n-- > 0) {
+                    mask &= mask - 1;
+                }
+                int col = (w << 6) + Long.numberOfTrailingZeros(mask);
+                return GridSegment.GS(r + 1, col + 1, runLength);
+            }
+        }
+        throw new IllegalStateException("Run not found");
+    }
+
+    /**
+     * Whether the run (line, start, runLength) beats the best one so far under the policy.
+     * BEST_FIT and LARGEST_FIT break ties by (row, col) like the length index does.
+     */
+    private boolean better(boolean vertical, Policy policy, int line, int start, int runLength,
+                           int bestLine, int bestStart, int bestLength) {
+        if (bestLine == -1) {
+            return true;
+        }
+        long key = vertical ? (long) start * nCols + line : (long) line * nCols + start;
+        long bestKey = vertical ? (long) bestStart * nCols + bestLine : (long) bestLine * nCols + bestStart;
+        switch (policy) {
+            case FIRST_FIT:
+                return false;
+            case BEST_FIT:
+                return runLength < bestLength || (runLength == bestLength && key < bestKey);
+            case LARGEST_FIT:
+                return runLength > bestLength || (runLength == bestLength && key > bestKey);
+            default:
+                throw new IllegalArgumentException("Unknown policy " + policy);
+        }
+    }
+
+    private class Stats implements GridStats {
+        private final boolean vertical;
+
+        Stats(boolean vertical) {
+            this.vertical = vertical;
+        }
+
+        @Override
+        public long freeCells() {
+            return freeCells;
+        }
+
+        @Override
+        public int freeRunCount() {
+            return freeRunCount(1, runsByLength.length - 1);
+        }
+
+        @Override
+        public int freeRunCount(int minLength, int maxLength) {
+            countRuns(vertical);
+            int res = 0;
+            for (int len = Math.max(minLength, 1); len <= Math.min(maxLength, runsByLength.length - 1); len++) {
+                res += runsByLength[len];
+            }
+            return res;
+        }
+
+        @Override
+        public int longestFreeRun() {
+            countRuns(vertical);
+            int len = runsByLength.length - 1;
+            while (len > 0 && runsByLength[len] == 0) {
+                --len;
+            }
+            return len;
+        }
+
+        @Override
+        public long fittingSpaces(int length) {
+            PlacementCounts.checkLength(length);
+            countRuns(vertical);
+            long res = 0;
+            for (int len = length; len < runsByLength.length; len++) {
+                res += runsByLength[len] * (len - length + 1L);
+            }
+            return res;
+        }
+
+        @Override
+        public int[] freeRunHistogram() {
+            countRuns(vertical);
+            return Arrays.copyOf(runsByLength, (vertical ? nRows : nCols) + 1);
+        }
+
+        @Override
+        public long[] fittingSpacesHistogram() {
+            return PlacementCounts.fittingHistogram(freeRunHistogram());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package symbolic.engine;
+
+import symbolic.segments.by_end_pos.AVLSegmentsByEndPosition;
+import symbolic.segments.by_end_pos.PerLineSegmentsByEndPosition;
+import symbolic.segments.by_length.bucket_implementation.BucketedSegmentsByLength;
+import symbolic.segments.by_length.segtree_implementation.PreallocatedHashedSegmentsByLengthNodes;
+import symbolic.segments.by_length.treap_implementation.TreapSegmentsByLength;
+import symbolic.segments.util.PoolSizing;
+
+/**
+ * Available grid engines. All of them behave the same; they differ in speed and memory depending on grid size.
+ */
+public enum Engine {
+    /** Picks one of the others from the grid's dimensions, see {@link #pick(int, int)}. */
+    AUTO,
+    /** Bitboards with linear scans. */
+    BITBOARD,
+    /** Hashed segment trees and end-position AVLs. Only for grids whose hashes fit in an int. */
+    HASHED_TREES,
+    /** HASHED_TREES with the tree nodes in direct memory instead of the Java heap, for trees too big to keep GC cheap. */
+    HASHED_TREES_OFF_HEAP,
+    /** Dense length buckets with long keys and sorted per-line arrays. */
+    BUCKETED_LINES,
+    /**
+     * Only the lines something was reserved in are stored, in a treap and a growing AVL; untouched lines are
+     * counted arithmetically. O(1) construction and memory proportional to the touched lines, for huge grids
+     * that stay mostly free. Everything built on the occupancy bitset (GridCreator's isFree, freeCountInRow,
+     * nextFree, nextReserved and openFeed) allocates a bit per cell, and throws IllegalStateException once the
+     * bitset would need more than Integer.MAX_VALUE words; firstConflictVertical / firstConflictHorizontal and
+     * forEachFree answer from the trees instead. The free run histograms of the stats allocate an int per cell
+     * of a line.
+     */
+    SPARSE_LINES;
+
+    // Measured with the AUTO crossover of GridBenchmarks.engines() (build plus a quarter fill of square grids):
+    // bitboards come out ahead up to 32x32 (1024 cells, about 10% fewer ns/op there) and buckets from 36x36 on.
+    // The hashed trees never came out ahead, so AUTO does not pick them.
+    public static final int BITBOARD_MAX_CELLS = 1024;
+
+    /**
+     * Engine whose node pools are sized for the expected fill of -Dsymbolic.pool.expectedFill, see
+     * {@link PoolSizing}.
+     */
+    public GridEngine create(int nRows, int nCols) {
+        return create(nRows, nCols, PoolSizing.defaultFill());
+    }
+
+    /**
+     * Engine whose node pools start with room for a grid with expectedFill of its cells reserved, in [0, 1].
+     * Only the pooled trees (HASHED_TREES, HASHED_TREES_OFF_HEAP) are sized up front; the others ignore it.
+     */
+    public GridEngine create(int nRows, int nCols, double expectedFill) {
+        PoolSizing.checkFill(expectedFill);
+        switch (this) {
+            case AUTO:
+                return pick(nRows, nCols).create(nRows, nCols, expectedFill);
+            case BITBOARD:
+                return new BitboardGridEngine(nRows, nCols);
+            case HASHED_TREES:
+                return new TreeGridEngine(nRows, nCols,
+                        (r, c, v) -> new PreallocatedHashedSegmentsByLengthNodes(r, c, v, false, expectedFill),
+                        (r, c, v) -> new AVLSegmentsByEndPosition(r, c, v, false, expectedFill));
+            case HASHED_TREES_OFF_HEAP:
+                return new TreeGridEngine(nRows, nCols,
+                        (r, c, v) -> new PreallocatedHashedSegmentsByLengthNodes(r, c, v, true, expectedFill),
+                        (r, c, v) -> new AVLSegmentsByEndPosition(r, c, v, true, expectedFill));
+            case BUCKETED_LINES:
+                return new TreeGridEngine(nRows, nCols,
+                        BucketedSegmentsByLength::new, PerLineSegmentsByEndPosition::new);
+            case SPARSE_LINES:
+                return new TreeGridEngine(nRows, nCols,
+                        TreapSegmentsByLength::new, AVLSegmentsByEndPosition::growing, true);
+            default:
+                throw new IllegalArgumentException("Unknown engine " + this);
+        }
+    }
+
+    public static Engine pick(int nRows, int nCols) {
+        long cells = (long) nRows * nCols;
+        if (cells <= BITBOARD_MAX_CELLS) {
+            return BITBOARD;
+        }
+        // The dense indexes count placements in ints, which such grids overflow.
+        return cells <= Integer.MAX_VALUE ? BUCKETED_LINES : SPARSE_LINES;
+    }
+}
@@ -0,0 +1,100 @@
+package symbolic.engine;
+
+import symbolic.GridSegment;
+import symbolic.GridStats;
+import symbolic.IntTriConsumer;
+import symbolic.Policy;
+
+import java.io.IOException;
+
+/**
+ * Storage and queries of one grid, without parent/child bookkeeping (that stays in GridCreator).
+ * Every engine orders random placements the same way (see SegmentsByLength), so for the same RNG seed
+ * all engines make the same choices. Coordinates are 1-based. Operations either fully succeed
+ * or throw IllegalArgumentException without changing anything, also for lengths below 1 and empty length ranges
+ * (checked with {@link symbolic.segments.by_length.PlacementCounts#checkLength} and checkRange).
+ */
+public interface GridEngine {
+
+    void reserve(boolean vertical, int row, int col, int length);
+
+    /**
+     * First reserved cell of the segment, as its row if vertical and its column otherwise, or -1 if every cell of
+     * the segment is free. The segment must lie inside the grid. Never throws for a reserved cell, so callers can
+     * probe candidate spots without paying for exceptions.
+     */
+    int firstConflict(boolean vertical, int row, int col, int length);
+
+    /**
+     * Maximal free run of the orientation that contains the cell, or null if the cell is reserved. The cell must
+     * lie inside the grid.
+     */
+    GridSegment freeRunAt(boolean vertical, int row, int col);
+
+    GridSegment reserveRandomFitting(boolean vertical, int length);
+
+    GridSegment reserveRandomFitting(boolean vertical, int minLength, int maxLength);
+
+    GridSegment reserveFitting(boolean vertical, int length, Policy policy);
+
+    /**
+     * The segment reserveRandomFitting(vertical, minLength, maxLength) would reserve, from the same draw, without
+     * reserving it; null if nothing fits. For a single length also the segment of reserveRandomFitting(vertical,
+     * length). Lets a child grid check what it drew against its ancestors before anything changes.
+     */
+    GridSegment randomFitting(boolean vertical, int minLength, int maxLength);
+
+    /**
+     * The segment reserveFitting(vertical, length, policy) would reserve, without reserving it; null if nothing fits.
+     */
+    GridSegment fitting(boolean vertical, int length, Policy policy);
+
+    /**
+     * n calls of reserveRandomFitting(vertical, length) in a row: same draws, same segments, in the same order.
+     * Stops early, returning fewer, once no placement of that length is left.
+     */
+    GridSegment[] reserveRandomFittingBatch(boolean vertical, int length, int n);
+
+    /**
+     * Reserves all of segs, which must not overlap, as one batch.
+     */
+    void reserveAll(boolean vertical, GridSegment[] segs);
+
+    /**
+     * Row-major occupancy (line = row - 1, position = col - 1, set bit = reserved), kept up to date
+     * by every later reservation. Engines that do not store one build it on the first call.
+     * Read-only for callers.
+     */
+    Bitboard occupancy();
+
+    /**
+     * Live statistics of the free runs of one orientation.
+     */
+    GridStats stats(boolean vertical);
+
+    /**
+     * Visits the maximal free horizontal runs of rows rowFrom..rowTo as (row, col, length),
+     * in (row, col) order, without allocating.
+     */
+    void forEachFree(int rowFrom, int rowTo, IntTriConsumer visitor);
+
+    /**
+     * Feeds all rows, top to bottom, to out and finishes it.
+     */
+    void export(GridExport out) throws IOException;
+
+    void printGrid();
+
+    /**
+     * Makes every cell free again, keeping the allocated memory.
+     */
+    void reset();
+
+    /**
+     * Reorders the engine's internal storage for faster queries after a long run of reservations, without changing
+     * the free cells.
+     */
+    void compact();
+
+    void destroy();
+}
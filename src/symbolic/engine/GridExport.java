@@ -0,0 +1,124 @@
+package symbolic.engine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination of a grid export, fed one row at a time so that the whole grid is never materialized.
+ * Two formats:
+ * <ul>
+ *     <li>text: the same as printGrid, '#' for reserved and '.' for free cells, one line per row;</li>
+ *     <li>packed: a 12-byte big-endian header (MAGIC, nRows, nCols), then every row as ceil(nCols / 8) bytes,
+ *     cell col (1-based) in bit (col - 1) % 8 of byte (col - 1) / 8, 1 = reserved, rows padded with 0 bits.
+ *     Every row starts at offset 12 + (row - 1) * ceil(nCols / 8), so the file can be memory-mapped.</li>
+ * </ul>
+ */
+public abstract class GridExport {
+
+    /** "SGRD" */
+    public static final int MAGIC = 0x53475244;
+    public static final int HEADER_BYTES = 12;
+    private static final int CHANNEL_BUFFER_BYTES = 1 << 16;
+
+    public static GridExport text(Appendable out, int nCols) {
+        return new Text(out, nCols);
+    }
+
+    public static GridExport packed(WritableByteChannel out, int nRows, int nCols) {
+        return new Packed(out, nRows, nCols);
+    }
+
+    /**
+     * Writes the given line of board as the next row. Rows must come in order, all of them.
+     */
+    public abstract void writeRow(Bitboard board, int line) throws IOException;
+
+    /**
+     * Writes out anything still buffered. Does not close the target.
+     */
+    public abstract void finish() throws IOException;
+
+    private static class Text extends GridExport {
+        private final Appendable out;
+        private final char[] row;
+        private final CharBuffer rowView;
+
+        Text(Appendable out, int nCols) {
+            this.out = out;
+            this.row = new char[nCols];
+            this.rowView = CharBuffer.wrap(row);
+        }
+
+        @Override
+        public void writeRow(Bitboard board, int line) throws IOException {
+            for (int c = 0; c < row.length; c++) {
+                row[c] = board.isSet(line, c) ? '#' : '.';
+            }
+            // Writer.append and PrintStream.append copy the sequence into a new String, write the array instead.
+            if (out instanceof Writer) {
+                ((Writer) out).write(row);
+            } else if (out instanceof PrintStream) {
+                ((PrintStream) out).print(row);
+            } else {
+                out.append(rowView.clear());
+            }
+            out.append(System.lineSeparator());
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    private static class Packed extends GridExport {
+        private final WritableByteChannel out;
+        private final int rowBytes;
+        private final ByteBuffer buffer;
+
+        Packed(WritableByteChannel out, int nRows, int nCols) {
+            this.out = out;
+            this.rowBytes = (nCols + 7) >>> 3;
+            this.buffer = ByteBuffer.allocate(Math.max(CHANNEL_BUFFER_BYTES, Math.max(HEADER_BYTES, rowBytes)));
+            buffer.putInt(MAGIC).putInt(nRows).putInt(nCols);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void writeRow(Bitboard board, int line) throws IOException {
+            if (buffer.remaining() < rowBytes) {
+                flush();
+            }
+            // Bit i of a word is cell 64w + i, so little-endian bytes give the packed layout directly.
+            int left = rowBytes;
+            for (int w = 0; left > 0; w++) {
+                long word = board.word(line, w);
+                if (left >= 8) {
+                    buffer.putLong(word);
+                    left -= 8;
+                } else {
+                    for (; left > 0; left--, word >>>= 8) {
+                        buffer.put((byte) word);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package symbolic.engine;
+
+import symbolic.GridCreator;
+import symbolic.GridSegment;
+import symbolic.GridStats;
+import symbolic.Policy;
+import symbolic.ReservationFeed;
+import symbolic.segments.util.RNG;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Differential tester: runs the same random operations with the same RNG seed on every engine
+ * and checks that all of them return the same segments, fail at the same time and print the same grid.
+ * Short traces compact() the grid at random points. Stats taken at the start of a trace are kept and queried
+ * throughout. Run also with -Dsymbolic.pool.relayoutChurn=1, which makes the long traces relayout the position
+ * trees of the tree engines from inside their inserts.
+ * The same goes one level up, through GridCreator: a parent and a child with a change feed on the parent, then
+ * concurrent children filled by a thread each (see TestGridHierarchyRandom, TestReservationFeedRandom and
+ * TestConcurrentChildrenRandom for the checks of each against a model).
+ */
+public class TestGridEnginesDifferential {
+
+    private static final Engine[] ENGINES = {Engine.BITBOARD, Engine.HASHED_TREES, Engine.HASHED_TREES_OFF_HEAP,
+            Engine.BUCKETED_LINES, Engine.SPARSE_LINES};
+    private static final int OPS = 300, LONG_OPS = 12000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[][] shapes = {{1, 1}, {1, 9}, {9, 1}, {7, 5}, {16, 16}, {20, 70}, {65, 3}, {40, 130}};
+        for (int[] shape : shapes) {
+            for (long seed = 0; seed < 20; seed++) {
+                run(shape[0], shape[1], seed, OPS);
+                for (Engine engine : ENGINES) {
+                    checkBatchMatchesSingles(engine, shape[0], shape[1], seed);
+                }
+                if (seed < 10) {
+                    runGrids(shape[0], shape[1], seed);
+                }
+            }
+        }
+        // enough node churn in one grid for automatic relayouts, see NodePool.needsRelayout()
+        for (long seed = 1; seed < 3; seed++) {
+            run(120, 150, seed, LONG_OPS);
+        }
+        System.out.println("All engine differential tests passed successfully!");
+    }
+
+    private static void run(int nRows, int nCols, long seed, int nOps) {
+        String expected = null;
+        for (Engine engine : ENGINES) {
+            String actual = trace(engine, nRows, nCols, seed, nOps);
+            if (expected == null) {
+                expected = actual;
+            } else if (!expected.equals(actual)) {
+                throw new AssertionError("Engine " + engine + " differs from " + ENGINES[0]
+                        + " on " + nRows + "x" + nCols + ", seed " + seed + ":\n" + expected + "\nvs\n" + actual);
+            }
+        }
+    }
+
+    /**
+     * Everything observable about a sequence of operations: their results, failures and the final grid.
+     */
+    private static String trace(Engine engine, int nRows, int nCols, long seed, int nOps) {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        GridEngine grid = engine.create(nRows, nCols);
+        if (seed % 2 == 0) {
+            grid.occupancy(); // maintained from the start instead of built at the end
+        }
+        int maxLength = Math.max(nRows, nCols);
+        List<String> log = new ArrayList<>();
+        // taken once and kept: must go on answering for the grid as it is now, also after reservations in the
+        // other orientation
+        GridStats heldVertical = grid.stats(true), heldHorizontal = grid.stats(false);
+        for (int i = 0; i < nOps; i++) {
+            if (seed % 3 == 0 && i == nOps / 2) {
+                grid.reset();
+                if (printed(grid).indexOf('#') != -1 || grid.stats(true).freeRunCount() != nCols
+                        || grid.stats(false).freeCells() != (long) nRows * nCols) {
+                    throw new AssertionError("Grid of " + engine + " not all free after reset");
+                }
+                log.add("reset");
+            }
+            if (nOps == OPS && ops.nextInt(40) == 0) { // long traces leave relayouts to the inserts
+                grid.compact(); // the tree engines renumber their nodes, nothing observable may change
+                log.add("compact");
+            }
+            boolean vertical = ops.nextBoolean();
+            // now and then a length below 1, which every engine must reject the same way without changes
+            int length = ops.nextInt(20) == 0 ? -ops.nextInt(3) : 1 + ops.nextInt(Math.min(maxLength, 6));
+            String before = length < 1 ? printed(grid) : null;
+            try {
+                GridSegment res;
+                switch (ops.nextInt(8)) {
+                    case 0:
+                        int row = 1 + ops.nextInt(nRows), col = 1 + ops.nextInt(nCols);
+                        if (length >= 1 && (vertical ? row : col) + length - 1 <= (vertical ? nRows : nCols)) {
+                            int conflict = grid.firstConflict(vertical, row, col, length);
+                            log.add("conflict " + conflict);
+                            if (seed % 2 == 0) {
+                                checkConflict(grid.occupancy(), vertical, row, col, length, conflict);
+                            }
+                        }
+                        grid.reserve(vertical, row, col, length);
+                        res = GridSegment.GS(row, col, length);
+                        break;
+                    case 1:
+                        res = grid.reserveRandomFitting(vertical, length, length + ops.nextInt(3));
+                        break;
+                    case 2:
+                        res = grid.reserveFitting(vertical, length, Policy.values()[ops.nextInt(Policy.values().length)]);
+                        break;
+                    case 3:
+                        GridSegment[] batch = grid.reserveRandomFittingBatch(vertical, length, ops.nextInt(5));
+                        log.add((vertical ? "V batch " : "H batch ") + Arrays.toString(batch));
+                        continue;
+                    case 4:
+                        GridSegment[] segs = new GridSegment[1 + ops.nextInt(3)];
+                        for (int j = 0; j < segs.length; j++) {
+                            segs[j] = GridSegment.GS(1 + ops.nextInt(nRows), 1 + ops.nextInt(nCols), 1 + ops.nextInt(3));
+                        }
+                        String beforeAll = printed(grid);
+                        try {
+                            grid.reserveAll(vertical, segs);
+                        } catch (IllegalArgumentException e) {
+                            if (!beforeAll.equals(printed(grid))) {
+                                throw new AssertionError("Failed reserveAll changed the grid of " + engine);
+                            }
+                            throw e;
+                        }
+                        log.add((vertical ? "V all " : "H all ") + Arrays.toString(segs));
+                        continue;
+                    default:
+                        res = grid.reserveRandomFitting(vertical, length);
+                        break;
+                }
+                log.add((vertical ? "V " : "H ") + res.row + " " + res.col + " " + res.length);
+            } catch (IllegalArgumentException e) {
+                // any other exception escapes and fails the test
+                log.add((vertical ? "V" : "H") + " fail " + length);
+            }
+            if (before != null && !before.equals(printed(grid))) {
+                throw new AssertionError(engine + " changed the grid for length " + length);
+            }
+            if (ops.nextInt(10) == 0) {
+                GridStats held = vertical ? heldHorizontal : heldVertical;
+                log.add("held " + (vertical ? "H" : "V") + " stats: " + held.freeCells() + " " + held.freeRunCount()
+                        + " " + held.longestFreeRun() + " " + Arrays.toString(held.freeRunHistogram()));
+            }
+        }
+        int rowFrom = ops.nextInt(nRows + 2), rowTo = rowFrom + ops.nextInt(nRows + 1);
+        StringBuilder runs = new StringBuilder("free runs of rows " + rowFrom + ".." + rowTo + ":");
+        grid.forEachFree(rowFrom, rowTo, (row, col, length) -> runs.append(' ').append(row).append(',')
+                .append(col).append(',').append(length));
+        log.add(runs.toString());
+        for (boolean vertical : new boolean[]{false, true}) {
+            GridStats stats = grid.stats(vertical);
+            long[] fitting = stats.fittingSpacesHistogram();
+            for (int len = 1; len < fitting.length; len++) {
+                if (fitting[len] != stats.fittingSpaces(len)) {
+                    throw new AssertionError("Fitting histogram of " + engine + " differs at length " + len);
+                }
+            }
+            for (int invalid = -1; invalid <= 0; invalid++) {
+                try {
+                    stats.fittingSpaces(invalid);
+                    throw new AssertionError(engine + " counted placements of length " + invalid);
+                } catch (IllegalArgumentException expected) {
+                    // same on every engine
+                }
+            }
+            int length = 1 + ops.nextInt(maxLength);
+            log.add((vertical ? "V" : "H") + " stats: " + stats.freeCells() + " " + stats.freeRunCount() + " "
+                    + stats.freeRunCount(length, length + ops.nextInt(3)) + " " + stats.longestFreeRun() + " "
+                    + stats.fittingSpaces(length) + " " + Arrays.toString(stats.freeRunHistogram()) + " "
+                    + Arrays.toString(stats.fittingSpacesHistogram()));
+        }
+        String printed = printed(grid);
+        long free = printed.chars().filter(c -> c == '.').count();
+        if (grid.stats(false).freeCells() != free || heldVertical.freeCells() != free
+                || heldHorizontal.freeCells() != free) {
+            throw new AssertionError("Wrong free cell count from " + engine);
+        }
+        if (!printed.equals(occupancy(grid.occupancy()))) {
+            throw new AssertionError("Occupancy of " + engine + " differs from its printed grid:\n" + printed);
+        }
+        checkExports(engine, grid, printed, nRows, nCols);
+        log.add(printed);
+        grid.destroy();
+        return String.join("\n", log);
+    }
+
+    private static void runGrids(int nRows, int nCols, long seed) throws InterruptedException {
+        String expected = null;
+        for (Engine engine : ENGINES) {
+            String actual = traceGrids(engine, nRows, nCols, seed);
+            if (expected == null) {
+                expected = actual;
+            } else if (!expected.equals(actual)) {
+                throw new AssertionError("Grids of " + engine + " differ from " + ENGINES[0] + " on " + nRows + "x"
+                        + nCols + ", seed " + seed + ":\n" + expected + "\nvs\n" + actual);
+            }
+        }
+    }
+
+    /**
+     * Everything observable through GridCreator: the results of operations in a parent and its child, the events
+     * of a feed on the parent, and the cells once concurrent children filled their rows from threads of their own.
+     */
+    private static String traceGrids(Engine engine, int nRows, int nCols, long seed) throws InterruptedException {
+        Random ops = new Random(seed);
+        RNG.setSeed(seed);
+        GridCreator parent = new GridCreator(nRows, nCols, engine);
+        int childRows = 1 + ops.nextInt(nRows);
+        GridCreator child = new GridCreator(childRows, nCols, parent, ops.nextInt(nRows - childRows + 1), engine);
+        List<String> log = new ArrayList<>();
+        ReservationFeed feed = parent.openFeed(1 << 12);
+        ReservationFeed.Listener events = new ReservationFeed.Listener() {
+            @Override
+            public void reserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter) {
+                log.add("event " + (vertical ? "V " : "H ") + row + " " + col + " " + length + " " + freeBefore + " "
+                        + freeAfter);
+            }
+
+            @Override
+            public void reset() {
+                log.add("event reset");
+            }
+        };
+        for (int i = 0; i < OPS; i++) {
+            boolean inChild = ops.nextBoolean();
+            if (!inChild && ops.nextInt(100) == 0) {
+                child.reset();
+                parent.reset();
+                log.add("reset");
+            } else {
+                log.add((inChild ? "child " : "parent ") + gridOperation(inChild ? child : parent, ops,
+                        inChild ? childRows : nRows, nCols));
+            }
+            if (feed.drain(events) == -1) {
+                throw new AssertionError("Feed of " + engine + " dropped events");
+            }
+        }
+        log.add(cells(parent));
+        log.add(cells(child));
+        child.destroy();
+        parent.closeFeed(feed);
+
+        // Children in disjoint bands, each filled by its own thread from its own seed. Only the order of the
+        // merged reservations depends on the threads, so the feed is compared by its count.
+        parent.reset();
+        ReservationFeed merged = parent.openFeed(1 << 12);
+        int nChildren = Math.min(nRows, 1 + ops.nextInt(3)), bandRows = nRows / nChildren;
+        GridCreator[] children = new GridCreator[nChildren];
+        List<List<String>> childLogs = new ArrayList<>();
+        Thread[] workers = new Thread[nChildren];
+        Throwable[] failure = new Throwable[1];
+        for (int c = 0; c < nChildren; c++) {
+            GridCreator band = children[c] = parent.concurrentChild(bandRows, c * bandRows, engine);
+            List<String> childLog = new ArrayList<>();
+            childLogs.add(childLog);
+            long childSeed = ops.nextLong();
+            workers[c] = new Thread(() -> {
+                Random childOps = new Random(childSeed);
+                RNG.useOwn(new Random(childSeed));
+                try {
+                    for (int i = 0; i < OPS / 10; i++) {
+                        childLog.add(gridOperation(band, childOps, bandRows, nCols));
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            });
+            workers[c].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError("Concurrent child of " + engine + " failed", failure[0]);
+        }
+        parent.mergeChildren();
+        int[] mergedEvents = new int[1];
+        merged.drain(new ReservationFeed.Listener() {
+            @Override
+            public void reserved(boolean vertical, int row, int col, int length, int freeBefore, int freeAfter) {
+                ++mergedEvents[0];
+            }
+
+            @Override
+            public void reset() {
+                throw new AssertionError("Reset while merging concurrent children");
+            }
+        });
+        for (List<String> childLog : childLogs) {
+            log.addAll(childLog);
+        }
+        log.add("merged events " + mergedEvents[0]);
+        log.add(cells(parent));
+        for (GridCreator band : children) {
+            band.destroy();
+        }
+        parent.closeFeed(merged);
+        parent.destroy();
+        return String.join("\n", log);
+    }
+
+    /**
+     * One explicit, random, policy or batch reservation in grid, described with its result.
+     */
+    private static String gridOperation(GridCreator grid, Random ops, int nRows, int nCols) {
+        boolean vertical = ops.nextBoolean();
+        int length = ops.nextInt(20) == 0 ? -ops.nextInt(3) : 1 + ops.nextInt(Math.min(Math.max(nRows, nCols), 6));
+        String res = (vertical ? "V " : "H ") + length + " ";
+        try {
+            switch (ops.nextInt(4)) {
+                case 0:
+                    int row = 1 + ops.nextInt(nRows), col = 1 + ops.nextInt(nCols);
+                    return res + row + " " + col + " " + (vertical ? grid.tryReserveVertical(row, col, length)
+                                                                   : grid.tryReserveHorizontal(row, col, length));
+                case 1:
+                    return res + (vertical ? grid.reserveRandomFittingVertical(length)
+                                           : grid.reserveRandomFittingHorizontal(length));
+                case 2:
+                    Policy policy = Policy.values()[ops.nextInt(Policy.values().length)];
+                    return res + policy + " " + (vertical ? grid.reserveFittingVertical(length, policy)
+                                                          : grid.reserveFittingHorizontal(length, policy));
+                default:
+                    int n = 1 + ops.nextInt(3);
+                    return res + Arrays.toString(vertical ? grid.reserveRandomFittingVerticalBatch(length, n)
+                                                          : grid.reserveRandomFittingHorizontalBatch(length, n));
+            }
+        } catch (IllegalArgumentException e) {
+            return res + "fail";
+        }
+    }
+
+    private static String cells(GridCreator grid) {
+        StringBuilder res = new StringBuilder();
+        try {
+            grid.writeGrid(res);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return res.toString();
+    }
+
+    /**
+     * The cells of the segment before conflict must be free and conflict itself reserved.
+     */
+    private static void checkConflict(Bitboard board, boolean vertical, int row, int col, int length, int conflict) {
+        int start = vertical ? row : col, end = conflict == -1 ? start + length : conflict;
+        for (int pos = start; pos <= end && pos < start + length; pos++) {
+            boolean reserved = vertical ? board.isSet(pos - 1, col - 1) : board.isSet(row - 1, pos - 1);
+            if (reserved != (pos == conflict)) {
+                throw new AssertionError("First conflict of " + GridSegment.GS(row, col, length)
+                        + (vertical ? " V" : " H") + " is " + conflict + ", cell " + pos + " disagrees");
+            }
+        }
+    }
+
+    /**
+     * A batch of random reservations must draw and reserve exactly like single reservations in a row.
+     */
+    private static void checkBatchMatchesSingles(Engine engine, int nRows, int nCols, long seed) {
+        GridEngine singles = engine.create(nRows, nCols), batches = engine.create(nRows, nCols);
+        Random ops = new Random(seed);
+        List<GridSegment> expected = new ArrayList<>(), actual = new ArrayList<>();
+        for (int round = 0; round < 6; round++) {
+            boolean vertical = ops.nextBoolean();
+            int length = 1 + ops.nextInt(Math.min(Math.max(nRows, nCols), 4)), n = ops.nextInt(2 * Math.max(nRows, nCols));
+            long state = seed * 31 + round;
+            RNG.setSeed(state);
+            for (int i = 0; i < n; i++) {
+                try {
+                    expected.add(singles.reserveRandomFitting(vertical, length));
+                } catch (IllegalArgumentException e) {
+                    break;
+                }
+            }
+            RNG.setSeed(state);
+            actual.addAll(Arrays.asList(batches.reserveRandomFittingBatch(vertical, length, n)));
+        }
+        if (!expected.equals(actual) || !printed(singles).equals(printed(batches))
+                || !occupancy(batches.occupancy()).equals(printed(batches))) {
+            throw new AssertionError("Batch of " + engine + " differs from single reservations on " + nRows + "x"
+                    + nCols + ", seed " + seed + ":\n" + expected + "\nvs\n" + actual);
+        }
+        for (boolean vertical : new boolean[]{false, true}) {
+            if (!Arrays.equals(singles.stats(vertical).freeRunHistogram(), batches.stats(vertical).freeRunHistogram())) {
+                throw new AssertionError("Batch of " + engine + " leaves different free runs");
+            }
+        }
+        singles.destroy();
+        batches.destroy();
+    }
+
+    private static void checkExports(Engine engine, GridEngine grid, String printed, int nRows, int nCols) {
+        StringBuilder text = new StringBuilder();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        try {
+            grid.export(GridExport.text(text, nCols));
+            grid.export(GridExport.packed(Channels.newChannel(packed), nRows, nCols));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!printed.equals(text.toString())) {
+            throw new AssertionError("Text export of " + engine + " differs from its printed grid");
+        }
+        ByteBuffer image = ByteBuffer.wrap(packed.toByteArray());
+        int rowBytes = (nCols + 7) / 8;
+        if (image.getInt() != GridExport.MAGIC || image.getInt() != nRows || image.getInt() != nCols
+                || image.remaining() != nRows * rowBytes) {
+            throw new AssertionError("Wrong packed header or size from " + engine);
+        }
+        StringBuilder decoded = new StringBuilder();
+        for (int r = 0; r < nRows; r++) {
+            for (int c = 0; c < 8 * rowBytes; c++) {
+                boolean reserved = (image.get(GridExport.HEADER_BYTES + r * rowBytes + c / 8) >> (c % 8) & 1) != 0;
+                if (c < nCols) {
+                    decoded.append(reserved ? '#' : '.');
+                } else if (reserved) {
+                    throw new AssertionError("Nonzero padding in packed image from " + engine);
+                }
+            }
+            decoded.append(System.lineSeparator());
+        }
+        if (!printed.equals(decoded.toString())) {
+            throw new AssertionError("Packed export of " + engine + " differs from its printed grid");
+        }
+    }
+
+    private static String occupancy(Bitboard board) {
+        StringBuilder res = new StringBuilder();
+        for (int line = 0; line < board.nLines(); line++) {
+            int reserved = 0;
+            for (int pos = 0; pos < board.lineLength(); pos++) {
+                boolean set = board.isSet(line, pos);
+                reserved += set ? 1 : 0;
+                int nextSet = board.nextSet(line, pos), nextClear = board.nextClear(line, pos);
+                if ((set ? nextSet : nextClear) != pos || (nextSet != -1 && nextSet < pos)
+                        || (nextClear != -1 && nextClear < pos)) {
+                    throw new AssertionError("Wrong scan at " + line + " " + pos);
+                }
+                res.append(set ? '#' : '.');
+            }
+            if (reserved != board.countSet(line)) {
+                throw new AssertionError("Wrong count in line " + line);
+            }
+            res.append(System.lineSeparator());
+        }
+        return res.toString();
+    }
+
+    private static String printed(GridEngine grid) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            grid.printGrid();
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,414 @@
+package symbolic.engine;
+
+import symbolic.GridSegment;
+import symbolic.GridStats;
+import symbolic.IntTriConsumer;
+import symbolic.Policy;
+import symbolic.segments.PartialSegmentHandler;
+import symbolic.segments.by_end_pos.SegmentsByEndPosition;
+import symbolic.segments.by_length.SegmentsByLength;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two partial handlers, one per orientation, representing the same grid. A reservation only updates the handler
+ * of its own orientation right away and logs the segment for the other one, which is brought up to date by the
+ * first operation that needs it. Workloads that stay in one orientation therefore never pay the cell by cell
+ * update of the other, and the draws of random reservations do not depend on it.
+ */
+public class TreeGridEngine implements GridEngine {
+
+    // Catching up rebuilds both indexes of the lagging handler unless it has more than this many free segments
+    // per logged run; then the runs are reserved one by one. Measured with GridBenchmarks.orientationBursts().
+    private static final int REBUILD_SEGMENTS_PER_RUN = 16;
+
+    private final int nRows, nCols;
+    private final PartialSegmentHandler vertical, horizontal;
+    private final GridStats verticalStats = new Stats(true), horizontalStats = new Stats(false);
+    // Built by the first occupancy() call, null until then.
+    private Bitboard occupancy;
+
+    // Handler that lags behind by the segments of the log (reserved in the other orientation), or null.
+    private PartialSegmentHandler lagging;
+    private int[] log = new int[3 * 64]; // (row, col, length) triples
+    private int logSize, loggedCells;
+
+    public TreeGridEngine(int nRows, int nCols,
+                          SegmentsByLength.Factory lengthIndex, SegmentsByEndPosition.Factory positionIndex) {
+        this(nRows, nCols, lengthIndex, positionIndex, false);
+    }
+
+    /**
+     * With implicitLines, only the lines something was reserved in are stored, see
+     * {@link PartialSegmentHandler#PartialSegmentHandler(int, int, boolean, SegmentsByLength.Factory,
+     * SegmentsByEndPosition.Factory, boolean)}.
+     */
+    public TreeGridEngine(int nRows, int nCols, SegmentsByLength.Factory lengthIndex,
+                          SegmentsByEndPosition.Factory positionIndex, boolean implicitLines) {
+        this(nRows, nCols, lengthIndex, positionIndex, implicitLines, nRows);
+    }
+
+    /**
+     * Layers of layerRows rows with a reserved separator row between two, from the start and after every reset(),
+     * see {@link PartialSegmentHandler#PartialSegmentHandler(int, int, boolean, SegmentsByLength.Factory,
+     * SegmentsByEndPosition.Factory, boolean, int)}.
+     */
+    public TreeGridEngine(int nRows, int nCols, SegmentsByLength.Factory lengthIndex,
+                          SegmentsByEndPosition.Factory positionIndex, boolean implicitLines, int layerRows) {
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.horizontal = new PartialSegmentHandler(nRows, nCols, false, lengthIndex, positionIndex, implicitLines,
+                layerRows);
+        this.vertical = new PartialSegmentHandler(nRows, nCols, true, lengthIndex, positionIndex, implicitLines,
+                layerRows);
+    }
+
+    @Override
+    public void reserve(boolean isVertical, int row, int col, int length) {
+        handler(isVertical).reserve(row, col, length);
+        deferPerpendicular(isVertical, row, col, length);
+    }
+
+    /**
+     * One lookup in the position index, see {@link PartialSegmentHandler#firstConflict}.
+     */
+    @Override
+    public int firstConflict(boolean isVertical, int row, int col, int length) {
+        return handler(isVertical).firstConflict(row, col, length);
+    }
+
+    /**
+     * One lookup in the position index of the orientation, O(log n).
+     */
+    @Override
+    public GridSegment freeRunAt(boolean isVertical, int row, int col) {
+        return handler(isVertical).freeSegmentAt(row, col);
+    }
+
+    @Override
+    public GridSegment reserveRandomFitting(boolean isVertical, int length) {
+        GridSegment res = handler(isVertical).reserveRandomFitting(length);
+        deferPerpendicular(isVertical, res.row, res.col, res.length);
+        return res;
+    }
+
+    @Override
+    public GridSegment reserveRandomFitting(boolean isVertical, int minLength, int maxLength) {
+        GridSegment res = handler(isVertical).reserveRandomFitting(minLength, maxLength);
+        deferPerpendicular(isVertical, res.row, res.col, res.length);
+        return res;
+    }
+
+    /**
+     * Random placement in one layer of a layered length index, see
+     * {@link PartialSegmentHandler#reserveRandomFitting(int, int, int)}.
+     */
+    public GridSegment reserveRandomFitting(boolean isVertical, int layer, int minLength, int maxLength) {
+        GridSegment res = handler(isVertical).reserveRandomFitting(layer, minLength, maxLength);
+        deferPerpendicular(isVertical, res.row, res.col, res.length);
+        return res;
+    }
+
+    public long fittingSpaces(boolean isVertical, int layer, int length) {
+        return handler(isVertical).fittingSpaces(layer, length);
+    }
+
+    @Override
+    public GridSegment reserveFitting(boolean isVertical, int length, Policy policy) {
+        GridSegment res = handler(isVertical).reserveFitting(length, policy);
+        deferPerpendicular(isVertical, res.row, res.col, res.length);
+        return res;
+    }
+
+    /**
+     * The samples are drawn one after the other from the handler of the orientation, which the cells taken
+     * in the other orientation never touch; those are logged like any other reservation.
+     */
+    @Override
+    public GridSegment randomFitting(boolean isVertical, int minLength, int maxLength) {
+        return handler(isVertical).randomFitting(minLength, maxLength);
+    }
+
+    @Override
+    public GridSegment fitting(boolean isVertical, int length, Policy policy) {
+        return handler(isVertical).fitting(length, policy);
+    }
+
+    @Override
+    public GridSegment[] reserveRandomFittingBatch(boolean isVertical, int length, int n) {
+        GridSegment[] res = handler(isVertical).reserveRandomFittingBatch(length, n);
+        for (GridSegment seg : res) {
+            deferPerpendicular(isVertical, seg.row, seg.col, seg.length);
+        }
+        return res;
+    }
+
+    /**
+     * Every segment is checked before anything changes, one lookup each.
+     */
+    @Override
+    public void reserveAll(boolean isVertical, GridSegment[] segs) {
+        GridSegment[] sorted = Batches.sortedByLine(isVertical, segs);
+        PartialSegmentHandler handler = handler(isVertical);
+        for (GridSegment seg : sorted) {
+            if (seg.length < 1 || !handler.isFree(seg.row, seg.col, seg.length)) {
+                throw new IllegalArgumentException("No space available for segment " + seg);
+            }
+        }
+        handler.reserveSorted(sorted, sorted.length);
+        for (GridSegment seg : sorted) {
+            deferPerpendicular(isVertical, seg.row, seg.col, seg.length);
+        }
+    }
+
+    @Override
+    public Bitboard occupancy() {
+        if (occupancy == null) {
+            if ((long) nRows * ((nCols + 63) / 64) > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Grid " + nRows + "x" + nCols + " is too large for an occupancy bitset");
+            }
+            occupancy = new Bitboard(nRows, nCols);
+            for (int row = 0; row < nRows; row++) {
+                occupancy.setRange(row, 0, nCols);
+            }
+            for (GridSegment free : handler(false).getFreeSegments()) {
+                occupancy.clearRange(free.row - 1, free.col - 1, free.length);
+            }
+        }
+        return occupancy;
+    }
+
+    @Override
+    public GridStats stats(boolean isVertical) {
+        return isVertical ? verticalStats : horizontalStats;
+    }
+
+    /**
+     * O(log n + k) for k visited runs: the cursor seeks to rowFrom, then walks in order.
+     */
+    @Override
+    public void forEachFree(int rowFrom, int rowTo, IntTriConsumer visitor) {
+        SegmentsByEndPosition.Cursor free = handler(false).freeSegments(rowFrom);
+        while (free.next() && free.line() <= rowTo) {
+            visitor.accept(free.line(), free.start(), free.length());
+        }
+    }
+
+    /**
+     * Rows are rebuilt one at a time in a one-line bitboard from an in-order walk over the horizontal free segments.
+     */
+    @Override
+    public void export(GridExport out) throws IOException {
+        Bitboard row = new Bitboard(1, nCols);
+        SegmentsByEndPosition.Cursor free = handler(false).freeSegments();
+        boolean more = free.next();
+        for (int r = 1; r <= nRows; r++) {
+            row.setRange(0, 0, nCols);
+            for (; more && free.line() == r; more = free.next()) {
+                row.clearRange(0, free.start() - 1, free.length());
+            }
+            out.writeRow(row, 0);
+        }
+        out.finish();
+    }
+
+    @Override
+    public void printGrid() {
+        handler(false).printGrid(); // can also be the vertical one, since they represent the same grid
+    }
+
+    @Override
+    public void reset() {
+        vertical.reset();
+        horizontal.reset();
+        clearLog();
+        if (occupancy != null) {
+            occupancy.clear();
+        }
+    }
+
+    @Override
+    public void compact() {
+        handler(true).compact();
+        handler(false).compact();
+    }
+
+    @Override
+    public void destroy() {
+        vertical.flush();
+        horizontal.flush();
+        clearLog();
+        occupancy = null;
+    }
+
+    /**
+     * Handler of the orientation, first brought up to date if it lags.
+     */
+    private PartialSegmentHandler handler(boolean isVertical) {
+        PartialSegmentHandler handler = isVertical ? vertical : horizontal;
+        if (handler == lagging) {
+            catchUp(isVertical);
+        }
+        return handler;
+    }
+
+    /**
+     * Keeps the occupancy up to date and logs the segment for the handler of the other orientation.
+     * O(1) apart from the occupancy bits.
+     */
+    private void deferPerpendicular(boolean isVertical, int row, int col, int length) {
+        if (occupancy != null) {
+            if (isVertical) {
+                for (int r = row; r < row + length; r++) {
+                    occupancy.set(r - 1, col - 1);
+                }
+            } else {
+                occupancy.setRange(row - 1, col - 1, length);
+            }
+        }
+        lagging = isVertical ? horizontal : vertical;
+        if (logSize == log.length) {
+            log = Arrays.copyOf(log, 2 * log.length);
+        }
+        log[logSize++] = row;
+        log[logSize++] = col;
+        log[logSize++] = length;
+        loggedCells += length;
+    }
+
+    /**
+     * Applies the log to the lagging handler of the given orientation. The logged cells are sorted per line of
+     * that orientation and merged into runs where they touch. A few runs are reserved as one batch, see
+     * {@link PartialSegmentHandler#reserveSorted}. Many runs are cut out of a walk over its free segments instead,
+     * and both of its indexes are bulk-built from the result, linear in its segments, unless the handler keeps
+     * untouched lines implicit: its walk and build are linear in the lines of the grid.
+     */
+    private void catchUp(boolean isVertical) {
+        PartialSegmentHandler handler = isVertical ? vertical : horizontal;
+        if (logSize == 3) {
+            // Alternating orientations: nothing to sort or merge.
+            int row = log[0], col = log[1], length = log[2];
+            clearLog();
+            for (int j = 0; j < length; j++) {
+                handler.reserve(isVertical ? row : row + j, isVertical ? col + j : col, 1);
+            }
+            return;
+        }
+        // (line, position) of every logged cell in this orientation, packed so a primitive sort orders them.
+        long[] keys = new long[loggedCells];
+        int k = 0;
+        for (int i = 0; i < logSize; i += 3) {
+            int row = log[i], col = log[i + 1], length = log[i + 2];
+            for (int j = 0; j < length; j++) {
+                // Logged segments are of the other orientation, so cell j lies on another line of this one.
+                keys[k++] = isVertical ? (long) (col + j) << 32 | row : (long) (row + j) << 32 | col;
+            }
+        }
+        Arrays.sort(keys);
+        GridSegment[] runs = new GridSegment[keys.length];
+        int runCnt = 0;
+        for (int i = 0; i < keys.length; ) {
+            int line = (int) (keys[i] >>> 32), start = (int) keys[i];
+            int j = i + 1;
+            while (j < keys.length && keys[j] == keys[j - 1] + 1) {
+                ++j;
+            }
+            runs[runCnt++] = segment(isVertical, line, start, j - i);
+            i = j;
+        }
+        clearLog();
+        if (handler.hasImplicitLines() || (long) runCnt * REBUILD_SEGMENTS_PER_RUN < handler.freeRunCount()) {
+            handler.reserveSorted(runs, runCnt);
+            return;
+        }
+        List<GridSegment> free = new ArrayList<>(handler.freeRunCount() + runCnt);
+        SegmentsByEndPosition.Cursor cursor = handler.freeSegments();
+        int r = 0;
+        while (cursor.next()) {
+            int line = cursor.line(), start = cursor.start(), end = start + cursor.length();
+            for (; r < runCnt && line(isVertical, runs[r]) == line && start(isVertical, runs[r]) < end; r++) {
+                int runStart = start(isVertical, runs[r]);
+                if (runStart > start) {
+                    free.add(segment(isVertical, line, start, runStart - start));
+                }
+                start = runStart + runs[r].length;
+            }
+            if (start < end) {
+                free.add(segment(isVertical, line, start, end - start));
+            }
+        }
+        if (r != runCnt) {
+            throw new IllegalStateException("Logged cell " + runs[r] + " is not free in the other orientation");
+        }
+        handler.rebuild(free);
+    }
+
+    private void clearLog() {
+        lagging = null;
+        logSize = 0;
+        loggedCells = 0;
+    }
+
+    private static GridSegment segment(boolean isVertical, int line, int start, int length) {
+        return isVertical ? GridSegment.GS(start, line, length) : GridSegment.GS(line, start, length);
+    }
+
+    private static int line(boolean isVertical, GridSegment seg) {
+        return isVertical ? seg.col : seg.row;
+    }
+
+    private static int start(boolean isVertical, GridSegment seg) {
+        return isVertical ? seg.row : seg.col;
+    }
+
+    /**
+     * Stats of one orientation. Every query goes through {@link #handler}, so a view kept across reservations in
+     * the other orientation catches the handler up instead of answering from the state it had when it was taken.
+     */
+    private final class Stats implements GridStats {
+
+        private final boolean isVertical;
+
+        Stats(boolean isVertical) {
+            this.isVertical = isVertical;
+        }
+
+        @Override
+        public long freeCells() {
+            return handler(isVertical).freeCells();
+        }
+
+        @Override
+        public int freeRunCount() {
+            return handler(isVertical).freeRunCount();
+        }
+
+        @Override
+        public int freeRunCount(int minLength, int maxLength) {
+            return handler(isVertical).freeRunCount(minLength, maxLength);
+        }
+
+        @Override
+        public int longestFreeRun() {
+            return handler(isVertical).longestFreeRun();
+        }
+
+        @Override
+        public long fittingSpaces(int length) {
+            return handler(isVertical).fittingSpaces(length);
+        }
+
+        @Override
+        public int[] freeRunHistogram() {
+            return handler(isVertical).freeRunHistogram();
+        }
+
+        @Override
+        public long[] fittingSpacesHistogram() {
+            return handler(isVertical).fittingSpacesHistogram();
+        }
+    }
+}
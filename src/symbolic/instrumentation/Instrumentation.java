@@ -0,0 +1,287 @@
+package symbolic.instrumentation;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global counters, gauges, sampled latency histograms and JFR events of all grids.
+ * Off unless the JVM is started with -Dsymbolic.instrumentation=true. ENABLED is a static final constant,
+ * so when it is false the JIT removes every guarded call site and the hot paths cost nothing extra.
+ * <p>
+ * When on, every timed operation costs two System.nanoTime() calls and a few LongAdder increments.
+ * A random one in SAMPLE_EVERY calls is recorded in the latency histogram of its operation; any call slower than
+ * SLOW_OPERATION_NANOS emits a {@code symbolic.SlowOperation} JFR event. Pool expansions emit
+ * {@code symbolic.PoolExpansion} with the time the expansion stalled its caller, releases of idle pages
+ * {@code symbolic.PoolRelease}. Events are only written while a JFR recording with them enabled is running.
+ * A reservation in a child grid is counted (and timed) once, in the child, although it also reserves the cells in
+ * each of its ancestors.
+ */
+public final class Instrumentation {
+
+    public static final boolean ENABLED = Boolean.getBoolean("symbolic.instrumentation");
+    public static final long SLOW_OPERATION_NANOS = Long.getLong("symbolic.instrumentation.slowNanos", 1_000_000);
+    public static final int SAMPLE_EVERY = Integer.getInteger("symbolic.instrumentation.sampleEvery", 64);
+
+    private static final LongAdder verticalReservations = new LongAdder();
+    private static final LongAdder horizontalReservations = new LongAdder();
+    private static final LongAdder randomFittingCalls = new LongAdder();
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+    private static final LongAdder[] poolExpansions = new LongAdder[Structure.values().length];
+    private static final LongAccumulator[] poolCapacity = new LongAccumulator[Structure.values().length];
+    private static final LongAdder[] poolInUse = new LongAdder[Structure.values().length];
+    private static final LongAdder[] poolRetained = new LongAdder[Structure.values().length];
+    private static final LongAdder[] poolStallNanos = new LongAdder[Structure.values().length];
+    private static final LongAccumulator[] maxPoolStallNanos = new LongAccumulator[Structure.values().length];
+    private static final LongAdder[] poolReleases = new LongAdder[Structure.values().length];
+    private static final LongAdder[] poolRelayouts = new LongAdder[Structure.values().length];
+    private static final LongAdder[] relayoutNanos = new LongAdder[Structure.values().length];
+    private static final LongAccumulator[] maxTreeHeight = new LongAccumulator[Structure.values().length];
+
+    static {
+        for (Operation op : Operation.values()) {
+            latencies[op.ordinal()] = new LatencyHistogram();
+        }
+        for (Structure s : Structure.values()) {
+            poolExpansions[s.ordinal()] = new LongAdder();
+            poolCapacity[s.ordinal()] = new LongAccumulator(Math::max, 0);
+            poolInUse[s.ordinal()] = new LongAdder();
+            poolRetained[s.ordinal()] = new LongAdder();
+            poolStallNanos[s.ordinal()] = new LongAdder();
+            maxPoolStallNanos[s.ordinal()] = new LongAccumulator(Math::max, 0);
+            poolReleases[s.ordinal()] = new LongAdder();
+            poolRelayouts[s.ordinal()] = new LongAdder();
+            relayoutNanos[s.ordinal()] = new LongAdder();
+            maxTreeHeight[s.ordinal()] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    // --------------------------
+    //         Recording, called from the library. Callers guard with ENABLED.
+    // --------------------------
+
+    /**
+     * Start timestamp to pass to {@link #finished}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records an operation that started at start and made the given number of reservations.
+     */
+    public static void finished(Operation op, boolean vertical, int reservations, long start, int nRows, int nCols) {
+        long nanos = System.nanoTime() - start;
+        (vertical ? verticalReservations : horizontalReservations).add(reservations);
+        if (op == Operation.RESERVE_RANDOM_FITTING || op == Operation.RESERVE_RANDOM_FITTING_RANGE
+                || op == Operation.RESERVE_RANDOM_FITTING_BATCH) {
+            randomFittingCalls.increment();
+        }
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0) {
+            latencies[op.ordinal()].record(nanos);
+        }
+        if (nanos >= SLOW_OPERATION_NANOS) {
+            SlowOperationEvent event = new SlowOperationEvent();
+            if (event.shouldCommit()) {
+                event.operation = op.name();
+                event.vertical = vertical;
+                event.nRows = nRows;
+                event.nCols = nCols;
+                event.durationNanos = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    public static void poolCreated(Structure structure, int capacity) {
+        poolCapacity[structure.ordinal()].accumulate(capacity);
+        poolRetained[structure.ordinal()].add(capacity);
+    }
+
+    /**
+     * Records an expansion that started at start.
+     */
+    public static void poolExpanded(Structure structure, int oldCapacity, int newCapacity, long start) {
+        long nanos = System.nanoTime() - start;
+        poolExpansions[structure.ordinal()].increment();
+        poolCapacity[structure.ordinal()].accumulate(newCapacity);
+        poolRetained[structure.ordinal()].add(newCapacity - oldCapacity);
+        poolStallNanos[structure.ordinal()].add(nanos);
+        maxPoolStallNanos[structure.ordinal()].accumulate(nanos);
+        PoolExpansionEvent event = new PoolExpansionEvent();
+        if (event.shouldCommit()) {
+            event.structure = structure.name();
+            event.oldCapacity = oldCapacity;
+            event.newCapacity = newCapacity;
+            event.stallNanos = nanos;
+            event.commit();
+        }
+    }
+
+    public static void poolShrunk(Structure structure, int oldCapacity, int newCapacity) {
+        poolReleases[structure.ordinal()].increment();
+        poolRetained[structure.ordinal()].add(newCapacity - oldCapacity);
+        PoolReleaseEvent event = new PoolReleaseEvent();
+        if (event.shouldCommit()) {
+            event.structure = structure.name();
+            event.oldCapacity = oldCapacity;
+            event.newCapacity = newCapacity;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a relayout that started at start.
+     */
+    public static void poolRelaidOut(Structure structure, long start) {
+        poolRelayouts[structure.ordinal()].increment();
+        relayoutNanos[structure.ordinal()].add(System.nanoTime() - start);
+    }
+
+    public static void nodeAcquired(Structure structure) {
+        poolInUse[structure.ordinal()].increment();
+    }
+
+    public static void nodeReleased(Structure structure) {
+        poolInUse[structure.ordinal()].decrement();
+    }
+
+    public static void nodesReleased(Structure structure, long count) {
+        poolInUse[structure.ordinal()].add(-count);
+    }
+
+    public static void treeHeight(Structure structure, int height) {
+        maxTreeHeight[structure.ordinal()].accumulate(height);
+    }
+
+    // --------------------------
+    //         Reading
+    // --------------------------
+
+    public static long reservations(boolean vertical) {
+        return (vertical ? verticalReservations : horizontalReservations).sum();
+    }
+
+    public static long randomFittingCalls() {
+        return randomFittingCalls.sum();
+    }
+
+    public static LatencyHistogram latency(Operation op) {
+        return latencies[op.ordinal()];
+    }
+
+    public static long poolExpansions(Structure structure) {
+        return poolExpansions[structure.ordinal()].sum();
+    }
+
+    /**
+     * Largest capacity any pool of the structure reached so far. Each tree owns its pool.
+     */
+    public static long poolCapacity(Structure structure) {
+        return poolCapacity[structure.ordinal()].get();
+    }
+
+    /**
+     * Nodes the pools of the structure hold storage for, handed out or not: created and added capacity minus
+     * released pages. Pools of trees dropped without being destroyed stay counted.
+     */
+    public static long poolRetained(Structure structure) {
+        return poolRetained[structure.ordinal()].sum();
+    }
+
+    /**
+     * Total time pool expansions of the structure stalled the operations that triggered them.
+     */
+    public static long poolStallNanos(Structure structure) {
+        return poolStallNanos[structure.ordinal()].sum();
+    }
+
+    public static long maxPoolStallNanos(Structure structure) {
+        return maxPoolStallNanos[structure.ordinal()].get();
+    }
+
+    /**
+     * Times a pool of the structure released idle pages.
+     */
+    public static long poolReleases(Structure structure) {
+        return poolReleases[structure.ordinal()].sum();
+    }
+
+    /**
+     * Times a tree of the structure had its nodes renumbered in walk order.
+     */
+    public static long poolRelayouts(Structure structure) {
+        return poolRelayouts[structure.ordinal()].sum();
+    }
+
+    public static long relayoutNanos(Structure structure) {
+        return relayoutNanos[structure.ordinal()].sum();
+    }
+
+    /**
+     * Nodes of the structure's pool currently handed out.
+     */
+    public static long poolInUse(Structure structure) {
+        return poolInUse[structure.ordinal()].sum();
+    }
+
+    /**
+     * Largest height of a tree of the structure seen so far.
+     */
+    public static long maxTreeHeight(Structure structure) {
+        return maxTreeHeight[structure.ordinal()].get();
+    }
+
+    /**
+     * Clears counters and histograms. Pool gauges (capacity, in use, retained) are kept, since they describe
+     * live pools.
+     */
+    public static void reset() {
+        verticalReservations.reset();
+        horizontalReservations.reset();
+        randomFittingCalls.reset();
+        for (LatencyHistogram latency : latencies) {
+            latency.reset();
+        }
+        for (Structure s : Structure.values()) {
+            poolExpansions[s.ordinal()].reset();
+            poolStallNanos[s.ordinal()].reset();
+            maxPoolStallNanos[s.ordinal()].reset();
+            poolReleases[s.ordinal()].reset();
+            poolRelayouts[s.ordinal()].reset();
+            relayoutNanos[s.ordinal()].reset();
+            maxTreeHeight[s.ordinal()].reset();
+        }
+    }
+
+    /**
+     * Human-readable summary of everything above.
+     */
+    public static String report() {
+        StringBuilder res = new StringBuilder();
+        res.append("instrumentation ").append(ENABLED ? "on" : "off").append('\n');
+        res.append("reservations: vertical ").append(reservations(true))
+                .append(", horizontal ").append(reservations(false))
+                .append(", random fitting ").append(randomFittingCalls()).append('\n');
+        for (Structure s : Structure.values()) {
+            res.append(s).append(": pool ").append(poolInUse(s)).append('/').append(poolCapacity(s))
+                    .append(" in use, ").append(poolRetained(s)).append(" retained, ")
+                    .append(poolExpansions(s)).append(" expansions (stalled ").append(poolStallNanos(s) / 1000)
+                    .append(" us, max ").append(maxPoolStallNanos(s) / 1000).append(" us), ")
+                    .append(poolReleases(s)).append(" releases, ").append(poolRelayouts(s))
+                    .append(" relayouts (").append(relayoutNanos(s) / 1000).append(" us), max height ")
+                    .append(maxTreeHeight(s)).append('\n');
+        }
+        for (Operation op : Operation.values()) {
+            LatencyHistogram latency = latency(op);
+            res.append(op).append(": ").append(latency.count()).append(" samples, p50 < ")
+                    .append(latency.quantileUpperBound(0.5)).append(" ns, p99 < ")
+                    .append(latency.quantileUpperBound(0.99)).append(" ns\n");
+        }
+        return res.toString();
+    }
+}
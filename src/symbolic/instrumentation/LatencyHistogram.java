@@ -0,0 +1,67 @@
+package symbolic.instrumentation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in power-of-two nanosecond buckets: bucket b holds durations in [2^(b-1), 2^b), bucket 0 holds 0.
+ * Thread-safe, O(1) per record.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    LatencyHistogram() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        counts[BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+    }
+
+    public long count() {
+        long res = 0;
+        for (LongAdder count : counts) {
+            res += count.sum();
+        }
+        return res;
+    }
+
+    /**
+     * Upper bound (exclusive, in nanoseconds) of the bucket holding the given quantile, e.g. 0.99. 0 if empty.
+     */
+    public long quantileUpperBound(double quantile) {
+        long total = count(), seen = 0;
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b].sum();
+            if (seen >= Math.max(rank, 1)) {
+                return b == BUCKETS - 1 ? Long.MAX_VALUE : 1L << b;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Number of samples per bucket, see the class comment for the bucket bounds.
+     */
+    public long[] buckets() {
+        long[] res = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            res[b] = counts[b].sum();
+        }
+        return res;
+    }
+
+    void reset() {
+        for (LongAdder count : counts) {
+            count.reset();
+        }
+    }
+}
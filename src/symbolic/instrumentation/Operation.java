@@ -0,0 +1,13 @@
+package symbolic.instrumentation;
+
+/**
+ * Timed GridCreator operations.
+ */
+public enum Operation {
+    RESERVE,
+    TRY_RESERVE,
+    RESERVE_RANDOM_FITTING,
+    RESERVE_RANDOM_FITTING_RANGE,
+    RESERVE_RANDOM_FITTING_BATCH,
+    RESERVE_FITTING
+}
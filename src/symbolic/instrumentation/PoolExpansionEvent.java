@@ -0,0 +1,27 @@
+package symbolic.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("symbolic.PoolExpansion")
+@Label("Node Pool Expansion")
+@Category("SymbolicGrid")
+@Description("A preallocated node pool ran out of nodes and added storage")
+class PoolExpansionEvent extends Event {
+    @Label("Structure")
+    String structure;
+
+    @Label("Old Capacity")
+    int oldCapacity;
+
+    @Label("New Capacity")
+    int newCapacity;
+
+    @Label("Stall")
+    @Timespan(Timespan.NANOSECONDS)
+    long stallNanos;
+}
@@ -0,0 +1,22 @@
+package symbolic.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("symbolic.PoolRelease")
+@Label("Node Pool Release")
+@Category("SymbolicGrid")
+@Description("A node pool dropped pages that were idle, on reset or destroy")
+class PoolReleaseEvent extends Event {
+    @Label("Structure")
+    String structure;
+
+    @Label("Old Capacity")
+    int oldCapacity;
+
+    @Label("New Capacity")
+    int newCapacity;
+}
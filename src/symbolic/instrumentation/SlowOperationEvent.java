@@ -0,0 +1,30 @@
+package symbolic.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("symbolic.SlowOperation")
+@Label("Slow Grid Operation")
+@Category("SymbolicGrid")
+@Description("A GridCreator operation took longer than the slow operation threshold")
+class SlowOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Vertical")
+    boolean vertical;
+
+    @Label("Rows")
+    int nRows;
+
+    @Label("Columns")
+    int nCols;
+
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long durationNanos;
+}
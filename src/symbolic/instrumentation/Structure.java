@@ -0,0 +1,11 @@
+package symbolic.instrumentation;
+
+/**
+ * Tree structures whose pools and heights are tracked.
+ */
+public enum Structure {
+    /** Nodes of the end-position AVLs. */
+    AVL,
+    /** Nodes of the hashed segment trees (and the dense length trees, for heights). */
+    SEGMENT_TREE
+}
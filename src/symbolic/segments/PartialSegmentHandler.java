@@ -1,42 +1,104 @@
 package symbolic.segments;
 
 import symbolic.GridSegment;
+import symbolic.GridStats;
+import symbolic.Policy;
+import symbolic.segments.by_end_pos.AVLSegmentsByEndPosition;
 import symbolic.segments.by_end_pos.SegmentsByEndPosition;
+import symbolic.segments.by_end_pos.SparseSegmentsByEndPosition;
 import symbolic.segments.by_length.segtree_implementation.PreallocatedHashedSegmentsByLengthNodes;
+import symbolic.segments.by_length.LayeredSegmentsByLength;
+import symbolic.segments.by_length.PlacementCounts;
 import symbolic.segments.by_length.SegmentsByLength;
+import symbolic.segments.by_length.SparseSegmentsByLength;
 import symbolic.segments.util.RNG;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-public class PartialSegmentHandler {
+public class PartialSegmentHandler implements GridStats {
 
     private final int nRows, nCols;
     private final boolean vertical;
+    private final boolean implicitLines;
 
     private final SegmentsByLength segmentsByLength;
     private final SegmentsByEndPosition segmentsByEndPosition;
 
     public PartialSegmentHandler(int nRows, int nCols, boolean vertical) {
+        this(nRows, nCols, vertical, PreallocatedHashedSegmentsByLengthNodes::new, AVLSegmentsByEndPosition::new);
+    }
+
+    public PartialSegmentHandler(int nRows, int nCols, boolean vertical,
+                                 SegmentsByLength.Factory lengthIndex, SegmentsByEndPosition.Factory positionIndex) {
+        this(nRows, nCols, vertical, lengthIndex, positionIndex, false);
+    }
+
+    /**
+     * With implicitLines, a line is only stored in the indexes once something is reserved in it: the untouched
+     * lines are accounted for arithmetically (see {@link SparseSegmentsByLength}), so construction is O(1)
+     * and memory follows the touched lines, for huge grids that are mostly left free.
+     */
+    public PartialSegmentHandler(int nRows, int nCols, boolean vertical, SegmentsByLength.Factory lengthIndex,
+                                 SegmentsByEndPosition.Factory positionIndex, boolean implicitLines) {
+        this(nRows, nCols, vertical, lengthIndex, positionIndex, implicitLines, nRows);
+    }
+
+    /**
+     * With layerRows below nRows, the grid is made of layers of layerRows rows, each but the last followed by a
+     * separator row that starts reserved, so no free segment ever crosses from one layer into the next (see
+     * {@link LayeredSegmentsByLength}); reset() goes back to that state. Not with implicitLines.
+     */
+    public PartialSegmentHandler(int nRows, int nCols, boolean vertical, SegmentsByLength.Factory lengthIndex,
+                                 SegmentsByEndPosition.Factory positionIndex, boolean implicitLines,
+                                 int layerRows) {
+        if (layerRows < nRows && (layerRows < 1 || implicitLines)) {
+            throw new IllegalArgumentException("Invalid layers of " + layerRows + " rows in " + nRows + " rows");
+        }
         this.nRows = nRows;
         this.nCols = nCols;
         this.vertical = vertical;
-        this.segmentsByLength = new PreallocatedHashedSegmentsByLengthNodes(nRows, nCols, vertical);
-        this.segmentsByEndPosition = new SegmentsByEndPosition(nRows, nCols, vertical);
-
-        if(vertical) {
-            for (int col = 1; col <= nCols; ++col) {
-                this.segmentsByLength.insert(1, col, nRows);
-                this.segmentsByEndPosition.insert(1, col, nRows);
-            }
-        }else{
-            for (int row = 1; row <= nRows; ++row) {
-                this.segmentsByLength.insert(row, 1, nCols);
-                this.segmentsByEndPosition.insert(row, 1, nCols);
+        this.implicitLines = implicitLines;
+        if (implicitLines) {
+            this.segmentsByLength = new SparseSegmentsByLength(nRows, nCols, vertical,
+                    lengthIndex.create(nRows, nCols, vertical));
+            this.segmentsByEndPosition = new SparseSegmentsByEndPosition(nRows, nCols, vertical,
+                    positionIndex.create(nRows, nCols, vertical));
+        } else {
+            this.segmentsByLength = lengthIndex.create(nRows, nCols, vertical);
+            this.segmentsByEndPosition = positionIndex.create(nRows, nCols, vertical);
+            // Every line starts as one free segment, or one per layer. Both indexes are built from the whole list
+            // at once.
+            int lines = vertical ? nCols : nRows;
+            List<GridSegment> fullLines = new ArrayList<>(lines);
+            if (layerRows >= nRows) {
+                for (int line = 1; line <= lines; ++line) {
+                    fullLines.add(vertical ? GridSegment.GS(1, line, nRows) : GridSegment.GS(line, 1, nCols));
+                }
+            } else if (vertical) {
+                for (int col = 1; col <= nCols; ++col) {
+                    for (int top = 1; top <= nRows; top += layerRows + 1) {
+                        fullLines.add(GridSegment.GS(top, col, Math.min(layerRows, nRows - top + 1)));
+                    }
+                }
+            } else {
+                for (int row = 1; row <= nRows; ++row) {
+                    if (row % (layerRows + 1) != 0) {
+                        fullLines.add(GridSegment.GS(row, 1, nCols));
+                    }
+                }
             }
+            this.segmentsByLength.build(fullLines);
+            this.segmentsByEndPosition.build(fullLines);
         }
+        // Template of the all-free state for reset().
+        this.segmentsByLength.snapshot();
+        this.segmentsByEndPosition.snapshot();
     }
 
     public void reserve(int row, int col, int length) {
+        PlacementCounts.checkLength(length);
         GridSegment[] reserve = segmentsByEndPosition.reserve(row, col, length);
         segmentsByLength.delete(reserve[0].row, reserve[0].col, reserve[0].length);
         if (reserve[1] != null) {
@@ -48,17 +110,313 @@ public class PartialSegmentHandler {
     }
 
     public GridSegment reserveRandomFitting(int length) {
-        int total = segmentsByLength.countFittingSpaces(length);
-        int k = RNG.randInt(1,total);
-        GridSegment found = segmentsByLength.getKthFittingSpace(length,k);
-        reserve(found.row, found.col, length);
+        PlacementCounts.checkLength(length);
+        // The length structure samples and updates itself in one pass. It also tells which segment contained
+        // the sample, so the end position structure can split it without searching for it first.
+        GridSegment[] taken = segmentsByLength.takeRandomFittingSpace(length);
+        if (taken == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + length);
+        }
+        GridSegment found = taken[0];
+        segmentsByEndPosition.split(taken[1], found.row, found.col, length);
+        return found;
+    }
+
+    /**
+     * n calls of {@link #reserveRandomFitting(int)} in a row: same draws, same segments. Stops early,
+     * returning fewer, once no placement of that length is left.
+     */
+    public GridSegment[] reserveRandomFittingBatch(int length, int n) {
+        PlacementCounts.checkLength(length);
+        if (n < 0) {
+            throw new IllegalArgumentException("Negative batch size " + n);
+        }
+        GridSegment[] res = new GridSegment[n];
+        int cnt = 0;
+        for (; cnt < n; cnt++) {
+            GridSegment[] taken = segmentsByLength.takeRandomFittingSpace(length);
+            if (taken == null) {
+                return Arrays.copyOf(res, cnt);
+            }
+            segmentsByEndPosition.split(taken[1], taken[0].row, taken[0].col, length);
+            res[cnt] = taken[0];
+        }
+        return res;
+    }
+
+    /**
+     * Whether (row, col, length) lies inside one free segment.
+     */
+    public boolean isFree(int row, int col, int length) {
+        return firstConflict(row, col, length) == -1;
+    }
+
+    /**
+     * Free segment that contains the cell, or null if the cell is reserved. The stored free segments are maximal.
+     */
+    public GridSegment freeSegmentAt(int row, int col) {
+        return segmentsByEndPosition.freeSegmentAt(row, col);
+    }
+
+    /**
+     * First reserved cell of (row, col, length), as its position in the line (row if vertical, column otherwise),
+     * or -1 if the segment lies inside one free segment. The stored free segments are maximal, so the cell after
+     * the one around (row, col) is reserved: one lookup, O(log n), whatever the length.
+     */
+    public int firstConflict(int row, int col, int length) {
+        int start = vertical ? row : col;
+        GridSegment candidate = segmentsByEndPosition.freeSegmentAt(row, col);
+        if (candidate == null) {
+            return start;
+        }
+        int end = (vertical ? candidate.row : candidate.col) + candidate.length;
+        return end < start + length ? end : -1;
+    }
+
+    /**
+     * Reserves segs[0..count), which must be free, must not overlap and must come in (line, position) order.
+     * Segments that fall into the same free segment share a single lookup, and the length index only sees
+     * that segment leave and its final parts come in: k segments in one free segment cost 1 + (k + 1)
+     * length index updates instead of 3k.
+     */
+    public void reserveSorted(GridSegment[] segs, int count) {
+        int i = 0;
+        while (i < count) {
+            GridSegment seg = segs[i];
+            GridSegment current = segmentsByEndPosition.freeSegmentAt(seg.row, seg.col);
+            if (current == null) {
+                throw new IllegalArgumentException("No space available for segment " + seg);
+            }
+            segmentsByLength.delete(current.row, current.col, current.length);
+            int line = vertical ? current.col : current.row;
+            int end = (vertical ? current.row : current.col) + current.length;
+            do {
+                assert (isFree(seg.row, seg.col, seg.length));
+                GridSegment[] parts = segmentsByEndPosition.split(current, seg.row, seg.col, seg.length);
+                if (parts[1] != null) {
+                    segmentsByLength.insert(parts[1].row, parts[1].col, parts[1].length);
+                }
+                current = parts[2];
+                seg = ++i < count ? segs[i] : null;
+            } while (current != null && seg != null
+                    && (vertical ? seg.col : seg.row) == line && (vertical ? seg.row : seg.col) < end);
+            if (current != null) {
+                segmentsByLength.insert(current.row, current.col, current.length);
+            }
+        }
+    }
+
+    /**
+     * Reserves a random free segment with length in [minLength, maxLength].
+     * Every (position, length) placement is equally likely.
+     */
+    public GridSegment reserveRandomFitting(int minLength, int maxLength) {
+        GridSegment found = randomFitting(minLength, maxLength);
+        if (found == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + minLength + ".." + maxLength);
+        }
+        reserve(found.row, found.col, found.length);
+        return found;
+    }
+
+    /**
+     * The segment reserveRandomFitting(minLength, maxLength) would reserve, from the same draw, without reserving
+     * it; null if nothing fits. For a single length the same placement as reserveRandomFitting(length) as well.
+     */
+    public GridSegment randomFitting(int minLength, int maxLength) {
+        PlacementCounts.checkRange(minLength, maxLength);
+        long total = segmentsByLength.countFittingSpaces(minLength, maxLength);
+        if (total == 0) {
+            return null;
+        }
+        return segmentsByLength.getKthFittingSpace(minLength, maxLength, RNG.randPlacement(total));
+    }
+
+    /**
+     * Reserves a random free segment with length in [minLength, maxLength] in one layer of a layered length
+     * index (see {@link LayeredSegmentsByLength}), uniformly over the layer's placements. Draws like
+     * {@link #reserveRandomFitting(int)} for a single length, so a layer picks what a grid of its own would, and
+     * like it samples and updates the length index in one pass then.
+     */
+    public GridSegment reserveRandomFitting(int layer, int minLength, int maxLength) {
+        LayeredSegmentsByLength layered = layered();
+        if (minLength == maxLength) {
+            PlacementCounts.checkLength(minLength);
+            GridSegment[] taken = layered.takeRandomFittingSpace(layer, minLength);
+            if (taken == null) {
+                throw new IllegalArgumentException("No space available in layer " + layer
+                        + " for a segment of length " + minLength);
+            }
+            segmentsByEndPosition.split(taken[1], taken[0].row, taken[0].col, minLength);
+            return taken[0];
+        }
+        long total = layered.countFittingSpaces(layer, minLength, maxLength);
+        if (total == 0) {
+            throw new IllegalArgumentException("No space available in layer " + layer + " for a segment of length "
+                    + minLength + ".." + maxLength);
+        }
+        long k = RNG.randPlacement(total);
+        GridSegment found = layered.getKthFittingSpace(layer, minLength, maxLength, k);
+        reserve(found.row, found.col, found.length);
         return found;
     }
 
+    /**
+     * Placements of the length in one layer of a layered length index.
+     */
+    public long fittingSpaces(int layer, int length) {
+        return layered().countFittingSpaces(layer, length, length);
+    }
+
+    private LayeredSegmentsByLength layered() {
+        if (!(segmentsByLength instanceof LayeredSegmentsByLength)) {
+            throw new IllegalStateException("The length index has no layers");
+        }
+        return (LayeredSegmentsByLength) segmentsByLength;
+    }
+
+    /**
+     * Reserves a segment of the given length at the start of the free segment chosen by the policy.
+     */
+    public GridSegment reserveFitting(int length, Policy policy) {
+        GridSegment res = fitting(length, policy);
+        if (res == null) {
+            throw new IllegalArgumentException("No space available for a segment of length " + length);
+        }
+        reserve(res.row, res.col, length);
+        return res;
+    }
+
+    /**
+     * The segment reserveFitting(length, policy) would reserve, without reserving it; null if nothing fits.
+     * Throws IllegalArgumentException for a length below 1.
+     */
+    public GridSegment fitting(int length, Policy policy) {
+        PlacementCounts.checkLength(length);
+        GridSegment container;
+        switch (policy) {
+            case FIRST_FIT:
+                container = segmentsByEndPosition.firstFit(length);
+                break;
+            case BEST_FIT:
+                container = segmentsByLength.shortestFitting(length);
+                break;
+            case LARGEST_FIT:
+                container = segmentsByLength.longest();
+                if (container != null && container.length < length) {
+                    container = null;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown policy " + policy);
+        }
+        return container == null ? null : GridSegment.GS(container.row, container.col, length);
+    }
+
+    @Override
+    public long freeCells() {
+        return segmentsByLength.totalLength();
+    }
+
+    @Override
+    public int freeRunCount() {
+        return segmentsByLength.segmentCount();
+    }
+
+    @Override
+    public int freeRunCount(int minLength, int maxLength) {
+        return segmentsByLength.countSegments(minLength, maxLength);
+    }
+
+    @Override
+    public int longestFreeRun() {
+        GridSegment longest = segmentsByLength.longest();
+        return longest == null ? 0 : longest.length;
+    }
+
+    @Override
+    public long fittingSpaces(int length) {
+        PlacementCounts.checkLength(length);
+        return segmentsByLength.countFittingSpaces(length, length);
+    }
+
+    /**
+     * Steps through the distinct lengths of the free runs, shortest first, with one lookup and one range count
+     * each: O(D log(n+m)) for D distinct lengths, however long the lines are, plus the zeroed array.
+     */
+    @Override
+    public int[] freeRunHistogram() {
+        int[] res = new int[(vertical ? nRows : nCols) + 1];
+        for (GridSegment run = segmentsByLength.shortestFitting(1); run != null;
+             run = run.length + 1 < res.length ? segmentsByLength.shortestFitting(run.length + 1) : null) {
+            res[run.length] = segmentsByLength.countSegments(run.length, run.length);
+        }
+        return res;
+    }
+
+    @Override
+    public long[] fittingSpacesHistogram() {
+        return PlacementCounts.fittingHistogram(freeRunHistogram());
+    }
+
     public void printGrid(){
         segmentsByEndPosition.printGrid();
     }
 
+    /**
+     * All maximal free segments, ordered by line and position in the line.
+     */
+    public List<GridSegment> getFreeSegments() {
+        return segmentsByEndPosition.getAllSegments();
+    }
+
+    /**
+     * Allocation-free walk over the maximal free segments, in the same order as {@link #getFreeSegments()}.
+     */
+    public SegmentsByEndPosition.Cursor freeSegments() {
+        return segmentsByEndPosition.cursor();
+    }
+
+    /**
+     * Same as {@link #freeSegments()}, starting at the first segment of line fromLine or later.
+     */
+    public SegmentsByEndPosition.Cursor freeSegments(int fromLine) {
+        return segmentsByEndPosition.cursor(fromLine);
+    }
+
+    /**
+     * Whether only touched lines are stored. A rebuild then costs as much as the grid has lines, so callers
+     * should stick to incremental updates.
+     */
+    public boolean hasImplicitLines() {
+        return implicitLines;
+    }
+
+    /**
+     * Replaces the free segments with the given ones, which must not overlap and must come in (line, position)
+     * order. Both indexes are bulk-built; the all-free template of {@link #reset()} is kept.
+     */
+    public void rebuild(List<GridSegment> freeSegments) {
+        segmentsByLength.build(freeSegments);
+        segmentsByEndPosition.build(freeSegments);
+    }
+
+    /**
+     * Back to all free, by restoring the template saved by the constructor instead of re-inserting every line.
+     */
+    public void reset() {
+        segmentsByLength.restore();
+        segmentsByEndPosition.restore();
+    }
+
+    /**
+     * Lays the nodes of both indexes out again in walk order, see {@link SegmentsByLength#compact()}.
+     */
+    public void compact() {
+        segmentsByLength.compact();
+        segmentsByEndPosition.compact();
+    }
+
     public void flush(){
         segmentsByLength.destroy();
         segmentsByEndPosition.destroy();
@@ -0,0 +1,141 @@
+package symbolic.segments.by_end_pos;
+
+import symbolic.GridSegment;
+import symbolic.segments.util.PoolSizing;
+
+import java.util.List;
+
+/**
+ * All lines in one preallocated AVL, ordered by (line, end).
+ */
+public class AVLSegmentsByEndPosition extends SegmentsByEndPosition {
+
+    private final SegmentsByEndPosPreallocatedAVL tree;
+    private final Cursor cursor = new Cursor() {
+        @Override
+        public boolean next() {
+            return tree.nextInWalk(this);
+        }
+    };
+
+    /**
+     * Same as the constructor with offHeap = true, as a {@link SegmentsByEndPosition.Factory}.
+     */
+    public static AVLSegmentsByEndPosition offHeap(int nRows, int nCols, boolean vertical) {
+        return new AVLSegmentsByEndPosition(nRows, nCols, vertical, true);
+    }
+
+    /**
+     * Tree whose pool starts small and grows with the stored segments instead of being sized for every line,
+     * as a {@link SegmentsByEndPosition.Factory} for indexes that store few lines (SparseSegmentsByEndPosition).
+     */
+    public static AVLSegmentsByEndPosition growing(int nRows, int nCols, boolean vertical) {
+        return new AVLSegmentsByEndPosition(nRows, nCols, vertical, false, 16);
+    }
+
+    public AVLSegmentsByEndPosition(int nRows, int nCols, boolean vertical) {
+        this(nRows, nCols, vertical, false);
+    }
+
+    /**
+     * With offHeap, the tree's nodes live in direct memory instead of int arrays on the heap.
+     * The pool starts with room for the segments expected at the configured fill, see {@link PoolSizing}.
+     */
+    public AVLSegmentsByEndPosition(int nRows, int nCols, boolean vertical, boolean offHeap) {
+        this(nRows, nCols, vertical, offHeap, PoolSizing.defaultFill());
+    }
+
+    /**
+     * The pool starts with room for the segments of a grid reserved to expectedFill.
+     */
+    public AVLSegmentsByEndPosition(int nRows, int nCols, boolean vertical, boolean offHeap, double expectedFill) {
+        this(nRows, nCols, vertical, offHeap, PoolSizing.initialNodes(nRows, nCols, vertical, 1, expectedFill));
+    }
+
+    private AVLSegmentsByEndPosition(int nRows, int nCols, boolean vertical, boolean offHeap, int initialCapacity) {
+        super(nRows, nCols, vertical);
+        this.tree = new SegmentsByEndPosPreallocatedAVL(vertical, initialCapacity, offHeap);
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        tree.insert(new GridSegment(row, col, length));
+    }
+
+    @Override
+    public void build(List<GridSegment> segments) {
+        tree.build(segments);
+    }
+
+    @Override
+    public GridSegment firstFit(int minLength) {
+        return tree.firstWithLength(minLength);
+    }
+
+    @Override
+    protected GridSegment containing(int line, int pos) {
+        GridSegment dummy = vertical ? new GridSegment(pos, line, 1) : new GridSegment(line, pos, 1);
+        GridSegment candidate = tree.ceiling(dummy);
+        if (candidate == null) {
+            return null;
+        }
+        if (vertical) {
+            if (candidate.col == line && candidate.row <= pos && pos <= candidate.row + candidate.length - 1) {
+                return candidate;
+            }
+        } else {
+            if (candidate.row == line && candidate.col <= pos && pos <= candidate.col + candidate.length - 1) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The candidate's node is reused for one of the parts, so at most one insertion is needed.
+     */
+    @Override
+    protected void applySplit(GridSegment candidate, GridSegment before, GridSegment after) {
+        if (before != null) {
+            tree.replace(candidate, before);
+            if (after != null) {
+                tree.insert(after);
+            }
+        } else if (after != null) {
+            tree.replace(candidate, after);
+        } else {
+            tree.remove(candidate);
+        }
+    }
+
+    @Override
+    public List<GridSegment> getAllSegments() {
+        return tree.getAllSegments();
+    }
+
+    @Override
+    public Cursor cursor(int fromLine) {
+        tree.startWalk(fromLine);
+        return cursor;
+    }
+
+    @Override
+    public void snapshot() {
+        tree.snapshot();
+    }
+
+    @Override
+    public void restore() {
+        tree.restore();
+    }
+
+    @Override
+    public void compact() {
+        tree.relayout();
+    }
+
+    @Override
+    public void destroy() {
+        tree.destroy();
+    }
+}
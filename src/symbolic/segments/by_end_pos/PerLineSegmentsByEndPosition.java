@@ -0,0 +1,246 @@
+package symbolic.segments.by_end_pos;
+
+import symbolic.GridSegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every line keeps its free segments in its own sorted primitive array of (start, length) pairs.
+ * Lookups are a binary search inside one line, O(log k) for k segments in that line, over contiguous memory
+ * instead of a pointer-chasing descent over all lines. Splits are done in place, shifting the tail of the line.
+ * A dense max tree over lines (longest segment per line) serves first fit.
+ */
+public class PerLineSegmentsByEndPosition extends SegmentsByEndPosition {
+
+    private static final int INITIAL_LINE_CAPACITY = 2;
+
+    private final int nLines;
+    // segs[line][2 * i] = start of the i-th segment of the line, segs[line][2 * i + 1] = its length.
+    private final int[][] segs;
+    private final int[] segCnt;
+
+    // Dense max tree, leaf for line l (1-based) is at size + l.
+    private final int size;
+    private final int[] maxTree;
+
+    private final LineCursor cursor = new LineCursor();
+
+    // Saved by snapshot(): per-line counts, the max tree and the pairs of every non-empty line.
+    private int[] templateCnt, templateMaxTree;
+    private int[][] templateSegs;
+
+    private class LineCursor extends Cursor {
+        private int nextLine, index;
+
+        @Override
+        public boolean next() {
+            while (nextLine <= nLines && index >= segCnt[nextLine]) {
+                ++nextLine;
+                index = 0;
+            }
+            if (nextLine > nLines) {
+                return false;
+            }
+            set(nextLine, segs[nextLine][2 * index], segs[nextLine][2 * index + 1]);
+            ++index;
+            return true;
+        }
+    }
+
+    public PerLineSegmentsByEndPosition(int nRows, int nCols, boolean vertical) {
+        super(nRows, nCols, vertical);
+        this.nLines = vertical ? nCols : nRows;
+        this.segs = new int[nLines + 1][];
+        this.segCnt = new int[nLines + 1];
+        int leaves = Integer.highestOneBit(nLines + 1);
+        this.size = leaves == nLines + 1 ? leaves : leaves << 1;
+        this.maxTree = new int[2 * size];
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        int line = vertical ? col : row, start = vertical ? row : col;
+        int i = floorIndex(line, start) + 1;
+        insertAt(line, i, start, length);
+        updateLineMax(line);
+    }
+
+    /**
+     * Appends to the end of each line and fills the max tree bottom-up once, O(segments + lines).
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        Arrays.fill(segCnt, 0);
+        Arrays.fill(maxTree, 0);
+        for (GridSegment seg : segments) {
+            int line = vertical ? seg.col : seg.row, start = vertical ? seg.row : seg.col;
+            assert (segCnt[line] == 0 || segs[line][2 * segCnt[line] - 2] < start);
+            insertAt(line, segCnt[line], start, seg.length);
+            maxTree[size + line] = Math.max(maxTree[size + line], seg.length);
+        }
+        for (int v = size - 1; v >= 1; v--) {
+            maxTree[v] = Math.max(maxTree[2 * v], maxTree[2 * v + 1]);
+        }
+    }
+
+    @Override
+    public GridSegment firstFit(int minLength) {
+        if (maxTree[1] < minLength) {
+            return null;
+        }
+        int v = 1;
+        while (v < size) {
+            v = maxTree[2 * v] >= minLength ? 2 * v : 2 * v + 1;
+        }
+        int line = v - size;
+        int[] s = segs[line];
+        for (int i = 0; ; i++) {
+            if (s[2 * i + 1] >= minLength) {
+                return segment(line, s[2 * i], s[2 * i + 1]);
+            }
+        }
+    }
+
+    @Override
+    protected GridSegment containing(int line, int pos) {
+        int i = floorIndex(line, pos);
+        if (i < 0) {
+            return null;
+        }
+        int start = segs[line][2 * i], length = segs[line][2 * i + 1];
+        return pos <= start + length - 1 ? segment(line, start, length) : null;
+    }
+
+    @Override
+    protected void applySplit(GridSegment candidate, GridSegment before, GridSegment after) {
+        int line = vertical ? candidate.col : candidate.row;
+        int i = floorIndex(line, vertical ? candidate.row : candidate.col);
+        int[] s = segs[line];
+        if (before != null) {
+            s[2 * i + 1] = before.length;
+            if (after != null) {
+                insertAt(line, i + 1, vertical ? after.row : after.col, after.length);
+            }
+        } else if (after != null) {
+            s[2 * i] = vertical ? after.row : after.col;
+            s[2 * i + 1] = after.length;
+        } else {
+            int n = segCnt[line];
+            System.arraycopy(s, 2 * i + 2, s, 2 * i, 2 * (n - i - 1));
+            segCnt[line] = n - 1;
+        }
+        updateLineMax(line);
+    }
+
+    @Override
+    public List<GridSegment> getAllSegments() {
+        List<GridSegment> segments = new ArrayList<>();
+        for (int line = 1; line <= nLines; line++) {
+            for (int i = 0; i < segCnt[line]; i++) {
+                segments.add(segment(line, segs[line][2 * i], segs[line][2 * i + 1]));
+            }
+        }
+        return segments;
+    }
+
+    @Override
+    public Cursor cursor(int fromLine) {
+        cursor.nextLine = Math.max(fromLine, 1);
+        cursor.index = 0;
+        return cursor;
+    }
+
+    @Override
+    public void snapshot() {
+        templateCnt = segCnt.clone();
+        templateMaxTree = maxTree.clone();
+        templateSegs = new int[nLines + 1][];
+        for (int line = 1; line <= nLines; line++) {
+            if (segCnt[line] > 0) {
+                templateSegs[line] = Arrays.copyOf(segs[line], 2 * segCnt[line]);
+            }
+        }
+    }
+
+    /**
+     * Array copies only, O(lines + saved segments).
+     */
+    @Override
+    public void restore() {
+        System.arraycopy(templateCnt, 0, segCnt, 0, segCnt.length);
+        System.arraycopy(templateMaxTree, 0, maxTree, 0, maxTree.length);
+        for (int line = 1; line <= nLines; line++) {
+            int[] saved = templateSegs[line];
+            if (saved != null) {
+                if (segs[line] == null || segs[line].length < saved.length) {
+                    segs[line] = new int[Math.max(saved.length, 2 * INITIAL_LINE_CAPACITY)];
+                }
+                System.arraycopy(saved, 0, segs[line], 0, saved.length);
+            }
+        }
+    }
+
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void destroy() {
+        Arrays.fill(segCnt, 0);
+        Arrays.fill(maxTree, 0);
+    }
+
+    // --------------------------
+    //         Helper methods
+    // --------------------------
+
+    /**
+     * Index of the last segment of the line starting at or before pos, -1 if there is none.
+     */
+    private int floorIndex(int line, int pos) {
+        int[] s = segs[line];
+        int lo = 0, hi = segCnt[line] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s[2 * mid] <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+
+    private void insertAt(int line, int i, int start, int length) {
+        int n = segCnt[line];
+        int[] s = segs[line];
+        if (s == null) {
+            s = segs[line] = new int[2 * INITIAL_LINE_CAPACITY];
+        } else if (2 * n == s.length) {
+            s = segs[line] = Arrays.copyOf(s, 2 * s.length);
+        }
+        System.arraycopy(s, 2 * i, s, 2 * i + 2, 2 * (n - i));
+        s[2 * i] = start;
+        s[2 * i + 1] = length;
+        segCnt[line] = n + 1;
+    }
+
+    private void updateLineMax(int line) {
+        int max = 0;
+        int[] s = segs[line];
+        for (int i = 0; i < segCnt[line]; i++) {
+            max = Math.max(max, s[2 * i + 1]);
+        }
+        int v = size + line;
+        maxTree[v] = max;
+        for (v >>= 1; v >= 1; v >>= 1) {
+            maxTree[v] = Math.max(maxTree[2 * v], maxTree[2 * v + 1]);
+        }
+    }
+
+    private GridSegment segment(int line, int start, int length) {
+        return vertical ? GridSegment.GS(start, line, length) : GridSegment.GS(line, start, length);
+    }
+}
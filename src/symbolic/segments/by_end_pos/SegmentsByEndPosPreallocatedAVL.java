@@ -1,135 +1,277 @@
 package symbolic.segments.by_end_pos;
 
 import symbolic.GridSegment;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.instrumentation.Structure;
+import symbolic.segments.util.NodeLayout;
+import symbolic.segments.util.NodePool;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 import static symbolic.GridCreator.NODE_POOL_SIZE;
 
 public class SegmentsByEndPosPreallocatedAVL {
-    private int root = -1;
-    // Works without extra info stored (like about parent) because our nodes are freed when the whole structure is freed
-    // (explained in a comment later in the code)
-    // TODO use dependency injection to let the user decide what pool to use.
-    private static final NodePool pool = new NodePool(NODE_POOL_SIZE);
+    // Slots of a node: the stored segment, the children (-1 if none), the height and the longest segment of the
+    // subtree. 8 slots, 32 bytes.
+    private static final int ROW = 0, COL = 1, LENGTH = 2, LEFT = 3, RIGHT = 4, HEIGHT = 5, MAX_LENGTH = 6;
+    private static final NodeLayout LAYOUT = new NodeLayout(Structure.AVL,
+            new int[]{0, 0, 0, -1, -1, 1, 0, 0}, -1, LEFT, RIGHT, -1);
+
+    private int root = -1, templateRoot = -1;
+    // Every tree has its own pool, so removed nodes can be freed right away and the whole tree can be rewound.
+    private final NodePool pool;
     private final boolean vertical;
-    private final Comparator<GridSegment> comparator;
+    // Explicit stack of the in-order walk. The height of an AVL with up to 2^31 nodes stays below 64.
+    private final int[] walkStack = new int[64];
+    private int walkTop, walkNext = -1;
 
     public SegmentsByEndPosPreallocatedAVL(boolean vertical) {
+        this(vertical, NODE_POOL_SIZE);
+    }
+
+    public SegmentsByEndPosPreallocatedAVL(boolean vertical, int initialCapacity) {
+        this(vertical, initialCapacity, false);
+    }
+
+    /**
+     * With offHeap, nodes live in direct memory instead of int arrays on the heap, see {@link NodePool#create}.
+     */
+    public SegmentsByEndPosPreallocatedAVL(boolean vertical, int initialCapacity, boolean offHeap) {
         this.vertical = vertical;
+        this.pool = NodePool.create(LAYOUT, initialCapacity, offHeap);
+    }
 
-        this.comparator = vertical ?
-                Comparator.<GridSegment>comparingInt(g -> g.col)
-                        .thenComparingInt(g -> g.row + g.length) :
-                Comparator.<GridSegment>comparingInt(g -> g.row)
-                        .thenComparingInt(g -> g.col + g.length);
+    /**
+     * Orders by line (column if vertical, row otherwise), then by end position; compares a to the segment of node.
+     * Plain int comparisons, since this runs at every level of every descent.
+     */
+    private int compare(GridSegment a, int node) {
+        if (vertical) {
+            int col = pool.getInt(node, COL);
+            if (a.col != col) {
+                return a.col < col ? -1 : 1;
+            }
+            return Integer.compare(a.row + a.length, pool.getInt(node, ROW) + pool.getInt(node, LENGTH));
+        }
+        int row = pool.getInt(node, ROW);
+        if (a.row != row) {
+            return a.row < row ? -1 : 1;
+        }
+        return Integer.compare(a.col + a.length, pool.getInt(node, COL) + pool.getInt(node, LENGTH));
+    }
+
+    private int line(int node) {
+        return vertical ? pool.getInt(node, COL) : pool.getInt(node, ROW);
+    }
+
+    private int start(int node) {
+        return vertical ? pool.getInt(node, ROW) : pool.getInt(node, COL);
     }
 
     public void insert(GridSegment seg) {
         root = insert(root, seg);
+        if (Instrumentation.ENABLED) {
+            Instrumentation.treeHeight(Structure.AVL, pool.getInt(root, HEIGHT));
+        }
+        if (pool.needsRelayout()) {
+            relayout();
+        }
+    }
+
+    /**
+     * Renumbers the nodes in preorder, see {@link NodePool#relayout(int)}. Also done by insert() once the pool
+     * asks for it, see {@link NodePool#needsRelayout()}; a walk in progress is invalidated.
+     */
+    public void relayout() {
+        if (root != -1) {
+            root = pool.relayout(root);
+        }
+    }
+
+    /**
+     * Replaces the tree with a perfectly balanced one holding segments, which must be in (line, end) order.
+     * Every node is created once with its final links, O(n) instead of n insertions with rebalancing.
+     */
+    public void build(List<GridSegment> segments) {
+        pool.rewind();
+        root = build(segments, 0, segments.size() - 1);
+        pool.settled(); // built in preorder
+        if (Instrumentation.ENABLED && root != -1) {
+            Instrumentation.treeHeight(Structure.AVL, pool.getInt(root, HEIGHT));
+        }
     }
 
     public void remove(GridSegment seg) {
         root = remove(root, seg);
     }
 
+    /**
+     * Puts seg in place of old, which must be stored. seg must keep old's position among the other segments,
+     * which holds for any part of old since stored segments don't overlap.
+     */
+    public void replace(GridSegment old, GridSegment seg) {
+        replace(root, old, seg);
+    }
+
     public GridSegment ceiling(GridSegment query) {
-        int current = root;
-        GridSegment best = null;
+        int current = root, best = -1;
         while (current != -1) {
-            Node node = pool.at(current);
-            int cmp = comparator.compare(query, node.segment);
-            if (cmp == 0) return node.segment;
+            int cmp = compare(query, current);
+            if (cmp == 0) return segment(current);
             if (cmp < 0) {
-                best = node.segment;
-                current = node.left;
+                best = current;
+                current = pool.getInt(current, LEFT);
             } else {
-                current = node.right;
+                current = pool.getInt(current, RIGHT);
             }
         }
-        return best;
+        return best == -1 ? null : segment(best);
+    }
+
+    /**
+     * First segment in (line, end) order with length at least minLength, or null.
+     */
+    public GridSegment firstWithLength(int minLength) {
+        int current = root;
+        while (current != -1) {
+            if (pool.getInt(current, MAX_LENGTH) < minLength) {
+                return null;
+            }
+            if (maxLength(pool.getInt(current, LEFT)) >= minLength) {
+                current = pool.getInt(current, LEFT);
+            } else if (pool.getInt(current, LENGTH) >= minLength) {
+                return segment(current);
+            } else {
+                current = pool.getInt(current, RIGHT);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The stored segment, a new object on every call; row, column and length are read by slot on hot paths.
+     */
+    private GridSegment segment(int node) {
+        return GridSegment.GS(pool.getInt(node, ROW), pool.getInt(node, COL), pool.getInt(node, LENGTH));
+    }
+
+    private void setSegment(int node, GridSegment seg) {
+        pool.putInt(node, ROW, seg.row);
+        pool.putInt(node, COL, seg.col);
+        pool.putInt(node, LENGTH, seg.length);
+    }
+
+    private int newNode(GridSegment seg) {
+        int node = pool.newNode();
+        setSegment(node, seg);
+        pool.putInt(node, MAX_LENGTH, seg.length);
+        return node;
     }
 
     private int height(int i) {
-        return i == -1 ? 0 : pool.at(i).height;
+        return i == -1 ? 0 : pool.getInt(i, HEIGHT);
     }
 
     private int insert(int nodeIndex, GridSegment seg) {
-        if (nodeIndex == -1) return pool.newNode(seg);
+        if (nodeIndex == -1) return newNode(seg);
 
-        Node node = pool.at(nodeIndex);
-        int cmp = comparator.compare(seg, node.segment);
+        int cmp = compare(seg, nodeIndex);
         if (cmp < 0) {
-            node.left = insert(node.left, seg);
+            pool.putInt(nodeIndex, LEFT, insert(pool.getInt(nodeIndex, LEFT), seg));
         } else if (cmp > 0) {
-            node.right = insert(node.right, seg);
+            pool.putInt(nodeIndex, RIGHT, insert(pool.getInt(nodeIndex, RIGHT), seg));
         } else return nodeIndex;
 
-        updateHeight(node);
-
+        updateHeight(nodeIndex);
         return balance(nodeIndex);
     }
 
+    private int build(List<GridSegment> segments, int from, int to) {
+        if (from > to) {
+            return -1;
+        }
+        int mid = (from + to) >>> 1;
+        int nodeIndex = newNode(segments.get(mid));
+        assert (mid == from || compare(segments.get(mid - 1), nodeIndex) < 0);
+        pool.putInt(nodeIndex, LEFT, build(segments, from, mid - 1));
+        pool.putInt(nodeIndex, RIGHT, build(segments, mid + 1, to));
+        updateHeight(nodeIndex);
+        return nodeIndex;
+    }
+
+    private void replace(int nodeIndex, GridSegment old, GridSegment seg) {
+        int cmp = compare(old, nodeIndex);
+        if (cmp < 0) {
+            replace(pool.getInt(nodeIndex, LEFT), old, seg);
+        } else if (cmp > 0) {
+            replace(pool.getInt(nodeIndex, RIGHT), old, seg);
+        } else {
+            setSegment(nodeIndex, seg);
+        }
+        updateHeight(nodeIndex);
+    }
+
     private int remove(int nodeIndex, GridSegment seg) {
         if (nodeIndex == -1) return -1;
 
-        Node node = pool.at(nodeIndex);
-        int cmp = comparator.compare(seg, node.segment);
+        int cmp = compare(seg, nodeIndex);
         if (cmp < 0) {
-            node.left = remove(node.left, seg);
+            pool.putInt(nodeIndex, LEFT, remove(pool.getInt(nodeIndex, LEFT), seg));
         } else if (cmp > 0) {
-            node.right = remove(node.right, seg);
+            pool.putInt(nodeIndex, RIGHT, remove(pool.getInt(nodeIndex, RIGHT), seg));
         } else {
-            if (node.left == -1 || node.right == -1) {
-                int temp = node.left != -1 ? node.left : node.right;
-                //pool.freeNode(nodeIndex); We can't do it with the current implementation
-                // The parent must also be notified about freeing the son.
-                // If another instance of this class claimed the node at this index,
-                // the parent in our instance will not recognize that one of his sons is actually in another tree,
-                // so is not actually his.
+            int left = pool.getInt(nodeIndex, LEFT), right = pool.getInt(nodeIndex, RIGHT);
+            if (left == -1 || right == -1) {
+                int temp = left != -1 ? left : right;
+                pool.freeNode(nodeIndex); // the parent links temp instead on the way up
                 return temp;
             }
 
-            Node minLargerNode = pool.at(min(node.right));
-            node.segment = minLargerNode.segment;
-            node.right = remove(node.right, minLargerNode.segment);
+            GridSegment minLarger = segment(min(right));
+            setSegment(nodeIndex, minLarger);
+            pool.putInt(nodeIndex, RIGHT, remove(right, minLarger));
         }
 
-        updateHeight(node);
+        updateHeight(nodeIndex);
         return balance(nodeIndex);
     }
 
     private int min(int nodeIndex) {
-        while (pool.at(nodeIndex).left != -1) {
-            nodeIndex = pool.at(nodeIndex).left;
+        while (pool.getInt(nodeIndex, LEFT) != -1) {
+            nodeIndex = pool.getInt(nodeIndex, LEFT);
         }
         return nodeIndex;
     }
 
-    private void updateHeight(Node node) {
-        node.height = 1 + Math.max(height(node.left), height(node.right));
+    private int maxLength(int i) {
+        return i == -1 ? 0 : pool.getInt(i, MAX_LENGTH);
+    }
+
+    private void updateHeight(int nodeIndex) {
+        int left = pool.getInt(nodeIndex, LEFT), right = pool.getInt(nodeIndex, RIGHT);
+        pool.putInt(nodeIndex, HEIGHT, 1 + Math.max(height(left), height(right)));
+        pool.putInt(nodeIndex, MAX_LENGTH, Math.max(pool.getInt(nodeIndex, LENGTH), Math.max(maxLength(left), maxLength(right))));
     }
 
     private int balance(int nodeIndex) {
-        Node node = pool.at(nodeIndex);
-        int balanceFactor = height(node.left) - height(node.right);
+        int left = pool.getInt(nodeIndex, LEFT), right = pool.getInt(nodeIndex, RIGHT);
+        int balanceFactor = height(left) - height(right);
 
         if (balanceFactor > 1) {
-            if (height(pool.at(node.left).left) >= height(pool.at(node.left).right)) {
+            if (height(pool.getInt(left, LEFT)) >= height(pool.getInt(left, RIGHT))) {
                 return rotateRight(nodeIndex);
             } else {
-                node.left = rotateLeft(node.left);
+                pool.putInt(nodeIndex, LEFT, rotateLeft(left));
                 return rotateRight(nodeIndex);
             }
         }
 
         if (balanceFactor < -1) {
-            if (height(pool.at(node.right).right) >= height(pool.at(node.right).left)) {
+            if (height(pool.getInt(right, RIGHT)) >= height(pool.getInt(right, LEFT))) {
                 return rotateLeft(nodeIndex);
             } else {
-                node.right = rotateRight(node.right);
+                pool.putInt(nodeIndex, RIGHT, rotateRight(right));
                 return rotateLeft(nodeIndex);
             }
         }
@@ -138,26 +280,22 @@ public class SegmentsByEndPosPreallocatedAVL {
     }
 
     private int rotateLeft(int xIndex) {
-        Node x = pool.at(xIndex);
-        int yIndex = x.right;
-        Node y = pool.at(yIndex);
-        x.right = y.left;
-        y.left = xIndex;
-
-        updateHeight(x);
-        updateHeight(y);
+        int yIndex = pool.getInt(xIndex, RIGHT);
+        pool.putInt(xIndex, RIGHT, pool.getInt(yIndex, LEFT));
+        pool.putInt(yIndex, LEFT, xIndex);
+
+        updateHeight(xIndex);
+        updateHeight(yIndex);
         return yIndex;
     }
 
     private int rotateRight(int yIndex) {
-        Node y = pool.at(yIndex);
-        int xIndex = y.left;
-        Node x = pool.at(xIndex);
-        y.left = x.right;
-        x.right = yIndex;
-
-        updateHeight(y);
-        updateHeight(x);
+        int xIndex = pool.getInt(yIndex, LEFT);
+        pool.putInt(yIndex, LEFT, pool.getInt(xIndex, RIGHT));
+        pool.putInt(xIndex, RIGHT, yIndex);
+
+        updateHeight(yIndex);
+        updateHeight(xIndex);
         return xIndex;
     }
 
@@ -167,17 +305,64 @@ public class SegmentsByEndPosPreallocatedAVL {
         return segments;
     }
 
-    public void destroy() {
-        destroyRec(root);
-        root = -1;
+    /**
+     * Restarts the in-order walk at the first segment of line fromLine or later, see {@link #nextInWalk}.
+     * Only the path of that lower bound is pushed, O(log n).
+     */
+    public void startWalk(int fromLine) {
+        walkTop = 0;
+        walkNext = -1;
+        int current = root;
+        while (current != -1) {
+            if (line(current) >= fromLine) {
+                walkStack[walkTop++] = current;
+                current = pool.getInt(current, LEFT);
+            } else {
+                current = pool.getInt(current, RIGHT);
+            }
+        }
     }
 
-    private void destroyRec(int nodeIndex) {
-        if (nodeIndex == -1) return;
-        Node curr = pool.at(nodeIndex);
-        destroyRec(curr.left);
-        destroyRec(curr.right);
-        pool.freeNode(nodeIndex);
+    /**
+     * Moves the walk to the next stored segment in (line, end) order and puts it in cursor. False at the end.
+     * Iterative and allocation-free.
+     */
+    boolean nextInWalk(SegmentsByEndPosition.Cursor cursor) {
+        while (walkNext != -1) {
+            walkStack[walkTop++] = walkNext;
+            walkNext = pool.getInt(walkNext, LEFT);
+        }
+        if (walkTop == 0) {
+            return false;
+        }
+        int node = walkStack[--walkTop];
+        walkNext = pool.getInt(node, RIGHT);
+        cursor.set(line(node), start(node), pool.getInt(node, LENGTH));
+        return true;
+    }
+
+    /**
+     * Remembers the current tree, see {@link #restore()}.
+     */
+    public void snapshot() {
+        pool.snapshot();
+        templateRoot = root;
+    }
+
+    /**
+     * Returns to the tree saved by the last snapshot(), in time linear in its size, no matter how much changed since.
+     */
+    public void restore() {
+        pool.restore();
+        root = templateRoot;
+    }
+
+    /**
+     * Empties the tree for good: the pool keeps a single page and the snapshot is dropped.
+     */
+    public void destroy() {
+        pool.release();
+        root = templateRoot = -1;
     }
 
     /**
@@ -185,9 +370,8 @@ public class SegmentsByEndPosPreallocatedAVL {
      */
     private void inOrderTraversal(int nodeIndex, List<GridSegment> segments) {
         if (nodeIndex == -1) return;
-        Node node = pool.at(nodeIndex);
-        inOrderTraversal(node.left, segments);  // Traverse left subtree
-        segments.add(node.segment);             // Add current segment
-        inOrderTraversal(node.right, segments); // Traverse right subtree
+        inOrderTraversal(pool.getInt(nodeIndex, LEFT), segments);  // Traverse left subtree
+        segments.add(segment(nodeIndex));             // Add current segment
+        inOrderTraversal(pool.getInt(nodeIndex, RIGHT), segments); // Traverse right subtree
     }
 }
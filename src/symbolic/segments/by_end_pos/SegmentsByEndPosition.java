@@ -3,91 +3,172 @@ package symbolic.segments.by_end_pos;
 
 import symbolic.GridSegment;
 
-public class SegmentsByEndPosition {
+import java.util.Arrays;
+import java.util.List;
 
-    private final boolean vertical;
-    private final SegmentsByEndPosPreallocatedAVL tree;
-    private final int nRows;
-    private final int nCols;
+/**
+ * Free segments of one orientation, ordered by line (column if vertical, row otherwise) and position in the line.
+ * Subclasses decide how they are stored; the splitting logic is shared.
+ */
+public abstract class SegmentsByEndPosition {
 
-    public SegmentsByEndPosition(int nRows, int nCols, boolean vertical) {
+    /**
+     * Creates an empty instance for segments of one orientation in an nRows x nCols grid.
+     */
+    public interface Factory {
+        SegmentsByEndPosition create(int nRows, int nCols, boolean vertical);
+    }
+
+    /**
+     * Walks the stored segments in (line, position) order without allocating. Every instance owns a single
+     * cursor, restarted by {@link #cursor(int)}; it is invalidated by any modification of the instance.
+     */
+    public abstract static class Cursor {
+        private int line, start, length;
+
+        /**
+         * Moves to the next segment. False if there is none.
+         */
+        public abstract boolean next();
+
+        /** Row of the current segment if horizontal, column if vertical. */
+        public int line() {
+            return line;
+        }
+
+        /** Column of the current segment's first cell if horizontal, row if vertical. */
+        public int start() {
+            return start;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        protected void set(int line, int start, int length) {
+            this.line = line;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    protected final boolean vertical;
+    protected final int nRows;
+    protected final int nCols;
+
+    protected SegmentsByEndPosition(int nRows, int nCols, boolean vertical) {
         this.nRows = nRows;
         this.nCols = nCols;
         this.vertical = vertical;
-        this.tree = new SegmentsByEndPosPreallocatedAVL(vertical);
     }
 
     public GridSegment[] reserve(int row, int col, int length) {
 
-        GridSegment candidate = bestFit(row, col);
+        GridSegment candidate = vertical ? containing(col, row) : containing(row, col);
         if(candidate == null){
             throw new IllegalArgumentException("no candidate found");
         }
         int cStart = vertical ? candidate.row : candidate.col, start = vertical ? row : col;
         int cLength = candidate.length;
-        int cOther = vertical ? candidate.col : candidate.row, other = vertical ? col : row;
-        if (cStart > start || cOther != other || cStart + cLength - 1 < start + length - 1) {
+        if (cStart + cLength - 1 < start + length - 1) {
             throw new IllegalArgumentException("No space available for this segment");
         }
-        tree.remove(candidate);
-
-        if (cStart == start) {
-            int newLength = cLength - length;
-            if (newLength != 0) {
-                int newStart = cStart + length;
-                GridSegment replacement = vertical ? GridSegment.GS(newStart, other, newLength) : GridSegment.GS(other, newStart, newLength);
-                tree.insert(replacement);
-                return new GridSegment[]{candidate, replacement, null};
-            }
-            return new GridSegment[]{candidate, null, null};
-        } else {
-            int len1 = start - cStart;
-            GridSegment replacement1 = null, replacement2 = null;
-            if (len1 > 0) {
-                replacement1 = vertical ? GridSegment.GS(cStart, cOther, len1) : GridSegment.GS(cOther, cStart, len1);
-                tree.insert(replacement1);
-            }
-            int len2 = cStart + cLength - 1 - (start + length - 1);
-            if (len2 > 0) {
-                int newStart = start + length;
-                replacement2 = vertical ? GridSegment.GS(newStart, cOther, len2) : GridSegment.GS(cOther, newStart, len2);
-                tree.insert(replacement2);
-            }
-            return new GridSegment[]{candidate, replacement1, replacement2};
-        }
-
+        return split(candidate, row, col, length);
     }
 
-    public void insert(int row, int col, int length) {
-        tree.insert(new GridSegment(row, col, length));
+    /**
+     * Stored segment that contains the cell (row, col), or null if the cell is reserved.
+     */
+    public GridSegment freeSegmentAt(int row, int col) {
+        return vertical ? containing(col, row) : containing(row, col);
     }
 
-    private GridSegment bestFit(int row, int col) {
-        GridSegment dummy = new GridSegment(row, col, 1);
-        GridSegment candidate = tree.ceiling(dummy);
-        if (candidate == null) {
-            return null;
+    /**
+     * Reserves (row, col, length) inside candidate, a stored free segment that contains it.
+     * Returns {candidate, part before, part after}; missing parts are null.
+     */
+    public GridSegment[] split(GridSegment candidate, int row, int col, int length) {
+        int cStart = vertical ? candidate.row : candidate.col, start = vertical ? row : col;
+        int cOther = vertical ? candidate.col : candidate.row;
+        GridSegment replacement1 = null, replacement2 = null;
+        int len1 = start - cStart;
+        if (len1 > 0) {
+            replacement1 = vertical ? GridSegment.GS(cStart, cOther, len1) : GridSegment.GS(cOther, cStart, len1);
         }
-        if (vertical) {
-            if (candidate.col == col && candidate.row <= row && row <= candidate.row + candidate.length - 1) {
-                return candidate;
-            }
-        } else {
-            if (candidate.row == row && candidate.col <= col && col <= candidate.col + candidate.length - 1) {
-                return candidate;
-            }
+        int len2 = cStart + candidate.length - (start + length);
+        if (len2 > 0) {
+            int newStart = start + length;
+            replacement2 = vertical ? GridSegment.GS(newStart, cOther, len2) : GridSegment.GS(cOther, newStart, len2);
         }
-        return null;
+        applySplit(candidate, replacement1, replacement2);
+        return new GridSegment[]{candidate, replacement1, replacement2};
     }
 
+    public abstract void insert(int row, int col, int length);
+
+    /**
+     * Replaces the stored segments with the given ones, which must not overlap and must come in
+     * (line, position) order. Linear time, instead of inserting them one by one.
+     */
+    public abstract void build(List<GridSegment> segments);
+
+    /**
+     * Free segment of length at least minLength in the lowest line, closest to the line's start. Null if none.
+     */
+    public abstract GridSegment firstFit(int minLength);
+
+    /**
+     * Stored segment of the given line that contains position pos, or null.
+     */
+    protected abstract GridSegment containing(int line, int pos);
+
+    /**
+     * Replaces the stored candidate by its parts (either may be null).
+     */
+    protected abstract void applySplit(GridSegment candidate, GridSegment before, GridSegment after);
+
+    /**
+     * All stored segments in (line, position) order.
+     */
+    public abstract List<GridSegment> getAllSegments();
+
+    /**
+     * Restarted cursor, positioned before the first segment.
+     */
+    public Cursor cursor() {
+        return cursor(1);
+    }
+
+    /**
+     * Restarted cursor, positioned before the first segment of line fromLine or later. O(log n).
+     */
+    public abstract Cursor cursor(int fromLine);
+
+    /**
+     * Horizontal segments are printed one row at a time straight from the cursor.
+     * Vertical ones come column by column, so the whole grid is built first.
+     */
     public void printGrid(){
+        if (!vertical) {
+            char[] row = new char[nCols];
+            Cursor free = cursor();
+            boolean more = free.next();
+            for (int r = 1; r <= nRows; r++) {
+                Arrays.fill(row, '#');
+                for (; more && free.line() == r; more = free.next()) {
+                    Arrays.fill(row, free.start() - 1, free.start() - 1 + free.length(), '.');
+                }
+                System.out.println(row);
+            }
+            return;
+        }
         char[][] grid = new char[nRows][nCols];
         for(int r=0;r<nRows;r++){
             for(int c=0;c<nCols;c++){
                 grid[r][c] = '#';
             }
         }
-        for(GridSegment seg : tree.getAllSegments()){
+        for(GridSegment seg : getAllSegments()){
             int row = seg.row-1, col = seg.col-1, len = seg.length;
             for(int i=0;i<len;++i){
                 if(vertical){
@@ -102,7 +183,22 @@ public class SegmentsByEndPosition {
         }
     }
 
-    public void destroy() {
-        tree.destroy();
-    }
-}
\ No newline at end of file
+    /**
+     * Remembers the current segments, so that {@link #restore()} can return to them.
+     */
+    public abstract void snapshot();
+
+    /**
+     * Returns to the segments saved by the last snapshot(), in time proportional to their number
+     * and the number of lines, not to the changes made since.
+     */
+    public abstract void restore();
+
+    /**
+     * Reorders the nodes of a pooled implementation so that walks and lookups go through nearby memory again
+     * after a long run of updates; the segments are unchanged. A no-op for the others.
+     */
+    public abstract void compact();
+
+    public abstract void destroy();
+}
@@ -0,0 +1,167 @@
+package symbolic.segments.by_end_pos;
+
+import symbolic.GridSegment;
+import symbolic.segments.util.TouchedLines;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Position index for huge grids where most lines are never touched, see SparseSegmentsByLength: the inner index
+ * holds the segments of touched lines, and a line enters it when its whole-line segment is first split.
+ * Walks merge the inner walk with the untouched lines, which therefore cost one step each.
+ */
+public class SparseSegmentsByEndPosition extends SegmentsByEndPosition {
+
+    private final SegmentsByEndPosition inner;
+    private final int lineLength;
+    private final TouchedLines touched;
+    private final SparseCursor cursor = new SparseCursor();
+
+    public SparseSegmentsByEndPosition(int nRows, int nCols, boolean vertical, SegmentsByEndPosition inner) {
+        super(nRows, nCols, vertical);
+        this.inner = inner;
+        this.lineLength = vertical ? nRows : nCols;
+        this.touched = new TouchedLines(vertical ? nCols : nRows);
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        touched.add(vertical ? col : row);
+        inner.insert(row, col, length);
+    }
+
+    /**
+     * Whole lines stay implicit, every other line is touched. O(lines) for the touched set.
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        List<GridSegment> stored = new ArrayList<>();
+        int[] whole = new int[segments.size()];
+        int wholeCnt = 0;
+        for (GridSegment seg : segments) {
+            if (seg.length == lineLength) {
+                whole[wholeCnt++] = vertical ? seg.col : seg.row;
+            } else {
+                stored.add(seg);
+            }
+        }
+        Arrays.sort(whole, 0, wholeCnt);
+        touched.setUntouched(whole, wholeCnt);
+        inner.build(stored);
+    }
+
+    /**
+     * The first untouched line fits any length up to the line length; the lower of it and the inner answer wins.
+     */
+    @Override
+    public GridSegment firstFit(int minLength) {
+        GridSegment res = inner.firstFit(minLength);
+        if (minLength <= lineLength && touched.untouchedCount() > 0) {
+            int line = touched.nextUntouched(1);
+            if (res == null || line < (vertical ? res.col : res.row)) {
+                res = whole(line);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    protected GridSegment containing(int line, int pos) {
+        if (touched.contains(line)) {
+            return inner.containing(line, pos);
+        }
+        return line >= 1 && line <= (vertical ? nCols : nRows) && pos >= 1 && pos <= lineLength ? whole(line) : null;
+    }
+
+    /**
+     * Splitting a whole line touches it and stores its parts.
+     */
+    @Override
+    protected void applySplit(GridSegment candidate, GridSegment before, GridSegment after) {
+        if (touched.add(vertical ? candidate.col : candidate.row)) {
+            if (before != null) {
+                inner.insert(before.row, before.col, before.length);
+            }
+            if (after != null) {
+                inner.insert(after.row, after.col, after.length);
+            }
+        } else {
+            inner.applySplit(candidate, before, after);
+        }
+    }
+
+    @Override
+    public List<GridSegment> getAllSegments() {
+        List<GridSegment> res = new ArrayList<>();
+        for (Cursor free = cursor(1); free.next(); ) {
+            res.add(vertical ? GridSegment.GS(free.start(), free.line(), free.length())
+                             : GridSegment.GS(free.line(), free.start(), free.length()));
+        }
+        return res;
+    }
+
+    @Override
+    public Cursor cursor(int fromLine) {
+        cursor.restart(fromLine);
+        return cursor;
+    }
+
+    @Override
+    public void snapshot() {
+        inner.snapshot();
+        touched.snapshot();
+    }
+
+    @Override
+    public void restore() {
+        inner.restore();
+        touched.restore();
+    }
+
+    @Override
+    public void compact() {
+        inner.compact();
+    }
+
+    @Override
+    public void destroy() {
+        inner.destroy();
+    }
+
+    private GridSegment whole(int line) {
+        return vertical ? GridSegment.GS(1, line, lineLength) : GridSegment.GS(line, 1, lineLength);
+    }
+
+    /**
+     * Inner walk merged with the untouched lines; a line is either one or the other.
+     */
+    private final class SparseCursor extends Cursor {
+        private Cursor stored;
+        private boolean storedValid;
+        private int nextUntouched;
+
+        void restart(int fromLine) {
+            stored = inner.cursor(fromLine);
+            storedValid = stored.next();
+            nextUntouched = touched.nextUntouched(Math.max(fromLine, 1));
+        }
+
+        @Override
+        public boolean next() {
+            boolean untouchedLeft = nextUntouched <= (vertical ? nCols : nRows);
+            if (storedValid && (!untouchedLeft || stored.line() < nextUntouched)) {
+                set(stored.line(), stored.start(), stored.length());
+                storedValid = stored.next();
+                return true;
+            }
+            if (untouchedLeft) {
+                set(nextUntouched, 1, lineLength);
+                nextUntouched = touched.nextUntouched(nextUntouched + 1);
+                return true;
+            }
+            return false;
+        }
+    }
+}
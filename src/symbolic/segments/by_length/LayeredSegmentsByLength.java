@@ -0,0 +1,38 @@
+package symbolic.segments.by_length;
+
+import symbolic.GridSegment;
+
+/**
+ * Length index of a grid made of layers of rowsPerLayer rows each, stacked on top of each other: layer 1 holds rows
+ * 1..rowsPerLayer, layer 2 the next rowsPerLayer rows, and so on. No stored segment may cross from one layer into
+ * the next, which is up to the caller: the engine of {@link symbolic.LayeredGrid} starts with a reserved separator
+ * row between two layers, so no free segment ever spans one. The layer is the most significant part of the key, so
+ * the placements of one layer can be counted and selected on their own, and the methods of SegmentsByLength see
+ * the layers one after the other.
+ */
+public interface LayeredSegmentsByLength extends SegmentsByLength {
+
+    int layerCount();
+
+    /**
+     * Placements of every length in [minSpaceSize, maxSpaceSize] in the segments of the layer.
+     */
+    long countFittingSpaces(int layer, int minSpaceSize, int maxSpaceSize);
+
+    /**
+     * k-th (1-based) of the countFittingSpaces(layer, minSpaceSize, maxSpaceSize) placements, in the order of
+     * getKthFittingSpace(minSpaceSize, maxSpaceSize, k) restricted to the layer.
+     */
+    GridSegment getKthFittingSpace(int layer, int minSpaceSize, int maxSpaceSize, long k);
+
+    /**
+     * takeRandomFittingSpace(spaceSize) restricted to the layer: draws like it among the layer's placements, removes
+     * the one drawn and returns {placement, segment it was taken from}, or null if the layer has none.
+     */
+    GridSegment[] takeRandomFittingSpace(int layer, int spaceSize);
+
+    /**
+     * Stored segments of the layer with length in [minLength, maxLength].
+     */
+    int countSegments(int layer, int minLength, int maxLength);
+}
@@ -0,0 +1,62 @@
+package symbolic.segments.by_length;
+
+import symbolic.GridSegment;
+
+import java.util.List;
+
+/**
+ * Puts segments in the order the length indexes store them: by length, then row, then column.
+ * Used by bulk builds, where the input usually comes line by line.
+ */
+public final class LengthOrder {
+
+    private LengthOrder() {
+    }
+
+    /**
+     * The segments of an nRows x nCols grid sorted by (length, row, col). Input that is already in that order,
+     * like the full lines of a new grid, is only checked. Otherwise three stable counting sort passes
+     * (column, row, length), O(segments + nRows + nCols).
+     */
+    public static GridSegment[] sort(List<GridSegment> segments, int nRows, int nCols) {
+        GridSegment[] res = segments.toArray(new GridSegment[0]);
+        if (isSorted(res)) {
+            return res;
+        }
+        GridSegment[] tmp = new GridSegment[res.length];
+        countingSort(res, tmp, nCols, 0);
+        countingSort(tmp, res, nRows, 1);
+        countingSort(res, tmp, Math.max(nRows, nCols), 2);
+        return tmp;
+    }
+
+    private static boolean isSorted(GridSegment[] segs) {
+        for (int i = 1; i < segs.length; i++) {
+            GridSegment a = segs[i - 1], b = segs[i];
+            if (a.length != b.length ? a.length > b.length : a.row != b.row ? a.row > b.row : a.col > b.col) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stable sort of from into to by column (field 0), row (1) or length (2), all in [1, max].
+     */
+    private static void countingSort(GridSegment[] from, GridSegment[] to, int max, int field) {
+        int[] start = new int[max + 2];
+        for (GridSegment seg : from) {
+            ++start[field(seg, field) + 1];
+        }
+        for (int v = 1; v <= max + 1; v++) {
+            start[v] += start[v - 1];
+        }
+        for (GridSegment seg : from) {
+            to[start[field(seg, field)]++] = seg;
+        }
+    }
+
+    private static int field(GridSegment seg, int field) {
+        return field == 0 ? seg.col : field == 1 ? seg.row : seg.length;
+    }
+}
@@ -0,0 +1,62 @@
+package symbolic.segments.by_length;
+
+/**
+ * Closed forms for counting placements in a group of segments, given only the group's aggregates:
+ * number of segments, total length and total squared length.
+ */
+public final class PlacementCounts {
+
+    private PlacementCounts() {
+    }
+
+    /**
+     * Placements of length spaceSize, assuming every segment in the group is at least that long.
+     */
+    public static long fitting(long cnt, long totalLen, int spaceSize) {
+        return totalLen - (spaceSize - 1L) * cnt;
+    }
+
+    /**
+     * Placements of every length in [minSpaceSize, maxSpaceSize].
+     * If shortBand, every segment is in [minSpaceSize, maxSpaceSize) and a segment of length s
+     * yields (s - min + 1)(s - min + 2) / 2 placements. Otherwise every segment is at least maxSpaceSize long
+     * and yields the sum of (s - len + 1) over the whole range.
+     */
+    public static long fittingRange(long cnt, long totalLen, long totalSqLen,
+                                    int minSpaceSize, int maxSpaceSize, boolean shortBand) {
+        if (shortBand) {
+            long a = minSpaceSize;
+            return (totalSqLen - (2 * a - 3) * totalLen + (a - 1) * (a - 2) * cnt) / 2;
+        }
+        long lengths = maxSpaceSize - minSpaceSize + 1;
+        long lengthSum = (long) (minSpaceSize + maxSpaceSize) * lengths / 2;
+        return lengths * (totalLen + cnt) - lengthSum * cnt;
+    }
+
+    public static void checkLength(int spaceSize) {
+        if (spaceSize < 1) {
+            throw new IllegalArgumentException("Invalid length " + spaceSize);
+        }
+    }
+
+    public static void checkRange(int minSpaceSize, int maxSpaceSize) {
+        if (minSpaceSize < 1 || minSpaceSize > maxSpaceSize) {
+            throw new IllegalArgumentException("Invalid length range [" + minSpaceSize + ", " + maxSpaceSize + "]");
+        }
+    }
+
+    /**
+     * Placements of every length at once: res[len] = sum over segments s >= len of (s - len + 1),
+     * where runsByLength[s] is the number of segments of length s. One suffix pass, O(max length).
+     */
+    public static long[] fittingHistogram(int[] runsByLength) {
+        long[] res = new long[runsByLength.length];
+        long cnt = 0, totalLen = 0;
+        for (int len = runsByLength.length - 1; len >= 1; len--) {
+            cnt += runsByLength[len];
+            totalLen += (long) runsByLength[len] * len;
+            res[len] = fitting(cnt, totalLen, len);
+        }
+        return res;
+    }
+}
@@ -2,15 +2,98 @@ package symbolic.segments.by_length;
 
 import symbolic.GridSegment;
 
+import java.util.List;
+
 public interface SegmentsByLength {
 
+    /**
+     * Creates an empty instance for segments of one orientation in an nRows x nCols grid.
+     */
+    interface Factory {
+        SegmentsByLength create(int nRows, int nCols, boolean vertical);
+    }
+
     void insert(int row, int col, int length);
 
     void delete(int row, int col, int length);
 
+    /**
+     * Replaces the stored segments with the given ones, which must not overlap, in any order.
+     * Builds the structure directly, in time linear in the number of segments and the grid dimensions,
+     * instead of inserting them one by one.
+     */
+    void build(List<GridSegment> segments);
+
     int countFittingSpaces(int spaceSize);
 
     GridSegment getKthFittingSpace(int spaceSize, int k);
 
+    /**
+     * Picks a uniformly random fitting space and removes it: its segment is deleted and the leftovers on both sides
+     * are inserted. Counting, selection and deletion share one walk over the structure.
+     * Returns {fitting space, segment that contained it}, or null if nothing fits.
+     */
+    GridSegment[] takeRandomFittingSpace(int spaceSize);
+
+    /**
+     * takeRandomFittingSpace with the k-th (1-based) of the countFittingSpaces(spaceSize) placements
+     * instead of a random one.
+     */
+    GridSegment[] takeFittingSpace(int spaceSize, long k);
+
+    /**
+     * Counts placements of every length in [minSpaceSize, maxSpaceSize] at once,
+     * i.e. the sum of countFittingSpaces(len) over that range.
+     */
+    long countFittingSpaces(int minSpaceSize, int maxSpaceSize);
+
+    /**
+     * k-th placement (1-based) among those counted by countFittingSpaces(minSpaceSize, maxSpaceSize).
+     * Placements are ordered by the containing segment, then by length, then by offset.
+     */
+    GridSegment getKthFittingSpace(int minSpaceSize, int maxSpaceSize, long k);
+
+    /**
+     * Shortest segment of length at least spaceSize (lowest row, then column among equal lengths), or null.
+     */
+    GridSegment shortestFitting(int spaceSize);
+
+    /**
+     * Longest segment (highest row, then column among equal lengths), or null if there are none.
+     */
+    GridSegment longest();
+
+    /**
+     * Number of stored segments. O(1).
+     */
+    int segmentCount();
+
+    /**
+     * Sum of the lengths of the stored segments. O(1).
+     */
+    long totalLength();
+
+    /**
+     * Number of stored segments with length in [minLength, maxLength], from range aggregates.
+     */
+    int countSegments(int minLength, int maxLength);
+
+    /**
+     * Remembers the current segments, so that {@link #restore()} can return to them.
+     */
+    void snapshot();
+
+    /**
+     * Returns to the segments saved by the last snapshot(), in time proportional to the saved state,
+     * not to the changes made since.
+     */
+    void restore();
+
+    /**
+     * Reorders the nodes of a pooled implementation so that queries walk through nearby memory again after
+     * a long run of updates; the segments are unchanged. A no-op for the others.
+     */
+    void compact();
+
     void destroy();
 }
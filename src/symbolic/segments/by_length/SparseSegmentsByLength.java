@@ -0,0 +1,222 @@
+package symbolic.segments.by_length;
+
+import symbolic.GridSegment;
+import symbolic.segments.util.RNG;
+import symbolic.segments.util.TouchedLines;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Length index for huge grids where most lines are never touched. A line is free from end to end until its first
+ * reservation, and only then is stored: the inner index holds the segments of touched lines, and the untouched
+ * lines are counted arithmetically. Their full-line segments are the longest possible, and a touched line never
+ * becomes whole again, so in (length, row, col) order they all come after the stored segments: counting and
+ * selecting placements only append them to the inner index's results, in the same order as every other
+ * implementation.
+ */
+public class SparseSegmentsByLength implements SegmentsByLength {
+
+    private final SegmentsByLength inner;
+    private final boolean vertical;
+    private final int lineLength;
+    private final TouchedLines touched;
+
+    public SparseSegmentsByLength(int nRows, int nCols, boolean vertical, SegmentsByLength inner) {
+        this.inner = inner;
+        this.vertical = vertical;
+        this.lineLength = vertical ? nRows : nCols;
+        this.touched = new TouchedLines(vertical ? nCols : nRows);
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        touched.add(line(row, col));
+        inner.insert(row, col, length);
+    }
+
+    /**
+     * Deleting the whole segment of an untouched line only touches it.
+     */
+    @Override
+    public void delete(int row, int col, int length) {
+        if (!touched.add(line(row, col))) {
+            inner.delete(row, col, length);
+        }
+    }
+
+    /**
+     * Whole lines stay implicit, every other line is touched. O(lines) for the touched set.
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        List<GridSegment> stored = new ArrayList<>();
+        int[] whole = new int[segments.size()];
+        int wholeCnt = 0;
+        for (GridSegment seg : segments) {
+            if (seg.length == lineLength) {
+                whole[wholeCnt++] = line(seg.row, seg.col);
+            } else {
+                stored.add(seg);
+            }
+        }
+        Arrays.sort(whole, 0, wholeCnt);
+        touched.setUntouched(whole, wholeCnt);
+        inner.build(stored);
+    }
+
+    @Override
+    public int countFittingSpaces(int spaceSize) {
+        return (int) countFittingSpaces(spaceSize, spaceSize);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int spaceSize, int k) {
+        return getKthFittingSpace(spaceSize, spaceSize, k);
+    }
+
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int spaceSize) {
+        long total = countFittingSpaces(spaceSize, spaceSize);
+        if (total == 0) {
+            return null;
+        }
+        return takeFittingSpace(spaceSize, RNG.randPlacement(total));
+    }
+
+    @Override
+    public GridSegment[] takeFittingSpace(int spaceSize, long k) {
+        long stored = inner.countFittingSpaces(spaceSize, spaceSize);
+        if (k <= stored) {
+            return inner.takeFittingSpace(spaceSize, k);
+        }
+        GridSegment found = kthInUntouched(spaceSize, spaceSize, k - stored);
+        int line = line(found.row, found.col);
+        GridSegment whole = whole(line);
+        touched.add(line);
+        int before = start(found) - 1, after = lineLength - before - spaceSize;
+        if (before > 0) {
+            inner.insert(whole.row, whole.col, before);
+        }
+        if (after > 0) {
+            int next = start(found) + spaceSize;
+            inner.insert(vertical ? next : line, vertical ? line : next, after);
+        }
+        return new GridSegment[]{found, whole};
+    }
+
+    @Override
+    public long countFittingSpaces(int minSpaceSize, int maxSpaceSize) {
+        return inner.countFittingSpaces(minSpaceSize, maxSpaceSize)
+                + touched.untouchedCount() * perWholeLine(minSpaceSize, maxSpaceSize);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int minSpaceSize, int maxSpaceSize, long k) {
+        long stored = inner.countFittingSpaces(minSpaceSize, maxSpaceSize);
+        if (k <= stored) {
+            return inner.getKthFittingSpace(minSpaceSize, maxSpaceSize, k);
+        }
+        if (k - stored > touched.untouchedCount() * perWholeLine(minSpaceSize, maxSpaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        return kthInUntouched(minSpaceSize, maxSpaceSize, k - stored);
+    }
+
+    /**
+     * Ties between a whole line and a stored segment are impossible: stored segments are shorter.
+     */
+    @Override
+    public GridSegment shortestFitting(int spaceSize) {
+        GridSegment res = inner.shortestFitting(spaceSize);
+        if (res == null && spaceSize <= lineLength && touched.untouchedCount() > 0) {
+            res = whole(touched.nextUntouched(1));
+        }
+        return res;
+    }
+
+    @Override
+    public GridSegment longest() {
+        return touched.untouchedCount() > 0 ? whole(touched.lastUntouched()) : inner.longest();
+    }
+
+    @Override
+    public int segmentCount() {
+        return inner.segmentCount() + touched.untouchedCount();
+    }
+
+    @Override
+    public long totalLength() {
+        return inner.totalLength() + (long) touched.untouchedCount() * lineLength;
+    }
+
+    @Override
+    public int countSegments(int minLength, int maxLength) {
+        int res = inner.countSegments(minLength, maxLength);
+        return minLength <= lineLength && lineLength <= maxLength ? res + touched.untouchedCount() : res;
+    }
+
+    @Override
+    public void snapshot() {
+        inner.snapshot();
+        touched.snapshot();
+    }
+
+    @Override
+    public void restore() {
+        inner.restore();
+        touched.restore();
+    }
+
+    @Override
+    public void compact() {
+        inner.compact();
+    }
+
+    @Override
+    public void destroy() {
+        inner.destroy();
+    }
+
+    /**
+     * Placements of lengths [min, max] in one whole line.
+     */
+    private long perWholeLine(int minSpaceSize, int maxSpaceSize) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, lineLength);
+        if (minSpaceSize > maxSpaceSize) {
+            return 0;
+        }
+        return PlacementCounts.fittingRange(1, lineLength, 0, minSpaceSize, maxSpaceSize, false);
+    }
+
+    /**
+     * k-th placement of lengths [min, max] in the untouched lines: by line, then length, then offset.
+     */
+    private GridSegment kthInUntouched(int minSpaceSize, int maxSpaceSize, long k) {
+        long perLine = perWholeLine(minSpaceSize, maxSpaceSize);
+        int line = touched.untouched((k - 1) / perLine);
+        k = (k - 1) % perLine + 1;
+        for (int spaceSize = minSpaceSize; ; ++spaceSize) {
+            int spacesOfSize = lineLength - spaceSize + 1;
+            if (k <= spacesOfSize) {
+                int start = (int) k;
+                return vertical ? GridSegment.GS(start, line, spaceSize) : GridSegment.GS(line, start, spaceSize);
+            }
+            k -= spacesOfSize;
+        }
+    }
+
+    private GridSegment whole(int line) {
+        return vertical ? GridSegment.GS(1, line, lineLength) : GridSegment.GS(line, 1, lineLength);
+    }
+
+    private int line(int row, int col) {
+        return vertical ? col : row;
+    }
+
+    private int start(GridSegment seg) {
+        return vertical ? seg.row : seg.col;
+    }
+}
@@ -0,0 +1,621 @@
+package symbolic.segments.by_length.bucket_implementation;
+
+import symbolic.GridSegment;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.instrumentation.Structure;
+import symbolic.segments.by_length.LayeredSegmentsByLength;
+import symbolic.segments.by_length.LengthOrder;
+import symbolic.segments.by_length.PlacementCounts;
+import symbolic.segments.by_length.SegmentsByLength;
+import symbolic.segments.util.RNG;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two-level index: a dense segment tree over lengths (count, total length, total squared length per length),
+ * and under every length a sorted array of segment start positions (row * nCols + col).
+ * Queries descend log(maxLength) levels and then binary search / index one bucket, instead of walking
+ * a sparse tree over the whole (length, row, col) key space. Insertions and deletions shift the tail of one bucket.
+ * Placements are ordered exactly like in the hashed implementation: by length, then row, then column.
+ * <p>
+ * With layers (see {@link #layered(int)}) the leaves are (layer, length), one dense run of lengths per layer: the
+ * queries of one layer decompose that run only, and the others decompose every layer's run in turn, so placements
+ * are ordered layer by layer. With a single layer that is the usual order.
+ */
+public class BucketedSegmentsByLength implements LayeredSegmentsByLength {
+
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    private final int totalRows, nCols;
+    private final boolean areSegmentsVertical;
+    // Longest segment of one layer.
+    private final int maxLength;
+    private final int rowsPerLayer, layers;
+
+    // Dense segment tree, leaf for length len of layer l is at size + (l - 1) * (maxLength + 1) + len.
+    private final int size;
+    private final long[] cnt, totalLen, totalSqLen;
+
+    // By leaf index, (layer - 1) * (maxLength + 1) + length.
+    private final long[][] buckets;
+    private final int[] bucketSize;
+
+    // Canonical nodes of the last decomposition, in (layer, length) order, and whether each one lies in the short
+    // band of a length range (see decomposeRange).
+    private final int[] canonical;
+    private final boolean[] canonicalShort;
+    private int canonicalCnt;
+    // Rank of the last selected placement within its length bucket, set by selectInCanonical.
+    private long selected;
+
+    // Saved by snapshot(): aggregate arrays, bucket sizes and the keys of every non-empty bucket.
+    private long[] templateCnt, templateTotalLen, templateTotalSqLen;
+    private int[] templateBucketSize;
+    private long[][] templateBuckets;
+
+    public BucketedSegmentsByLength(int totalRows, int nCols, boolean areSegmentsVertical) {
+        this(totalRows, nCols, areSegmentsVertical, Math.max(totalRows, 1));
+    }
+
+    public BucketedSegmentsByLength(int totalRows, int nCols, boolean areSegmentsVertical, int rowsPerLayer) {
+        if (rowsPerLayer < 1) {
+            throw new IllegalArgumentException("Invalid rows per layer " + rowsPerLayer);
+        }
+        this.totalRows = totalRows;
+        this.nCols = nCols;
+        this.areSegmentsVertical = areSegmentsVertical;
+        this.rowsPerLayer = rowsPerLayer;
+        this.layers = Math.max((totalRows + rowsPerLayer - 1) / rowsPerLayer, 1);
+        this.maxLength = Math.max(Math.min(totalRows, rowsPerLayer), nCols);
+        long leaves = (long) layers * (maxLength + 1);
+        if (leaves > 1 << 30) {
+            throw new IllegalArgumentException("Grid " + totalRows + "x" + nCols + " in " + layers
+                    + " layers is too large for dense buckets");
+        }
+        int highest = Integer.highestOneBit((int) leaves);
+        this.size = highest == leaves ? highest : highest << 1;
+        this.cnt = new long[2 * size];
+        this.totalLen = new long[2 * size];
+        this.totalSqLen = new long[2 * size];
+        this.buckets = new long[(int) leaves][];
+        this.bucketSize = new int[(int) leaves];
+        // At most two boundary nodes per level for each of the two ranges of a layer, and room for one range's
+        // right boundary nodes, which appendCanonical buffers at the end.
+        int levels = Integer.numberOfTrailingZeros(size) + 1;
+        this.canonical = new int[(4 * layers + 2) * levels];
+        this.canonicalShort = new boolean[canonical.length];
+        if (Instrumentation.ENABLED) {
+            Instrumentation.treeHeight(Structure.SEGMENT_TREE, levels);
+        }
+    }
+
+    /**
+     * Buckets whose layers are rowsPerLayer rows each, see {@link LayeredSegmentsByLength}.
+     */
+    public static SegmentsByLength.Factory layered(int rowsPerLayer) {
+        return (nRows, nCols, vertical) -> new BucketedSegmentsByLength(nRows, nCols, vertical, rowsPerLayer);
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        long key = key(row, col);
+        int leaf = leaf(row, length);
+        long[] bucket = buckets[leaf];
+        int n = bucketSize[leaf];
+        if (bucket == null) {
+            bucket = buckets[leaf] = new long[INITIAL_BUCKET_CAPACITY];
+        } else if (n == bucket.length) {
+            long[] grown = new long[n * 2];
+            System.arraycopy(bucket, 0, grown, 0, n);
+            bucket = buckets[leaf] = grown;
+        }
+        int pos = -(search(bucket, n, key) + 1);
+        assert (pos >= 0);
+        System.arraycopy(bucket, pos, bucket, pos + 1, n - pos);
+        bucket[pos] = key;
+        bucketSize[leaf] = n + 1;
+        update(leaf, 1);
+    }
+
+    @Override
+    public void delete(int row, int col, int length) {
+        int leaf = leaf(row, length);
+        int pos = search(buckets[leaf], bucketSize[leaf], key(row, col));
+        assert (pos >= 0);
+        removeAt(leaf, pos);
+    }
+
+    /**
+     * Fills every bucket in key order by appending, then the aggregates bottom-up once,
+     * O(segments + max length) instead of a binary search and a tree update per segment.
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        destroy();
+        for (GridSegment seg : LengthOrder.sort(segments, totalRows, nCols)) {
+            int leaf = leaf(seg.row, seg.length), n = bucketSize[leaf];
+            long[] bucket = buckets[leaf];
+            if (bucket == null) {
+                bucket = buckets[leaf] = new long[INITIAL_BUCKET_CAPACITY];
+            } else if (n == bucket.length) {
+                bucket = buckets[leaf] = Arrays.copyOf(bucket, n * 2);
+            }
+            bucket[n] = key(seg.row, seg.col);
+            bucketSize[leaf] = n + 1;
+        }
+        for (int leaf = 0; leaf < bucketSize.length; leaf++) {
+            long length = length(leaf);
+            cnt[size + leaf] = bucketSize[leaf];
+            totalLen[size + leaf] = bucketSize[leaf] * length;
+            totalSqLen[size + leaf] = bucketSize[leaf] * length * length;
+        }
+        for (int v = size - 1; v >= 1; v--) {
+            cnt[v] = cnt[2 * v] + cnt[2 * v + 1];
+            totalLen[v] = totalLen[2 * v] + totalLen[2 * v + 1];
+            totalSqLen[v] = totalSqLen[2 * v] + totalSqLen[2 * v + 1];
+        }
+    }
+
+    @Override
+    public int countFittingSpaces(int spaceSize) {
+        if (spaceSize > maxLength) {
+            return 0;
+        }
+        decompose(1, layers, spaceSize, maxLength);
+        return (int) fittingInCanonical(spaceSize);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int spaceSize, int k) {
+        decompose(1, layers, spaceSize, maxLength);
+        int leaf = selectInCanonical(spaceSize, k), length = length(leaf);
+        int perSegment = length - spaceSize + 1;
+        long key = buckets[leaf][(int) ((selected - 1) / perSegment)];
+        return kthSpaceInSegment(key, spaceSize, (int) ((selected - 1) % perSegment) + 1);
+    }
+
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int spaceSize) {
+        int total = countFittingSpaces(spaceSize);
+        if (total == 0) {
+            return null;
+        }
+        // countFittingSpaces left the decomposition of [spaceSize, maxLength] in every layer in place.
+        return takeSelected(spaceSize, (int) RNG.randPlacement(total));
+    }
+
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int layer, int spaceSize) {
+        checkLayer(layer);
+        if (spaceSize > maxLength) {
+            return null;
+        }
+        decompose(layer, layer, spaceSize, maxLength);
+        long total = fittingInCanonical(spaceSize);
+        return total == 0 ? null : takeSelected(spaceSize, RNG.randPlacement(total));
+    }
+
+    @Override
+    public GridSegment[] takeFittingSpace(int spaceSize, long k) {
+        if (k < 1 || k > countFittingSpaces(spaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        return takeSelected(spaceSize, k);
+    }
+
+    /**
+     * Removes the k-th placement, in the decomposition of [spaceSize, maxLength] left by countFittingSpaces or
+     * takeRandomFittingSpace.
+     */
+    private GridSegment[] takeSelected(int spaceSize, long k) {
+        int leaf = selectInCanonical(spaceSize, k), length = length(leaf);
+        int perSegment = length - spaceSize + 1;
+        int index = (int) ((selected - 1) / perSegment);
+        int before = (int) ((selected - 1) % perSegment);
+        long key = buckets[leaf][index];
+        removeAt(leaf, index);
+
+        GridSegment container = fromKey(key, length);
+        GridSegment found = kthSpaceInSegment(key, spaceSize, before + 1);
+        int after = length - spaceSize - before;
+        if (before > 0) {
+            insert(container.row, container.col, before);
+        }
+        if (after > 0) {
+            if (areSegmentsVertical) {
+                insert(found.row + spaceSize, found.col, after);
+            } else {
+                insert(found.row, found.col + spaceSize, after);
+            }
+        }
+        return new GridSegment[]{found, container};
+    }
+
+    @Override
+    public long countFittingSpaces(int minSpaceSize, int maxSpaceSize) {
+        return countFittingSpaces(1, layers, minSpaceSize, maxSpaceSize);
+    }
+
+    @Override
+    public long countFittingSpaces(int layer, int minSpaceSize, int maxSpaceSize) {
+        checkLayer(layer);
+        return countFittingSpaces(layer, layer, minSpaceSize, maxSpaceSize);
+    }
+
+    private long countFittingSpaces(int firstLayer, int lastLayer, int minSpaceSize, int maxSpaceSize) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, maxLength);
+        if (minSpaceSize > maxSpaceSize) {
+            return 0;
+        }
+        decomposeRange(firstLayer, lastLayer, minSpaceSize, maxSpaceSize);
+        long res = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            res += rangeWeight(canonical[i], minSpaceSize, maxSpaceSize, canonicalShort[i]);
+        }
+        return res;
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int minSpaceSize, int maxSpaceSize, long k) {
+        return getKthFittingSpace(1, layers, minSpaceSize, maxSpaceSize, k);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int layer, int minSpaceSize, int maxSpaceSize, long k) {
+        checkLayer(layer);
+        return getKthFittingSpace(layer, layer, minSpaceSize, maxSpaceSize, k);
+    }
+
+    private GridSegment getKthFittingSpace(int firstLayer, int lastLayer, int minSpaceSize, int maxSpaceSize, long k) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, maxLength);
+        if (minSpaceSize > maxSpaceSize || k <= 0) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        decomposeRange(firstLayer, lastLayer, minSpaceSize, maxSpaceSize);
+        for (int i = 0; i < canonicalCnt; i++) {
+            boolean shortBand = canonicalShort[i];
+            int v = canonical[i];
+            long spacesHere = rangeWeight(v, minSpaceSize, maxSpaceSize, shortBand);
+            if (k > spacesHere) {
+                k -= spacesHere;
+                continue;
+            }
+            while (v < size) {
+                long spacesInLeft = rangeWeight(2 * v, minSpaceSize, maxSpaceSize, shortBand);
+                if (spacesInLeft >= k) {
+                    v = 2 * v;
+                } else {
+                    k -= spacesInLeft;
+                    v = 2 * v + 1;
+                }
+            }
+            int leaf = v - size, length = length(leaf);
+            // Placements of one segment: all of length min, then min + 1, ...
+            long perSegment = 0;
+            for (int spaceSize = minSpaceSize; spaceSize <= Math.min(length, maxSpaceSize); spaceSize++) {
+                perSegment += length - spaceSize + 1;
+            }
+            long key = buckets[leaf][(int) ((k - 1) / perSegment)];
+            k = (k - 1) % perSegment + 1;
+            for (int spaceSize = minSpaceSize; ; ++spaceSize) {
+                int spacesOfSize = length - spaceSize + 1;
+                if (k <= spacesOfSize) {
+                    return kthSpaceInSegment(key, spaceSize, (int) k);
+                }
+                k -= spacesOfSize;
+            }
+        }
+        throw new IllegalArgumentException("k out of range");
+    }
+
+    /**
+     * The shortest of the layers' shortest, the lowest layer on ties, as it comes first in (length, row, col) order.
+     */
+    @Override
+    public GridSegment shortestFitting(int spaceSize) {
+        if (spaceSize > maxLength) {
+            return null;
+        }
+        int res = -1;
+        for (int layer = 1; layer <= layers; layer++) {
+            decompose(layer, layer, spaceSize, maxLength);
+            int leaf = firstNonEmpty();
+            if (leaf >= 0 && (res < 0 || length(leaf) < length(res))) {
+                res = leaf;
+            }
+        }
+        return res < 0 ? null : fromKey(buckets[res][0], length(res));
+    }
+
+    /**
+     * The longest of the layers' longest, the highest layer on ties, as it comes last in (length, row, col) order.
+     */
+    @Override
+    public GridSegment longest() {
+        if (cnt[1] == 0) {
+            return null;
+        }
+        int res = -1;
+        for (int layer = 1; layer <= layers; layer++) {
+            decompose(layer, layer, 1, maxLength);
+            int leaf = lastNonEmpty();
+            if (leaf >= 0 && (res < 0 || length(leaf) >= length(res))) {
+                res = leaf;
+            }
+        }
+        return fromKey(buckets[res][bucketSize[res] - 1], length(res));
+    }
+
+    @Override
+    public int segmentCount() {
+        return (int) cnt[1];
+    }
+
+    @Override
+    public long totalLength() {
+        return totalLen[1];
+    }
+
+    @Override
+    public int countSegments(int minLength, int maxLength) {
+        return countSegments(1, layers, minLength, maxLength);
+    }
+
+    @Override
+    public int layerCount() {
+        return layers;
+    }
+
+    @Override
+    public int countSegments(int layer, int minLength, int maxLength) {
+        checkLayer(layer);
+        return countSegments(layer, layer, minLength, maxLength);
+    }
+
+    private int countSegments(int firstLayer, int lastLayer, int minLength, int maxLength) {
+        maxLength = Math.min(maxLength, this.maxLength);
+        minLength = Math.max(minLength, 1);
+        if (minLength > maxLength) {
+            return 0;
+        }
+        decompose(firstLayer, lastLayer, minLength, maxLength);
+        long res = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            res += cnt[canonical[i]];
+        }
+        return (int) res;
+    }
+
+    @Override
+    public void snapshot() {
+        templateCnt = cnt.clone();
+        templateTotalLen = totalLen.clone();
+        templateTotalSqLen = totalSqLen.clone();
+        templateBucketSize = bucketSize.clone();
+        templateBuckets = new long[buckets.length][];
+        for (int leaf = 0; leaf < buckets.length; leaf++) {
+            if (bucketSize[leaf] > 0) {
+                templateBuckets[leaf] = Arrays.copyOf(buckets[leaf], bucketSize[leaf]);
+            }
+        }
+    }
+
+    /**
+     * Array copies only, O(layers * max length + saved segments).
+     */
+    @Override
+    public void restore() {
+        System.arraycopy(templateCnt, 0, cnt, 0, cnt.length);
+        System.arraycopy(templateTotalLen, 0, totalLen, 0, totalLen.length);
+        System.arraycopy(templateTotalSqLen, 0, totalSqLen, 0, totalSqLen.length);
+        System.arraycopy(templateBucketSize, 0, bucketSize, 0, bucketSize.length);
+        for (int leaf = 0; leaf < buckets.length; leaf++) {
+            long[] saved = templateBuckets[leaf];
+            if (saved != null) {
+                if (buckets[leaf] == null || buckets[leaf].length < saved.length) {
+                    buckets[leaf] = new long[Math.max(saved.length, INITIAL_BUCKET_CAPACITY)];
+                }
+                System.arraycopy(saved, 0, buckets[leaf], 0, saved.length);
+            }
+        }
+    }
+
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void destroy() {
+        Arrays.fill(cnt, 0);
+        Arrays.fill(totalLen, 0);
+        Arrays.fill(totalSqLen, 0);
+        Arrays.fill(bucketSize, 0);
+    }
+
+    // --------------------------
+    //         Helper methods
+    // --------------------------
+
+    private long key(int row, int col) {
+        return (long) (row - 1) * nCols + (col - 1);
+    }
+
+    /**
+     * Leaf index of the segments of the length that start in the row's layer.
+     */
+    private int leaf(int row, int length) {
+        return (row - 1) / rowsPerLayer * (maxLength + 1) + length;
+    }
+
+    private int length(int leaf) {
+        return leaf % (maxLength + 1);
+    }
+
+    private GridSegment fromKey(long key, int length) {
+        return GridSegment.GS((int) (key / nCols) + 1, (int) (key % nCols) + 1, length);
+    }
+
+    private GridSegment kthSpaceInSegment(long key, int spaceSize, int k) {
+        int row = (int) (key / nCols), col = (int) (key % nCols);
+        return areSegmentsVertical ? GridSegment.GS(row + k, col + 1, spaceSize)
+                                   : GridSegment.GS(row + 1, col + k, spaceSize);
+    }
+
+    private static int search(long[] bucket, int n, long key) {
+        return bucket == null ? -1 : Arrays.binarySearch(bucket, 0, n, key);
+    }
+
+    private void removeAt(int leaf, int pos) {
+        long[] bucket = buckets[leaf];
+        int n = bucketSize[leaf];
+        System.arraycopy(bucket, pos + 1, bucket, pos, n - pos - 1);
+        bucketSize[leaf] = n - 1;
+        update(leaf, -1);
+    }
+
+    private void update(int leaf, int sign) {
+        int v = size + leaf, length = length(leaf);
+        cnt[v] += sign;
+        totalLen[v] += sign * (long) length;
+        totalSqLen[v] += sign * (long) length * length;
+        for (v >>= 1; v >= 1; v >>= 1) {
+            cnt[v] = cnt[2 * v] + cnt[2 * v + 1];
+            totalLen[v] = totalLen[2 * v] + totalLen[2 * v + 1];
+            totalSqLen[v] = totalSqLen[2 * v] + totalSqLen[2 * v + 1];
+        }
+    }
+
+    /**
+     * Canonical nodes covering lengths [from, to] of every layer firstLayer..lastLayer, left to right, stored in
+     * 'canonical'.
+     */
+    private void decompose(int firstLayer, int lastLayer, int from, int to) {
+        canonicalCnt = 0;
+        for (int layer = firstLayer; layer <= lastLayer; layer++) {
+            int offset = (layer - 1) * (maxLength + 1);
+            appendCanonical(offset + from, offset + to, false);
+        }
+    }
+
+    /**
+     * Appends the canonical nodes covering leaves [from, to].
+     */
+    private void appendCanonical(int from, int to, boolean shortBand) {
+        int start = canonicalCnt;
+        int l = from + size, r = to + size + 1;
+        int leftEnd = canonicalCnt, rightCnt = 0;
+        // Left boundary nodes come out in order; right boundary nodes in reverse, so they are buffered at the end.
+        int rightStart = canonical.length;
+        while (l < r) {
+            if ((l & 1) == 1) {
+                canonical[leftEnd++] = l++;
+            }
+            if ((r & 1) == 1) {
+                canonical[--rightStart] = --r;
+                ++rightCnt;
+            }
+            l >>= 1;
+            r >>= 1;
+        }
+        for (int i = 0; i < rightCnt; i++) {
+            canonical[leftEnd + i] = canonical[rightStart + i];
+        }
+        canonicalCnt = leftEnd + rightCnt;
+        Arrays.fill(canonicalShort, start, canonicalCnt, shortBand);
+    }
+
+    /**
+     * Like the hashed implementation, per layer: the nodes of lengths below maxSpaceSize, marked short, then those
+     * from maxSpaceSize on.
+     */
+    private void decomposeRange(int firstLayer, int lastLayer, int minSpaceSize, int maxSpaceSize) {
+        canonicalCnt = 0;
+        for (int layer = firstLayer; layer <= lastLayer; layer++) {
+            int offset = (layer - 1) * (maxLength + 1);
+            if (minSpaceSize < maxSpaceSize) {
+                appendCanonical(offset + minSpaceSize, offset + maxSpaceSize - 1, true);
+            }
+            appendCanonical(offset + maxSpaceSize, offset + maxLength, false);
+        }
+    }
+
+    /**
+     * Leftmost non-empty leaf under the canonical nodes, -1 if they are all empty.
+     */
+    private int firstNonEmpty() {
+        for (int i = 0; i < canonicalCnt; i++) {
+            int v = canonical[i];
+            if (cnt[v] > 0) {
+                while (v < size) {
+                    v = cnt[2 * v] > 0 ? 2 * v : 2 * v + 1;
+                }
+                return v - size;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rightmost non-empty leaf under the canonical nodes, -1 if they are all empty.
+     */
+    private int lastNonEmpty() {
+        for (int i = canonicalCnt - 1; i >= 0; i--) {
+            int v = canonical[i];
+            if (cnt[v] > 0) {
+                while (v < size) {
+                    v = cnt[2 * v + 1] > 0 ? 2 * v + 1 : 2 * v;
+                }
+                return v - size;
+            }
+        }
+        return -1;
+    }
+
+    private long fittingInCanonical(int spaceSize) {
+        long res = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            res += PlacementCounts.fitting(cnt[canonical[i]], totalLen[canonical[i]], spaceSize);
+        }
+        return res;
+    }
+
+    private long rangeWeight(int v, int minSpaceSize, int maxSpaceSize, boolean shortBand) {
+        return PlacementCounts.fittingRange(cnt[v], totalLen[v], totalSqLen[v], minSpaceSize, maxSpaceSize, shortBand);
+    }
+
+    /**
+     * Leaf of the k-th placement of spaceSize under the canonical nodes; its rank in the leaf's bucket goes to
+     * selected.
+     */
+    private int selectInCanonical(int spaceSize, long k) {
+        for (int i = 0; i < canonicalCnt; i++) {
+            int v = canonical[i];
+            long spacesHere = PlacementCounts.fitting(cnt[v], totalLen[v], spaceSize);
+            if (k > spacesHere) {
+                k -= spacesHere;
+                continue;
+            }
+            while (v < size) {
+                long spacesInLeft = PlacementCounts.fitting(cnt[2 * v], totalLen[2 * v], spaceSize);
+                if (spacesInLeft >= k) {
+                    v = 2 * v;
+                } else {
+                    k -= spacesInLeft;
+                    v = 2 * v + 1;
+                }
+            }
+            selected = k;
+            return v - size;
+        }
+        throw new IllegalArgumentException("k out of range");
+    }
+
+    private void checkLayer(int layer) {
+        if (layer < 1 || layer > layers) {
+            throw new IllegalArgumentException("Invalid layer " + layer + ", expected 1.." + layers);
+        }
+    }
+}
@@ -1,76 +1,164 @@
 package symbolic.segments.by_length.segtree_implementation;
 
 import symbolic.GridSegment;
+import symbolic.instrumentation.Instrumentation;
+import symbolic.instrumentation.Structure;
+import symbolic.segments.by_length.LengthOrder;
+import symbolic.segments.by_length.PlacementCounts;
+import symbolic.segments.util.NodeLayout;
+import symbolic.segments.util.NodePool;
+import symbolic.segments.util.PoolSizing;
+import symbolic.segments.util.RNG;
+
+import java.util.List;
 
-import static symbolic.GridCreator.NODE_POOL_SIZE;
 
 public class PreallocatedHashedSegmentsByLengthNodes extends HashedSegmentsByLength {
 
+    // Hashes must fit in an int, leaf count must be a power of two.
+    public static final int MAX_LEAF_CNT = 1 << 30;
+
+    // Slots of a node: number of segments (not nodes), total and longest length and sum of squared lengths of the
+    // subtree (the last for length-range queries, a long in slots 8 and 9), the links (0 if none), the hash range
+    // and whether the node is its parent's left child. 12 slots, 48 bytes.
+    private static final int SUBTREE_SIZE = 0, SUBTREE_TOTAL_LEN = 1, SUBTREE_MAX = 2, LEFT = 3, RIGHT = 4,
+            PARENT = 5, LO = 6, HI = 7, SUBTREE_SQ_LEN = 8, IS_LEFT_CHILD = 10;
+    static final NodeLayout LAYOUT = new NodeLayout(Structure.SEGMENT_TREE,
+            new int[]{0, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0}, 0, LEFT, RIGHT, PARENT);
+
     private final int LEAF_CNT;
-    // TODO use dependency injection to let the user decide what pool to use.
-    private static final NodePool NODE_POOL = new NodePool(NODE_POOL_SIZE);
+    // Every tree has its own pool, so the whole tree can be rewound at once.
+    private final NodePool NODE_POOL;
 
     private final int rootInd;
-    private final Node root;
+
+    // Canonical subtrees of the last range decomposition, in hash order. Two per level is enough.
+    private final int[] canonical = new int[128];
+    private int canonicalCnt;
+
+    /**
+     * Whether hashes of an nRows x nCols grid fit in the key space.
+     */
+    public static boolean fits(int nRows, int nCols) {
+        return (long) nRows * nCols * (Math.max(nRows, nCols) + 1) <= MAX_LEAF_CNT;
+    }
+
+    /**
+     * Same as the constructor with offHeap = true, as a {@link symbolic.segments.by_length.SegmentsByLength.Factory}.
+     */
+    public static PreallocatedHashedSegmentsByLengthNodes offHeap(int totalRows, int nCols, boolean areSegmentsVertical) {
+        return new PreallocatedHashedSegmentsByLengthNodes(totalRows, nCols, areSegmentsVertical, true);
+    }
 
     public PreallocatedHashedSegmentsByLengthNodes(int totalRows, int nCols, boolean areSegmentsVertical) {
+        this(totalRows, nCols, areSegmentsVertical, false);
+    }
+
+    /**
+     * With offHeap, nodes live in direct memory instead of int arrays on the heap, see {@link NodePool#create}.
+     */
+    public PreallocatedHashedSegmentsByLengthNodes(int totalRows, int nCols, boolean areSegmentsVertical, boolean offHeap) {
+        this(totalRows, nCols, areSegmentsVertical, offHeap, PoolSizing.defaultFill());
+    }
+
+    /**
+     * The pool starts with room for the segments of a grid reserved to expectedFill, see {@link PoolSizing}.
+     */
+    public PreallocatedHashedSegmentsByLengthNodes(int totalRows, int nCols, boolean areSegmentsVertical, boolean offHeap,
+                                                   double expectedFill) {
         super(totalRows, nCols, areSegmentsVertical);
-        int maxElements = totalRows * nCols * (Math.max(totalRows, nCols) + 1);
-        this.LEAF_CNT = nextPowerOfTwo(maxElements);
+        long maxElements = (long) totalRows * nCols * (Math.max(totalRows, nCols) + 1);
+        if (!fits(totalRows, nCols)) {
+            throw new IllegalArgumentException("Grid " + totalRows + "x" + nCols + " is too large for hashed segments");
+        }
+        this.LEAF_CNT = nextPowerOfTwo((int) maxElements);
+        // Each stored segment needs about one path of nodes below the shared top levels.
+        int initialCapacity = PoolSizing.initialNodes(totalRows, nCols, areSegmentsVertical,
+                Integer.numberOfTrailingZeros(LEAF_CNT), expectedFill);
+        this.NODE_POOL = NodePool.create(LAYOUT, initialCapacity, offHeap);
         this.rootInd = NODE_POOL.newNode();
         makeRoot();
-        this.root = NODE_POOL.at(rootInd);
+        if (Instrumentation.ENABLED) {
+            Instrumentation.treeHeight(Structure.SEGMENT_TREE, Integer.numberOfTrailingZeros(LEAF_CNT) + 1);
+        }
     }
 
     private void makeRoot() {
-        NODE_POOL.at(rootInd).clear();
-        NODE_POOL.at(rootInd).lo = 0;
-        NODE_POOL.at(rootInd).hi = LEAF_CNT - 1;
-        }
+        NODE_POOL.clear(rootInd);
+        NODE_POOL.putInt(rootInd, LO, 0);
+        NODE_POOL.putInt(rootInd, HI, LEAF_CNT - 1);
+    }
+
+    private boolean isLeaf(int node) {
+        return NODE_POOL.getInt(node, LO) == NODE_POOL.getInt(node, HI);
+    }
+
+    private boolean isLeftChild(int node) {
+        return NODE_POOL.getInt(node, IS_LEFT_CHILD) != 0;
+    }
 
-    private Node appendNode(int parent, boolean isLeftChild) {
+    private void setLeftChild(int node, boolean value) {
+        NODE_POOL.putInt(node, IS_LEFT_CHILD, value ? 1 : 0);
+    }
+
+    private int appendNode(int parent, boolean isLeftChild) {
         int id = NODE_POOL.newNode();
-        NODE_POOL.at(id).clear();
-        NODE_POOL.at(id).parent = parent;
+        NODE_POOL.putInt(id, PARENT, parent);
         if(isLeftChild) {
-            NODE_POOL.at(parent).left = id;
+            NODE_POOL.putInt(parent, LEFT, id);
         }else{
-            NODE_POOL.at(parent).right = id;
+            NODE_POOL.putInt(parent, RIGHT, id);
         }
-        NODE_POOL.at(id).isLeftChild = isLeftChild;
-        return NODE_POOL.at(id);
+        setLeftChild(id, isLeftChild);
+        return id;
     }
 
-    private void addLeft(Node from) {
-        Node child = appendNode(from.id, true);
-        child.lo = from.lo;
-        child.hi = (from.lo + from.hi) / 2;
+    private void addLeft(int from) {
+        int child = appendNode(from, true);
+        NODE_POOL.putInt(child, LO, NODE_POOL.getInt(from, LO));
+        NODE_POOL.putInt(child, HI, (NODE_POOL.getInt(from, LO) + NODE_POOL.getInt(from, HI)) / 2);
     }
 
-    private void addRight(Node from) {
-        Node child = appendNode(from.id, false);
-        child.lo = ((from.lo + from.hi) / 2) + 1;
-        child.hi = from.hi;
+    private void addRight(int from) {
+        int child = appendNode(from, false);
+        NODE_POOL.putInt(child, LO, ((NODE_POOL.getInt(from, LO) + NODE_POOL.getInt(from, HI)) / 2) + 1);
+        NODE_POOL.putInt(child, HI, NODE_POOL.getInt(from, HI));
     }
 
     /**
-     * Frees up this instance’s slot so it can be reused.
-     * Optionally zero out arrays if you want to be absolutely sure
-     * leftover data is cleared.
+     * Hands all nodes back to this tree's pool at once, which keeps a single page and drops the snapshot.
      */
     @Override
     public void destroy() {
-        destroyRec(root);
+        NODE_POOL.release();
     }
 
-    private void destroyRec(Node node){
-        if(node.left != 0){
-            destroyRec(NODE_POOL.at(node.left));
-        }
-        if(node.right != 0){
-            destroyRec(NODE_POOL.at(node.right));
-        }
-        NODE_POOL.freeNode(node.id);
+    /**
+     * Renumbers the nodes in preorder, see {@link NodePool#relayout(int)}; the root keeps index 1. New paths are
+     * appended to the pool, far from the rest of their subtree. Also done by insert() once the pool asks for it,
+     * see {@link NodePool#needsRelayout()}.
+     */
+    @Override
+    public void compact() {
+        relayout();
+    }
+
+    private void relayout() {
+        int root = NODE_POOL.relayout(rootInd);
+        assert (root == rootInd);
+    }
+
+    @Override
+    public void snapshot() {
+        NODE_POOL.snapshot();
+    }
+
+    /**
+     * Pool rewind plus a copy of the saved nodes; the root keeps its index, so nothing else changes.
+     */
+    @Override
+    public void restore() {
+        NODE_POOL.restore();
     }
 
     @Override
@@ -80,7 +168,10 @@ public class PreallocatedHashedSegmentsByLengthNodes extends HashedSegmentsByLen
         --col;
         int hash = segHash(row, col, length);
 
-        insertRec(root.id, hash, length);
+        insertLeaf(hash, length);
+        if (NODE_POOL.needsRelayout()) {
+            relayout();
+        }
     }
 
     @Override
@@ -89,7 +180,34 @@ public class PreallocatedHashedSegmentsByLengthNodes extends HashedSegmentsByLen
         --col;
         int hash = segHash(row, col, length);
 
-        deleteRec(root.id, hash);
+        int v = rootInd;
+        while (!isLeaf(v)) {
+            int mid = (NODE_POOL.getInt(v, LO) + NODE_POOL.getInt(v, HI)) / 2;
+            v = hash <= mid ? NODE_POOL.getInt(v, LEFT) : NODE_POOL.getInt(v, RIGHT);
+            assert (v != 0);
+        }
+        deleteLeaf(v);
+    }
+
+    /**
+     * Rewinds the pool and creates only the nodes on the paths to the given leaves, each once and with its final
+     * aggregates: O(nodes of the result) instead of a full descent and pull chain per segment.
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        NODE_POOL.rewind();
+        int index = NODE_POOL.newNode();
+        assert (index == rootInd);
+        makeRoot();
+        GridSegment[] sorted = LengthOrder.sort(segments, totalRows, nCols);
+        int[] hashes = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            hashes[i] = segHash(sorted[i].row - 1, sorted[i].col - 1, sorted[i].length);
+        }
+        if (hashes.length > 0) {
+            buildRec(rootInd, sorted, hashes, 0, hashes.length);
+        }
+        NODE_POOL.settled(); // built in preorder
     }
 
     @Override
@@ -97,16 +215,16 @@ public class PreallocatedHashedSegmentsByLengthNodes extends HashedSegmentsByLen
         int minHash = segHash(0, 0, spaceSize);
         int res = 0;
         int v = rootInd;
-        while (v != 0 && !NODE_POOL.at(v).isLeaf()) {
-            int mid = (NODE_POOL.at(v).lo + NODE_POOL.at(v).hi) / 2;
+        while (v != 0 && !isLeaf(v)) {
+            int mid = (NODE_POOL.getInt(v, LO) + NODE_POOL.getInt(v, HI)) / 2;
             if(minHash <= mid){
-                res += countSpacesInSubtree(NODE_POOL.at(v).right,spaceSize);
-                v = NODE_POOL.at(v).left;
+                res += countSpacesInSubtree(NODE_POOL.getInt(v, RIGHT),spaceSize);
+                v = NODE_POOL.getInt(v, LEFT);
             }else{
-                v = NODE_POOL.at(v).right;
+                v = NODE_POOL.getInt(v, RIGHT);
             }
         }
-        if(NODE_POOL.at(v).isLeaf() && NODE_POOL.at(v).lo >= minHash){
+        if(isLeaf(v) && NODE_POOL.getInt(v, LO) >= minHash){
             res += countSpacesInSubtree(v,spaceSize);
         }
         return res;
@@ -116,137 +234,368 @@ public class PreallocatedHashedSegmentsByLengthNodes extends HashedSegmentsByLen
     public GridSegment getKthFittingSpace(int spaceSize, int k) {
         int minHash = segHash(0,0,spaceSize);
         int v = lowerBound(minHash);
-        if (NODE_POOL.at(v).subtreeTotalLen >= spaceSize) {
-            int spacesHere = NODE_POOL.at(v).subtreeTotalLen - spaceSize + 1;
+        if (NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN) >= spaceSize) {
+            int spacesHere = NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN) - spaceSize + 1;
             if (k <= spacesHere) {
-                return kthSpaceInSegment(NODE_POOL.at(v).lo, spaceSize, k);
+                return kthSpaceInSegment(NODE_POOL.getInt(v, LO), spaceSize, k);
             } else {
                 k -= spacesHere;
             }
         }
-        boolean comingFromLeftChild = NODE_POOL.at(v).isLeftChild;
-        v = NODE_POOL.at(v).parent;
+        boolean comingFromLeftChild = isLeftChild(v);
+        v = NODE_POOL.getInt(v, PARENT);
         // Go up to LCA(our leaf with min hash , leaf with hash of segment containing k-th fitting space)
-        while (v != rootInd && !(comingFromLeftChild && countSpacesInSubtree(NODE_POOL.at(v).right, spaceSize) >= k)) {
+        while (v != rootInd && !(comingFromLeftChild && countSpacesInSubtree(NODE_POOL.getInt(v, RIGHT), spaceSize) >= k)) {
             if(comingFromLeftChild) {
-                k -= countSpacesInSubtree(NODE_POOL.at(v).right, spaceSize);
+                k -= countSpacesInSubtree(NODE_POOL.getInt(v, RIGHT), spaceSize);
             }
-            comingFromLeftChild = NODE_POOL.at(v).isLeftChild;
-            v = NODE_POOL.at(v).parent;
+            comingFromLeftChild = isLeftChild(v);
+            v = NODE_POOL.getInt(v, PARENT);
         }
         // Go down from LCA to the leaf with hash of segment containing k-th fitting space.
         // First step must be handled separately because v's left subtree is on the path we've already travelled.
-        v = NODE_POOL.at(v).right;
-        while(!NODE_POOL.at(v).isLeaf()){
+        v = NODE_POOL.getInt(v, RIGHT);
+        while(!isLeaf(v)){
             // Every segment in subtree of v is large enough.
-            int spacesInLeft = countSpacesInSubtree(NODE_POOL.at(v).left, spaceSize);
+            int spacesInLeft = countSpacesInSubtree(NODE_POOL.getInt(v, LEFT), spaceSize);
             if(spacesInLeft >= k){
-                v = NODE_POOL.at(v).left;
+                v = NODE_POOL.getInt(v, LEFT);
             }else{
                 k -= spacesInLeft;
-                v = NODE_POOL.at(v).right;
+                v = NODE_POOL.getInt(v, RIGHT);
             }
         }
         // Now we are at the leaf with hash of segment containing k-th fitting space. The hash is this leaf's index.
-        int hash = NODE_POOL.at(v).lo;
+        int hash = NODE_POOL.getInt(v, LO);
         return kthSpaceInSegment(hash, spaceSize, k);
     }
 
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int spaceSize) {
+        // Subtrees covering every hash >= minHash. Below them each segment is large enough,
+        // so their counts are exact and there is no need to walk back up to an LCA later.
+        canonicalCnt = 0;
+        collect(rootInd, segHash(0, 0, spaceSize), LEAF_CNT - 1);
+        int total = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            total += countSpacesInSubtree(canonical[i], spaceSize);
+        }
+        if (total == 0) {
+            return null;
+        }
+        return takeCollected(spaceSize, (int) RNG.randPlacement(total));
+    }
 
-    // --------------------------
-    //         Helper methods
-    // --------------------------
+    @Override
+    public GridSegment[] takeFittingSpace(int spaceSize, long k) {
+        if (k < 1 || k > countFittingSpaces(spaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        canonicalCnt = 0;
+        collect(rootInd, segHash(0, 0, spaceSize), LEAF_CNT - 1);
+        return takeCollected(spaceSize, (int) k);
+    }
 
     /**
-     * Recursive helper for insert:
-     *  1) If is leaf, store (size=1, totalLen=length, subtreeMax=length)
-     *  2) Otherwise, descend left/right, then post-order update
+     * Removes the k-th placement, among the subtrees collected for spaceSize.
      */
-    private void insertRec(int nodeId, int hash, int length) {
-        Node node = NODE_POOL.at(nodeId);
-        if (node.isLeaf()) {
-            // This leaf corresponds uniquely to 'hash'
-            node.subtreeSize = 1;
-            node.subtreeTotalLen = length;
-            node.subtreeMax = hash;
-            return;
+    private GridSegment[] takeCollected(int spaceSize, int k) {
+        int i = 0;
+        while (countSpacesInSubtree(canonical[i], spaceSize) < k) {
+            k -= countSpacesInSubtree(canonical[i], spaceSize);
+            ++i;
+        }
+        int v = canonical[i];
+        while (!isLeaf(v)) {
+            int spacesInLeft = countSpacesInSubtree(NODE_POOL.getInt(v, LEFT), spaceSize);
+            if (spacesInLeft >= k) {
+                v = NODE_POOL.getInt(v, LEFT);
+            } else {
+                k -= spacesInLeft;
+                v = NODE_POOL.getInt(v, RIGHT);
+            }
+        }
+        int hash = NODE_POOL.getInt(v, LO), segLength = NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN);
+        GridSegment found = kthSpaceInSegment(hash, spaceSize, k);
+
+        // Delete the segment from the leaf we already stand on, fixing aggregates on the way up.
+        deleteLeaf(v);
+
+        GridSegment seg = fromHash(hash);
+        int before = k - 1, after = segLength - spaceSize - before;
+        if (before > 0) {
+            insert(seg.row, seg.col, before);
         }
+        if (after > 0) {
+            if (areSegmentsVertical) {
+                insert(found.row + spaceSize, seg.col, after);
+            } else {
+                insert(seg.row, found.col + spaceSize, after);
+            }
+        }
+        return new GridSegment[]{found, seg};
+    }
 
-        int mid = (node.lo + node.hi) / 2;
-        // Go to correct child, creating if needed
-        if (hash <= mid) {
-            if (node.left == 0) {
-                addLeft(node);
+    @Override
+    public long countFittingSpaces(int minSpaceSize, int maxSpaceSize) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, Math.max(totalRows, nCols));
+        if (minSpaceSize > maxSpaceSize) {
+            return 0;
+        }
+        int shortEnd = decomposeRange(minSpaceSize, maxSpaceSize);
+        long res = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            res += rangeWeight(canonical[i], minSpaceSize, maxSpaceSize, i < shortEnd);
+        }
+        return res;
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int minSpaceSize, int maxSpaceSize, long k) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, Math.max(totalRows, nCols));
+        if (minSpaceSize > maxSpaceSize || k <= 0) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        int shortEnd = decomposeRange(minSpaceSize, maxSpaceSize);
+        for (int i = 0; i < canonicalCnt; i++) {
+            boolean shortBand = i < shortEnd;
+            int v = canonical[i];
+            long spacesHere = rangeWeight(v, minSpaceSize, maxSpaceSize, shortBand);
+            if (k > spacesHere) {
+                k -= spacesHere;
+                continue;
+            }
+            // Every segment below v fits the same subrange of lengths, so the weights stay comparable.
+            while (!isLeaf(v)) {
+                long spacesInLeft = rangeWeight(NODE_POOL.getInt(v, LEFT), minSpaceSize, maxSpaceSize, shortBand);
+                if (spacesInLeft >= k) {
+                    v = NODE_POOL.getInt(v, LEFT);
+                } else {
+                    k -= spacesInLeft;
+                    v = NODE_POOL.getInt(v, RIGHT);
+                }
             }
-            insertRec(node.left, hash, length);
-        } else {
-            if (node.right == 0) {
-                addRight(node);
+            int hash = NODE_POOL.getInt(v, LO);
+            int segLength = NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN);
+            for (int spaceSize = minSpaceSize; ; ++spaceSize) {
+                int spacesOfSize = segLength - spaceSize + 1;
+                if (k <= spacesOfSize) {
+                    return kthSpaceInSegment(hash, spaceSize, (int) k);
+                }
+                k -= spacesOfSize;
             }
-            insertRec(node.right, hash, length);
         }
+        throw new IllegalArgumentException("k out of range");
+    }
 
-        // Post-order update of this node's aggregations
-        node.subtreeSize = NODE_POOL.at(node.left).subtreeSize
-                + NODE_POOL.at(node.right).subtreeSize;
+    @Override
+    public GridSegment shortestFitting(int spaceSize) {
+        int minHash = segHash(0, 0, spaceSize);
+        if (NODE_POOL.getInt(rootInd, SUBTREE_MAX) < minHash) {
+            return null;
+        }
+        return fromHash(NODE_POOL.getInt(lowerBound(minHash), LO));
+    }
 
-        node.subtreeTotalLen = NODE_POOL.at(node.left).subtreeTotalLen
-                + NODE_POOL.at(node.right).subtreeTotalLen;
+    @Override
+    public GridSegment longest() {
+        return NODE_POOL.getInt(rootInd, SUBTREE_SIZE) == 0 ? null : fromHash(NODE_POOL.getInt(rootInd, SUBTREE_MAX));
+    }
+
+    @Override
+    public int segmentCount() {
+        return NODE_POOL.getInt(rootInd, SUBTREE_SIZE);
+    }
+
+    @Override
+    public long totalLength() {
+        return NODE_POOL.getInt(rootInd, SUBTREE_TOTAL_LEN);
+    }
 
-        node.subtreeMax = Math.max(NODE_POOL.at(node.left).subtreeMax, NODE_POOL.at(node.right).subtreeMax);
+    @Override
+    public int countSegments(int minLength, int maxLength) {
+        maxLength = Math.min(maxLength, Math.max(totalRows, nCols));
+        minLength = Math.max(minLength, 1);
+        if (minLength > maxLength) {
+            return 0;
+        }
+        canonicalCnt = 0;
+        collect(rootInd, segHash(0, 0, minLength), segHash(0, 0, maxLength + 1) - 1);
+        int res = 0;
+        for (int i = 0; i < canonicalCnt; i++) {
+            res += NODE_POOL.getInt(canonical[i], SUBTREE_SIZE);
+        }
+        return res;
     }
 
+    // --------------------------
+    //         Helper methods
+    // --------------------------
+
     /**
-     * Recursive helper for delete:
-     *  1) If leaf, simply clear out the node (size=0, totalLen=0, max=0)
-     *  2) Otherwise, descend left/right, then post-order update
+     * Stores the segment in the leaf of its hash, which must be empty, creating the missing nodes on the way.
+     * One pass down: every node on the path gains the segment's share of the aggregates, so neither the
+     * children nor the way back up are read.
      */
-    private void deleteRec(int nodeId, int hash) {
-        Node node = NODE_POOL.at(nodeId);
-        if (node.isLeaf()) {
-            // This leaf corresponds uniquely to 'hash'
-            node.subtreeSize = 0;
-            node.subtreeTotalLen = 0;
-            node.subtreeMax = -1;
-            return;
+    private void insertLeaf(int hash, int length) {
+        long sqLen = (long) length * length;
+        int v = rootInd;
+        // The ranges halve exactly (LEAF_CNT is a power of two): the bit of the level picks the child.
+        for (int bit = LEAF_CNT >>> 1; bit != 0; bit >>>= 1) {
+            NODE_POOL.putInt(v, SUBTREE_SIZE, NODE_POOL.getInt(v, SUBTREE_SIZE) + 1);
+            NODE_POOL.putInt(v, SUBTREE_TOTAL_LEN, NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN) + length);
+            NODE_POOL.putLong(v, SUBTREE_SQ_LEN, NODE_POOL.getLong(v, SUBTREE_SQ_LEN) + sqLen);
+            NODE_POOL.putInt(v, SUBTREE_MAX, Math.max(NODE_POOL.getInt(v, SUBTREE_MAX), hash));
+            // Go to correct child, creating if needed
+            if ((hash & bit) == 0) {
+                if (NODE_POOL.getInt(v, LEFT) == 0) {
+                    addLeft(v);
+                }
+                v = NODE_POOL.getInt(v, LEFT);
+            } else {
+                if (NODE_POOL.getInt(v, RIGHT) == 0) {
+                    addRight(v);
+                }
+                v = NODE_POOL.getInt(v, RIGHT);
+            }
         }
+        assert (isLeaf(v) && NODE_POOL.getInt(v, SUBTREE_SIZE) == 0);
+        setLeaf(v, hash, length);
+    }
 
-        int mid = (node.lo + node.hi) / 2;
-        // Descend into the correct child
-        if (hash <= mid) {
-            assert (node.left != 0);
-            deleteRec(node.left, hash);
-        } else {
-            assert (node.right != 0);
-            deleteRec(node.right, hash);
+    /**
+     * Empties a leaf and takes its segment out of the aggregates of its ancestors. The nodes left without any
+     * segment below them go back to the pool, so no node but the root is ever empty and the next inserts reuse
+     * nodes that are still in cache. Only the ancestors whose maximum was this segment look at their children.
+     */
+    private void deleteLeaf(int leaf) {
+        assert (NODE_POOL.getInt(leaf, SUBTREE_SIZE) == 1);
+        int hash = NODE_POOL.getInt(leaf, SUBTREE_MAX), length = NODE_POOL.getInt(leaf, SUBTREE_TOTAL_LEN);
+        long sqLen = (long) length * length;
+        boolean maxGone = true;
+        int child = leaf;
+        NODE_POOL.putInt(leaf, SUBTREE_SIZE, 0);
+        while (child != rootInd) {
+            int v = NODE_POOL.getInt(child, PARENT);
+            if (NODE_POOL.getInt(child, SUBTREE_SIZE) == 0) {
+                if (isLeftChild(child)) {
+                    NODE_POOL.putInt(v, LEFT, 0);
+                } else {
+                    NODE_POOL.putInt(v, RIGHT, 0);
+                }
+                NODE_POOL.freeNode(child);
+            }
+            NODE_POOL.putInt(v, SUBTREE_SIZE, NODE_POOL.getInt(v, SUBTREE_SIZE) - 1);
+            NODE_POOL.putInt(v, SUBTREE_TOTAL_LEN, NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN) - length);
+            NODE_POOL.putLong(v, SUBTREE_SQ_LEN, NODE_POOL.getLong(v, SUBTREE_SQ_LEN) - sqLen);
+            maxGone = maxGone && NODE_POOL.getInt(v, SUBTREE_MAX) == hash;
+            if (maxGone) {
+                NODE_POOL.putInt(v, SUBTREE_MAX, Math.max(NODE_POOL.getInt(NODE_POOL.getInt(v, LEFT), SUBTREE_MAX),
+                        NODE_POOL.getInt(NODE_POOL.getInt(v, RIGHT), SUBTREE_MAX)));
+            }
+            child = v;
         }
+    }
 
-        // Post-order update
-        node.subtreeSize = NODE_POOL.at(node.left).subtreeSize
-                + NODE_POOL.at(node.right).subtreeSize;
+    /**
+     * Recursive helper for build: segments [from, to) all hash into nodeId's range, which is not empty.
+     */
+    private void buildRec(int nodeId, GridSegment[] sorted, int[] hashes, int from, int to) {
+        if (isLeaf(nodeId)) {
+            setLeaf(nodeId, hashes[from], sorted[from].length);
+            return;
+        }
+        int mid = (NODE_POOL.getInt(nodeId, LO) + NODE_POOL.getInt(nodeId, HI)) / 2;
+        // First segment of the right half; hashes are increasing.
+        int split = from, hi = to;
+        while (split < hi) {
+            int m = (split + hi) >>> 1;
+            if (hashes[m] <= mid) {
+                split = m + 1;
+            } else {
+                hi = m;
+            }
+        }
+        if (from < split) {
+            addLeft(nodeId);
+            buildRec(NODE_POOL.getInt(nodeId, LEFT), sorted, hashes, from, split);
+        }
+        if (split < to) {
+            addRight(nodeId);
+            buildRec(NODE_POOL.getInt(nodeId, RIGHT), sorted, hashes, split, to);
+        }
+        pull(nodeId);
+    }
 
-        node.subtreeTotalLen = NODE_POOL.at(node.left).subtreeTotalLen
-                + NODE_POOL.at(node.right).subtreeTotalLen;
+    /**
+     * Stores the segment with this hash and length in a leaf, or empties the leaf if length is 0 (hash -1).
+     */
+    private void setLeaf(int leaf, int hash, int length) {
+        NODE_POOL.putInt(leaf, SUBTREE_SIZE, length == 0 ? 0 : 1);
+        NODE_POOL.putInt(leaf, SUBTREE_TOTAL_LEN, length);
+        NODE_POOL.putInt(leaf, SUBTREE_MAX, hash);
+        NODE_POOL.putLong(leaf, SUBTREE_SQ_LEN, (long) length * length);
+    }
 
-        node.subtreeMax = Math.max(NODE_POOL.at(node.left).subtreeMax, NODE_POOL.at(node.right).subtreeMax);
+    private void pull(int node) {
+        int left = NODE_POOL.getInt(node, LEFT), right = NODE_POOL.getInt(node, RIGHT);
+        NODE_POOL.putInt(node, SUBTREE_SIZE, NODE_POOL.getInt(left, SUBTREE_SIZE) + NODE_POOL.getInt(right, SUBTREE_SIZE));
+        NODE_POOL.putInt(node, SUBTREE_TOTAL_LEN, NODE_POOL.getInt(left, SUBTREE_TOTAL_LEN) + NODE_POOL.getInt(right, SUBTREE_TOTAL_LEN));
+        NODE_POOL.putInt(node, SUBTREE_MAX, Math.max(NODE_POOL.getInt(left, SUBTREE_MAX), NODE_POOL.getInt(right, SUBTREE_MAX)));
+        NODE_POOL.putLong(node, SUBTREE_SQ_LEN, NODE_POOL.getLong(left, SUBTREE_SQ_LEN) + NODE_POOL.getLong(right, SUBTREE_SQ_LEN));
     }
 
     private int lowerBound(int hash){
         int v = rootInd;
-        while(!NODE_POOL.at(v).isLeaf()){
-            int mid = (NODE_POOL.at(v).lo + NODE_POOL.at(v).hi) / 2;
-            if(hash <= mid && NODE_POOL.at(NODE_POOL.at(v).left).subtreeMax >= hash){
-                v = NODE_POOL.at(v).left;
+        while(!isLeaf(v)){
+            int mid = (NODE_POOL.getInt(v, LO) + NODE_POOL.getInt(v, HI)) / 2;
+            if(hash <= mid && NODE_POOL.getInt(NODE_POOL.getInt(v, LEFT), SUBTREE_MAX) >= hash){
+                v = NODE_POOL.getInt(v, LEFT);
             }else{
-                v = NODE_POOL.at(v).right;
+                v = NODE_POOL.getInt(v, RIGHT);
             }
         }
         return v;
     }
 
+    /**
+     * Splits the leaves with length >= minSpaceSize into canonical subtrees (stored in 'canonical', in hash order).
+     * Returns how many of them come first and hold segments shorter than maxSpaceSize.
+     * Those fit only part of the length range, all the others fit every length in it.
+     */
+    private int decomposeRange(int minSpaceSize, int maxSpaceSize) {
+        canonicalCnt = 0;
+        int shortFrom = segHash(0, 0, minSpaceSize), longFrom = segHash(0, 0, maxSpaceSize);
+        if (shortFrom < longFrom) {
+            collect(rootInd, shortFrom, longFrom - 1);
+        }
+        int shortEnd = canonicalCnt;
+        collect(rootInd, longFrom, LEAF_CNT - 1);
+        return shortEnd;
+    }
+
+    private void collect(int v, int from, int to) {
+        if (v == 0 || NODE_POOL.getInt(v, SUBTREE_SIZE) == 0 || NODE_POOL.getInt(v, HI) < from || NODE_POOL.getInt(v, LO) > to) {
+            return;
+        }
+        if (from <= NODE_POOL.getInt(v, LO) && NODE_POOL.getInt(v, HI) <= to) {
+            canonical[canonicalCnt++] = v;
+            return;
+        }
+        collect(NODE_POOL.getInt(v, LEFT), from, to);
+        collect(NODE_POOL.getInt(v, RIGHT), from, to);
+    }
+
+    private long rangeWeight(int v, int minSpaceSize, int maxSpaceSize, boolean shortBand) {
+        return PlacementCounts.fittingRange(NODE_POOL.getInt(v, SUBTREE_SIZE), NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN), NODE_POOL.getLong(v, SUBTREE_SQ_LEN),
+                minSpaceSize, maxSpaceSize, shortBand);
+    }
+
     private int countSpacesInSubtree(int v, int spaceSize) { // assumes every segment there is large enough
-        // if v=0 (nonexistent node), it returns 0, because all fields in NODE_POOL.at(0) are 0 / false.
-        return NODE_POOL.at(v).subtreeTotalLen - (spaceSize - 1) * NODE_POOL.at(v).subtreeSize;
+        // if v=0 (nonexistent node), it returns 0, because all fields of node 0 are 0 / false.
+        return NODE_POOL.getInt(v, SUBTREE_TOTAL_LEN) - (spaceSize - 1) * NODE_POOL.getInt(v, SUBTREE_SIZE);
     }
 
 
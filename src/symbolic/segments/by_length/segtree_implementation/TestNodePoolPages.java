@@ -0,0 +1,125 @@
+package symbolic.segments.by_length.segtree_implementation;
+
+import symbolic.GridCreator;
+import symbolic.engine.Engine;
+import symbolic.segments.util.NodePool;
+import symbolic.segments.util.PoolSizing;
+
+/**
+ * Tester for the pages a node pool keeps: restore() (a grid's reset) keeps the pages the cycle it ends or the one
+ * before reached and gives back the rest, release() (destroy) keeps one, and a pool goes on working after both.
+ * Run on the heap and the off-heap pool with the layout of the segment tree nodes.
+ * Also checks that the expected fill of a grid sizes its pools and that bad fills are rejected where the grid is
+ * created.
+ */
+public class TestNodePoolPages {
+
+    private static final int PAGE = 256;
+
+    public static void main(String[] args) {
+        checkPages(NodePool.create(PreallocatedHashedSegmentsByLengthNodes.LAYOUT, PAGE, false), "heap");
+        checkPages(NodePool.create(PreallocatedHashedSegmentsByLengthNodes.LAYOUT, PAGE, true), "off-heap");
+        checkExpectedFill();
+        System.out.println("All node pool page tests passed successfully!");
+    }
+
+    private static void checkPages(NodePool pool, String name) {
+        check(pool, 1, name + " fresh");
+        take(pool, 10);
+        pool.snapshot(); // the state reset() goes back to, like a freshly built tree
+        take(pool, 10 * PAGE);
+        int big = pages(1 + 10 + 10 * PAGE);
+        check(pool, big, name + " after a big cycle");
+        pool.restore();
+        check(pool, big, name + " after resetting the big cycle");
+        take(pool, 10);
+        pool.restore();
+        check(pool, big, name + " after one small cycle"); // the big one was the cycle before
+        take(pool, 10);
+        pool.restore();
+        check(pool, 1, name + " after two small cycles");
+
+        // rewind hands nodes back without giving up pages, freed nodes are reused before new ones
+        take(pool, 3 * PAGE);
+        pool.rewind();
+        check(pool, pages(1 + 10 + 3 * PAGE), name + " after a rewind");
+        int reused = pool.newNode();
+        pool.freeNode(reused);
+        if (pool.newNode() != reused) {
+            throw new AssertionError("Freed node of the " + name + " pool was not reused");
+        }
+
+        pool.release();
+        check(pool, 1, name + " after release");
+        take(pool, 2 * PAGE);
+        check(pool, pages(1 + 2 * PAGE), name + " reused after release");
+        pool.restore(); // release dropped the snapshot: back to an empty pool, nodes 1.. handed out again
+        if (pool.newNode() != 1) {
+            throw new AssertionError("Restored " + name + " pool kept nodes of a released tree");
+        }
+        pool.restore();
+        check(pool, pages(1 + 2 * PAGE), name + " one empty cycle after a release");
+        pool.restore();
+        check(pool, 1, name + " two empty cycles after a release");
+    }
+
+    private static void take(NodePool pool, int n) {
+        for (int i = 0; i < n; i++) {
+            pool.newNode();
+        }
+    }
+
+    private static int pages(int nodes) {
+        return (nodes + PAGE - 1) / PAGE;
+    }
+
+    private static void check(NodePool pool, int pages, String stage) {
+        if (pool.capacity() != pages * PAGE) {
+            throw new AssertionError("Pool has " + pool.capacity() + " nodes " + stage + ", expected " + pages * PAGE);
+        }
+    }
+
+    private static void checkExpectedFill() {
+        int empty = PoolSizing.initialNodes(300, 300, false, 1, 0), half = PoolSizing.initialNodes(300, 300, false, 1, 0.5);
+        if (empty != 300 + 2 || half != 300 + 300 * 300 / 4 + 2) {
+            throw new AssertionError("Initial nodes " + empty + " and " + half + " for fills 0 and 0.5");
+        }
+        if (PoolSizing.initialNodes(30000, 30000, true, 20, 1) != PoolSizing.MAX_INITIAL_NODES) {
+            throw new AssertionError("Initial nodes not capped");
+        }
+        for (double fill : new double[]{-0.1, 1.5, Double.NaN}) {
+            try {
+                new GridCreator(40, 40, Engine.HASHED_TREES, fill);
+                throw new AssertionError("Accepted expected fill " + fill);
+            } catch (IllegalArgumentException expected) {
+                // out of [0, 1]
+            }
+        }
+        String old = System.getProperty(PoolSizing.EXPECTED_FILL_PROPERTY);
+        try {
+            for (String value : new String[]{"2", "lots"}) {
+                System.setProperty(PoolSizing.EXPECTED_FILL_PROPERTY, value);
+                try {
+                    new GridCreator(40, 40, Engine.HASHED_TREES);
+                    throw new AssertionError("Accepted -D" + PoolSizing.EXPECTED_FILL_PROPERTY + "=" + value);
+                } catch (IllegalArgumentException expected) {
+                    // reported by the grid, the class stays usable
+                }
+            }
+            // a fill of its own does not read the property
+            GridCreator grid = new GridCreator(40, 40, Engine.HASHED_TREES_OFF_HEAP, 0.5);
+            grid.reserveHorizontal(1, 1, 40);
+            if (grid.isFree(1, 40) || !grid.isFree(2, 1)) {
+                throw new AssertionError("Grid with its own expected fill reserved the wrong cells");
+            }
+            grid.destroy();
+        } finally {
+            if (old == null) {
+                System.clearProperty(PoolSizing.EXPECTED_FILL_PROPERTY);
+            } else {
+                System.setProperty(PoolSizing.EXPECTED_FILL_PROPERTY, old);
+            }
+        }
+        new GridCreator(40, 40, Engine.HASHED_TREES).destroy();
+    }
+}
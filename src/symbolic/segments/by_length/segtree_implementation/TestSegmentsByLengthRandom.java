@@ -1,7 +1,11 @@
 package symbolic.segments.by_length.segtree_implementation;
 
 import symbolic.GridSegment;
+import symbolic.segments.by_length.LayeredSegmentsByLength;
 import symbolic.segments.by_length.SegmentsByLength;
+import symbolic.segments.by_length.bucket_implementation.BucketedSegmentsByLength;
+import symbolic.segments.by_length.treap_implementation.TreapSegmentsByLength;
+import symbolic.segments.util.RNG;
 
 import java.util.*;
 
@@ -9,17 +13,158 @@ import static java.lang.Math.max;
 
 
 /**
- * Random tester for SegmentsByLength (no duplicates, no deletions).
+ * Random tester for SegmentsByLength (no duplicates, no deletions), and for the layered indexes layer by layer.
  */
 public class TestSegmentsByLengthRandom {
 
     public static void main(String[] args) {
+        run(PreallocatedHashedSegmentsByLengthNodes::new);
+        run(PreallocatedHashedSegmentsByLengthNodes::offHeap);
+        run(BucketedSegmentsByLength::new);
+        run(TreapSegmentsByLength::new);
+        runLayered(BucketedSegmentsByLength.layered(100));
+        runLayered(TreapSegmentsByLength.layered(100));
+    }
+
+    /**
+     * Segments in 10 layers of 100 rows, inserted, some deleted again, then taken from: every per-layer query must
+     * answer like the brute force over the layer's segments, and the queries over all layers must go through the
+     * layers in turn.
+     */
+    private static void runLayered(SegmentsByLength.Factory factory) {
+        final int NROWS = 1000, NCOLS = 80, ROWS_PER_LAYER = 100, LAYERS = 10, MAX_LENGTH = 70;
+        LayeredSegmentsByLength segs = (LayeredSegmentsByLength) factory.create(NROWS, NCOLS, false);
+        if (segs.layerCount() != LAYERS) {
+            throw new AssertionError("Layers: " + segs.layerCount() + ", expected " + LAYERS);
+        }
+        Random rng = new Random(1);
+        // disjoint segments inside their rows, so that the pieces of a take are too
+        boolean[][] used = new boolean[NROWS + 1][NCOLS + 1];
+        List<ArrayList<GridSegment>> byLayer = new ArrayList<>();
+        for (int layer = 0; layer <= LAYERS; layer++) {
+            byLayer.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 400; i++) {
+            int length = 1 + rng.nextInt(MAX_LENGTH);
+            GridSegment seg = GridSegment.GS(1 + rng.nextInt(NROWS), 1 + rng.nextInt(NCOLS - length + 1), length);
+            boolean free = true;
+            for (int col = seg.col; col < seg.col + length; col++) {
+                free &= !used[seg.row][col];
+            }
+            if (free) {
+                for (int col = seg.col; col < seg.col + length; col++) {
+                    used[seg.row][col] = true;
+                }
+                segs.insert(seg.row, seg.col, seg.length);
+                byLayer.get((seg.row - 1) / ROWS_PER_LAYER + 1).add(seg);
+            }
+        }
+        for (int layer = 1; layer <= LAYERS; layer++) {
+            ArrayList<GridSegment> inLayer = byLayer.get(layer);
+            for (int i = 0; i < 5 && !inLayer.isEmpty(); i++) {
+                GridSegment seg = inLayer.remove(rng.nextInt(inLayer.size()));
+                segs.delete(seg.row, seg.col, seg.length);
+            }
+        }
+
+        for (int i = 0; i < 200; i++) {
+            int minSize = 1 + rng.nextInt(MAX_LENGTH);
+            int maxSize = minSize + rng.nextInt(MAX_LENGTH - minSize + 1);
+            long total = 0;
+            for (int layer = 1; layer <= LAYERS; layer++) {
+                ArrayList<GridSegment> inLayer = byLayer.get(layer);
+                long expected = 0;
+                int expectedSegments = 0;
+                for (GridSegment seg : inLayer) {
+                    expectedSegments += seg.length >= minSize && seg.length <= maxSize ? 1 : 0;
+                }
+                for (int len = minSize; len <= maxSize; len++) {
+                    expected += bruteForceCount(inLayer, len, false);
+                }
+                if (segs.countFittingSpaces(layer, minSize, maxSize) != expected
+                        || segs.countSegments(layer, minSize, maxSize) != expectedSegments) {
+                    throw new AssertionError("Layer " + layer + " counts for [" + minSize + ", " + maxSize + "]");
+                }
+                if (expected > 0) {
+                    long k = 1 + (long) (rng.nextDouble() * expected);
+                    GridSegment actual = segs.getKthFittingSpace(layer, minSize, maxSize, k);
+                    if (!Objects.equals(actual, bruteForceKthSubSpace(inLayer, minSize, maxSize, k, false))) {
+                        throw new AssertionError("Layer " + layer + " placement " + k + " of [" + minSize + ", "
+                                + maxSize + "]: " + actual);
+                    }
+                }
+                total += expected;
+            }
+            if (segs.countFittingSpaces(minSize, maxSize) != total) {
+                throw new AssertionError("All layers count for [" + minSize + ", " + maxSize + "]");
+            }
+            if (total > 0) {
+                // the k-th over all layers is the k-th of its layer once the layers before it are skipped
+                long k = 1 + (long) (rng.nextDouble() * total), rest = k;
+                int layer = 1;
+                for (long inLayer; rest > (inLayer = segs.countFittingSpaces(layer, minSize, maxSize)); layer++) {
+                    rest -= inLayer;
+                }
+                GridSegment expected = bruteForceKthSubSpace(byLayer.get(layer), minSize, maxSize, rest, false);
+                if (!Objects.equals(segs.getKthFittingSpace(minSize, maxSize, k), expected)) {
+                    throw new AssertionError("All layers placement " + k + " of [" + minSize + ", " + maxSize + "]");
+                }
+            }
+
+            // shortest and longest over all layers: first and last in (length, row, col) order
+            GridSegment shortest = null, longest = null;
+            for (ArrayList<GridSegment> inLayer : byLayer) {
+                for (GridSegment seg : inLayer) {
+                    if (seg.length >= minSize && (shortest == null || lengthOrder(seg, shortest) < 0)) {
+                        shortest = seg;
+                    }
+                    if (longest == null || lengthOrder(seg, longest) > 0) {
+                        longest = seg;
+                    }
+                }
+            }
+            if (!Objects.equals(segs.shortestFitting(minSize), shortest) || !Objects.equals(segs.longest(), longest)) {
+                throw new AssertionError("Shortest fitting " + minSize + " or longest over all layers");
+            }
+
+            // a take in one layer draws the placement count-then-k-th would, and splits its segment
+            int layer = 1 + rng.nextInt(LAYERS), spaceSize = 1 + rng.nextInt(10);
+            long inLayer = segs.countFittingSpaces(layer, spaceSize, spaceSize);
+            RNG.setSeed(i);
+            GridSegment expected = inLayer == 0 ? null
+                    : segs.getKthFittingSpace(layer, spaceSize, spaceSize, RNG.randPlacement(inLayer));
+            RNG.setSeed(i);
+            GridSegment[] taken = segs.takeRandomFittingSpace(layer, spaceSize);
+            if (!Objects.equals(taken == null ? null : taken[0], expected)) {
+                throw new AssertionError("Take of " + spaceSize + " in layer " + layer);
+            }
+            if (taken != null) {
+                GridSegment container = taken[1];
+                byLayer.get(layer).remove(container);
+                int before = taken[0].col - container.col, after = container.length - spaceSize - before;
+                if (before > 0) {
+                    byLayer.get(layer).add(GridSegment.GS(container.row, container.col, before));
+                }
+                if (after > 0) {
+                    byLayer.get(layer).add(GridSegment.GS(container.row, taken[0].col + spaceSize, after));
+                }
+            }
+        }
+        System.out.println("All layered tests passed successfully!");
+    }
+
+    private static int lengthOrder(GridSegment a, GridSegment b) {
+        return a.length != b.length ? Integer.compare(a.length, b.length)
+                : a.row != b.row ? Integer.compare(a.row, b.row) : Integer.compare(a.col, b.col);
+    }
+
+    private static void run(SegmentsByLength.Factory factory) {
         final int NROWS = 1000;
         final int NCOLS = 7;
         final boolean ARE_VERTICAL = false;  // change as desired
 
         // 1) Create the SegmentsByLength instance
-        SegmentsByLength segs = new PreallocatedHashedSegmentsByLengthNodes(NROWS, NCOLS, ARE_VERTICAL);
+        SegmentsByLength inserted = factory.create(NROWS, NCOLS, ARE_VERTICAL);
 
         // 2) Generate a set of unique random "hashes"
         //    We won't exceed the maximum possible: (maxLen+1) * NROWS * NCOLS
@@ -47,47 +192,118 @@ public class TestSegmentsByLengthRandom {
 
                 // Insert into your data structure
                 System.out.println("segments.insert("+seg.row+","+seg.col+","+seg.length+");");
-                segs.insert(seg.row, seg.col, seg.length);
+                inserted.insert(seg.row, seg.col, seg.length);
                 // Also store in brute force collection
                 bruteSegments.add(seg);
             }
         }
 
-        // 3) We'll do random queries for countFittingSpaces and getKthFittingSpace
-        final int NUM_QUERIES = 100;
-        for (int i = 0; i < NUM_QUERIES; i++) {
-            int spaceSize = 1 + rng.nextInt(MAX_LENGTH);  // random size in [1..MAX_LENGTH]
-
-            // 3a) Test countFittingSpaces
-            int expectedCount = bruteForceCount(bruteSegments, spaceSize, ARE_VERTICAL);
-            int actualCount = segs.countFittingSpaces(spaceSize);
-            if (expectedCount != actualCount) {
-                throw new AssertionError("countFittingSpaces("
-                        + spaceSize + ") mismatch. Expected="
-                        + expectedCount + ", got=" + actualCount);
-            }
+        // 2b) The same segments bulk-built from a shuffled list must answer exactly like the inserted ones
+        SegmentsByLength built = factory.create(NROWS, NCOLS, ARE_VERTICAL);
+        List<GridSegment> shuffled = new ArrayList<>(bruteSegments);
+        Collections.shuffle(shuffled, rng);
+        built.build(shuffled);
+        // and from a list in (length, row, col) order, which the treap builds without sorting
+        SegmentsByLength builtSorted = factory.create(NROWS, NCOLS, ARE_VERTICAL);
+        List<GridSegment> sorted = new ArrayList<>(bruteSegments);
+        sorted.sort(Comparator.comparingInt((GridSegment seg) -> seg.length).thenComparingInt(seg -> seg.row)
+                .thenComparingInt(seg -> seg.col));
+        builtSorted.build(sorted);
+
+        for (SegmentsByLength segs : List.of(inserted, built, builtSorted)) {
+            // 3) We'll do random queries for countFittingSpaces and getKthFittingSpace
+            final int NUM_QUERIES = 100;
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                int spaceSize = 1 + rng.nextInt(MAX_LENGTH);  // random size in [1..MAX_LENGTH]
 
-            if(expectedCount==0){
-                continue;
+                // 3a) Test countFittingSpaces
+                int expectedCount = bruteForceCount(bruteSegments, spaceSize, ARE_VERTICAL);
+                int actualCount = segs.countFittingSpaces(spaceSize);
+                if (expectedCount != actualCount) {
+                    throw new AssertionError("countFittingSpaces("
+                            + spaceSize + ") mismatch. Expected="
+                            + expectedCount + ", got=" + actualCount);
+                }
+
+                if(expectedCount==0){
+                    continue;
+                }
+
+                int k = 1 + rng.nextInt(expectedCount);
+                GridSegment actualSeg = segs.getKthFittingSpace(spaceSize, k);
+
+                GridSegment expectedSeg = (k > expectedCount)
+                        ? null
+                        : bruteForceKthSubSpace(bruteSegments, spaceSize, k, ARE_VERTICAL);
+
+                if (!Objects.equals(actualSeg, expectedSeg)) {
+                    throw new AssertionError("getKthFittingSpace("
+                            + spaceSize + "," + k + ") mismatch. Expected="
+                            + expectedSeg + ", got=" + actualSeg);
+                }
             }
 
-            int k = 1 + rng.nextInt(expectedCount);
-            GridSegment actualSeg = segs.getKthFittingSpace(spaceSize, k);
+            // 4) Length-range queries
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                int minSize = 1 + rng.nextInt(MAX_LENGTH);
+                int maxSize = minSize + rng.nextInt(MAX_LENGTH - minSize + 1);
+
+                long expectedCount = 0;
+                for (int len = minSize; len <= maxSize; len++) {
+                    expectedCount += bruteForceCount(bruteSegments, len, ARE_VERTICAL);
+                }
+                long actualCount = segs.countFittingSpaces(minSize, maxSize);
+                if (expectedCount != actualCount) {
+                    throw new AssertionError("countFittingSpaces("
+                            + minSize + "," + maxSize + ") mismatch. Expected="
+                            + expectedCount + ", got=" + actualCount);
+                }
 
-            GridSegment expectedSeg = (k > expectedCount)
-                    ? null
-                    : bruteForceKthSubSpace(bruteSegments, spaceSize, k, ARE_VERTICAL);
+                if (expectedCount == 0) {
+                    continue;
+                }
 
-            if (!Objects.equals(actualSeg, expectedSeg)) {
-                throw new AssertionError("getKthFittingSpace("
-                        + spaceSize + "," + k + ") mismatch. Expected="
-                        + expectedSeg + ", got=" + actualSeg);
+                long k = 1 + rng.nextInt((int) expectedCount);
+                GridSegment actualSeg = segs.getKthFittingSpace(minSize, maxSize, k);
+                GridSegment expectedSeg = bruteForceKthSubSpace(bruteSegments, minSize, maxSize, k, ARE_VERTICAL);
+                if (!Objects.equals(actualSeg, expectedSeg)) {
+                    throw new AssertionError("getKthFittingSpace("
+                            + minSize + "," + maxSize + "," + k + ") mismatch. Expected="
+                            + expectedSeg + ", got=" + actualSeg);
+                }
             }
         }
 
         System.out.println("All randomized tests passed successfully!");
     }
 
+    /**
+     * Brute force: k-th placement of any length in [minSize, maxSize],
+     * ordered by segment (length, row, col), then by placement length, then by offset.
+     */
+    private static GridSegment bruteForceKthSubSpace(ArrayList<GridSegment> segments,
+                                                     int minSize,
+                                                     int maxSize,
+                                                     long k,
+                                                     boolean areVertical) {
+        segments.sort(Comparator.<GridSegment>comparingInt(a -> a.length)
+                .thenComparingInt(a -> a.row)
+                .thenComparingInt(a -> a.col));
+
+        for (GridSegment seg : segments) {
+            for (int len = minSize; len <= Math.min(maxSize, seg.length); len++) {
+                int spaces = seg.length - len + 1;
+                if (k <= spaces) {
+                    int offset = (int) k - 1;
+                    return areVertical ? GridSegment.GS(seg.row + offset, seg.col, len)
+                                       : GridSegment.GS(seg.row, seg.col + offset, len);
+                }
+                k -= spaces;
+            }
+        }
+        return null;
+    }
+
     /**
      * Convert a hash to a GridSegment using your logic:
      *  int col = hash % nCols;  hash /= nCols;
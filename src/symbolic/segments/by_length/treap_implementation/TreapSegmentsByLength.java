@@ -0,0 +1,724 @@
+package symbolic.segments.by_length.treap_implementation;
+
+import symbolic.GridSegment;
+import symbolic.segments.by_length.LayeredSegmentsByLength;
+import symbolic.segments.by_length.PlacementCounts;
+import symbolic.segments.by_length.SegmentsByLength;
+import symbolic.segments.util.RNG;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Treap over the keys (length, row, col) of the stored segments, every node carrying the count, total length
+ * and total squared length of its subtree. Memory is proportional to the stored segments only, whatever the
+ * grid's dimensions, which suits grids far larger than what they hold (see SparseSegmentsByLength).
+ * <p>
+ * Every query is a descent over prefixes in key order. The placements of a length range come from the segments
+ * from the first key of the shortest length on, so the placements before a node are a function of the prefix
+ * aggregates at that node and at the range's bounds (PlacementCounts), and selecting the k-th one finds the
+ * first node whose prefix reaches k. Placements are ordered like in the other implementations.
+ * <p>
+ * With layers (see {@link #layered(int)}) the keys are (layer, length, row, col): the queries of one layer work
+ * between the prefixes at the layer's bounds, and the others go through the layers in turn, so placements are
+ * ordered layer by layer. With a single layer that is the usual order.
+ */
+public class TreapSegmentsByLength implements LayeredSegmentsByLength {
+
+    private static final int NIL = -1;
+
+    private final int nCols;
+    private final boolean areSegmentsVertical;
+    private final int maxLength;
+    private final long cells;
+    private final int rowsPerLayer, layers;
+
+    // Nodes by index: key, heap priority, children and subtree aggregates.
+    private long[] key = new long[16], cnt = new long[16], totalLen = new long[16], totalSqLen = new long[16];
+    private int[] prio = new int[16], left = new int[16], right = new int[16];
+    private int nodeCnt, root = NIL;
+    private int[] freeNodes = new int[16];
+    private int freeCnt;
+    // Priorities come from a generator of its own, so that the random reservations' sequence is not touched.
+    private int prioState = 0x9E3779B9;
+
+    // Results of split() and prefix().
+    private int splitLeft, splitRight;
+    private long prefixCnt, prefixLen, prefixSq;
+    // Aggregates of the segments before the range's shortest and longest lengths and before the end of its layer,
+    // set by bounds().
+    private long minCnt, minLen, minSq, maxCnt, maxLen, maxSq, endCnt, endLen, endSq;
+    // Placements of the range before the node found by select().
+    private long selectedBefore;
+    // Placements per layer counted by countLayers(), and those of the layers before the one found by layerOf().
+    private final long[] layerPlacements;
+    private long placementsBeforeLayer;
+
+    // Saved by snapshot().
+    private long[] templateKey, templateCnt, templateTotalLen, templateTotalSqLen;
+    private int[] templatePrio, templateLeft, templateRight, templateFree;
+    private int templateNodeCnt, templateRoot = NIL;
+
+    public TreapSegmentsByLength(int nRows, int nCols, boolean areSegmentsVertical) {
+        this(nRows, nCols, areSegmentsVertical, nRows);
+    }
+
+    public TreapSegmentsByLength(int nRows, int nCols, boolean areSegmentsVertical, int rowsPerLayer) {
+        if (rowsPerLayer < 1) {
+            throw new IllegalArgumentException("Invalid rows per layer " + rowsPerLayer);
+        }
+        this.nCols = nCols;
+        this.areSegmentsVertical = areSegmentsVertical;
+        this.maxLength = Math.max(nRows, nCols);
+        this.cells = (long) nRows * nCols;
+        this.rowsPerLayer = rowsPerLayer;
+        this.layers = Math.max((nRows + rowsPerLayer - 1) / rowsPerLayer, 1);
+        this.layerPlacements = new long[layers + 1];
+        if (layers * (maxLength + 1L) > Long.MAX_VALUE / Math.max(cells, 1)) {
+            throw new IllegalArgumentException("Grid " + nRows + "x" + nCols + " is too large for treap keys");
+        }
+    }
+
+    /**
+     * Treaps whose layers are rowsPerLayer rows each, see {@link LayeredSegmentsByLength}.
+     */
+    public static SegmentsByLength.Factory layered(int rowsPerLayer) {
+        return (nRows, nCols, vertical) -> new TreapSegmentsByLength(nRows, nCols, vertical, rowsPerLayer);
+    }
+
+    @Override
+    public void insert(int row, int col, int length) {
+        root = insertNode(root, newNode(key(length, row, col), length), length);
+    }
+
+    @Override
+    public void delete(int row, int col, int length) {
+        root = deleteKey(root, key(length, row, col), length);
+    }
+
+    /**
+     * Linear for segments in key order, like the full lines of a new grid; others are sorted first. The nodes are
+     * created in key order and hung into place with a stack of the right spine (a Cartesian tree of the
+     * priorities), then the aggregates are filled in bottom up.
+     */
+    @Override
+    public void build(List<GridSegment> segments) {
+        destroy();
+        int n = segments.size();
+        long[] keys = new long[n];
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            GridSegment seg = segments.get(i);
+            keys[i] = key(seg.length, seg.row, seg.col);
+            sorted &= i == 0 || keys[i - 1] < keys[i];
+        }
+        if (!sorted) {
+            Arrays.sort(keys);
+        }
+        int[] spine = new int[n];
+        int top = 0;
+        for (long k : keys) {
+            int x = newNode(k, (int) (k / cells % (maxLength + 1)));
+            int last = NIL;
+            while (top > 0 && prio[spine[top - 1]] < prio[x]) {
+                last = spine[--top];
+            }
+            left[x] = last;
+            if (top > 0) {
+                right[spine[top - 1]] = x;
+            }
+            spine[top++] = x;
+        }
+        root = top > 0 ? spine[0] : NIL;
+        // Post order: a node is updated once both of its subtrees are.
+        int[] stack = spine;
+        top = 0;
+        for (int x = root, lastDone = NIL; x != NIL || top > 0; ) {
+            if (x != NIL) {
+                stack[top++] = x;
+                x = left[x];
+                continue;
+            }
+            int peek = stack[top - 1];
+            if (right[peek] != NIL && right[peek] != lastDone) {
+                x = right[peek];
+            } else {
+                update(peek);
+                lastDone = stack[--top];
+            }
+        }
+    }
+
+    @Override
+    public int countFittingSpaces(int spaceSize) {
+        return (int) countFittingSpaces(spaceSize, spaceSize);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int spaceSize, int k) {
+        return getKthFittingSpace(spaceSize, spaceSize, k);
+    }
+
+    /**
+     * The layers are counted once, for the draw and to find the layer of the drawn placement.
+     */
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int spaceSize) {
+        long total = spaceSize > maxLength ? 0 : countLayers(spaceSize, spaceSize);
+        if (total == 0) {
+            return null;
+        }
+        return take(spaceSize, RNG.randPlacement(total));
+    }
+
+    @Override
+    public GridSegment[] takeRandomFittingSpace(int layer, int spaceSize) {
+        long total = countFittingSpaces(layer, spaceSize, spaceSize);
+        return total == 0 ? null : take(layer, spaceSize, RNG.randPlacement(total));
+    }
+
+    @Override
+    public GridSegment[] takeFittingSpace(int spaceSize, long k) {
+        if (spaceSize > maxLength || k < 1 || k > countLayers(spaceSize, spaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        return take(spaceSize, k);
+    }
+
+    /**
+     * Takes the k-th placement of spaceSize, which countLayers(spaceSize, spaceSize) just counted.
+     */
+    private GridSegment[] take(int spaceSize, long k) {
+        int layer = layerOf(k);
+        return take(layer, spaceSize, k - placementsBeforeLayer);
+    }
+
+    /**
+     * Takes the k-th placement of spaceSize in the layer, which has at least k of them.
+     */
+    private GridSegment[] take(int layer, int spaceSize, long k) {
+        int node = select(layer, spaceSize, spaceSize, k);
+        int length = length(node), before = (int) (k - selectedBefore - 1);
+        GridSegment container = segment(key[node], length);
+        GridSegment found = areSegmentsVertical ? GridSegment.GS(container.row + before, container.col, spaceSize)
+                                                : GridSegment.GS(container.row, container.col + before, spaceSize);
+        delete(container.row, container.col, length);
+        if (before > 0) {
+            insert(container.row, container.col, before);
+        }
+        int after = length - spaceSize - before;
+        if (after > 0) {
+            if (areSegmentsVertical) {
+                insert(found.row + spaceSize, found.col, after);
+            } else {
+                insert(found.row, found.col + spaceSize, after);
+            }
+        }
+        return new GridSegment[]{found, container};
+    }
+
+    /**
+     * O(layers * log n).
+     */
+    @Override
+    public long countFittingSpaces(int minSpaceSize, int maxSpaceSize) {
+        long res = 0;
+        for (int layer = 1; layer <= layers; layer++) {
+            res += countFittingSpaces(layer, minSpaceSize, maxSpaceSize);
+        }
+        return res;
+    }
+
+    @Override
+    public long countFittingSpaces(int layer, int minSpaceSize, int maxSpaceSize) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        checkLayer(layer);
+        maxSpaceSize = Math.min(maxSpaceSize, maxLength);
+        if (minSpaceSize > maxSpaceSize) {
+            return 0;
+        }
+        bounds(layer, minSpaceSize, maxSpaceSize);
+        return placementsBefore(endCnt, endLen, endSq, minSpaceSize, maxSpaceSize);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int minSpaceSize, int maxSpaceSize, long k) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        if (k <= 0 || k > countLayers(minSpaceSize, maxSpaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        int layer = layerOf(k);
+        return kth(layer, minSpaceSize, Math.min(maxSpaceSize, maxLength), k - placementsBeforeLayer);
+    }
+
+    @Override
+    public GridSegment getKthFittingSpace(int layer, int minSpaceSize, int maxSpaceSize, long k) {
+        PlacementCounts.checkRange(minSpaceSize, maxSpaceSize);
+        maxSpaceSize = Math.min(maxSpaceSize, maxLength);
+        if (minSpaceSize > maxSpaceSize || k <= 0 || k > countFittingSpaces(layer, minSpaceSize, maxSpaceSize)) {
+            throw new IllegalArgumentException("k out of range: " + k);
+        }
+        return kth(layer, minSpaceSize, maxSpaceSize, k);
+    }
+
+    /**
+     * k-th placement of lengths [min, max] in the layer, which has at least k of them.
+     */
+    private GridSegment kth(int layer, int minSpaceSize, int maxSpaceSize, long k) {
+        int node = select(layer, minSpaceSize, maxSpaceSize, k);
+        int length = length(node);
+        k -= selectedBefore;
+        // Placements of one segment: all of length min, then min + 1, ...
+        for (int spaceSize = minSpaceSize; ; ++spaceSize) {
+            int spacesOfSize = length - spaceSize + 1;
+            if (k <= spacesOfSize) {
+                GridSegment seg = segment(key[node], length);
+                int offset = (int) k - 1;
+                return areSegmentsVertical ? GridSegment.GS(seg.row + offset, seg.col, spaceSize)
+                                           : GridSegment.GS(seg.row, seg.col + offset, spaceSize);
+            }
+            k -= spacesOfSize;
+        }
+    }
+
+    /**
+     * The shortest of the layers' shortest, the lowest layer on ties, as it comes first in (length, row, col) order.
+     */
+    @Override
+    public GridSegment shortestFitting(int spaceSize) {
+        if (spaceSize > maxLength) {
+            return null;
+        }
+        int res = NIL;
+        for (int layer = 1; layer <= layers; layer++) {
+            int x = ceiling(bound(layer, spaceSize));
+            if (x != NIL && key[x] < bound(layer + 1, 0) && (res == NIL || length(x) < length(res))) {
+                res = x;
+            }
+        }
+        return res == NIL ? null : segment(key[res], length(res));
+    }
+
+    /**
+     * The longest of the layers' longest, the highest layer on ties, as it comes last in (length, row, col) order.
+     */
+    @Override
+    public GridSegment longest() {
+        int res = NIL;
+        for (int layer = 1; layer <= layers; layer++) {
+            int x = floor(bound(layer + 1, 0));
+            if (x != NIL && key[x] >= bound(layer, 0) && (res == NIL || length(x) >= length(res))) {
+                res = x;
+            }
+        }
+        return res == NIL ? null : segment(key[res], length(res));
+    }
+
+    @Override
+    public int segmentCount() {
+        return root == NIL ? 0 : (int) cnt[root];
+    }
+
+    @Override
+    public long totalLength() {
+        return root == NIL ? 0 : totalLen[root];
+    }
+
+    @Override
+    public int countSegments(int minLength, int maxLength) {
+        int res = 0;
+        for (int layer = 1; layer <= layers; layer++) {
+            res += countSegments(layer, minLength, maxLength);
+        }
+        return res;
+    }
+
+    @Override
+    public int layerCount() {
+        return layers;
+    }
+
+    @Override
+    public int countSegments(int layer, int minLength, int maxLength) {
+        checkLayer(layer);
+        maxLength = Math.min(maxLength, this.maxLength);
+        minLength = Math.max(minLength, 1);
+        if (minLength > maxLength) {
+            return 0;
+        }
+        prefix(bound(layer, maxLength + 1));
+        long upTo = prefixCnt;
+        prefix(bound(layer, minLength));
+        return (int) (upTo - prefixCnt);
+    }
+
+    @Override
+    public void snapshot() {
+        templateKey = Arrays.copyOf(key, nodeCnt);
+        templateCnt = Arrays.copyOf(cnt, nodeCnt);
+        templateTotalLen = Arrays.copyOf(totalLen, nodeCnt);
+        templateTotalSqLen = Arrays.copyOf(totalSqLen, nodeCnt);
+        templatePrio = Arrays.copyOf(prio, nodeCnt);
+        templateLeft = Arrays.copyOf(left, nodeCnt);
+        templateRight = Arrays.copyOf(right, nodeCnt);
+        templateFree = Arrays.copyOf(freeNodes, freeCnt);
+        templateNodeCnt = nodeCnt;
+        templateRoot = root;
+    }
+
+    /**
+     * Array copies of the saved nodes only.
+     */
+    @Override
+    public void restore() {
+        nodeCnt = templateNodeCnt;
+        System.arraycopy(templateKey, 0, key, 0, nodeCnt);
+        System.arraycopy(templateCnt, 0, cnt, 0, nodeCnt);
+        System.arraycopy(templateTotalLen, 0, totalLen, 0, nodeCnt);
+        System.arraycopy(templateTotalSqLen, 0, totalSqLen, 0, nodeCnt);
+        System.arraycopy(templatePrio, 0, prio, 0, nodeCnt);
+        System.arraycopy(templateLeft, 0, left, 0, nodeCnt);
+        System.arraycopy(templateRight, 0, right, 0, nodeCnt);
+        freeCnt = templateFree.length;
+        if (freeNodes.length < freeCnt) {
+            freeNodes = new int[freeCnt];
+        }
+        System.arraycopy(templateFree, 0, freeNodes, 0, freeCnt);
+        root = templateRoot;
+    }
+
+    @Override
+    public void compact() {
+    }
+
+    @Override
+    public void destroy() {
+        root = NIL;
+        nodeCnt = 0;
+        freeCnt = 0;
+    }
+
+    // --------------------------
+    //         Selection
+    // --------------------------
+
+    /**
+     * Placements of lengths [min, max] in every layer, also kept per layer for layerOf().
+     */
+    private long countLayers(int minSpaceSize, int maxSpaceSize) {
+        long res = 0;
+        for (int layer = 1; layer <= layers; layer++) {
+            layerPlacements[layer] = countFittingSpaces(layer, minSpaceSize, maxSpaceSize);
+            res += layerPlacements[layer];
+        }
+        return res;
+    }
+
+    /**
+     * Layer of the k-th placement counted by the last countLayers(); the placements of the layers before it go
+     * to placementsBeforeLayer.
+     */
+    private int layerOf(long k) {
+        int layer = 1;
+        long before = 0;
+        for (; layer < layers && k > before + layerPlacements[layer]; ++layer) {
+            before += layerPlacements[layer];
+        }
+        placementsBeforeLayer = before;
+        return layer;
+    }
+
+    /**
+     * Aggregates of the segments before the layer's ones shorter than min, shorter than max, and before the next
+     * layer. The last layer ends with the whole tree.
+     */
+    private void bounds(int layer, int minSpaceSize, int maxSpaceSize) {
+        prefix(bound(layer, minSpaceSize));
+        minCnt = prefixCnt;
+        minLen = prefixLen;
+        minSq = prefixSq;
+        prefix(bound(layer, maxSpaceSize));
+        maxCnt = prefixCnt;
+        maxLen = prefixLen;
+        maxSq = prefixSq;
+        if (layer < layers) {
+            prefix(bound(layer + 1, 0));
+        } else {
+            prefixCnt = agg(cnt, root);
+            prefixLen = agg(totalLen, root);
+            prefixSq = agg(totalSqLen, root);
+        }
+        endCnt = prefixCnt;
+        endLen = prefixLen;
+        endSq = prefixSq;
+    }
+
+    /**
+     * Placements of lengths [min, max] in the layer's segments of a key-order prefix with the given aggregates.
+     * Nondecreasing along the order, and constant past the layer; needs bounds(layer, min, max).
+     */
+    private long placementsBefore(long c, long l, long s, int minSpaceSize, int maxSpaceSize) {
+        if (c <= minCnt) {
+            return 0;
+        }
+        if (c > endCnt) {
+            c = endCnt;
+            l = endLen;
+            s = endSq;
+        }
+        if (c <= maxCnt) {
+            return PlacementCounts.fittingRange(c - minCnt, l - minLen, s - minSq, minSpaceSize, maxSpaceSize, true);
+        }
+        long res = 0;
+        if (maxCnt > minCnt) {
+            res = PlacementCounts.fittingRange(maxCnt - minCnt, maxLen - minLen, maxSq - minSq,
+                    minSpaceSize, maxSpaceSize, true);
+        }
+        return res + PlacementCounts.fittingRange(c - maxCnt, l - maxLen, s - maxSq, minSpaceSize, maxSpaceSize, false);
+    }
+
+    /**
+     * Node holding the k-th placement of lengths [min, max]; the placements before it go to selectedBefore.
+     */
+    private int select(int layer, int minSpaceSize, int maxSpaceSize, long k) {
+        bounds(layer, minSpaceSize, maxSpaceSize);
+        long c = 0, l = 0, s = 0;
+        for (int x = root; x != NIL; ) {
+            int lc = left[x];
+            long cl = c + agg(cnt, lc), ll = l + agg(totalLen, lc), sl = s + agg(totalSqLen, lc);
+            long beforeX = placementsBefore(cl, ll, sl, minSpaceSize, maxSpaceSize);
+            if (beforeX >= k) {
+                x = lc;
+                continue;
+            }
+            long len = length(x);
+            c = cl + 1;
+            l = ll + len;
+            s = sl + len * len;
+            if (placementsBefore(c, l, s, minSpaceSize, maxSpaceSize) >= k) {
+                selectedBefore = beforeX;
+                return x;
+            }
+            x = right[x];
+        }
+        throw new IllegalArgumentException("k out of range");
+    }
+
+    /**
+     * Aggregates of the keys below bound, into prefixCnt, prefixLen and prefixSq.
+     */
+    private void prefix(long bound) {
+        long c = 0, l = 0, s = 0;
+        for (int x = root; x != NIL; ) {
+            if (key[x] < bound) {
+                int lc = left[x];
+                long len = length(x);
+                c += agg(cnt, lc) + 1;
+                l += agg(totalLen, lc) + len;
+                s += agg(totalSqLen, lc) + len * len;
+                x = right[x];
+            } else {
+                x = left[x];
+            }
+        }
+        prefixCnt = c;
+        prefixLen = l;
+        prefixSq = s;
+    }
+
+    /**
+     * Node with the smallest key >= bound, or NIL.
+     */
+    private int ceiling(long bound) {
+        int res = NIL;
+        for (int x = root; x != NIL; ) {
+            if (key[x] >= bound) {
+                res = x;
+                x = left[x];
+            } else {
+                x = right[x];
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Node with the largest key < bound, or NIL.
+     */
+    private int floor(long bound) {
+        int res = NIL;
+        for (int x = root; x != NIL; ) {
+            if (key[x] < bound) {
+                res = x;
+                x = right[x];
+            } else {
+                x = left[x];
+            }
+        }
+        return res;
+    }
+
+    // --------------------------
+    //         Treap
+    // --------------------------
+
+    /**
+     * Splits t into the keys below k (splitLeft) and the others (splitRight).
+     */
+    private void split(int t, long k) {
+        if (t == NIL) {
+            splitLeft = splitRight = NIL;
+            return;
+        }
+        if (key[t] < k) {
+            split(right[t], k);
+            right[t] = splitLeft;
+            update(t);
+            splitLeft = t;
+        } else {
+            split(left[t], k);
+            left[t] = splitRight;
+            update(t);
+            splitRight = t;
+        }
+    }
+
+    /**
+     * Descends to where node's priority puts it and splits only the subtree there; the nodes above only
+     * gain the new segment in their aggregates.
+     */
+    private int insertNode(int t, int node, long length) {
+        if (t == NIL) {
+            return node;
+        }
+        if (prio[node] > prio[t]) {
+            split(t, key[node]);
+            left[node] = splitLeft;
+            right[node] = splitRight;
+            update(node);
+            return node;
+        }
+        if (key[node] < key[t]) {
+            left[t] = insertNode(left[t], node, length);
+        } else {
+            right[t] = insertNode(right[t], node, length);
+        }
+        ++cnt[t];
+        totalLen[t] += length;
+        totalSqLen[t] += length * length;
+        return t;
+    }
+
+    private int deleteKey(int t, long k, long length) {
+        assert (t != NIL);
+        if (key[t] == k) {
+            freeNode(t);
+            return merge(left[t], right[t]);
+        }
+        if (k < key[t]) {
+            left[t] = deleteKey(left[t], k, length);
+        } else {
+            right[t] = deleteKey(right[t], k, length);
+        }
+        --cnt[t];
+        totalLen[t] -= length;
+        totalSqLen[t] -= length * length;
+        return t;
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (prio[a] > prio[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    private void update(int x) {
+        long len = length(x);
+        int l = left[x], r = right[x];
+        cnt[x] = 1 + agg(cnt, l) + agg(cnt, r);
+        totalLen[x] = len + agg(totalLen, l) + agg(totalLen, r);
+        totalSqLen[x] = len * len + agg(totalSqLen, l) + agg(totalSqLen, r);
+    }
+
+    private static long agg(long[] values, int x) {
+        return x == NIL ? 0 : values[x];
+    }
+
+    private int newNode(long k, int length) {
+        int x;
+        if (freeCnt > 0) {
+            x = freeNodes[--freeCnt];
+        } else {
+            x = nodeCnt++;
+            if (x == key.length) {
+                int capacity = 2 * x;
+                key = Arrays.copyOf(key, capacity);
+                cnt = Arrays.copyOf(cnt, capacity);
+                totalLen = Arrays.copyOf(totalLen, capacity);
+                totalSqLen = Arrays.copyOf(totalSqLen, capacity);
+                prio = Arrays.copyOf(prio, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+            }
+        }
+        key[x] = k;
+        // xorshift32
+        prioState ^= prioState << 13;
+        prioState ^= prioState >>> 17;
+        prioState ^= prioState << 5;
+        prio[x] = prioState;
+        left[x] = right[x] = NIL;
+        cnt[x] = 1;
+        totalLen[x] = length;
+        totalSqLen[x] = (long) length * length;
+        return x;
+    }
+
+    private void freeNode(int x) {
+        if (freeCnt == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, 2 * freeCnt);
+        }
+        freeNodes[freeCnt++] = x;
+    }
+
+    // --------------------------
+    //         Keys
+    // --------------------------
+
+    private long key(int length, int row, int col) {
+        return bound((row - 1) / rowsPerLayer + 1, length) + (long) (row - 1) * nCols + (col - 1);
+    }
+
+    /**
+     * First key of the layer's segments of the given length; bound(layer + 1, 0) ends the layer.
+     */
+    private long bound(int layer, int length) {
+        return ((layer - 1L) * (maxLength + 1) + length) * cells;
+    }
+
+    private int length(int x) {
+        return (int) (key[x] / cells % (maxLength + 1));
+    }
+
+    private GridSegment segment(long k, int length) {
+        long pos = k % cells;
+        return GridSegment.GS((int) (pos / nCols) + 1, (int) (pos % nCols) + 1, length);
+    }
+
+    private void checkLayer(int layer) {
+        if (layer < 1 || layer > layers) {
+            throw new IllegalArgumentException("Invalid layer " + layer + ", expected 1.." + layers);
+        }
+    }
+}
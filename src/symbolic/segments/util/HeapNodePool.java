@@ -0,0 +1,112 @@
+package symbolic.segments.util;
+
+import java.util.Arrays;
+
+/**
+ * Records in int arrays on the Java heap, one array per page of nodes. Pages are added as the tree grows and never
+ * copied; only the array of pages is, when it fills up. Shrinking drops whole pages for the GC to collect. The
+ * arrays hold no references, so the GC never traces into them.
+ */
+final class HeapNodePool extends NodePool {
+    // Nodes per page at most. Small trees get a single page of their initial capacity.
+    static final int MAX_PAGE_NODES = 1 << 12;
+
+    private final int pageShift, pageMask, stride;
+    private int[][] pages = new int[4][];
+    private int pageCnt;
+    private int[][] template = new int[0][]; // page-sized copies, see saveNodes()
+
+    HeapNodePool(NodeLayout layout, int initialCapacity) {
+        super(layout);
+        int pageNodes = Integer.highestOneBit(Math.min(Math.max(initialCapacity, 2), MAX_PAGE_NODES) * 2 - 1);
+        pageShift = Integer.numberOfTrailingZeros(pageNodes);
+        pageMask = pageNodes - 1;
+        stride = layout.stride;
+        do {
+            grow();
+        } while (capacity() < initialCapacity);
+        created();
+    }
+
+    private int base(int i) {
+        return (i & pageMask) * stride;
+    }
+
+    @Override
+    public int getInt(int i, int slot) {
+        return pages[i >>> pageShift][base(i) + slot];
+    }
+
+    @Override
+    public void putInt(int i, int slot, int value) {
+        pages[i >>> pageShift][base(i) + slot] = value;
+    }
+
+    @Override
+    public long getLong(int i, int slot) {
+        int[] page = pages[i >>> pageShift];
+        int at = base(i) + slot;
+        return (long) page[at] << 32 | (page[at + 1] & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void putLong(int i, int slot, long value) {
+        int[] page = pages[i >>> pageShift];
+        int at = base(i) + slot;
+        page[at] = (int) (value >>> 32);
+        page[at + 1] = (int) value;
+    }
+
+    @Override
+    public void clear(int i) {
+        System.arraycopy(layout.blank, 0, pages[i >>> pageShift], base(i), stride);
+    }
+
+    @Override
+    public int capacity() {
+        return pageCnt << pageShift;
+    }
+
+    @Override
+    protected void grow() {
+        if (pageCnt == pages.length) {
+            pages = Arrays.copyOf(pages, 2 * pageCnt);
+        }
+        pages[pageCnt++] = new int[(pageMask + 1) * stride];
+    }
+
+    @Override
+    protected int shrink(int count) {
+        int keep = Math.max(1, (count + pageMask) >>> pageShift);
+        for (; pageCnt > keep; pageCnt--) {
+            pages[pageCnt - 1] = null;
+        }
+        return capacity();
+    }
+
+    @Override
+    protected void swap(int a, int b) {
+        int[] pageA = pages[a >>> pageShift], pageB = pages[b >>> pageShift];
+        int baseA = base(a), baseB = base(b);
+        for (int slot = 0; slot < stride; slot++) {
+            int value = pageA[baseA + slot];
+            pageA[baseA + slot] = pageB[baseB + slot];
+            pageB[baseB + slot] = value;
+        }
+    }
+
+    @Override
+    protected void saveNodes(int count) {
+        template = new int[(count + pageMask) >>> pageShift][];
+        for (int p = 0; p < template.length; p++) {
+            template[p] = Arrays.copyOf(pages[p], Math.min(pageMask + 1, count - (p << pageShift)) * stride);
+        }
+    }
+
+    @Override
+    protected void loadNodes(int count) {
+        for (int p = 0; p < template.length; p++) {
+            System.arraycopy(template[p], 0, pages[p], 0, template[p].length);
+        }
+    }
+}
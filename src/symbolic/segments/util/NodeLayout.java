@@ -0,0 +1,34 @@
+package symbolic.segments.util;
+
+import symbolic.instrumentation.Structure;
+
+/**
+ * Fields of the nodes of one kind of tree in a {@link NodePool}: each node is a record of int slots, a long
+ * taking two. The tree reads and writes its fields through the pool by slot; the pool only needs to know the
+ * record size, what a cleared node holds and which slots link it to other nodes, for relayout.
+ */
+public final class NodeLayout {
+
+    final Structure structure;
+    final int stride; // slots per node
+    final int[] blank;
+    final int nil, left, right, parent;
+
+    /**
+     * blank is the record of a cleared node, one value per slot; nil the child link of a missing child; left,
+     * right and parent the slots of the links, parent -1 if the nodes have no parent link.
+     */
+    public NodeLayout(Structure structure, int[] blank, int nil, int left, int right, int parent) {
+        if (blank.length == 0 || left < 0 || left >= blank.length || right < 0 || right >= blank.length
+                || parent >= blank.length) {
+            throw new IllegalArgumentException("Invalid node layout of " + blank.length + " slots");
+        }
+        this.structure = structure;
+        this.stride = blank.length;
+        this.blank = blank.clone();
+        this.nil = nil;
+        this.left = left;
+        this.right = right;
+        this.parent = parent;
+    }
+}
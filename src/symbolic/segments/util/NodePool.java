@@ -0,0 +1,296 @@
+package symbolic.segments.util;
+
+import symbolic.instrumentation.Instrumentation;
+
+/**
+ * Nodes of one tree, addressed by index, as records of int slots laid out by a {@link NodeLayout}. Fresh nodes
+ * come from a bump pointer, freed ones are reused first. Index 0 is never handed out and stays all zeros, so it
+ * works as an empty link of trees whose nil is 0.
+ * Subclasses decide where the records live: {@link HeapNodePool} in int arrays on the Java heap,
+ * {@link OffHeapNodePool} in direct memory.
+ */
+public abstract class NodePool {
+    // A relayout is due once the pool handed out this many times the nodes in use since the last one
+    // (-Dsymbolic.pool.relayoutChurn, default 0: only on request, as one relayout stalls the insert that
+    // triggers it for milliseconds), counting at least RELAYOUT_MIN_NODES in use: small trees
+    // fit in cache however they are numbered.
+    static final int RELAYOUT_CHURN = Integer.getInteger("symbolic.pool.relayoutChurn", 0);
+    static final int RELAYOUT_MIN_NODES = 4096;
+
+    protected final NodeLayout layout;
+    private final PreallocatedResizableArrayStack freeIndices;
+    // Nodes handed out since the last relayout, rewind or settled(), see needsRelayout().
+    private int handedOutSinceRelayout;
+    private int next = 1; // nodes [next, capacity) have not been handed out since the last rewind
+    // Highest bump pointer since the last restore() and in the cycle before it, see restore().
+    private int cyclePeak = 1, lastCyclePeak = 1;
+
+    // Copy of the free list and the bump pointer, see snapshot(). Subclasses save the nodes themselves.
+    private int templateNext = 1;
+    private int[] templateFree = new int[0];
+
+    protected NodePool(NodeLayout layout) {
+        this.layout = layout;
+        freeIndices = new PreallocatedResizableArrayStack(16);
+    }
+
+    /**
+     * Pool for a tree of this layout with room for initialCapacity nodes, in direct memory if offHeap.
+     */
+    public static NodePool create(NodeLayout layout, int initialCapacity, boolean offHeap) {
+        return offHeap ? new OffHeapNodePool(layout, initialCapacity) : new HeapNodePool(layout, initialCapacity);
+    }
+
+    // --------------------------
+    //         Slots of node i
+    // --------------------------
+
+    public abstract int getInt(int i, int slot);
+
+    public abstract void putInt(int i, int slot, int value);
+
+    /**
+     * The long in slots slot and slot + 1.
+     */
+    public abstract long getLong(int i, int slot);
+
+    public abstract void putLong(int i, int slot, long value);
+
+    /**
+     * Puts back the blank record of the layout.
+     */
+    public abstract void clear(int i);
+
+    // --------------------------
+    //         Storage
+    // --------------------------
+
+    public abstract int capacity();
+
+    /**
+     * Adds room for more nodes; the indices of existing nodes stay valid.
+     */
+    protected abstract void grow();
+
+    /**
+     * Drops the storage not needed for nodes [0, count), down to at least one page. Returns the new capacity.
+     */
+    protected abstract int shrink(int count);
+
+    /**
+     * Exchanges all slots of nodes a and b.
+     */
+    protected abstract void swap(int a, int b);
+
+    /**
+     * Saves the records of nodes [0, count) for {@link #loadNodes(int)}.
+     */
+    protected abstract void saveNodes(int count);
+
+    /**
+     * Puts back the records saved by the last saveNodes(count).
+     */
+    protected abstract void loadNodes(int count);
+
+    // --------------------------
+    //         Allocation
+    // --------------------------
+
+    /**
+     * Index of a cleared node, see {@link NodeLayout}.
+     */
+    public int newNode() {
+        int index;
+        if (!freeIndices.isEmpty()) {
+            index = freeIndices.popLast();
+        } else {
+            if (next == capacity()) {
+                int oldCapacity = capacity();
+                long start = Instrumentation.ENABLED ? Instrumentation.start() : 0;
+                grow();
+                if (Instrumentation.ENABLED) {
+                    Instrumentation.poolExpanded(layout.structure, oldCapacity, capacity(), start);
+                }
+            }
+            index = next++;
+        }
+        ++handedOutSinceRelayout;
+        if (Instrumentation.ENABLED) {
+            Instrumentation.nodeAcquired(layout.structure);
+        }
+        clear(index);
+        return index;
+    }
+
+    public void freeNode(int index) {
+        clear(index);
+        freeIndices.pushBack(index);
+        if (Instrumentation.ENABLED) {
+            Instrumentation.nodeReleased(layout.structure);
+        }
+    }
+
+    /**
+     * Hands every node back at once, O(1).
+     */
+    public void rewind() {
+        if (Instrumentation.ENABLED) {
+            Instrumentation.nodesReleased(layout.structure, next - 1 - freeIndices.size());
+        }
+        cyclePeak = Math.max(cyclePeak, next);
+        next = 1;
+        freeIndices.clear();
+        handedOutSinceRelayout = 0;
+    }
+
+    /**
+     * Hands every node back and returns all storage but the first page, forgetting the snapshot too:
+     * for a tree that is done with, whose pool may stay reachable for a while.
+     */
+    public void release() {
+        rewind();
+        snapshot();
+        cyclePeak = lastCyclePeak = 1;
+        shrinkTo(1);
+    }
+
+    /**
+     * Remembers the contents of all nodes handed out so far, for restore().
+     */
+    public void snapshot() {
+        templateNext = next;
+        saveNodes(next);
+        templateFree = new int[freeIndices.size()];
+        for (int i = 0; i < templateFree.length; i++) {
+            templateFree[i] = freeIndices.get(i);
+        }
+    }
+
+    /**
+     * Puts back the nodes saved by the last snapshot(): a bump pointer rewind plus a copy of the saved nodes,
+     * O(saved nodes). Nodes handed out after the snapshot are reclaimed without being visited.
+     * Pages that neither the cycle ending here nor the one before it reached are idle and are released,
+     * so one unusually full cycle does not pin its memory, while steady cycles never give up pages they reuse.
+     */
+    public void restore() {
+        int peak = Math.max(cyclePeak, next);
+        shrinkTo(Math.max(Math.max(peak, lastCyclePeak), templateNext));
+        lastCyclePeak = peak;
+        cyclePeak = 1;
+        if (Instrumentation.ENABLED) {
+            Instrumentation.nodesReleased(layout.structure,
+                    (next - freeIndices.size()) - (templateNext - templateFree.length));
+        }
+        next = templateNext;
+        handedOutSinceRelayout = 0;
+        loadNodes(templateNext);
+        freeIndices.clear();
+        for (int index : templateFree) {
+            freeIndices.pushBack(index);
+        }
+    }
+
+    // --------------------------
+    //         Layout
+    // --------------------------
+
+    /**
+     * Whether enough nodes were handed out since the last relayout that the tree is likely scattered over the
+     * pool: new nodes go to the end of the pool and freed slots are reused last in, first out, wherever their
+     * neighbours in the tree are.
+     */
+    public boolean needsRelayout() {
+        return RELAYOUT_CHURN > 0 && handedOutSinceRelayout
+                >= (long) RELAYOUT_CHURN * Math.max(next - 1 - freeIndices.size(), RELAYOUT_MIN_NODES);
+    }
+
+    /**
+     * The nodes handed out so far are in a good order already, e.g. after a bulk build in preorder.
+     */
+    public void settled() {
+        handedOutSinceRelayout = 0;
+    }
+
+    /**
+     * Renumbers the nodes of the tree under root into depth-first preorder, 1, 2, ..., so that every descent
+     * reads memory front to back and a node's left child is its neighbour. The links are rewritten, the fields
+     * moved by swaps along the cycles of the renumbering, and the free slots end up behind the last node,
+     * where the bump pointer hands them out in order. O(nodes handed out). Returns the new index of root, 1.
+     * Indices held outside the nodes, other than root's, are invalid afterwards.
+     */
+    public int relayout(int root) {
+        long start = Instrumentation.ENABLED ? Instrumentation.start() : 0;
+        int[] index = new int[next]; // old index -> new index
+        int[] stack = new int[66]; // at most one pending right child per level, and trees stay below 64 levels
+        int top = 0, cnt = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int v = stack[--top];
+            index[v] = ++cnt;
+            if (getInt(v, layout.right) != layout.nil) {
+                stack[top++] = getInt(v, layout.right);
+            }
+            if (getInt(v, layout.left) != layout.nil) {
+                stack[top++] = getInt(v, layout.left);
+            }
+        }
+        if (cnt != next - 1 - freeIndices.size()) {
+            throw new IllegalStateException("Tree under " + root + " holds " + cnt + " of the "
+                    + (next - 1 - freeIndices.size()) + " nodes in use");
+        }
+        for (int v = 1, free = cnt; v < next; v++) {
+            if (index[v] == 0) {
+                index[v] = ++free; // not in the tree: a free slot
+            }
+        }
+        for (int v = 1; v < next; v++) {
+            if (index[v] <= cnt) {
+                relink(v, layout.left, index);
+                relink(v, layout.right, index);
+                if (layout.parent >= 0) {
+                    relink(v, layout.parent, index);
+                }
+            }
+        }
+        for (int v = 1; v < next; v++) {
+            while (index[v] != v) {
+                int w = index[v];
+                swap(v, w);
+                index[v] = index[w];
+                index[w] = w;
+            }
+        }
+        cyclePeak = Math.max(cyclePeak, next);
+        next = cnt + 1;
+        freeIndices.clear();
+        handedOutSinceRelayout = 0;
+        if (Instrumentation.ENABLED) {
+            Instrumentation.poolRelaidOut(layout.structure, start);
+        }
+        return 1;
+    }
+
+    private void relink(int v, int slot, int[] index) {
+        int w = getInt(v, slot);
+        if (w != layout.nil) {
+            putInt(v, slot, index[w]);
+        }
+    }
+
+    private void shrinkTo(int count) {
+        int oldCapacity = capacity();
+        int newCapacity = shrink(count);
+        if (Instrumentation.ENABLED && newCapacity != oldCapacity) {
+            Instrumentation.poolShrunk(layout.structure, oldCapacity, newCapacity);
+        }
+    }
+
+    /**
+     * Called by subclass constructors once the initial storage exists.
+     */
+    protected final void created() {
+        if (Instrumentation.ENABLED) {
+            Instrumentation.poolCreated(layout.structure, capacity());
+        }
+    }
+}
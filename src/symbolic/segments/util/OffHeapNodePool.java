@@ -0,0 +1,120 @@
+package symbolic.segments.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Records in direct buffers, outside the Java heap: the GC never marks or copies them, however many there are.
+ * Storage is a list of equally sized arenas. Growing adds an arena, existing nodes are never copied.
+ * Arenas are freed once unreachable: with the pool, or after shrinking dropped them. A long is read in one access
+ * when its first slot is even.
+ */
+final class OffHeapNodePool extends NodePool {
+    // Nodes per arena at most, 2 MB for 8 slots. Small trees get a single arena of their initial capacity.
+    static final int MAX_ARENA_NODES = 1 << 16;
+
+    private final int arenaShift, arenaMask, strideBytes;
+    private final ByteBuffer blank;
+    private ByteBuffer[] arenas = new ByteBuffer[4];
+    private int arenaCnt;
+    private ByteBuffer[] template = new ByteBuffer[0]; // arena-sized copies, see saveNodes()
+
+    OffHeapNodePool(NodeLayout layout, int initialCapacity) {
+        super(layout);
+        int arenaNodes = Integer.highestOneBit(Math.min(Math.max(initialCapacity, 2), MAX_ARENA_NODES) * 2 - 1);
+        arenaShift = Integer.numberOfTrailingZeros(arenaNodes);
+        arenaMask = arenaNodes - 1;
+        strideBytes = 4 * layout.stride;
+        blank = ByteBuffer.allocateDirect(strideBytes).order(ByteOrder.nativeOrder());
+        for (int slot = 0; slot < layout.stride; slot++) {
+            blank.putInt(4 * slot, layout.blank[slot]);
+        }
+        do {
+            grow();
+        } while (capacity() < initialCapacity);
+        created();
+    }
+
+    private ByteBuffer arena(int i) {
+        return arenas[i >>> arenaShift];
+    }
+
+    private int offset(int i) {
+        return (i & arenaMask) * strideBytes;
+    }
+
+    @Override
+    public int getInt(int i, int slot) {
+        return arena(i).getInt(offset(i) + 4 * slot);
+    }
+
+    @Override
+    public void putInt(int i, int slot, int value) {
+        arena(i).putInt(offset(i) + 4 * slot, value);
+    }
+
+    @Override
+    public long getLong(int i, int slot) {
+        return arena(i).getLong(offset(i) + 4 * slot);
+    }
+
+    @Override
+    public void putLong(int i, int slot, long value) {
+        arena(i).putLong(offset(i) + 4 * slot, value);
+    }
+
+    @Override
+    public void clear(int i) {
+        arena(i).put(offset(i), blank, 0, strideBytes);
+    }
+
+    @Override
+    public int capacity() {
+        return arenaCnt << arenaShift;
+    }
+
+    @Override
+    protected void grow() {
+        if (arenaCnt == arenas.length) {
+            arenas = Arrays.copyOf(arenas, 2 * arenaCnt);
+        }
+        arenas[arenaCnt++] = ByteBuffer.allocateDirect((arenaMask + 1) * strideBytes).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    protected int shrink(int count) {
+        int keep = Math.max(1, (count + arenaMask) >>> arenaShift);
+        for (; arenaCnt > keep; arenaCnt--) {
+            arenas[arenaCnt - 1] = null;
+        }
+        return capacity();
+    }
+
+    @Override
+    protected void swap(int a, int b) {
+        ByteBuffer arenaA = arena(a), arenaB = arena(b);
+        int offsetA = offset(a), offsetB = offset(b);
+        for (int field = 0; field < strideBytes; field += 4) {
+            int value = arenaA.getInt(offsetA + field);
+            arenaA.putInt(offsetA + field, arenaB.getInt(offsetB + field));
+            arenaB.putInt(offsetB + field, value);
+        }
+    }
+
+    @Override
+    protected void saveNodes(int count) {
+        template = new ByteBuffer[(count + arenaMask) >>> arenaShift];
+        for (int a = 0; a < template.length; a++) {
+            int bytes = Math.min(arenaMask + 1, count - (a << arenaShift)) * strideBytes;
+            template[a] = ByteBuffer.allocateDirect(bytes).put(0, arenas[a], 0, bytes);
+        }
+    }
+
+    @Override
+    protected void loadNodes(int count) {
+        for (int a = 0; a < template.length; a++) {
+            arenas[a].put(0, template[a], 0, template[a].capacity());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package symbolic.segments.util;
+
+/**
+ * First allocation of the node pools of a tree, from the grid's dimensions and the fill the grid is expected to
+ * reach, so that big grids do not start with a string of expansions. Pools grow by pages afterwards and give
+ * idle pages back on reset and destroy, so the estimate only needs to be in the right range.
+ * <p>
+ * The expected fill is the fraction of cells that will be reserved. A grid can be given its own, see
+ * {@link symbolic.engine.Engine#create(int, int, double)}; the others use -Dsymbolic.pool.expectedFill
+ * (default 0, i.e. room for the initial full lines only).
+ */
+public final class PoolSizing {
+
+    public static final String EXPECTED_FILL_PROPERTY = "symbolic.pool.expectedFill";
+    // Beyond this, the first allocation would stall construction longer than the expansions it saves.
+    public static final int MAX_INITIAL_NODES = 1 << 22;
+
+    private PoolSizing() {
+    }
+
+    /**
+     * Expected fill of grids created without one: -Dsymbolic.pool.expectedFill, read on every call so that a bad
+     * value fails the grid being created with an IllegalArgumentException rather than this class.
+     */
+    public static double defaultFill() {
+        String value = System.getProperty(EXPECTED_FILL_PROPERTY, "0");
+        double fill;
+        try {
+            fill = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            fill = Double.NaN;
+        }
+        if (!(fill >= 0 && fill <= 1)) {
+            throw new IllegalArgumentException(EXPECTED_FILL_PROPERTY + " must be in [0, 1], got " + value);
+        }
+        return fill;
+    }
+
+    public static void checkFill(double expectedFill) {
+        if (!(expectedFill >= 0 && expectedFill <= 1)) {
+            throw new IllegalArgumentException("Expected fill must be in [0, 1], got " + expectedFill);
+        }
+    }
+
+    /**
+     * Free segments expected in one orientation: one per line, plus one per reserved cell of the other orientation,
+     * which cuts a line of this one in two. Reservations are taken to be half of each orientation.
+     */
+    public static long expectedSegments(int nRows, int nCols, boolean vertical, double expectedFill) {
+        long lines = vertical ? nCols : nRows;
+        return lines + (long) (expectedFill / 2 * nRows * nCols);
+    }
+
+    /**
+     * Initial capacity of a pool whose tree needs nodesPerSegment nodes per stored segment.
+     */
+    public static int initialNodes(int nRows, int nCols, boolean vertical, int nodesPerSegment, double expectedFill) {
+        checkFill(expectedFill);
+        return (int) Math.min(MAX_INITIAL_NODES,
+                expectedSegments(nRows, nCols, vertical, expectedFill) * nodesPerSegment + 2);
+    }
+}
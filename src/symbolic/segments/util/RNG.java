@@ -4,6 +4,11 @@ import static java.lang.Math.pow;
 
 import java.util.Random;
 
+/**
+ * Random source of all random reservations: one sequence shared by every thread, restarted by setSeed.
+ * A thread can draw from a Random of its own instead, see {@link #useOwn(Random)}; ChunkGenerator's producer
+ * does, so filling chunks in the background neither takes from nor disturbs the shared sequence.
+ */
 public class RNG {
 
     private static long seed = new Random().nextLong();
@@ -15,13 +20,52 @@ public class RNG {
 
     private static Random RANDOM = new Random(seed);
 
+    // Random of the threads that called useOwn, null for the others
+    private static final ThreadLocal<Random> OWN = new ThreadLocal<>();
+
+    /**
+     * Restarts the shared sequence, or the calling thread's own one if it has one.
+     */
     public static void setSeed(long newSeed) {
-        seed = newSeed;
-        RANDOM = new Random(seed);
+        Random own = OWN.get();
+        if (own != null) {
+            own.setSeed(newSeed);
+        } else {
+            seed = newSeed;
+            RANDOM = new Random(seed);
+        }
+    }
+
+    /**
+     * From now on the calling thread draws from random instead of the shared sequence; null goes back to it.
+     */
+    public static void useOwn(Random random) {
+        if (random == null) {
+            OWN.remove();
+        } else {
+            OWN.set(random);
+        }
     }
 
     public static int randInt(int l, int r){
-        return l+RANDOM.nextInt(r-l+1);
+        return l+random().nextInt(r-l+1);
+    }
+
+    public static long randLong(long l, long r){
+        return l+random().nextLong(r-l+1);
+    }
+
+    /**
+     * Uniform k in 1..total. Every random reservation draws its placement here, whatever the count and the
+     * engine, so a seed picks the same placement on every engine and every grid size.
+     */
+    public static long randPlacement(long total) {
+        return randLong(1, total);
+    }
+
+    private static Random random() {
+        Random own = OWN.get();
+        return own != null ? own : RANDOM;
     }
 
 }
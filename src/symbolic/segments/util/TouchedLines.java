@@ -0,0 +1,121 @@
+package symbolic.segments.util;
+
+import java.util.Arrays;
+
+/**
+ * Lines 1..nLines of a sparse index that hold something other than one free segment over the whole line,
+ * as a sorted array: memory and lookups follow the touched lines, while the untouched ones stay implicit.
+ * Adding a line shifts the tail of the array, which is cheap as long as few lines are touched.
+ */
+public class TouchedLines {
+
+    private final int nLines;
+    private int[] lines = new int[16];
+    private int size;
+    private int[] template = new int[0];
+
+    public TouchedLines(int nLines) {
+        this.nLines = nLines;
+    }
+
+    public boolean contains(int line) {
+        return Arrays.binarySearch(lines, 0, size, line) >= 0;
+    }
+
+    /**
+     * Marks the line touched. False if it already was.
+     */
+    public boolean add(int line) {
+        int pos = Arrays.binarySearch(lines, 0, size, line);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -(pos + 1);
+        if (size == lines.length) {
+            lines = Arrays.copyOf(lines, 2 * size);
+        }
+        System.arraycopy(lines, pos, lines, pos + 1, size - pos);
+        lines[pos] = line;
+        ++size;
+        return true;
+    }
+
+    public int untouchedCount() {
+        return nLines - size;
+    }
+
+    /**
+     * The j-th (0-based) untouched line, O(log touched): the untouched lines before the i-th touched one
+     * number lines[i] - 1 - i, which grows with i.
+     */
+    public int untouched(long j) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lines[mid] - 1 - mid <= j) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return (int) (j + 1 + lo);
+    }
+
+    /**
+     * First untouched line >= from, or nLines + 1 if there is none.
+     */
+    public int nextUntouched(int from) {
+        int pos = Arrays.binarySearch(lines, 0, size, from);
+        if (pos < 0) {
+            return from;
+        }
+        int line = from;
+        while (pos < size && lines[pos] == line) {
+            ++pos;
+            ++line;
+        }
+        return line;
+    }
+
+    /**
+     * Last untouched line, or 0 if there is none.
+     */
+    public int lastUntouched() {
+        int line = nLines, pos = size - 1;
+        while (pos >= 0 && lines[pos] == line) {
+            --pos;
+            --line;
+        }
+        return line;
+    }
+
+    /**
+     * Touches every line except the given ones, which must be sorted.
+     */
+    public void setUntouched(int[] untouched, int count) {
+        size = 0;
+        int u = 0;
+        for (int line = 1; line <= nLines; line++) {
+            if (u < count && untouched[u] == line) {
+                ++u;
+            } else {
+                if (size == lines.length) {
+                    lines = Arrays.copyOf(lines, 2 * size);
+                }
+                lines[size++] = line;
+            }
+        }
+    }
+
+    public void snapshot() {
+        template = Arrays.copyOf(lines, size);
+    }
+
+    public void restore() {
+        if (lines.length < template.length) {
+            lines = new int[template.length];
+        }
+        System.arraycopy(template, 0, lines, 0, template.length);
+        size = template.length;
+    }
+}